@@ -3,13 +3,13 @@ package de.npcomplete.nplisp;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 
+import de.npcomplete.nplisp.core.DeepRecursion;
 import de.npcomplete.nplisp.core.Environment;
 import de.npcomplete.nplisp.core.Namespace;
 import de.npcomplete.nplisp.core.Var;
@@ -17,13 +17,18 @@ import de.npcomplete.nplisp.corelibrary.CoreLibrary;
 import de.npcomplete.nplisp.corelibrary.CoreLibrary.TailCall;
 import de.npcomplete.nplisp.corelibrary.SyntaxQuote;
 import de.npcomplete.nplisp.corelibrary.Concat;
+import de.npcomplete.nplisp.corelibrary.Numbers;
 import de.npcomplete.nplisp.data.Delay;
+import de.npcomplete.nplisp.data.PersistentArrayMap;
+import de.npcomplete.nplisp.data.PersistentHashSet;
+import de.npcomplete.nplisp.data.PersistentVector;
 import de.npcomplete.nplisp.data.Sequence;
 import de.npcomplete.nplisp.data.Symbol;
 import de.npcomplete.nplisp.function.LispFunction;
 import de.npcomplete.nplisp.function.LispFunctionFactory;
 import de.npcomplete.nplisp.function.LispFunctionFactory.Fn1;
 import de.npcomplete.nplisp.function.LispFunctionFactory.Fn2;
+import de.npcomplete.nplisp.function.LispFunctionFactory.Fn3;
 import de.npcomplete.nplisp.function.Macro;
 import de.npcomplete.nplisp.function.SpecialForm;
 import de.npcomplete.nplisp.function.VarArgsFunction;
@@ -35,10 +40,8 @@ import de.npcomplete.nplisp.util.LispPrinter;
 // TODO: 'try/catch/finally' form
 // TODO: 'with-open' form
 // TODO: javadoc in CoreLibrary
-// TODO: proper macro expansion
 // TODO: ensure all used symbols are already bound when invoking 'fn' or 'defmacro'
 // TODO: destructuring
-// TODO: switch from using java.util.List to own Vector class
 
 public class Lisp {
 	static final Var CORE_EVAL_VAR = new Var(new Symbol("nplisp.core/eval")).markFixed();
@@ -79,6 +82,7 @@ public class Lisp {
 		// DATA STRUCTURE CREATION
 		def(coreNs, "list", (VarArgsFunction) CoreLibrary::list);
 		def(coreNs, "vector", (VarArgsFunction) CoreLibrary::vector);
+		def(coreNs, "vector-of", (VarArgsFunction) CoreLibrary::vectorOf);
 		def(coreNs, "hash-set", (VarArgsFunction) CoreLibrary::hashSet);
 		def(coreNs, "hash-map", (VarArgsFunction) CoreLibrary::hashMap);
 
@@ -90,12 +94,38 @@ public class Lisp {
 		def(coreNs, "count", (Fn1) CoreLibrary::count);
 		def(coreNs, "cons", (Fn2) CoreLibrary::cons);
 		def(coreNs, "concat*", (Fn2) Concat::concat);
+		def(coreNs, "chunked-seq?", (Fn1) CoreLibrary::isChunkedSeq);
+		def(coreNs, "chunk-first", (Fn1) CoreLibrary::chunkFirst);
+		def(coreNs, "chunk-rest", (Fn1) CoreLibrary::chunkRest);
+		def(coreNs, "chunk-next", (Fn1) CoreLibrary::chunkNext);
+
+		// COLLECTION MANIPULATION
+		def(coreNs, "conj", (Fn2) CoreLibrary::conj);
+		def(coreNs, "assoc", (Fn3) CoreLibrary::assoc);
+		def(coreNs, "dissoc", (Fn2) CoreLibrary::dissoc);
+		def(coreNs, "disj", (Fn2) CoreLibrary::disj);
+		def(coreNs, "contains?", (Fn2) CoreLibrary::contains);
+		def(coreNs, "nth", (Fn2) CoreLibrary::nth);
+		def(coreNs, "reduce", CoreLibrary.FN_REDUCE);
+		def(coreNs, "reduced", (Fn1) CoreLibrary::reduced);
+		def(coreNs, "reduced?", (Fn1) CoreLibrary::isReduced);
 
 		// MATHS
-		def(coreNs, "+", CoreLibrary.FN_ADD);
-		def(coreNs, "-", CoreLibrary.FN_SUBTRACT);
-		def(coreNs, "*", CoreLibrary.FN_MULTIPLY);
-		def(coreNs, "/", CoreLibrary.FN_DIVIDE);
+		def(coreNs, "+", Numbers.FN_ADD);
+		def(coreNs, "-", Numbers.FN_SUBTRACT);
+		def(coreNs, "*", Numbers.FN_MULTIPLY);
+		def(coreNs, "/", Numbers.FN_DIVIDE);
+		def(coreNs, "inc", Numbers.FN_INC);
+		def(coreNs, "dec", Numbers.FN_DEC);
+
+		// COMPARISONS
+		def(coreNs, "=", Numbers.FN_EQUIV);
+		def(coreNs, "==", Numbers.FN_NUM_EQUALS);
+		def(coreNs, "<", Numbers.FN_LESS);
+		def(coreNs, ">", Numbers.FN_GREATER);
+		def(coreNs, "<=", Numbers.FN_LESS_OR_EQUAL);
+		def(coreNs, ">=", Numbers.FN_GREATER_OR_EQUAL);
+		def(coreNs, "zero?", Numbers.FN_ZERO);
 
 		// STRING, SYMBOL, AND KEYWORD INTERACTION
 		def(coreNs, "str", (VarArgsFunction) CoreLibrary::str);
@@ -143,7 +173,6 @@ public class Lisp {
 		def(coreNs, "set?", (Fn1) CoreLibrary::isSet);
 		def(coreNs, "map?", (Fn1) CoreLibrary::isMap);
 
-		// TODO: COMPARISONS
 		def(coreNs, "equals", (Fn2) Objects::equals); // TODO: replace with interop when available
 
 		// TODO: INTEROP
@@ -171,13 +200,19 @@ public class Lisp {
 		if (!(val instanceof Var)) {
 			return val;
 		}
-		Var var = (Var) val;
+		return derefVar((Var) val, env.namespace, allowMacro);
+	}
+
+	/**
+	 * Returns the value of the var as seen from code in the given namespace.
+	 * Macros are returned as {@link Macro} instances if allowMacro is true.
+	 */
+	public static Object derefVar(Var var, Namespace ns, boolean allowMacro) {
 		if (var.isMacro()) {
 			if (!allowMacro) {
 				throw new LispException("Can't take value of a macro: " + var);
 			}
 			if (var == CORE_SYNTAX_QUOTE_VAR) {
-				Namespace ns = env.namespace;
 				Var sqFnVar = ns.lookupVar(CORE_SYNTAX_QUOTE_STAR_SYM, true, false);
 				return (Macro) args -> {
 					if (args.next() != null) {
@@ -191,16 +226,29 @@ public class Lisp {
 		}
 		// generate 'eval' function which uses the current namespace for evaluation
 		if (var == CORE_EVAL_VAR) {
-			Namespace ns = env.namespace;
 			return (Fn1) par -> eval(par, new Environment(ns), false);
 		}
 		if (var == CORE_CURRENT_NS_VAR) {
-			return env.namespace;
+			return ns;
 		}
 		return var.deref();
 	}
 
 	public static Object eval(Object obj, Environment env, boolean allowRecur) throws LispException {
+		if (!DeepRecursion.isEnabled()) {
+			return evalForm(obj, env, allowRecur);
+		}
+		if (!DeepRecursion.enter()) {
+			return DeepRecursion.inNewSegment(() -> evalForm(obj, env, allowRecur));
+		}
+		try {
+			return evalForm(obj, env, allowRecur);
+		} finally {
+			DeepRecursion.leave();
+		}
+	}
+
+	private static Object evalForm(Object obj, Environment env, boolean allowRecur) {
 		if (obj instanceof Symbol) {
 			return lookup(env, (Symbol) obj, false);
 		}
@@ -222,7 +270,8 @@ public class Lisp {
 				return check(allowRecur, ((SpecialForm) callable).apply(args, env, allowRecur));
 			}
 
-			// TODO: proper macro expansion phase (try to expand macros after reading)
+			// Note: macros in function and loop bodies are expanded once by the Analyzer.
+			//       Here they are only expanded for top level forms and if the analyzer is disabled.
 			if (callable instanceof Macro) {
 				Sequence args = seq.more();
 				Object expansion = ((Macro) callable).expand(args);
@@ -272,37 +321,39 @@ public class Lisp {
 
 		if (obj instanceof List) {
 			List<?> list = (List<?>) obj;
-			List<Object> result = new ArrayList<>();
+			PersistentVector.TransientVector result = PersistentVector.EMPTY.asTransient();
 			for (Object o : list) {
-				result.add(eval(o, env, false));
+				result.conj(eval(o, env, false));
 			}
-			return result;
+			return result.persistent();
 		}
 
 		if (obj instanceof Set) {
 			Set<?> set = (Set<?>) obj;
-			Set<Object> result = new HashSet<>(set.size() * 2);
+			PersistentHashSet.TransientHashSet result = PersistentHashSet.EMPTY.asTransient();
 			for (Object o : set) {
 				Object key = eval(o, env, false);
-				if (result.contains(key)) {
+				int size = result.count();
+				result.conj(key);
+				if (result.count() == size) {
 					throw new LispException("Set creation with duplicate key: " + key);
 				}
-				result.add(key);
 			}
-			return result;
+			return result.persistent();
 		}
 
 		if (obj instanceof Map) {
 			Map<?, ?> map = (Map<?, ?>) obj;
-			Map<Object, Object> result = new HashMap<>(map.size() * 2);
+			PersistentArrayMap.TransientArrayMap result = PersistentArrayMap.EMPTY.asTransient();
 			for (Entry<?, ?> e : map.entrySet()) {
 				Object key = eval(e.getKey(), env, false);
-				if (result.containsKey(key)) {
+				int size = result.count();
+				result.assoc(key, eval(e.getValue(), env, false));
+				if (result.count() == size) {
 					throw new LispException("Map creation with duplicate key: " + key);
 				}
-				result.put(key, eval(e.getValue(), env, false));
 			}
-			return result;
+			return result.persistent();
 		}
 
 		return obj;
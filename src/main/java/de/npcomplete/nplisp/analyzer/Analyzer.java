@@ -0,0 +1,677 @@
+package de.npcomplete.nplisp.analyzer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.compiler.RuntimeSupport;
+import de.npcomplete.nplisp.core.DeepRecursion;
+import de.npcomplete.nplisp.core.Environment;
+import de.npcomplete.nplisp.core.Namespace;
+import de.npcomplete.nplisp.core.Var;
+import de.npcomplete.nplisp.corelibrary.CoreLibrary;
+import de.npcomplete.nplisp.data.ArraySequence;
+import de.npcomplete.nplisp.data.Cons;
+import de.npcomplete.nplisp.data.Sequence;
+import de.npcomplete.nplisp.data.Symbol;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory;
+import de.npcomplete.nplisp.function.Macro;
+import de.npcomplete.nplisp.function.MultiArityFunction;
+import de.npcomplete.nplisp.function.SpecialForm;
+import de.npcomplete.nplisp.util.LispElf;
+import de.npcomplete.nplisp.util.LispPrinter;
+
+/**
+ * Converts forms into a tree of {@link Node}s, so that symbol resolution, macro expansion
+ * and the dispatch on the type of form only happens once, instead of on every evaluation.
+ * Forms the analyzer does not know how to handle are evaluated by {@link de.npcomplete.nplisp.Lisp#eval}.
+ * <p>
+ * The analyzer can be switched off with the system property <code>nplisp.analyzer=false</code>
+ * or via {@link #setEnabled(boolean)}, in which case all function and loop bodies are run
+ * by the plain evaluator. (useful to compare results and performance)
+ */
+public final class Analyzer {
+	private static final Symbol SYM_DO = new Symbol("nplisp.core", "do");
+	private static final Symbol SYM_FN = new Symbol("nplisp.core", "fn");
+	private static final Symbol SYM_IF = new Symbol("nplisp.core", "if");
+	private static final Symbol SYM_LET = new Symbol("nplisp.core", "let");
+	private static final Symbol SYM_LOOP = new Symbol("nplisp.core", "loop");
+	private static final Symbol SYM_QUOTE = new Symbol("nplisp.core", "quote");
+
+	// core functions without side effects, which are called right away if all arguments are constants
+	private static final Set<String> PURE_CORE_FUNCTIONS = new HashSet<>(Arrays.asList(
+			"+", "-", "*", "/", "inc", "dec",
+			"=", "==", "<", ">", "<=", ">=", "zero?", "not", "equals",
+			"nil?", "some?", "symbol?", "keyword?", "string?", "seqable?", "seq?", "vector?", "set?", "map?",
+			"str", "name", "count", "first", "next", "rest", "conj", "assoc", "dissoc", "disj", "contains?", "nth"));
+
+	private static volatile boolean enabled = !"false".equals(System.getProperty("nplisp.analyzer"));
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		Analyzer.enabled = enabled;
+	}
+
+	// the environment in which the analyzed code is created
+	private final Environment env;
+	private final Namespace ns;
+	private final boolean analyze;
+
+	// the function or loop body which is currently analyzed
+	private RecurTarget recurTarget;
+
+	private Analyzer(Environment env) {
+		this.env = env;
+		this.ns = env.namespace;
+		this.analyze = enabled;
+	}
+
+	/**
+	 * Analyzes the arguments of a 'fn' form and returns a new function
+	 * created in the given environment.
+	 */
+	public static LispFunction evalFn(Sequence args, Environment env) {
+		FrameLayout root = new FrameLayout(null, 1, null);
+		Node node = new Analyzer(env).fn(args, Scope.EMPTY, root);
+		return (LispFunction) node.execute(rootFrame(root, env));
+	}
+
+	/**
+	 * Analyzes the arguments of a 'loop' form and runs the loop in the given environment.
+	 */
+	public static Object evalLoop(Sequence args, Environment env) {
+		FrameLayout root = new FrameLayout(null, 1, null);
+		Node node = new Analyzer(env).loop(args, Scope.EMPTY, root);
+		return node.execute(rootFrame(root, env));
+	}
+
+	private static Object[] rootFrame(FrameLayout root, Environment env) {
+		Object[] frame = new Object[root.size()];
+		frame[Frames.CAPTURED_SLOT] = env;
+		return frame;
+	}
+
+	private Node analyze(Object form, Scope scope, FrameLayout layout, boolean tail) {
+		if (!analyze) {
+			return interpreted(form, tail, scope, layout);
+		}
+		if (form instanceof Symbol) {
+			Symbol sym = (Symbol) form;
+			Node local = local(sym, scope, layout);
+			return local != null
+					? local
+					: varRef(sym, resolveVar(sym), false);
+		}
+		if (form instanceof Sequence) {
+			return sequence((Sequence) form, scope, layout, tail);
+		}
+		if (form instanceof List) {
+			Node[] items = analyzeAll((List<?>) form, scope, layout);
+			return literal(new VectorNode(items), items, RuntimeSupport::vector);
+		}
+		if (form instanceof Set) {
+			Node[] items = analyzeAll((Set<?>) form, scope, layout);
+			return literal(new SetNode(items), items, RuntimeSupport::set);
+		}
+		if (form instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) form;
+			Node[] keyValues = new Node[map.size() * 2];
+			int i = 0;
+			for (Entry<?, ?> e : map.entrySet()) {
+				keyValues[i++] = analyze(e.getKey(), scope, layout, false);
+				keyValues[i++] = analyze(e.getValue(), scope, layout, false);
+			}
+			return literal(new MapNode(keyValues), keyValues,
+					RuntimeSupport::map);
+		}
+		return new ConstantNode(form);
+	}
+
+	/**
+	 * Returns a constant if all items of the collection literal are constants.
+	 * The collection is then created only once, as an unmodifiable instance.
+	 */
+	private static Node literal(Node node, Node[] items, Function<Object[], Object> factory) {
+		Object[] values = new Object[items.length];
+		for (int i = 0; i < items.length; i++) {
+			if (!(items[i] instanceof ConstantNode)) {
+				return node;
+			}
+			values[i] = ((ConstantNode) items[i]).value;
+		}
+		try {
+			return new ConstantNode(factory.apply(values));
+		} catch (LispException e) {
+			// e.g. duplicate keys, which are reported when the literal is evaluated
+			return node;
+		}
+	}
+
+	private Node[] analyzeAll(Iterable<?> forms, Scope scope, FrameLayout layout) {
+		List<Node> nodes = new ArrayList<>();
+		for (Object form : forms) {
+			nodes.add(analyze(form, scope, layout, false));
+		}
+		return nodes.toArray(new Node[0]);
+	}
+
+	/**
+	 * Analyzes the forms as if they were in an implicit 'do' block.
+	 */
+	private Node body(Sequence forms, Scope scope, FrameLayout layout, boolean tail) {
+		if (!analyze) {
+			Sequence body = forms != null ? forms : Sequence.EMPTY_SEQUENCE;
+			captureSymbols(body, scope, layout);
+			return new InterpretedNode(body, tail, ns, scope, layout);
+		}
+		if (forms == null || forms.empty()) {
+			return ConstantNode.NIL;
+		}
+		List<Node> statements = new ArrayList<>();
+		Object form = forms.first();
+		while ((forms = forms.next()) != null) {
+			statement(statements, analyze(form, scope, layout, false));
+			form = forms.first();
+		}
+		Node ret = analyze(form, scope, layout, tail);
+		if (ret instanceof DoNode) {
+			// flatten nested 'do' blocks
+			for (Node statement : ((DoNode) ret).statements) {
+				statement(statements, statement);
+			}
+			ret = ((DoNode) ret).ret;
+		}
+		return statements.isEmpty()
+				? ret
+				: new DoNode(statements.toArray(new Node[0]), ret);
+	}
+
+	/**
+	 * Adds a node whose value is not used. Nested 'do' blocks are flattened,
+	 * and nodes without side effects are dropped.
+	 */
+	private static void statement(List<Node> statements, Node node) {
+		if (node instanceof DoNode) {
+			DoNode doNode = (DoNode) node;
+			for (Node statement : doNode.statements) {
+				statement(statements, statement);
+			}
+			statement(statements, doNode.ret);
+		} else if (!(node instanceof ConstantNode || node instanceof LocalRefNode)) {
+			statements.add(node);
+		}
+	}
+
+	private Node sequence(Sequence seq, Scope scope, FrameLayout layout, boolean tail) {
+		if (seq.empty()) {
+			throw new LispException("Can't evaluate empty list");
+		}
+		Object head = seq.first();
+		Sequence args = seq.more();
+
+		if (!(head instanceof Symbol)) {
+			return invoke(seq, analyze(head, scope, layout, false), args, scope, layout, tail, true);
+		}
+
+		Symbol sym = (Symbol) head;
+		Node local = local(sym, scope, layout);
+		if (local != null) {
+			// the local might be bound to a special form, so args are analyzed leniently
+			return invoke(seq, local, args, scope, layout, tail, true);
+		}
+
+		Var var = resolveVar(sym);
+		if (var != null && var.isMacro()) {
+			return macroexpand(var, seq, scope, layout, tail);
+		}
+		if (var != null && var.isBound() && var.deref() instanceof SpecialForm) {
+			Symbol sfSym = var.symbol;
+			if (SYM_DO.equals(sfSym)) {
+				return body(args, scope, layout, tail);
+			}
+			if (SYM_IF.equals(sfSym)) {
+				return ifForm(args, scope, layout, tail);
+			}
+			if (SYM_LET.equals(sfSym)) {
+				return let(args, scope, layout, tail);
+			}
+			if (SYM_LOOP.equals(sfSym)) {
+				return loop(args, scope, layout);
+			}
+			if (SYM_FN.equals(sfSym)) {
+				return fn(args, scope, layout);
+			}
+			if (SYM_QUOTE.equals(sfSym)) {
+				if (!LispElf.matchSize(args, 1, 1)) {
+					throw new LispException("'quote' requires exactly 1 argument: (quote FORM)");
+				}
+				return new ConstantNode(args.first());
+			}
+			return interpreted(seq, tail, scope, layout);
+		}
+
+		if (tail && var != null && var.isBound() && var.deref() == CoreLibrary.FN_RECUR && recurTarget != null) {
+			return recur(args, scope, layout);
+		}
+
+		// unbound vars might become macros or special forms until they are called
+		boolean lenient = var == null || !var.isBound();
+		Node invoke = invoke(seq, varRef(sym, var, true), args, scope, layout, tail, lenient);
+		if (lenient) {
+			return invoke;
+		}
+		Node folded = fold(var, (InvokeNode) invoke);
+		return folded instanceof InvokeNode
+				? TypeFeedback.specialize((InvokeNode) folded, var, Lisp.derefVar(var, ns, false))
+				: folded;
+	}
+
+	/**
+	 * Returns a node for the reference to a global symbol. If the var is directly linked,
+	 * its current value is used as a constant. Otherwise the var is dereferenced on evaluation.
+	 */
+	private Node varRef(Symbol sym, Var var, boolean allowMacro) {
+		if (var == null || !var.isBound() || var.isMacro() || !ns.directLinking().links(var)) {
+			return new VarRefNode(sym, ns, allowMacro);
+		}
+		var.markLinked();
+		Object value = Lisp.derefVar(var, ns, false);
+		if (allowMacro) {
+			// called in head position, so the conversion to a function can be done right away
+			LispFunction f = LispFunctionFactory.from(value);
+			if (f != null) {
+				value = f;
+			}
+		}
+		return new ConstantNode(value);
+	}
+
+	/**
+	 * Expands the macro call once and analyzes the expansion in place of the call.
+	 * Errors during the expansion are deferred to the time the form is evaluated.
+	 */
+	private Node macroexpand(Var var, Sequence form, Scope scope, FrameLayout layout, boolean tail) {
+		Object expansion;
+		try {
+			Macro macro = (Macro) Lisp.derefVar(var, ns, true);
+			expansion = macro.expand(form.more());
+		} catch (RuntimeException e) {
+			return interpreted(form, tail, scope, layout);
+		}
+		try {
+			return analyze(expansion, scope, layout, tail);
+		} catch (LispException e) {
+			// e.g. an empty list in a branch which is never taken
+			return interpreted(expansion, tail, scope, layout);
+		}
+	}
+
+	/**
+	 * Returns the result of the call as a constant, if a pure core function
+	 * is called with constant arguments. Otherwise the call is returned as is.
+	 * Like a var reference, the call is only folded if the var is directly linked,
+	 * since a rebound var must not be replaced by the result of its old value.
+	 * Calls which fail are not folded, so the error is reported when the call is evaluated.
+	 */
+	private Node fold(Var var, InvokeNode invoke) {
+		if (!"nplisp.core".equals(var.symbol.nsName) || !PURE_CORE_FUNCTIONS.contains(var.symbol.name)
+				|| !ns.directLinking().links(var)) {
+			return invoke;
+		}
+		Object[] args = new Object[invoke.args.length];
+		for (int i = 0; i < args.length; i++) {
+			if (!(invoke.args[i] instanceof ConstantNode)) {
+				return invoke;
+			}
+			args[i] = ((ConstantNode) invoke.args[i]).value;
+		}
+		try {
+			LispFunction f = LispFunctionFactory.from(Lisp.derefVar(var, ns, false));
+			if (f == null) {
+				return invoke;
+			}
+			Object result = f.applyTo(new ArraySequence(args));
+			var.markLinked();
+			return new ConstantNode(result);
+		} catch (RuntimeException e) {
+			return invoke;
+		}
+	}
+
+	private Node invoke(Sequence form, Node fn, Sequence args, Scope scope, FrameLayout layout,
+			boolean tail, boolean lenient) {
+		if (lenient) {
+			// the callable might turn out to be a special form or macro, which gets the raw forms
+			captureSymbols(args, scope, layout);
+		}
+		List<Node> argNodes = new ArrayList<>();
+		for (Object arg : args) {
+			argNodes.add(lenient
+					? analyzeLenient(arg, scope, layout)
+					: analyze(arg, scope, layout, false));
+		}
+		return new InvokeNode(form, fn, argNodes.toArray(new Node[0]), tail, ns, scope, layout);
+	}
+
+	/**
+	 * Analyzes the form, but defers any errors to the time the form is actually evaluated.
+	 */
+	private Node analyzeLenient(Object form, Scope scope, FrameLayout layout) {
+		try {
+			return analyze(form, scope, layout, false);
+		} catch (LispException e) {
+			return interpreted(form, false, scope, layout);
+		}
+	}
+
+	/**
+	 * Analyzes a call to 'recur' in tail position. The arity is checked right away,
+	 * so a mismatch is reported when the function or loop is created.
+	 */
+	private Node recur(Sequence args, Scope scope, FrameLayout layout) {
+		RecurTarget target = recurTarget;
+		Node[] argNodes = analyzeAll(args, scope, layout);
+		if (argNodes.length != target.count) {
+			throw new LispException("'recur' did not match required arity." +
+					" Expected: " + target.count + ". Actual: " + argNodes.length);
+		}
+		if (target.count > 1 && target.scratchSlot < 0) {
+			target.scratchSlot = layout.allocate();
+			for (int i = 1; i < target.count; i++) {
+				layout.allocate();
+			}
+		}
+		return new RecurNode(target.firstSlot, argNodes, target.scratchSlot);
+	}
+
+	private Node ifForm(Sequence args, Scope scope, FrameLayout layout, boolean tail) {
+		if (!LispElf.matchSize(args, 2, 3)) {
+			throw new LispException("'if' requires 2 or 3 arguments: (if TEST THEN *ELSE*)");
+		}
+		Node test = analyze(args.first(), scope, layout, false);
+		args = args.next();
+		Node then = analyze(args.first(), scope, layout, tail);
+		args = args.next();
+		Node otherwise = args != null
+				? analyze(args.first(), scope, layout, tail)
+				: ConstantNode.NIL;
+		if (test instanceof ConstantNode) {
+			// only one of the branches is reachable
+			return LispElf.truthy(((ConstantNode) test).value) ? then : otherwise;
+		}
+		return new IfNode(test, then, otherwise);
+	}
+
+	private Node let(Sequence args, Scope scope, FrameLayout layout, boolean tail) {
+		if (args.empty()) {
+			throw new LispException("'let' requires at least one argument: (let BINDINGS *&FORMS*)");
+		}
+		Object arg1 = args.first();
+		if (!(arg1 instanceof List)) {
+			throw new LispException("'let' first argument is not a List");
+		}
+		List<?> bindings = (List<?>) arg1;
+		if (bindings.size() % 2 != 0) {
+			throw new LispException("'let' bindings List doesn't have an even number of elements");
+		}
+
+		int[] slots = new int[bindings.size() / 2];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = layout.allocate();
+		}
+		Node[] inits = new Node[slots.length];
+		scope = bindings(bindings, slots, inits, scope, layout, "let");
+
+		return new LetNode(slots, inits, body(args.next(), scope, layout, tail));
+	}
+
+	private Node loop(Sequence args, Scope scope, FrameLayout layout) {
+		if (args.empty()) {
+			throw new LispException("'loop' requires at least one argument: (let BINDINGS *&FORMS*)");
+		}
+		Object arg1 = args.first();
+		if (!(arg1 instanceof List)) {
+			throw new LispException("'loop' first argument is not a List");
+		}
+		List<?> bindings = (List<?>) arg1;
+		if (bindings.size() % 2 != 0) {
+			throw new LispException("'loop' bindings List doesn't have an even number of elements");
+		}
+
+		// recur needs the loop bindings in consecutive slots
+		int[] slots = new int[bindings.size() / 2];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = layout.allocate();
+		}
+		Node[] inits = new Node[slots.length];
+		Scope bodyScope = bindings(bindings, slots, inits, scope, layout, "loop");
+
+		int firstSlot = slots.length > 0 ? slots[0] : 0;
+		Node body = recurTarget(firstSlot, slots.length, () -> body(args.next(), bodyScope, layout, true));
+		return new LoopNode(firstSlot, inits, body);
+	}
+
+	/**
+	 * Validates a binding vector and fills the init nodes for the given slots.
+	 * Returns the scope with all bound symbols added.
+	 */
+	private Scope bindings(List<?> bindings, int[] slots, Node[] inits, Scope scope, FrameLayout layout,
+			String formName) {
+		for (int i = 0, size = slots.length; i < size; i++) {
+			Object o = bindings.get(i * 2);
+			if (!(o instanceof Symbol)) {
+				String s = LispPrinter.prStr(o);
+				throw new LispException("'" + formName + "' binding target is not a symbol: " + s);
+			}
+			inits[i] = analyze(bindings.get(i * 2 + 1), scope, layout, false);
+			scope = scope.with(((Symbol) o).name, layout, slots[i]);
+		}
+		return scope;
+	}
+
+	private Node fn(Sequence args, Scope scope, FrameLayout layout) {
+		Symbol name = null;
+
+		if (args.first() instanceof Symbol) {
+			name = (Symbol) args.first();
+			args = args.more();
+		}
+
+		if (args.empty()) {
+			throw new LispException("'fn' requires at least one argument: (fn name? [params*] exprs*)" +
+					" or for multiple arities: (fn name? ([params*] exprs*) +)");
+		}
+
+		Object arg1 = args.first();
+		if (arg1 instanceof List) {
+			List<?> fnArgs = (List<?>) arg1;
+			Symbol[] paramSymbols = LispElf.validateFnParams(fnArgs);
+			boolean variadic = paramSymbols.length != fnArgs.size();
+			Captures captures = new Captures();
+			FrameLayout fnLayout = new FrameLayout(layout, Frames.FIRST_PARAM_SLOT, captures);
+			Scope bodyScope = fnScope(scope, fnLayout, name, paramSymbols);
+			Sequence forms = args.next();
+			Node body = recurTarget(Frames.FIRST_PARAM_SLOT, paramSymbols.length,
+					() -> body(forms, bodyScope, fnLayout, true));
+			FnNode.Arity fnArity = new FnNode.Arity(paramSymbols.length, variadic, body, fnLayout.size());
+			return compiled(new FnNode(name, fnArity, captures.sources(), ns, profiled()));
+		}
+
+		if (!(arg1 instanceof Sequence)) {
+			throw new LispException("'fn' first argument must either be a list or a vector");
+		}
+
+		MultiArityFunction.Builder fnBuilder = new MultiArityFunction.Builder();
+		List<FnNode.Arity> arities = new ArrayList<>();
+		// all arities share the captured values
+		Captures captures = new Captures();
+		for (Object arg : args) {
+			if (!(arg instanceof Sequence)) {
+				throw new LispException("Arity variant of 'fn' must be a list");
+			}
+			Sequence arity = (Sequence) arg;
+			if (arity.empty()) {
+				throw new LispException("'fn' arity definition requires at least one element: ([ARGS] *&BODY*)");
+			}
+			Object fnArgs = arity.first();
+			if (!(fnArgs instanceof List)) {
+				throw new LispException("'fn' arity definition first element is not a List");
+			}
+			Symbol[] paramSymbols = LispElf.validateFnParams((List<?>) fnArgs);
+			boolean variadic = paramSymbols.length != ((List<?>) fnArgs).size();
+			FrameLayout fnLayout = new FrameLayout(layout, Frames.FIRST_PARAM_SLOT, captures);
+			Scope bodyScope = fnScope(scope, fnLayout, name, paramSymbols);
+			Node body = recurTarget(Frames.FIRST_PARAM_SLOT, paramSymbols.length,
+					() -> body(arity.next(), bodyScope, fnLayout, true));
+			fnBuilder.addArity(paramSymbols, variadic, body, fnLayout.size());
+			arities.add(new FnNode.Arity(paramSymbols.length, variadic, body, fnLayout.size()));
+		}
+		FnNode.Arity[] fnArities = arities.toArray(new FnNode.Arity[0]);
+		return compiled(new FnNode(name, fnArities, captures.sources(), ns, profiled(), fnBuilder));
+	}
+
+	/**
+	 * Returns true if functions should start out analyzed and be compiled once they are hot.
+	 */
+	private boolean profiled() {
+		return analyze && FnProfile.isEnabled() && !FnCompiler.isEnabled();
+	}
+
+	/**
+	 * Returns a node creating an instance of the compiled function,
+	 * or the given node if the compiler is disabled or can't compile the function.
+	 * Compiled code doesn't count its depth, so nothing is compiled in the deep recursion mode.
+	 */
+	private Node compiled(FnNode fn) {
+		if (analyze && FnCompiler.isEnabled() && !DeepRecursion.isEnabled()) {
+			Node compiled = FnCompiler.compile(fn, ns);
+			if (compiled != null) {
+				return compiled;
+			}
+		}
+		return fn;
+	}
+
+	/**
+	 * Analyzes a function or loop body, with calls to 'recur' in tail position
+	 * targeting the 'count' slots starting at 'firstSlot'.
+	 */
+	private Node recurTarget(int firstSlot, int count, Supplier<Node> body) {
+		RecurTarget outer = recurTarget;
+		recurTarget = new RecurTarget(firstSlot, count);
+		try {
+			return body.get();
+		} finally {
+			recurTarget = outer;
+		}
+	}
+
+	/**
+	 * Adds the function name and parameters to the scope of the function body.
+	 */
+	private static Scope fnScope(Scope scope, FrameLayout fnLayout, Symbol name, Symbol[] paramSymbols) {
+		if (name != null) {
+			scope = scope.with(name.name, fnLayout, Frames.SELF_SLOT);
+		}
+		for (Symbol param : paramSymbols) {
+			scope = scope.with(param.name, fnLayout, fnLayout.allocate());
+		}
+		return scope;
+	}
+
+	private Node interpreted(Object form, boolean tail, Scope scope, FrameLayout layout) {
+		captureSymbols(form, scope, layout);
+		return new InterpretedNode(new Cons(form, null), tail, ns, scope, layout);
+	}
+
+	/**
+	 * Captures all locals which might be referenced by a form that is passed to the evaluator.
+	 * Every symbol in the form is treated as a possible reference.
+	 */
+	private void captureSymbols(Object form, Scope scope, FrameLayout layout) {
+		if (form instanceof Symbol) {
+			local((Symbol) form, scope, layout);
+		} else if (form instanceof Map) {
+			for (Entry<?, ?> e : ((Map<?, ?>) form).entrySet()) {
+				captureSymbols(e.getKey(), scope, layout);
+				captureSymbols(e.getValue(), scope, layout);
+			}
+		} else if (form instanceof Iterable) {
+			for (Object o : (Iterable<?>) form) {
+				captureSymbols(o, scope, layout);
+			}
+		}
+	}
+
+	/**
+	 * Returns a node referencing the local bound to the symbol,
+	 * or null if the symbol is not bound locally.
+	 */
+	private Node local(Symbol sym, Scope scope, FrameLayout layout) {
+		if (sym.nsName != null) {
+			return null;
+		}
+		Scope binding = scope.lookup(sym.name);
+		if (binding != null) {
+			return localRef(binding, layout);
+		}
+		if (env.isLocal(sym)) {
+			return envRef(sym, layout);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a node referencing the local from within the given frame.
+	 * Locals of enclosing frames are captured by all functions in between.
+	 */
+	private static Node localRef(Scope binding, FrameLayout layout) {
+		if (binding.layout == layout) {
+			return new LocalRefNode(binding.slot);
+		}
+		return new CapturedRefNode(layout.captures.capture(binding, () -> localRef(binding, layout.parent)));
+	}
+
+	private static Node envRef(Symbol sym, FrameLayout layout) {
+		if (layout.isRoot()) {
+			return new EnvRefNode(sym);
+		}
+		return new CapturedRefNode(layout.captures.capture(sym, () -> envRef(sym, layout.parent)));
+	}
+
+	/**
+	 * Returns the var the symbol currently resolves to, or null if it can't be resolved (yet).
+	 */
+	private Var resolveVar(Symbol sym) {
+		try {
+			return ns.lookupVar(sym, false, true);
+		} catch (Exception e) {
+			// errors are reported when the symbol is evaluated
+			return null;
+		}
+	}
+
+	private static final class RecurTarget {
+		final int firstSlot;
+		final int count;
+		// shared by all calls to 'recur' of the target, allocated on first use
+		int scratchSlot = -1;
+
+		RecurTarget(int firstSlot, int count) {
+			this.firstSlot = firstSlot;
+			this.count = count;
+		}
+	}
+}
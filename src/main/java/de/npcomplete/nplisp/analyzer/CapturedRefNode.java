@@ -0,0 +1,18 @@
+package de.npcomplete.nplisp.analyzer;
+
+/**
+ * Reference to a local of an enclosing frame, which was copied
+ * into the captured values when the function was created.
+ */
+final class CapturedRefNode implements Node {
+	final int index;
+
+	CapturedRefNode(int index) {
+		this.index = index;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		return ((Object[]) frame[Frames.CAPTURED_SLOT])[index];
+	}
+}
@@ -0,0 +1,62 @@
+package de.npcomplete.nplisp.analyzer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import de.npcomplete.nplisp.util.LispElf;
+
+/**
+ * The locals of enclosing frames which are referenced by a function.
+ * Their values are copied into an array when the function is created,
+ * so the function does not keep the enclosing frames alive.
+ */
+final class Captures {
+	// keys are the Scope of an analyzed local, or the Symbol of a local of the root environment
+	private final Map<Object, Integer> indices = new HashMap<>();
+	// nodes reading the values from the frame the function is created in
+	private final List<Node> sources = new ArrayList<>();
+
+	/**
+	 * Returns the index of the captured value for the key.
+	 * The source is only requested the first time a key is captured.
+	 */
+	int capture(Object key, Supplier<Node> source) {
+		Integer index = indices.get(key);
+		if (index == null) {
+			Node node = source.get();
+			index = sources.size();
+			sources.add(node);
+			indices.put(key, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the index of the captured value for the key, or null if it was not captured.
+	 */
+	Integer indexOf(Object key) {
+		return indices.get(key);
+	}
+
+	Node[] sources() {
+		return sources.toArray(new Node[0]);
+	}
+
+	/**
+	 * Copies the captured values from the frame the function is created in.
+	 */
+	static Object[] values(Node[] sources, Object[] frame) {
+		int length = sources.length;
+		if (length == 0) {
+			return LispElf.EMPTY_OBJECT_ARRAY;
+		}
+		Object[] values = new Object[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = sources[i].execute(frame);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,23 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.compiler.CompiledFunction;
+
+/**
+ * Creates a new instance of a compiled function each time it is executed.
+ * The locals the function captures are copied from the current frame.
+ */
+final class CompiledFnNode implements Node {
+	// instance without captured values, used to create the actual functions
+	final CompiledFunction template;
+	final Node[] captures;
+
+	CompiledFnNode(CompiledFunction template, Node[] captures) {
+		this.template = template;
+		this.captures = captures;
+	}
+
+	@Override
+	public CompiledFunction execute(Object[] frame) {
+		return template.newInstance(Captures.values(captures, frame));
+	}
+}
@@ -0,0 +1,16 @@
+package de.npcomplete.nplisp.analyzer;
+
+final class ConstantNode implements Node {
+	static final ConstantNode NIL = new ConstantNode(null);
+
+	final Object value;
+
+	ConstantNode(Object value) {
+		this.value = value;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		return value;
+	}
+}
@@ -0,0 +1,19 @@
+package de.npcomplete.nplisp.analyzer;
+
+final class DoNode implements Node {
+	final Node[] statements;
+	final Node ret;
+
+	DoNode(Node[] statements, Node ret) {
+		this.statements = statements;
+		this.ret = ret;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		for (Node statement : statements) {
+			statement.execute(frame);
+		}
+		return ret.execute(frame);
+	}
+}
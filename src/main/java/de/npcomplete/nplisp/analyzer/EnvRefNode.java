@@ -0,0 +1,22 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.core.Environment;
+import de.npcomplete.nplisp.data.Symbol;
+
+/**
+ * Reference to a local of the environment the outermost analyzed form was created in.
+ * Only used in the outermost frame, functions capture these locals like any other.
+ */
+final class EnvRefNode implements Node {
+	final Symbol symbol;
+
+	EnvRefNode(Symbol symbol) {
+		this.symbol = symbol;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		Environment env = (Environment) frame[Frames.CAPTURED_SLOT];
+		return env.lookup(symbol);
+	}
+}
@@ -0,0 +1,634 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static de.npcomplete.nplisp.compiler.ClassFile.ACC_FINAL;
+import static de.npcomplete.nplisp.compiler.ClassFile.ACC_PRIVATE;
+import static de.npcomplete.nplisp.compiler.ClassFile.ACC_PUBLIC;
+import static de.npcomplete.nplisp.compiler.ClassFile.ACC_STATIC;
+import static de.npcomplete.nplisp.compiler.ClassFile.ACC_VARARGS;
+import static de.npcomplete.nplisp.compiler.Code.OBJECT;
+import static de.npcomplete.nplisp.compiler.Code.OBJECT_ARRAY;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.compiler.ClassFile;
+import de.npcomplete.nplisp.compiler.Code;
+import de.npcomplete.nplisp.compiler.CompiledFunction;
+import de.npcomplete.nplisp.compiler.RuntimeSupport;
+import de.npcomplete.nplisp.compiler.Label;
+import de.npcomplete.nplisp.core.Namespace;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory;
+
+/**
+ * Compiles analyzed functions to JVM classes with one apply method per arity.
+ * The locals of a function become JVM locals, and 'recur' becomes a jump back
+ * to the start of the function or loop. Nodes the compiler does not handle itself
+ * are executed as usual, with a frame that is filled from the current locals.
+ * <p>
+ * The compiler is disabled by default. It can be enabled with the system property
+ * <code>nplisp.compiler=true</code> or via {@link #setEnabled(boolean)}.
+ * Functions which can't be compiled are run by the analyzer instead. This includes
+ * all functions while the {@link de.npcomplete.nplisp.core.DeepRecursion} mode is enabled.
+ */
+public final class FnCompiler {
+	private static final String COMPILED_FUNCTION = "de/npcomplete/nplisp/compiler/CompiledFunction";
+	private static final String RUNTIME_SUPPORT = "de/npcomplete/nplisp/compiler/RuntimeSupport";
+	private static final String LISP_FUNCTION = "de/npcomplete/nplisp/function/LispFunction";
+	private static final String NODE = "de/npcomplete/nplisp/analyzer/Node";
+	private static final String VAR_CALL_SITE = "de/npcomplete/nplisp/analyzer/VarCallSite";
+	private static final String CONSTANTS = "CONSTANTS";
+
+	private static final String EXECUTE = "([Ljava/lang/Object;)Ljava/lang/Object;";
+	private static final String VAR_ARGS = "(I[Ljava/lang/Object;)[Ljava/lang/Object;";
+
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	private static volatile boolean enabled = "true".equals(System.getProperty("nplisp.compiler"));
+	private static volatile boolean invokeDynamic = !"false".equals(System.getProperty("nplisp.invokeDynamic"));
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		FnCompiler.enabled = enabled;
+	}
+
+	public static boolean isInvokeDynamic() {
+		return invokeDynamic;
+	}
+
+	/**
+	 * Sets whether calls of functions in vars are linked via invokedynamic. (see {@link VarCallSite})
+	 */
+	public static void setInvokeDynamic(boolean invokeDynamic) {
+		FnCompiler.invokeDynamic = invokeDynamic;
+	}
+
+	private final Namespace ns;
+	private final ClassFile cls;
+	private final List<Object> constants = new ArrayList<>();
+	private final Map<Object, Integer> constantIndices = new IdentityHashMap<>();
+
+	// state of the method which is currently compiled
+	private Code code;
+	private int frameSize;
+	private Target target;
+
+	private FnCompiler(Namespace ns, String name) {
+		this.ns = ns;
+		cls = new ClassFile("nplisp/compiled/" + munge(ns.name) + '/' + munge(name) + "__" + classCounter.incrementAndGet(),
+				COMPILED_FUNCTION);
+	}
+
+	/**
+	 * Returns a node which creates instances of the compiled function,
+	 * or null if the function can't be compiled.
+	 */
+	static Node compile(FnNode fn, Namespace ns) {
+		try {
+			FnCompiler compiler = new FnCompiler(ns, fn.name != null ? fn.name.name : "fn");
+			compiler.compileClass(fn.arities);
+			return new CompiledFnNode(compiler.load(), fn.captures);
+		} catch (RuntimeException | LinkageError | ReflectiveOperationException e) {
+			// the function uses something the compiler can't handle, or is too large
+			return null;
+		}
+	}
+
+	private CompiledFunction load() throws ReflectiveOperationException {
+		Class<?> c = ns.classLoader().define(cls.name, cls.toByteArray());
+		c.getField(CONSTANTS).set(null, constants.toArray());
+		return (CompiledFunction) c.getConstructor(Object[].class).newInstance((Object) null);
+	}
+
+	private void compileClass(FnNode.Arity[] arities) {
+		cls.field(ACC_PUBLIC | ACC_STATIC, CONSTANTS, OBJECT_ARRAY);
+
+		Code init = cls.method(ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", 0);
+		init.aload(0);
+		init.aload(1);
+		init.invokespecial(COMPILED_FUNCTION, "<init>", "([Ljava/lang/Object;)V");
+		init.vreturn();
+
+		Code newInstance = cls.method(ACC_PUBLIC, "newInstance", "([Ljava/lang/Object;)L" + COMPILED_FUNCTION + ';', 0);
+		newInstance.newObject(cls.name);
+		newInstance.dup();
+		newInstance.aload(1);
+		newInstance.invokespecial(cls.name, "<init>", "([Ljava/lang/Object;)V");
+		newInstance.areturn();
+
+		FnNode.Arity variadic = null;
+		List<FnNode.Arity> largeArities = new ArrayList<>();
+		boolean[] direct = new boolean[4];
+		for (FnNode.Arity arity : arities) {
+			int extraLocals = arity.frameSize - Frames.FIRST_PARAM_SLOT - arity.paramCount;
+			if (!arity.variadic && arity.paramCount <= 3) {
+				direct[arity.paramCount] = true;
+				method(arity, cls.method(ACC_PUBLIC, "apply", applyDescriptor(arity.paramCount), extraLocals));
+				continue;
+			}
+			if (arity.variadic) {
+				variadic = arity;
+			} else {
+				largeArities.add(arity);
+			}
+			method(arity, cls.method(ACC_PRIVATE | ACC_FINAL, bodyName(arity), bodyDescriptor(arity.paramCount),
+					extraLocals));
+		}
+
+		boolean[] defined = direct.clone();
+		if (variadic != null) {
+			for (int arity = Math.max(0, variadic.paramCount - 1); arity <= 3; arity++) {
+				if (!defined[arity]) {
+					variadicApply(arity, variadic);
+					defined[arity] = true;
+				}
+			}
+		}
+		// single arity functions report the expected arity, like SingleArityFunction
+		String expected = null;
+		if (arities.length == 1) {
+			FnNode.Arity arity = arities[0];
+			expected = arity.variadic ? ">=" + (arity.paramCount - 1) : String.valueOf(arity.paramCount);
+			for (int i = 0; i <= 3; i++) {
+				if (!defined[i]) {
+					Code c = cls.method(ACC_PUBLIC, "apply", applyDescriptor(i), 0);
+					c.iconst(i);
+					wrongArity(c, expected);
+				}
+			}
+		}
+		if (variadic != null || !largeArities.isEmpty() || expected != null) {
+			varArgsApply(largeArities, variadic, expected);
+		}
+	}
+
+	private static void wrongArity(Code c, String expected) {
+		if (expected != null) {
+			c.ldc(expected);
+			c.invokestatic(RUNTIME_SUPPORT, "wrongArity", "(ILjava/lang/String;)Lde/npcomplete/nplisp/LispException;");
+		} else {
+			c.invokestatic(RUNTIME_SUPPORT, "wrongArity", "(I)Lde/npcomplete/nplisp/LispException;");
+		}
+		c.athrow();
+	}
+
+	/**
+	 * Emits the apply method for a fixed number of arguments, which is handled by the variadic arity.
+	 */
+	private void variadicApply(int arity, FnNode.Arity variadic) {
+		Code c = cls.method(ACC_PUBLIC, "apply", applyDescriptor(arity), 0);
+		c.aload(0);
+		c.iconst(variadic.paramCount);
+		c.iconst(arity);
+		c.anewarray(OBJECT);
+		for (int i = 0; i < arity; i++) {
+			c.dup();
+			c.iconst(i);
+			c.aload(i + 1);
+			c.aastore();
+		}
+		c.invokestatic(RUNTIME_SUPPORT, "varArgs", VAR_ARGS);
+		unpack(c, variadic.paramCount);
+		c.invokespecial(cls.name, bodyName(variadic), bodyDescriptor(variadic.paramCount));
+		c.areturn();
+	}
+
+	/**
+	 * Emits the apply method for more than 3 arguments, which
+	 * dispatches on the number of arguments at runtime.
+	 */
+	private void varArgsApply(List<FnNode.Arity> largeArities, FnNode.Arity variadic, String expected) {
+		Code c = cls.method(ACC_PUBLIC | ACC_VARARGS, "apply", applyDescriptor(4), 0);
+		for (FnNode.Arity arity : largeArities) {
+			Label next = new Label();
+			c.aload(4);
+			c.arraylength();
+			c.iconst(arity.paramCount - 3);
+			c.ifIcmpne(next);
+			c.aload(0);
+			c.aload(1);
+			c.aload(2);
+			c.aload(3);
+			for (int i = 0; i < arity.paramCount - 3; i++) {
+				c.aload(4);
+				c.iconst(i);
+				c.aaload();
+			}
+			c.invokespecial(cls.name, bodyName(arity), bodyDescriptor(arity.paramCount));
+			c.areturn();
+			c.mark(next);
+		}
+		if (variadic != null) {
+			Label wrongArity = new Label();
+			if (variadic.paramCount > 4) {
+				c.aload(4);
+				c.arraylength();
+				c.iconst(variadic.paramCount - 4);
+				c.ifIcmplt(wrongArity);
+			}
+			c.aload(0);
+			c.iconst(variadic.paramCount);
+			c.aload(1);
+			c.aload(2);
+			c.aload(3);
+			c.aload(4);
+			c.invokestatic(RUNTIME_SUPPORT, "varArgs",
+					"(ILjava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;[Ljava/lang/Object;)[Ljava/lang/Object;");
+			unpack(c, variadic.paramCount);
+			c.invokespecial(cls.name, bodyName(variadic), bodyDescriptor(variadic.paramCount));
+			c.areturn();
+			c.mark(wrongArity);
+		}
+		c.aload(4);
+		c.arraylength();
+		c.iconst(3);
+		c.iadd();
+		wrongArity(c, expected);
+	}
+
+	/**
+	 * Replaces the array on top of the stack with its first 'count' elements.
+	 */
+	private static void unpack(Code c, int count) {
+		for (int i = 0; i < count; i++) {
+			c.dup();
+			c.iconst(i);
+			c.aaload();
+			c.swap();
+		}
+		c.pop1();
+	}
+
+	private void method(FnNode.Arity arity, Code code) {
+		this.code = code;
+		this.frameSize = arity.frameSize;
+		target = new Target(local(Frames.FIRST_PARAM_SLOT), arity.paramCount, 0);
+		code.mark(target.head);
+		emit(arity.body);
+		tailCalls(target);
+		code.areturn();
+	}
+
+	private static String bodyName(FnNode.Arity arity) {
+		return (arity.variadic ? "variadic" : "arity") + arity.paramCount;
+	}
+
+	private static String bodyDescriptor(int paramCount) {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < paramCount; i++) {
+			sb.append("Ljava/lang/Object;");
+		}
+		return sb.append(")Ljava/lang/Object;").toString();
+	}
+
+	private static String applyDescriptor(int arity) {
+		return arity > 3
+				? "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;"
+				: bodyDescriptor(arity);
+	}
+
+	/**
+	 * Returns the JVM local holding the given frame slot.
+	 */
+	private static int local(int slot) {
+		return slot - Frames.FIRST_PARAM_SLOT + 1;
+	}
+
+	private static String munge(String name) {
+		StringBuilder sb = new StringBuilder(name.length());
+		for (char c : name.toCharArray()) {
+			sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		}
+		return sb.toString();
+	}
+
+	// ---- nodes ----
+
+	private void emit(Node node) {
+		if (node instanceof ConstantNode) {
+			constant(((ConstantNode) node).value);
+		} else if (node instanceof LocalRefNode) {
+			int slot = ((LocalRefNode) node).slot;
+			code.aload(slot == Frames.SELF_SLOT ? 0 : local(slot));
+		} else if (node instanceof CapturedRefNode) {
+			code.aload(0);
+			code.getfield(COMPILED_FUNCTION, "captured", OBJECT_ARRAY);
+			code.iconst(((CapturedRefNode) node).index);
+			code.aaload();
+		} else if (node instanceof VarRefNode) {
+			constant(node);
+			code.checkcast(NODE);
+			code.aconstNull();
+			code.invokeinterface(NODE, "execute", EXECUTE);
+		} else if (node instanceof IfNode) {
+			ifNode((IfNode) node);
+		} else if (node instanceof DoNode) {
+			DoNode doNode = (DoNode) node;
+			for (Node statement : doNode.statements) {
+				emit(statement);
+				code.pop1();
+			}
+			emit(doNode.ret);
+		} else if (node instanceof LetNode) {
+			LetNode let = (LetNode) node;
+			for (int i = 0; i < let.slots.length; i++) {
+				emit(let.inits[i]);
+				code.astore(local(let.slots[i]));
+			}
+			emit(let.body);
+		} else if (node instanceof LoopNode) {
+			loop((LoopNode) node);
+		} else if (node instanceof InvokeNode) {
+			invoke((InvokeNode) node);
+		} else if (node instanceof NumericNode) {
+			// compiled code leaves the specialization to the JIT
+			invoke(((NumericNode) node).invoke);
+		} else if (node instanceof RecurNode) {
+			recur(((RecurNode) node).args);
+		} else if (node instanceof VectorNode) {
+			collection(((VectorNode) node).items, "vector", "Ljava/util/List;");
+		} else if (node instanceof SetNode) {
+			collection(((SetNode) node).items, "set", "Ljava/util/Set;");
+		} else if (node instanceof MapNode) {
+			collection(((MapNode) node).keyValues, "map", "Ljava/util/Map;");
+		} else if (node instanceof CompiledFnNode) {
+			CompiledFnNode fn = (CompiledFnNode) node;
+			constant(fn.template);
+			code.checkcast(COMPILED_FUNCTION);
+			array(fn.captures);
+			code.invokevirtual(COMPILED_FUNCTION, "newInstance",
+					"([Ljava/lang/Object;)L" + COMPILED_FUNCTION + ';');
+		} else if (node instanceof FnNode) {
+			execute(node, false);
+		} else if (node instanceof InterpretedNode) {
+			execute(node, ((InterpretedNode) node).tail);
+		} else {
+			execute(node, true);
+		}
+	}
+
+	private void constant(Object value) {
+		if (value == null) {
+			code.aconstNull();
+			return;
+		}
+		code.getstatic(cls.name, CONSTANTS, OBJECT_ARRAY);
+		code.iconst(constantIndex(value));
+		code.aaload();
+	}
+
+	private int constantIndex(Object value) {
+		Integer index = constantIndices.get(value);
+		if (index == null) {
+			index = constants.size();
+			constants.add(value);
+			constantIndices.put(value, index);
+		}
+		return index;
+	}
+
+	private void ifNode(IfNode node) {
+		Label otherwise = new Label();
+		Label end = new Label();
+		emit(node.test);
+		code.invokestatic("de/npcomplete/nplisp/util/LispElf", "truthy", "(Ljava/lang/Object;)Z");
+		code.ifeq(otherwise);
+		emit(node.then);
+		code.jump(end);
+		code.mark(otherwise);
+		emit(node.otherwise);
+		code.mark(end);
+	}
+
+	private void loop(LoopNode node) {
+		Node[] inits = node.inits;
+		for (int i = 0; i < inits.length; i++) {
+			emit(inits[i]);
+			code.astore(local(node.firstSlot + i));
+		}
+		Target outer = target;
+		target = new Target(local(node.firstSlot), inits.length, code.stackSize());
+		code.mark(target.head);
+		emit(node.body);
+		tailCalls(target);
+		target = outer;
+	}
+
+	private void invoke(InvokeNode node) {
+		Label call = new Label();
+		Label end = new Label();
+		Object linked = node.fn instanceof ConstantNode ? ((ConstantNode) node.fn).value : null;
+		if (linked instanceof LispFunction && !RuntimeSupport.isSpecial(linked)) {
+			// directly linked functions don't need to be checked at runtime
+			constant(linked);
+			code.checkcast(LISP_FUNCTION);
+			arguments(node);
+			return;
+		}
+		if (invokeDynamic && node.fn instanceof VarRefNode && isCallable((VarRefNode) node.fn)) {
+			// the call site checks the value of the var only when linking
+			int fnIndex = constantIndex(node.fn);
+			int formIndex = constantIndex(node.form);
+			emitArguments(node.args);
+			code.invokedynamic("apply", applyDescriptor(node.args.length), VAR_CALL_SITE, "bootstrap",
+					"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;II)"
+							+ "Ljava/lang/invoke/CallSite;", fnIndex, formIndex);
+			returned(node);
+			return;
+		}
+		emit(node.fn);
+		code.dup();
+		code.invokestatic(RUNTIME_SUPPORT, "isSpecial", "(Ljava/lang/Object;)Z");
+		code.ifeq(call);
+		// special forms and macros need the raw forms and a frame
+		code.pop1();
+		execute(node, node.tail);
+		code.jump(end);
+
+		code.mark(call);
+		constant(node.form);
+		code.invokestatic(RUNTIME_SUPPORT, "fn", "(Ljava/lang/Object;Ljava/lang/Object;)L" + LISP_FUNCTION + ';');
+		arguments(node);
+		code.mark(end);
+	}
+
+	/**
+	 * Emits the arguments and the call of the function on top of the stack.
+	 */
+	private void arguments(InvokeNode node) {
+		emitArguments(node.args);
+		code.invokeinterface(LISP_FUNCTION, "apply", applyDescriptor(node.args.length));
+		returned(node);
+	}
+
+	/**
+	 * Returns true if the var currently holds a function which can be called via invokedynamic.
+	 */
+	private static boolean isCallable(VarRefNode fn) {
+		Object value;
+		try {
+			value = fn.execute(null);
+		} catch (LispException e) {
+			return false;
+		}
+		return LispFunctionFactory.from(value) != null && !RuntimeSupport.isSpecial(value);
+	}
+
+	/**
+	 * Emits the arguments for a call of an 'apply' method with the arity of the given arguments.
+	 */
+	private void emitArguments(Node[] args) {
+		int fixedArgs = Math.min(args.length, 3);
+		for (int i = 0; i < fixedArgs; i++) {
+			emit(args[i]);
+		}
+		if (args.length > 3) {
+			code.iconst(args.length - 3);
+			code.anewarray(OBJECT);
+			for (int i = 3; i < args.length; i++) {
+				code.dup();
+				code.iconst(i - 3);
+				emit(args[i]);
+				code.aastore();
+			}
+		}
+	}
+
+	/**
+	 * Handles the value returned by a call, which might be a tail call.
+	 */
+	private void returned(InvokeNode node) {
+		if (node.tail) {
+			target.tailCalls = true;
+		} else {
+			code.invokestatic(RUNTIME_SUPPORT, "checkTail", "(Ljava/lang/Object;)Ljava/lang/Object;");
+		}
+	}
+
+	private void recur(Node[] args) {
+		Target t = target;
+		if (args.length != t.count) {
+			// the error is reported at runtime
+			throw new IllegalStateException("'recur' arity mismatch");
+		}
+		for (Node arg : args) {
+			emit(arg);
+		}
+		for (int i = args.length - 1; i >= 0; i--) {
+			code.astore(t.firstLocal + i);
+		}
+		if (code.isReachable() && code.stackSize() != t.stackSize) {
+			throw new IllegalStateException("'recur' with non-empty stack");
+		}
+		code.jump(t.head);
+	}
+
+	private void collection(Node[] items, String factory, String type) {
+		array(items);
+		code.invokestatic(RUNTIME_SUPPORT, factory, "([Ljava/lang/Object;)" + type);
+	}
+
+	/**
+	 * Emits a new array with the values of the nodes.
+	 */
+	private void array(Node[] items) {
+		code.iconst(items.length);
+		code.anewarray(OBJECT);
+		for (int i = 0; i < items.length; i++) {
+			code.dup();
+			code.iconst(i);
+			emit(items[i]);
+			code.aastore();
+		}
+	}
+
+	/**
+	 * Executes the node with a frame created from the current locals.
+	 * If the node is in tail position, it might return a tail call.
+	 */
+	private void execute(Node node, boolean tail) {
+		constant(node);
+		code.checkcast(NODE);
+		frame();
+		code.invokeinterface(NODE, "execute", EXECUTE);
+		if (tail) {
+			target.tailCalls = true;
+		}
+	}
+
+	/**
+	 * Creates a frame with the current values of all locals of the function.
+	 */
+	private void frame() {
+		code.iconst(frameSize);
+		code.anewarray(OBJECT);
+		code.dup();
+		code.iconst(Frames.CAPTURED_SLOT);
+		code.aload(0);
+		code.getfield(COMPILED_FUNCTION, "captured", OBJECT_ARRAY);
+		code.aastore();
+		code.dup();
+		code.iconst(Frames.SELF_SLOT);
+		code.aload(0);
+		code.aastore();
+		for (int slot = Frames.FIRST_PARAM_SLOT; slot < frameSize; slot++) {
+			code.dup();
+			code.iconst(slot);
+			code.aload(local(slot));
+			code.aastore();
+		}
+	}
+
+	/**
+	 * If tail calls might be returned by the body of the target,
+	 * emits a check which rebinds the locals and jumps back to the target.
+	 */
+	private void tailCalls(Target t) {
+		if (!t.tailCalls || !code.isReachable()) {
+			return;
+		}
+		Label noTailCall = new Label();
+		code.dup();
+		code.iconst(t.count);
+		code.invokestatic(RUNTIME_SUPPORT, "tailCallArgs", "(Ljava/lang/Object;I)[Ljava/lang/Object;");
+		code.dup();
+		code.ifnull(noTailCall);
+		code.swap();
+		code.pop1();
+		for (int i = 0; i < t.count; i++) {
+			code.dup();
+			code.iconst(i);
+			code.aaload();
+			code.astore(t.firstLocal + i);
+		}
+		code.pop1();
+		code.jump(t.head);
+		code.mark(noTailCall);
+		code.pop1();
+	}
+
+	/**
+	 * Start of a function or loop body, which is the target of 'recur'.
+	 */
+	private static final class Target {
+		final Label head = new Label();
+		final int firstLocal;
+		final int count;
+		// number of values on the operand stack at the head
+		final int stackSize;
+		boolean tailCalls;
+
+		Target(int firstLocal, int count, int stackSize) {
+			this.firstLocal = firstLocal;
+			this.count = count;
+			this.stackSize = stackSize;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.core.Namespace;
+import de.npcomplete.nplisp.data.Symbol;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.MultiArityFunction;
+import de.npcomplete.nplisp.function.SingleArityFunction;
+
+/**
+ * Creates a new function from the pre-analyzed bodies each time it is executed.
+ * The locals the function captures are copied from the current frame.
+ */
+final class FnNode implements Node {
+	// may be null
+	final Symbol name;
+	final Arity[] arities;
+	// read the captured values from the frame the function is created in
+	final Node[] captures;
+	// only with tiered execution
+	final FnProfile profile;
+
+	// only for multi arity functions
+	private final MultiArityFunction.Builder multiArity;
+
+	FnNode(Symbol name, Arity arity, Node[] captures, Namespace ns, boolean profiled) {
+		this.name = name;
+		this.arities = new Arity[] {arity};
+		this.captures = captures;
+		this.profile = profiled ? new FnProfile(this, ns) : null;
+		this.multiArity = null;
+	}
+
+	FnNode(Symbol name, Arity[] arities, Node[] captures, Namespace ns, boolean profiled,
+			MultiArityFunction.Builder multiArity) {
+		this.name = name;
+		this.arities = arities;
+		this.captures = captures;
+		this.profile = profiled ? new FnProfile(this, ns) : null;
+		this.multiArity = multiArity;
+	}
+
+	@Override
+	public LispFunction execute(Object[] frame) {
+		Object[] captured = Captures.values(captures, frame);
+		if (multiArity != null) {
+			return multiArity.build(captured, profile);
+		}
+		Arity arity = arities[0];
+		return new SingleArityFunction(captured, arity.body, arity.paramCount, arity.variadic, arity.frameSize,
+				profile);
+	}
+
+	static final class Arity {
+		final int paramCount;
+		final boolean variadic;
+		final Node body;
+		final int frameSize;
+
+		Arity(int paramCount, boolean variadic, Node body, int frameSize) {
+			this.paramCount = paramCount;
+			this.variadic = variadic;
+			this.body = body;
+			this.frameSize = frameSize;
+		}
+	}
+}
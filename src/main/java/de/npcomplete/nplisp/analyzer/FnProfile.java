@@ -0,0 +1,131 @@
+package de.npcomplete.nplisp.analyzer;
+
+import java.util.function.Consumer;
+
+import de.npcomplete.nplisp.compiler.CompiledFunction;
+import de.npcomplete.nplisp.core.DeepRecursion;
+import de.npcomplete.nplisp.core.Namespace;
+
+/**
+ * Invocation and back-edge counters for tiered execution. Functions start out running
+ * their analyzed bodies. Once a function was called often enough, or ran enough iterations
+ * of 'recur', it is compiled by the {@link FnCompiler}, and all instances of the function
+ * forward their calls to the compiled version.
+ * <p>
+ * A profile belongs to a 'fn' form, so it counts the calls of all functions created from it.
+ * The counters are updated without synchronization, so concurrent calls may lose counts.
+ * <p>
+ * Tiered execution is disabled by default. It can be enabled with the system property
+ * <code>nplisp.tiered=true</code> or via {@link #setEnabled(boolean)}. The number of calls and
+ * iterations before a function is compiled can be set with <code>nplisp.tierThreshold</code>.
+ * If the compiler is enabled as well, functions are compiled right away instead.
+ */
+public final class FnProfile {
+	public enum Tier {
+		ANALYZED,
+		COMPILED,
+		// the compiler could not handle the function, so it stays analyzed
+		NOT_COMPILABLE
+	}
+
+	private static volatile boolean enabled = "true".equals(System.getProperty("nplisp.tiered"));
+	private static volatile int threshold = Integer.getInteger("nplisp.tierThreshold", 10_000);
+	private static volatile Consumer<FnProfile> transitionListener;
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		FnProfile.enabled = enabled;
+	}
+
+	public static int getThreshold() {
+		return threshold;
+	}
+
+	public static void setThreshold(int threshold) {
+		FnProfile.threshold = threshold;
+	}
+
+	/**
+	 * Sets a listener which is notified whenever a function leaves the analyzed tier.
+	 */
+	public static void setTransitionListener(Consumer<FnProfile> listener) {
+		transitionListener = listener;
+	}
+
+	private final FnNode fn;
+	private final Namespace ns;
+
+	private int invocations;
+	private int backEdges;
+
+	private volatile Tier tier = Tier.ANALYZED;
+	private volatile CompiledFunction compiled;
+
+	FnProfile(FnNode fn, Namespace ns) {
+		this.fn = fn;
+		this.ns = ns;
+	}
+
+	/**
+	 * Counts a call of the function. Returns the template of the compiled function,
+	 * or null if the function is not (yet) compiled. Functions stay analyzed
+	 * while the deep recursion mode is enabled.
+	 */
+	public CompiledFunction invoked() {
+		CompiledFunction c = compiled;
+		if (c == null && ++invocations + backEdges >= threshold && tier == Tier.ANALYZED
+				&& !DeepRecursion.isEnabled()) {
+			c = compile();
+		}
+		return c;
+	}
+
+	/**
+	 * Counts an iteration of 'recur' in the function. The threshold is only checked on the next call,
+	 * since a running call can't switch to the compiled version.
+	 */
+	public void backEdge() {
+		backEdges++;
+	}
+
+	private synchronized CompiledFunction compile() {
+		if (tier == Tier.ANALYZED) {
+			Node node = FnCompiler.compile(fn, ns);
+			if (node instanceof CompiledFnNode) {
+				compiled = ((CompiledFnNode) node).template;
+				tier = Tier.COMPILED;
+			} else {
+				tier = Tier.NOT_COMPILABLE;
+			}
+			Consumer<FnProfile> listener = transitionListener;
+			if (listener != null) {
+				listener.accept(this);
+			}
+		}
+		return compiled;
+	}
+
+	public String name() {
+		return fn.name != null ? fn.name.toString() : "fn";
+	}
+
+	public int invocations() {
+		return invocations;
+	}
+
+	public int backEdges() {
+		return backEdges;
+	}
+
+	public Tier tier() {
+		return tier;
+	}
+
+	@Override
+	public String toString() {
+		return name() + " in " + ns.name + ": " + tier + " (" + invocations + " calls, " + backEdges + " back-edges)";
+	}
+}
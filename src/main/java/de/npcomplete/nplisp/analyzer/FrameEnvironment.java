@@ -0,0 +1,66 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.core.Environment;
+import de.npcomplete.nplisp.core.Namespace;
+import de.npcomplete.nplisp.data.Symbol;
+
+/**
+ * Exposes the locals of a frame as an {@link Environment},
+ * so that forms which are not analyzed can be passed to the evaluator.
+ * Within functions, only the locals of enclosing frames which
+ * were captured by the function are available.
+ */
+final class FrameEnvironment extends Environment {
+	private final Scope scope;
+	private final FrameLayout layout;
+	private final Object[] frame;
+
+	FrameEnvironment(Namespace ns, Scope scope, FrameLayout layout, Object[] frame) {
+		super(ns);
+		this.scope = scope;
+		this.layout = layout;
+		this.frame = frame;
+	}
+
+	@Override
+	public Object lookup(Symbol symbol) {
+		if (symbol.nsName == null) {
+			Scope binding = scope.lookup(symbol.name);
+			if (binding != null) {
+				if (binding.layout == layout) {
+					return frame[binding.slot];
+				}
+				return captured(binding, symbol);
+			}
+			if (layout.isRoot()) {
+				return ((Environment) frame[Frames.CAPTURED_SLOT]).lookup(symbol);
+			}
+			if (layout.captures.indexOf(symbol) != null) {
+				return captured(symbol, symbol);
+			}
+		}
+		return namespace.lookupVar(symbol, false, false);
+	}
+
+	private Object captured(Object key, Symbol symbol) {
+		Integer index = layout.captures.indexOf(key);
+		if (index == null) {
+			throw new LispException("Local '" + symbol + "' was not captured by the function");
+		}
+		return ((Object[]) frame[Frames.CAPTURED_SLOT])[index];
+	}
+
+	@Override
+	public boolean isLocal(Symbol symbol) {
+		if (symbol.nsName != null) {
+			return false;
+		}
+		if (scope.lookup(symbol.name) != null) {
+			return true;
+		}
+		return layout.isRoot()
+				? ((Environment) frame[Frames.CAPTURED_SLOT]).isLocal(symbol)
+				: layout.captures.indexOf(symbol) != null;
+	}
+}
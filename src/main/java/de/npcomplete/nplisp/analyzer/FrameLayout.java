@@ -0,0 +1,30 @@
+package de.npcomplete.nplisp.analyzer;
+
+/**
+ * Analysis time description of a frame. Used to hand out slots for locals
+ * and to collect the locals a function captures from enclosing frames.
+ */
+final class FrameLayout {
+	final FrameLayout parent;
+	// null for the outermost frame
+	final Captures captures;
+	private int size;
+
+	FrameLayout(FrameLayout parent, int reservedSlots, Captures captures) {
+		this.parent = parent;
+		this.size = reservedSlots;
+		this.captures = captures;
+	}
+
+	int allocate() {
+		return size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isRoot() {
+		return parent == null;
+	}
+}
@@ -0,0 +1,28 @@
+package de.npcomplete.nplisp.analyzer;
+
+/**
+ * Layout of the Object[] frames that hold the local bindings of analyzed code.
+ * Every function call allocates a single frame, which also holds
+ * the bindings of all 'let' and 'loop' forms in the function body.
+ */
+public final class Frames {
+	/**
+	 * Holds the values the function captured from the frame it was created in. For the outermost
+	 * frame, it holds the {@link de.npcomplete.nplisp.core.Environment} the code was analyzed in.
+	 */
+	public static final int CAPTURED_SLOT = 0;
+	/**
+	 * Holds the function itself.
+	 */
+	public static final int SELF_SLOT = 1;
+	public static final int FIRST_PARAM_SLOT = 2;
+
+	/**
+	 * Returned by the body of a function or loop after a call to 'recur'
+	 * has stored the new values in the parameter or binding slots.
+	 */
+	public static final Object RECUR = new Object();
+
+	private Frames() {
+	}
+}
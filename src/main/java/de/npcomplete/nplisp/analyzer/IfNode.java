@@ -0,0 +1,22 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.util.LispElf;
+
+final class IfNode implements Node {
+	final Node test;
+	final Node then;
+	final Node otherwise;
+
+	IfNode(Node test, Node then, Node otherwise) {
+		this.test = test;
+		this.then = then;
+		this.otherwise = otherwise;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		return LispElf.truthy(test.execute(frame))
+				? then.execute(frame)
+				: otherwise.execute(frame);
+	}
+}
@@ -0,0 +1,33 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.core.Namespace;
+import de.npcomplete.nplisp.data.Sequence;
+import de.npcomplete.nplisp.function.SpecialForm;
+
+/**
+ * Evaluates raw forms with the plain evaluator ({@link de.npcomplete.nplisp.Lisp#eval}).
+ * Used for everything the analyzer does not handle itself, and for all code
+ * when the analyzer is disabled.
+ */
+final class InterpretedNode implements Node {
+	private final Sequence body;
+	final boolean tail;
+
+	// needed to make the locals visible to the evaluator
+	private final Namespace ns;
+	private final Scope scope;
+	private final FrameLayout layout;
+
+	InterpretedNode(Sequence body, boolean tail, Namespace ns, Scope scope, FrameLayout layout) {
+		this.body = body;
+		this.tail = tail;
+		this.ns = ns;
+		this.scope = scope;
+		this.layout = layout;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		return SpecialForm.DO(body, new FrameEnvironment(ns, scope, layout, frame), tail);
+	}
+}
@@ -0,0 +1,75 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.compiler.RuntimeSupport;
+import de.npcomplete.nplisp.core.Environment;
+import de.npcomplete.nplisp.core.Namespace;
+import de.npcomplete.nplisp.data.Sequence;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.Macro;
+import de.npcomplete.nplisp.function.SpecialForm;
+
+final class InvokeNode implements Node {
+	final Sequence form;
+	final Node fn;
+	final Node[] args;
+	final boolean tail;
+
+	// needed to make the locals visible to special forms and macro expansions
+	private final Namespace ns;
+	private final Scope scope;
+	private final FrameLayout layout;
+
+	InvokeNode(Sequence form, Node fn, Node[] args, boolean tail, Namespace ns, Scope scope, FrameLayout layout) {
+		this.form = form;
+		this.fn = fn;
+		this.args = args;
+		this.tail = tail;
+		this.ns = ns;
+		this.scope = scope;
+		this.layout = layout;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		Object callable = fn.execute(frame);
+
+		// the callable might only turn out to be a special form or macro at runtime,
+		// (e.g. when it is bound to a local) so these are passed the raw arguments
+		if (callable instanceof SpecialForm) {
+			Environment env = new FrameEnvironment(ns, scope, layout, frame);
+			return check(((SpecialForm) callable).apply(form.more(), env, tail));
+		}
+		if (callable instanceof Macro) {
+			Object expansion = ((Macro) callable).expand(form.more());
+			return Lisp.eval(expansion, new FrameEnvironment(ns, scope, layout, frame), tail);
+		}
+
+		LispFunction f = RuntimeSupport.fn(callable, form);
+
+		Node[] args = this.args;
+		switch (args.length) {
+			case 0:
+				return check(f.apply());
+			case 1:
+				return check(f.apply(args[0].execute(frame)));
+			case 2:
+				return check(f.apply(args[0].execute(frame), args[1].execute(frame)));
+			case 3:
+				return check(f.apply(args[0].execute(frame), args[1].execute(frame), args[2].execute(frame)));
+			default:
+				Object arg1 = args[0].execute(frame);
+				Object arg2 = args[1].execute(frame);
+				Object arg3 = args[2].execute(frame);
+				Object[] more = new Object[args.length - 3];
+				for (int i = 0; i < more.length; i++) {
+					more[i] = args[i + 3].execute(frame);
+				}
+				return check(f.apply(arg1, arg2, arg3, more));
+		}
+	}
+
+	private Object check(Object val) {
+		return tail ? val : RuntimeSupport.checkTail(val);
+	}
+}
@@ -0,0 +1,21 @@
+package de.npcomplete.nplisp.analyzer;
+
+final class LetNode implements Node {
+	final int[] slots;
+	final Node[] inits;
+	final Node body;
+
+	LetNode(int[] slots, Node[] inits, Node body) {
+		this.slots = slots;
+		this.inits = inits;
+		this.body = body;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		for (int i = 0, length = slots.length; i < length; i++) {
+			frame[slots[i]] = inits[i].execute(frame);
+		}
+		return body.execute(frame);
+	}
+}
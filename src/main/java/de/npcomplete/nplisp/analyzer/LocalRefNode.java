@@ -0,0 +1,14 @@
+package de.npcomplete.nplisp.analyzer;
+
+final class LocalRefNode implements Node {
+	final int slot;
+
+	LocalRefNode(int slot) {
+		this.slot = slot;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		return frame[slot];
+	}
+}
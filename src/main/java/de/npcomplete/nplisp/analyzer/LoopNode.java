@@ -0,0 +1,24 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.function.SingleArityFunction;
+
+final class LoopNode implements Node {
+	// the loop bindings are stored in consecutive slots
+	final int firstSlot;
+	final Node[] inits;
+	final Node body;
+
+	LoopNode(int firstSlot, Node[] inits, Node body) {
+		this.firstSlot = firstSlot;
+		this.inits = inits;
+		this.body = body;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		for (int i = 0, length = inits.length; i < length; i++) {
+			frame[firstSlot + i] = inits[i].execute(frame);
+		}
+		return SingleArityFunction.call(body, frame, firstSlot, inits.length);
+	}
+}
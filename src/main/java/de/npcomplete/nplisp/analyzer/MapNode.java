@@ -0,0 +1,21 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.compiler.RuntimeSupport;
+
+final class MapNode implements Node {
+	// alternating key and value nodes
+	final Node[] keyValues;
+
+	MapNode(Node[] keyValues) {
+		this.keyValues = keyValues;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		Object[] values = new Object[keyValues.length];
+		for (int i = 0, length = keyValues.length; i < length; i++) {
+			values[i] = keyValues[i].execute(frame);
+		}
+		return RuntimeSupport.map(values);
+	}
+}
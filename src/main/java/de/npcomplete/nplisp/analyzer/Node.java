@@ -0,0 +1,9 @@
+package de.npcomplete.nplisp.analyzer;
+
+/**
+ * A pre-analyzed form. Created once by the {@link Analyzer}
+ * and executed any number of times afterwards.
+ */
+public interface Node {
+	Object execute(Object[] frame);
+}
@@ -0,0 +1,233 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.util.LispPrinter;
+
+/**
+ * Call of a core arithmetic or comparison function, which records the argument types it sees.
+ * The first call decides if the site is specialized for longs or doubles. As long as the arguments
+ * keep that type, the operation is done right here. Once other types show up, the site
+ * becomes megamorphic and always calls the generic implementation.
+ */
+final class NumericNode implements Node {
+	enum State {
+		UNSEEN,
+		LONG,
+		DOUBLE,
+		MEGAMORPHIC
+	}
+
+	final InvokeNode invoke;
+	private final Op op;
+	// the core function the site was specialized for
+	private final LispFunction generic;
+
+	// updated without synchronization, since every state is valid for every thread
+	private State state = State.UNSEEN;
+
+	NumericNode(InvokeNode invoke, Op op, LispFunction generic) {
+		this.invoke = invoke;
+		this.op = op;
+		this.generic = generic;
+	}
+
+	State state() {
+		return state;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		if (invoke.fn.execute(frame) != generic) {
+			// the var was rebound to something else
+			return invoke.execute(frame);
+		}
+		Node[] args = invoke.args;
+		Object x = args[0].execute(frame);
+		Object y = op.unary ? null : args[1].execute(frame);
+
+		switch (state) {
+			case LONG:
+				if (x instanceof Long && (op.unary || y instanceof Long)) {
+					return op.longs((Long) x, op.unary ? 0 : (Long) y);
+				}
+				state = State.MEGAMORPHIC;
+				break;
+			case DOUBLE:
+				if (x instanceof Double && (op.unary || y instanceof Double)) {
+					return op.doubles((Double) x, op.unary ? 0 : (Double) y);
+				}
+				state = State.MEGAMORPHIC;
+				break;
+			case UNSEEN:
+				if (x instanceof Long && (op.unary || y instanceof Long)) {
+					state = State.LONG;
+					return op.longs((Long) x, op.unary ? 0 : (Long) y);
+				}
+				if (x instanceof Double && (op.unary || y instanceof Double)) {
+					state = State.DOUBLE;
+					return op.doubles((Double) x, op.unary ? 0 : (Double) y);
+				}
+				state = State.MEGAMORPHIC;
+				break;
+			default:
+				break;
+		}
+		return op.unary ? generic.apply(x) : generic.apply(x, y);
+	}
+
+	@Override
+	public String toString() {
+		return LispPrinter.prStr(invoke.form) + ": " + state;
+	}
+
+	/**
+	 * The specialized implementations. They must behave exactly like
+	 * the generic core functions for arguments of the respective type.
+	 */
+	enum Op {
+		ADD(false) {
+			@Override
+			Object longs(long a, long b) {
+				return Math.addExact(a, b);
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a + b;
+			}
+		},
+		SUBTRACT(false) {
+			@Override
+			Object longs(long a, long b) {
+				return Math.subtractExact(a, b);
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a - b;
+			}
+		},
+		MULTIPLY(false) {
+			@Override
+			Object longs(long a, long b) {
+				return Math.multiplyExact(a, b);
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a * b;
+			}
+		},
+		LESS(false) {
+			@Override
+			Object longs(long a, long b) {
+				return a < b;
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a < b;
+			}
+		},
+		GREATER(false) {
+			@Override
+			Object longs(long a, long b) {
+				return a > b;
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a > b;
+			}
+		},
+		LESS_OR_EQUAL(false) {
+			@Override
+			Object longs(long a, long b) {
+				return a <= b;
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a <= b;
+			}
+		},
+		GREATER_OR_EQUAL(false) {
+			@Override
+			Object longs(long a, long b) {
+				return a >= b;
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a >= b;
+			}
+		},
+		NUM_EQUALS(false) {
+			@Override
+			Object longs(long a, long b) {
+				return a == b;
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a == b;
+			}
+		},
+		EQUIV(false) {
+			@Override
+			Object longs(long a, long b) {
+				return a == b;
+			}
+
+			// like Double.equals, so NaN is equal to itself and 0.0 is not equal to -0.0
+			@Override
+			Object doubles(double a, double b) {
+				return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+			}
+		},
+		INC(true) {
+			@Override
+			Object longs(long a, long b) {
+				return Math.incrementExact(a);
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a + 1;
+			}
+		},
+		DEC(true) {
+			@Override
+			Object longs(long a, long b) {
+				return Math.decrementExact(a);
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a - 1;
+			}
+		},
+		ZERO(true) {
+			@Override
+			Object longs(long a, long b) {
+				return a == 0;
+			}
+
+			@Override
+			Object doubles(double a, double b) {
+				return a == 0;
+			}
+		};
+
+		final boolean unary;
+
+		Op(boolean unary) {
+			this.unary = unary;
+		}
+
+		// unary operations ignore b
+		abstract Object longs(long a, long b);
+
+		abstract Object doubles(double a, double b);
+	}
+}
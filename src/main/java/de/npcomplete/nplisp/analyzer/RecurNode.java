@@ -0,0 +1,34 @@
+package de.npcomplete.nplisp.analyzer;
+
+/**
+ * A call to 'recur' in tail position. Writes the new values directly into the slots
+ * of the enclosing function or loop and returns {@link Frames#RECUR}.
+ */
+final class RecurNode implements Node {
+	// the slots of the function parameters or loop bindings
+	final int firstSlot;
+	final Node[] args;
+	// the new values are computed into these slots first, since they may depend on the old ones
+	private final int scratchSlot;
+
+	RecurNode(int firstSlot, Node[] args, int scratchSlot) {
+		this.firstSlot = firstSlot;
+		this.args = args;
+		this.scratchSlot = scratchSlot;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		Node[] args = this.args;
+		int length = args.length;
+		if (length == 1) {
+			frame[firstSlot] = args[0].execute(frame);
+		} else if (length > 1) {
+			for (int i = 0; i < length; i++) {
+				frame[scratchSlot + i] = args[i].execute(frame);
+			}
+			System.arraycopy(frame, scratchSlot, frame, firstSlot, length);
+		}
+		return Frames.RECUR;
+	}
+}
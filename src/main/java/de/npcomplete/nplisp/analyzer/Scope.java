@@ -0,0 +1,37 @@
+package de.npcomplete.nplisp.analyzer;
+
+/**
+ * The symbols which are bound lexically around the form being analyzed,
+ * together with the frame slot they are stored in.
+ */
+final class Scope {
+	static final Scope EMPTY = new Scope(null, null, null, -1);
+
+	private final Scope parent;
+	final String name;
+	final FrameLayout layout;
+	final int slot;
+
+	private Scope(Scope parent, String name, FrameLayout layout, int slot) {
+		this.parent = parent;
+		this.name = name;
+		this.layout = layout;
+		this.slot = slot;
+	}
+
+	Scope with(String name, FrameLayout layout, int slot) {
+		return new Scope(this, name, layout, slot);
+	}
+
+	/**
+	 * Returns the innermost binding for the name, or null if it is not bound.
+	 */
+	Scope lookup(String name) {
+		for (Scope s = this; s != EMPTY; s = s.parent) {
+			if (s.name.equals(name)) {
+				return s;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,108 @@
+package de.npcomplete.nplisp.analyzer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import de.npcomplete.nplisp.core.Var;
+import de.npcomplete.nplisp.corelibrary.Numbers;
+import de.npcomplete.nplisp.data.Symbol;
+import de.npcomplete.nplisp.function.LispFunction;
+
+/**
+ * Specializes calls of core arithmetic and comparison functions with one or two arguments
+ * for the argument types seen at runtime. (see {@link NumericNode})
+ * <p>
+ * Type feedback is enabled by default. It can be switched off with the system property
+ * <code>nplisp.typeFeedback=false</code> or via {@link #setEnabled(boolean)}.
+ * The state of all call sites which are still in use can be inspected with {@link #sites()}.
+ */
+public final class TypeFeedback {
+	private static final Map<String, NumericNode.Op> BINARY_OPS = new HashMap<>();
+	private static final Map<String, NumericNode.Op> UNARY_OPS = new HashMap<>();
+	// the core functions the specialized operations behave like
+	private static final Map<NumericNode.Op, LispFunction> GENERIC = new EnumMap<>(NumericNode.Op.class);
+
+	static {
+		BINARY_OPS.put("+", NumericNode.Op.ADD);
+		BINARY_OPS.put("-", NumericNode.Op.SUBTRACT);
+		BINARY_OPS.put("*", NumericNode.Op.MULTIPLY);
+		BINARY_OPS.put("<", NumericNode.Op.LESS);
+		BINARY_OPS.put(">", NumericNode.Op.GREATER);
+		BINARY_OPS.put("<=", NumericNode.Op.LESS_OR_EQUAL);
+		BINARY_OPS.put(">=", NumericNode.Op.GREATER_OR_EQUAL);
+		BINARY_OPS.put("==", NumericNode.Op.NUM_EQUALS);
+		BINARY_OPS.put("=", NumericNode.Op.EQUIV);
+		UNARY_OPS.put("inc", NumericNode.Op.INC);
+		UNARY_OPS.put("dec", NumericNode.Op.DEC);
+		UNARY_OPS.put("zero?", NumericNode.Op.ZERO);
+		GENERIC.put(NumericNode.Op.ADD, Numbers.FN_ADD);
+		GENERIC.put(NumericNode.Op.SUBTRACT, Numbers.FN_SUBTRACT);
+		GENERIC.put(NumericNode.Op.MULTIPLY, Numbers.FN_MULTIPLY);
+		GENERIC.put(NumericNode.Op.LESS, Numbers.FN_LESS);
+		GENERIC.put(NumericNode.Op.GREATER, Numbers.FN_GREATER);
+		GENERIC.put(NumericNode.Op.LESS_OR_EQUAL, Numbers.FN_LESS_OR_EQUAL);
+		GENERIC.put(NumericNode.Op.GREATER_OR_EQUAL, Numbers.FN_GREATER_OR_EQUAL);
+		GENERIC.put(NumericNode.Op.NUM_EQUALS, Numbers.FN_NUM_EQUALS);
+		GENERIC.put(NumericNode.Op.EQUIV, Numbers.FN_EQUIV);
+		GENERIC.put(NumericNode.Op.INC, Numbers.FN_INC);
+		GENERIC.put(NumericNode.Op.DEC, Numbers.FN_DEC);
+		GENERIC.put(NumericNode.Op.ZERO, Numbers.FN_ZERO);
+	}
+
+	// weak keys, so sites of functions which are no longer used disappear
+	private static final Map<NumericNode, Boolean> sites = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private static volatile boolean enabled = !"false".equals(System.getProperty("nplisp.typeFeedback"));
+
+	private TypeFeedback() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		TypeFeedback.enabled = enabled;
+	}
+
+	/**
+	 * Returns a description of every specialized call site: the call and its current state,
+	 * which is one of UNSEEN, LONG, DOUBLE or MEGAMORPHIC.
+	 */
+	public static List<String> sites() {
+		List<String> result = new ArrayList<>();
+		synchronized (sites) {
+			for (NumericNode site : sites.keySet()) {
+				result.add(site.toString());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a specialized node for the call if it calls a core arithmetic or comparison function,
+	 * otherwise the call itself. Vars of the core namespace which were rebound to
+	 * other functions are called as usual.
+	 */
+	static Node specialize(InvokeNode invoke, Var var, Object value) {
+		Symbol sym = var.symbol;
+		if (!enabled || !"nplisp.core".equals(sym.nsName)) {
+			return invoke;
+		}
+		int argCount = invoke.args.length;
+		NumericNode.Op op = argCount == 2 ? BINARY_OPS.get(sym.name)
+				: argCount == 1 ? UNARY_OPS.get(sym.name)
+				: null;
+		if (op == null || value != GENERIC.get(op)) {
+			return invoke;
+		}
+		NumericNode site = new NumericNode(invoke, op, (LispFunction) value);
+		sites.put(site, Boolean.TRUE);
+		return site;
+	}
+}
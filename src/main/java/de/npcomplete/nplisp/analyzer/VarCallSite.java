@@ -0,0 +1,80 @@
+package de.npcomplete.nplisp.analyzer;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.compiler.RuntimeSupport;
+import de.npcomplete.nplisp.core.Namespace;
+import de.npcomplete.nplisp.core.Var;
+import de.npcomplete.nplisp.function.LispFunction;
+
+/**
+ * Call site of an invokedynamic instruction, which calls the function of a var in compiled code.
+ * The call site is linked to the 'apply' method of the current value of the var. The link is guarded
+ * by the switch points of the var and the namespace, so redefining the var, or a new mapping for the
+ * symbol, relinks the call site on the next call. Until then, the JIT may inline the function.
+ */
+public final class VarCallSite extends MutableCallSite {
+	private static final MethodHandle RELINK;
+	private static final MethodHandle[] APPLY = new MethodHandle[5];
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			RELINK = lookup.findVirtual(VarCallSite.class, "relink",
+					MethodType.methodType(Object.class, Object[].class));
+			for (int i = 0; i <= 3; i++) {
+				APPLY[i] = lookup.findVirtual(LispFunction.class, "apply", MethodType.genericMethodType(i));
+			}
+			APPLY[4] = lookup.findVirtual(LispFunction.class, "apply", MethodType.genericMethodType(3, true))
+					.asFixedArity();
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final VarRefNode fn;
+	private final Object form;
+	private final MethodHandle apply;
+	private final MethodHandle relink;
+
+	private VarCallSite(MethodType type, VarRefNode fn, Object form) {
+		super(type);
+		this.fn = fn;
+		this.form = form;
+		apply = APPLY[type.parameterCount()];
+		relink = RELINK.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type);
+		setTarget(relink);
+	}
+
+	/**
+	 * Bootstrap method of the call sites. The var reference and the form of the call are
+	 * read from the constants of the compiled class.
+	 */
+	public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type,
+			int fnIndex, int formIndex) throws ReflectiveOperationException {
+		Object[] constants = (Object[]) lookup.lookupClass().getField("CONSTANTS").get(null);
+		return new VarCallSite(type, (VarRefNode) constants[fnIndex], constants[formIndex]);
+	}
+
+	private Object relink(Object[] args) throws Throwable {
+		// the switch points are taken before the lookup, so concurrent changes invalidate the new target
+		SwitchPoint nsSwitchPoint = fn.ns.switchPoint();
+		Var var = fn.resolve();
+		SwitchPoint varSwitchPoint = var.switchPoint();
+		Object callable = fn.execute(null);
+		if (RuntimeSupport.isSpecial(callable)) {
+			throw new LispException("Can't call " + var + " from compiled code since it is a macro now."
+					+ " The calling function needs to be evaluated again.");
+		}
+		LispFunction f = RuntimeSupport.fn(callable, form);
+		MethodHandle target = apply.bindTo(f).asType(type());
+		setTarget(varSwitchPoint.guardWithTest(nsSwitchPoint.guardWithTest(target, relink), relink));
+		return target.invokeWithArguments(args);
+	}
+}
@@ -0,0 +1,51 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.core.Namespace;
+import de.npcomplete.nplisp.core.Var;
+import de.npcomplete.nplisp.data.Symbol;
+
+/**
+ * Reference to a symbol which is not bound locally, so the
+ * environment chain does not need to be checked.
+ * The resolved var is cached until the mappings of the namespace change.
+ */
+final class VarRefNode implements Node {
+	final Symbol symbol;
+	final Namespace ns;
+	private final boolean allowMacro;
+
+	private Resolved resolved;
+
+	VarRefNode(Symbol symbol, Namespace ns, boolean allowMacro) {
+		this.symbol = symbol;
+		this.ns = ns;
+		this.allowMacro = allowMacro;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		return Lisp.derefVar(resolve(), ns, allowMacro);
+	}
+
+	Var resolve() {
+		Resolved r = resolved;
+		int version = ns.version();
+		if (r == null || r.version != version) {
+			// the version is read before the lookup, so concurrent changes invalidate the result
+			r = new Resolved(ns.lookupVar(symbol, false, false), version);
+			resolved = r;
+		}
+		return r.var;
+	}
+
+	private static final class Resolved {
+		final Var var;
+		final int version;
+
+		Resolved(Var var, int version) {
+			this.var = var;
+			this.version = version;
+		}
+	}
+}
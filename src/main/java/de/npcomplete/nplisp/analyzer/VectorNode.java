@@ -0,0 +1,20 @@
+package de.npcomplete.nplisp.analyzer;
+
+import de.npcomplete.nplisp.compiler.RuntimeSupport;
+
+final class VectorNode implements Node {
+	final Node[] items;
+
+	VectorNode(Node[] items) {
+		this.items = items;
+	}
+
+	@Override
+	public Object execute(Object[] frame) {
+		Object[] values = new Object[items.length];
+		for (int i = 0, length = items.length; i < length; i++) {
+			values[i] = items[i].execute(frame);
+		}
+		return RuntimeSupport.vector(values);
+	}
+}
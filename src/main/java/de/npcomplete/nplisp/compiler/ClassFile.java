@@ -0,0 +1,102 @@
+package de.npcomplete.nplisp.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.npcomplete.nplisp.util.LispElf;
+
+/**
+ * Minimal writer for Java 8 class files, supporting just
+ * what the compiler needs: fields, methods with code and bootstrap methods.
+ */
+public final class ClassFile {
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_PRIVATE = 0x0002;
+	public static final int ACC_STATIC = 0x0008;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_VARARGS = 0x0080;
+	private static final int ACC_SUPER = 0x0020;
+
+	private final ConstantPool pool = new ConstantPool();
+	public final String name;
+	private final String superName;
+	private final String[] interfaces;
+
+	private final List<int[]> fields = new ArrayList<>();
+	private final List<Object[]> methods = new ArrayList<>();
+
+	public ClassFile(String name, String superName, String... interfaces) {
+		this.name = name;
+		this.superName = superName;
+		this.interfaces = interfaces;
+	}
+
+	public void field(int access, String name, String descriptor) {
+		fields.add(new int[] {access, pool.utf8(name), pool.utf8(descriptor)});
+	}
+
+	/**
+	 * Adds a method and returns the code block to emit its body into.
+	 * 'extraLocals' is the number of locals needed in addition to the parameters.
+	 */
+	public Code method(int access, String name, String descriptor, int extraLocals) {
+		List<String> paramTypes = Code.argumentTypes(descriptor);
+		if ((access & ACC_STATIC) == 0) {
+			paramTypes.add(0, this.name);
+		}
+		Code code = new Code(pool, paramTypes.toArray(new String[0]), extraLocals);
+		methods.add(new Object[] {access, pool.utf8(name), pool.utf8(descriptor), code});
+		return code;
+	}
+
+	public byte[] toByteArray() {
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(body);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(pool.classRef(name));
+			out.writeShort(pool.classRef(superName));
+			out.writeShort(interfaces.length);
+			for (String i : interfaces) {
+				out.writeShort(pool.classRef(i));
+			}
+			out.writeShort(fields.size());
+			for (int[] field : fields) {
+				out.writeShort(field[0]);
+				out.writeShort(field[1]);
+				out.writeShort(field[2]);
+				out.writeShort(0);
+			}
+			out.writeShort(methods.size());
+			for (Object[] method : methods) {
+				out.writeShort((Integer) method[0]);
+				out.writeShort((Integer) method[1]);
+				out.writeShort((Integer) method[2]);
+				out.writeShort(1);
+				((Code) method[3]).writeTo(out);
+			}
+			if (pool.hasBootstrapMethods()) {
+				out.writeShort(1);
+				out.writeShort(pool.utf8("BootstrapMethods"));
+				pool.writeBootstrapMethods(out);
+			} else {
+				out.writeShort(0); // attributes
+			}
+
+			// the constant pool is complete only after everything else was written
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(result);
+			header.writeInt(0xCAFEBABE);
+			header.writeShort(0); // minor version
+			header.writeShort(52); // Java 8
+			pool.writeTo(header);
+			body.writeTo(result);
+			return result.toByteArray();
+		} catch (IOException e) {
+			throw LispElf.sneakyThrow(e);
+		}
+	}
+}
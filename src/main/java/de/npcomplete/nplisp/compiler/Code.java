@@ -0,0 +1,517 @@
+package de.npcomplete.nplisp.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The bytecode of a single method. The types on the operand stack are tracked,
+ * so that the maximum stack size and the stack map frames of all jump targets
+ * can be computed. Locals which are not parameters are initialized with null
+ * at the start of the method and are always declared as Object in the stack map frames.
+ * <p>
+ * Instructions emitted after an unconditional jump are dropped,
+ * until a label that is the target of a jump is marked.
+ */
+public final class Code {
+	public static final String OBJECT = "java/lang/Object";
+	public static final String OBJECT_ARRAY = "[Ljava/lang/Object;";
+	public static final String INT = "I";
+
+	private final ConstantPool pool;
+	private final String[] localTypes;
+
+	private byte[] code = new byte[64];
+	private int length;
+
+	private final List<String> stack = new ArrayList<>();
+	private int maxStack;
+	private boolean reachable = true;
+	private final List<Label> labels = new ArrayList<>();
+
+	Code(ConstantPool pool, String[] paramTypes, int extraLocals) {
+		this.pool = pool;
+		localTypes = Arrays.copyOf(paramTypes, paramTypes.length + extraLocals);
+		for (int i = paramTypes.length; i < localTypes.length; i++) {
+			localTypes[i] = OBJECT;
+			aconstNull();
+			astore(i);
+		}
+	}
+
+	public boolean isReachable() {
+		return reachable;
+	}
+
+	public int stackSize() {
+		return stack.size();
+	}
+
+	// ---- stack simulation ----
+
+	private void push(String type) {
+		stack.add(type);
+		if (stack.size() > maxStack) {
+			maxStack = stack.size();
+		}
+	}
+
+	private String pop() {
+		return stack.remove(stack.size() - 1);
+	}
+
+	private void pop(int count) {
+		while (count-- > 0) {
+			pop();
+		}
+	}
+
+	private void u1(int b) {
+		if (length + 3 > code.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+		}
+		code[length++] = (byte) b;
+	}
+
+	private void u2(int s) {
+		u1(s >> 8);
+		u1(s);
+	}
+
+	// ---- instructions ----
+
+	public void aconstNull() {
+		if (reachable) {
+			u1(0x01);
+			push(OBJECT);
+		}
+	}
+
+	public void iconst(int value) {
+		if (!reachable) {
+			return;
+		}
+		if (value >= -1 && value <= 5) {
+			u1(0x03 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			u1(0x10);
+			u1(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			u1(0x11);
+			u2(value);
+		} else {
+			u1(0x13);
+			u2(pool.integer(value));
+		}
+		push(INT);
+	}
+
+	public void ldc(String value) {
+		if (reachable) {
+			u1(0x13);
+			u2(pool.string(value));
+			push("java/lang/String");
+		}
+	}
+
+	public void aload(int local) {
+		if (reachable) {
+			localInstruction(0x19, local);
+			push(localTypes[local]);
+		}
+	}
+
+	public void astore(int local) {
+		if (reachable) {
+			localInstruction(0x3a, local);
+			pop();
+		}
+	}
+
+	private void localInstruction(int opcode, int local) {
+		if (local > 0xff) {
+			u1(0xc4); // wide
+			u1(opcode);
+			u2(local);
+		} else {
+			u1(opcode);
+			u1(local);
+		}
+	}
+
+	public void aaload() {
+		if (reachable) {
+			u1(0x32);
+			pop();
+			String array = pop();
+			push(elementType(array));
+		}
+	}
+
+	public void aastore() {
+		if (reachable) {
+			u1(0x53);
+			pop(3);
+		}
+	}
+
+	public void arraylength() {
+		if (reachable) {
+			u1(0xbe);
+			pop();
+			push(INT);
+		}
+	}
+
+	public void iadd() {
+		if (reachable) {
+			u1(0x60);
+			pop(2);
+			push(INT);
+		}
+	}
+
+	public void anewarray(String elementType) {
+		if (reachable) {
+			u1(0xbd);
+			u2(pool.classRef(elementType));
+			pop();
+			push(elementType.startsWith("[") ? "[" + elementType : "[L" + elementType + ';');
+		}
+	}
+
+	public void newObject(String type) {
+		if (reachable) {
+			u1(0xbb);
+			u2(pool.classRef(type));
+			push(type);
+		}
+	}
+
+	public void checkcast(String type) {
+		if (reachable) {
+			u1(0xc0);
+			u2(pool.classRef(type));
+			pop();
+			push(type);
+		}
+	}
+
+	public void instanceOf(String type) {
+		if (reachable) {
+			u1(0xc1);
+			u2(pool.classRef(type));
+			pop();
+			push(INT);
+		}
+	}
+
+	public void dup() {
+		if (reachable) {
+			u1(0x59);
+			push(stack.get(stack.size() - 1));
+		}
+	}
+
+	public void pop1() {
+		if (reachable) {
+			u1(0x57);
+			pop();
+		}
+	}
+
+	public void swap() {
+		if (reachable) {
+			u1(0x5f);
+			String a = pop();
+			String b = pop();
+			push(a);
+			push(b);
+		}
+	}
+
+	public void getstatic(String owner, String name, String descriptor) {
+		if (reachable) {
+			u1(0xb2);
+			u2(pool.fieldRef(owner, name, descriptor));
+			push(descriptorType(descriptor));
+		}
+	}
+
+	public void getfield(String owner, String name, String descriptor) {
+		if (reachable) {
+			u1(0xb4);
+			u2(pool.fieldRef(owner, name, descriptor));
+			pop();
+			push(descriptorType(descriptor));
+		}
+	}
+
+	public void invokestatic(String owner, String name, String descriptor) {
+		invoke(0xb8, owner, name, descriptor, false);
+	}
+
+	public void invokevirtual(String owner, String name, String descriptor) {
+		invoke(0xb6, owner, name, descriptor, true);
+	}
+
+	public void invokespecial(String owner, String name, String descriptor) {
+		invoke(0xb7, owner, name, descriptor, true);
+	}
+
+	public void invokeinterface(String owner, String name, String descriptor) {
+		if (!reachable) {
+			return;
+		}
+		u1(0xb9);
+		u2(pool.interfaceMethodRef(owner, name, descriptor));
+		int argCount = argumentTypes(descriptor).size();
+		u1(argCount + 1);
+		u1(0);
+		pop(argCount + 1);
+		pushReturnType(descriptor);
+	}
+
+	/**
+	 * Emits an invokedynamic instruction. The bootstrap arguments are integer constants.
+	 */
+	public void invokedynamic(String name, String descriptor,
+			String bootstrapOwner, String bootstrapName, String bootstrapDescriptor, int... bootstrapArgs) {
+		if (!reachable) {
+			return;
+		}
+		int[] args = new int[bootstrapArgs.length];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = pool.integer(bootstrapArgs[i]);
+		}
+		u1(0xba);
+		u2(pool.invokeDynamic(name, descriptor, bootstrapOwner, bootstrapName, bootstrapDescriptor, args));
+		u1(0);
+		u1(0);
+		pop(argumentTypes(descriptor).size());
+		pushReturnType(descriptor);
+	}
+
+	private void invoke(int opcode, String owner, String name, String descriptor, boolean hasReceiver) {
+		if (!reachable) {
+			return;
+		}
+		u1(opcode);
+		u2(pool.methodRef(owner, name, descriptor));
+		pop(argumentTypes(descriptor).size() + (hasReceiver ? 1 : 0));
+		pushReturnType(descriptor);
+	}
+
+	private void pushReturnType(String descriptor) {
+		String returnType = descriptor.substring(descriptor.indexOf(')') + 1);
+		if (!returnType.equals("V")) {
+			push(descriptorType(returnType));
+		}
+	}
+
+	public void areturn() {
+		if (reachable) {
+			u1(0xb0);
+			pop();
+			reachable = false;
+		}
+	}
+
+	public void vreturn() {
+		if (reachable) {
+			u1(0xb1);
+			reachable = false;
+		}
+	}
+
+	public void athrow() {
+		if (reachable) {
+			u1(0xbf);
+			pop();
+			reachable = false;
+		}
+	}
+
+	// ---- jumps ----
+
+	public void ifeq(Label label) {
+		jump(0x99, label, 1);
+	}
+
+	public void ifnull(Label label) {
+		jump(0xc6, label, 1);
+	}
+
+	public void ifIcmpne(Label label) {
+		jump(0xa0, label, 2);
+	}
+
+	public void ifIcmplt(Label label) {
+		jump(0xa1, label, 2);
+	}
+
+	public void jump(Label label) {
+		jump(0xa7, label, 0);
+		reachable = false;
+	}
+
+	private void jump(int opcode, Label label, int operands) {
+		if (!reachable) {
+			return;
+		}
+		pop(operands);
+		if (label.stack == null) {
+			label.stack = new ArrayList<>(stack);
+		}
+		label.targeted = true;
+		int position = length;
+		u1(opcode);
+		if (label.position >= 0) {
+			u2(label.position - position);
+		} else {
+			label.fixups.add(new int[] {position, length});
+			u2(0);
+		}
+	}
+
+	/**
+	 * Binds the label to the current position.
+	 */
+	public void mark(Label label) {
+		if (reachable) {
+			if (label.stack == null) {
+				label.stack = new ArrayList<>(stack);
+			}
+		} else if (label.stack != null) {
+			stack.clear();
+			stack.addAll(label.stack);
+			reachable = true;
+		}
+		label.position = length;
+		for (int[] fixup : label.fixups) {
+			int offset = length - fixup[0];
+			if (offset > Short.MAX_VALUE) {
+				throw new IllegalStateException("Method too large");
+			}
+			code[fixup[1]] = (byte) (offset >> 8);
+			code[fixup[1] + 1] = (byte) offset;
+		}
+		labels.add(label);
+	}
+
+	// ---- types ----
+
+	private static String elementType(String arrayType) {
+		return descriptorType(arrayType.substring(1));
+	}
+
+	/**
+	 * Converts a field descriptor to the type representation used on the stack.
+	 */
+	private static String descriptorType(String descriptor) {
+		switch (descriptor.charAt(0)) {
+			case 'L':
+				return descriptor.substring(1, descriptor.length() - 1);
+			case '[':
+				return descriptor;
+			default:
+				return INT;
+		}
+	}
+
+	static List<String> argumentTypes(String methodDescriptor) {
+		List<String> types = new ArrayList<>();
+		int i = 1;
+		while (methodDescriptor.charAt(i) != ')') {
+			int start = i;
+			while (methodDescriptor.charAt(i) == '[') {
+				i++;
+			}
+			if (methodDescriptor.charAt(i) == 'L') {
+				i = methodDescriptor.indexOf(';', i);
+			}
+			i++;
+			types.add(descriptorType(methodDescriptor.substring(start, i)));
+		}
+		return types;
+	}
+
+	// ---- serialization ----
+
+	void writeTo(DataOutputStream out) throws IOException {
+		if (length > 0xffff) {
+			throw new IllegalStateException("Method too large");
+		}
+		byte[] stackMap = stackMapTable();
+
+		out.writeShort(pool.utf8("Code"));
+		int attributesLength = stackMap != null ? 6 + stackMap.length : 0;
+		out.writeInt(12 + length + attributesLength);
+		out.writeShort(maxStack);
+		out.writeShort(localTypes.length);
+		out.writeInt(length);
+		out.write(code, 0, length);
+		out.writeShort(0); // exception table
+		if (stackMap == null) {
+			out.writeShort(0);
+			return;
+		}
+		out.writeShort(1);
+		out.writeShort(pool.utf8("StackMapTable"));
+		out.writeInt(stackMap.length);
+		out.write(stackMap);
+	}
+
+	private byte[] stackMapTable() throws IOException {
+		List<Label> targets = new ArrayList<>();
+		for (Label label : labels) {
+			if (label.targeted && label.stack != null) {
+				targets.add(label);
+			}
+		}
+		if (targets.isEmpty()) {
+			return null;
+		}
+		targets.sort((a, b) -> Integer.compare(a.position, b.position));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int count = 0;
+		int previous = -1;
+		for (Label label : targets) {
+			if (label.position == previous) {
+				continue;
+			}
+			out.writeByte(255); // full frame
+			out.writeShort(label.position - previous - 1);
+			out.writeShort(localTypes.length);
+			for (String type : localTypes) {
+				verificationType(out, type);
+			}
+			out.writeShort(label.stack.size());
+			for (String type : label.stack) {
+				verificationType(out, type);
+			}
+			previous = label.position;
+			count++;
+		}
+		byte[] frames = bytes.toByteArray();
+		byte[] table = new byte[frames.length + 2];
+		table[0] = (byte) (count >> 8);
+		table[1] = (byte) count;
+		System.arraycopy(frames, 0, table, 2, frames.length);
+		return table;
+	}
+
+	private void verificationType(DataOutputStream out, String type) throws IOException {
+		if (INT.equals(type)) {
+			out.writeByte(1);
+		} else {
+			out.writeByte(7);
+			out.writeShort(pool.classRef(type));
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package de.npcomplete.nplisp.compiler;
+
+import de.npcomplete.nplisp.function.LispFunction;
+
+/**
+ * Base class of all functions compiled to JVM classes.
+ * The generated classes implement one apply method per arity of the function.
+ */
+public abstract class CompiledFunction implements LispFunction {
+	// The values the function captured from the frame it was created in
+	protected final Object[] captured;
+
+	protected CompiledFunction(Object[] captured) {
+		this.captured = captured;
+	}
+
+	/**
+	 * Creates a new function of the same class with the given captured values.
+	 */
+	public abstract CompiledFunction newInstance(Object[] captured);
+}
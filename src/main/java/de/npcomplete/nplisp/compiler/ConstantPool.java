@@ -0,0 +1,181 @@
+package de.npcomplete.nplisp.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.npcomplete.nplisp.util.LispElf;
+
+/**
+ * Constant pool of a class file. Entries are deduplicated.
+ */
+final class ConstantPool {
+	private static final int UTF8 = 1;
+	private static final int INTEGER = 3;
+	private static final int CLASS = 7;
+	private static final int STRING = 8;
+	private static final int FIELD_REF = 9;
+	private static final int METHOD_REF = 10;
+	private static final int INTERFACE_METHOD_REF = 11;
+	private static final int NAME_AND_TYPE = 12;
+	private static final int METHOD_HANDLE = 15;
+	private static final int INVOKE_DYNAMIC = 18;
+
+	private static final int REF_INVOKE_STATIC = 6;
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(bytes);
+	private final Map<String, Integer> entries = new HashMap<>();
+	private int count = 1;
+	// entries of the BootstrapMethods attribute: method handle index, then argument indices
+	private final List<int[]> bootstrapMethods = new ArrayList<>();
+	private final Map<String, Integer> bootstrapIndices = new HashMap<>();
+
+	int utf8(String value) {
+		Integer index = entries.get("U" + value);
+		if (index != null) {
+			return index;
+		}
+		try {
+			out.writeByte(UTF8);
+			out.writeUTF(value);
+		} catch (IOException e) {
+			throw LispElf.sneakyThrow(e);
+		}
+		return register("U" + value, 1);
+	}
+
+	int integer(int value) {
+		Integer index = entries.get("I" + value);
+		if (index != null) {
+			return index;
+		}
+		try {
+			out.writeByte(INTEGER);
+			out.writeInt(value);
+		} catch (IOException e) {
+			throw LispElf.sneakyThrow(e);
+		}
+		return register("I" + value, 1);
+	}
+
+	int classRef(String internalName) {
+		return ref(CLASS, "C" + internalName, utf8(internalName));
+	}
+
+	int string(String value) {
+		return ref(STRING, "S" + value, utf8(value));
+	}
+
+	int fieldRef(String owner, String name, String descriptor) {
+		return ref(FIELD_REF, "F" + owner + '.' + name + ':' + descriptor,
+				classRef(owner), nameAndType(name, descriptor));
+	}
+
+	int methodRef(String owner, String name, String descriptor) {
+		return ref(METHOD_REF, "M" + owner + '.' + name + descriptor,
+				classRef(owner), nameAndType(name, descriptor));
+	}
+
+	int interfaceMethodRef(String owner, String name, String descriptor) {
+		return ref(INTERFACE_METHOD_REF, "I" + owner + '.' + name + descriptor,
+				classRef(owner), nameAndType(name, descriptor));
+	}
+
+	/**
+	 * Returns the entry for an invokedynamic instruction, whose call site is created by
+	 * the given static bootstrap method. The bootstrap arguments are pool indices.
+	 */
+	int invokeDynamic(String name, String descriptor,
+			String bootstrapOwner, String bootstrapName, String bootstrapDescriptor, int... bootstrapArgs) {
+		int handle = staticMethodHandle(bootstrapOwner, bootstrapName, bootstrapDescriptor);
+		String bootstrapKey = handle + Arrays.toString(bootstrapArgs);
+		Integer bootstrap = bootstrapIndices.get(bootstrapKey);
+		if (bootstrap == null) {
+			bootstrap = bootstrapMethods.size();
+			int[] method = new int[bootstrapArgs.length + 1];
+			method[0] = handle;
+			System.arraycopy(bootstrapArgs, 0, method, 1, bootstrapArgs.length);
+			bootstrapMethods.add(method);
+			bootstrapIndices.put(bootstrapKey, bootstrap);
+		}
+		return ref(INVOKE_DYNAMIC, "D" + bootstrap + ':' + name + descriptor, bootstrap, nameAndType(name, descriptor));
+	}
+
+	private int staticMethodHandle(String owner, String name, String descriptor) {
+		String key = "H" + owner + '.' + name + descriptor;
+		Integer index = entries.get(key);
+		if (index != null) {
+			return index;
+		}
+		int method = methodRef(owner, name, descriptor);
+		try {
+			out.writeByte(METHOD_HANDLE);
+			out.writeByte(REF_INVOKE_STATIC);
+			out.writeShort(method);
+		} catch (IOException e) {
+			throw LispElf.sneakyThrow(e);
+		}
+		return register(key, 1);
+	}
+
+	private int nameAndType(String name, String descriptor) {
+		return ref(NAME_AND_TYPE, "N" + name + ':' + descriptor, utf8(name), utf8(descriptor));
+	}
+
+	private int ref(int tag, String key, int... indices) {
+		Integer index = entries.get(key);
+		if (index != null) {
+			return index;
+		}
+		try {
+			out.writeByte(tag);
+			for (int i : indices) {
+				out.writeShort(i);
+			}
+		} catch (IOException e) {
+			throw LispElf.sneakyThrow(e);
+		}
+		return register(key, 1);
+	}
+
+	private int register(String key, int slots) {
+		int index = count;
+		count += slots;
+		entries.put(key, index);
+		return index;
+	}
+
+	boolean hasBootstrapMethods() {
+		return !bootstrapMethods.isEmpty();
+	}
+
+	/**
+	 * Writes the body of the BootstrapMethods attribute.
+	 */
+	void writeBootstrapMethods(DataOutputStream target) throws IOException {
+		int length = 2;
+		for (int[] method : bootstrapMethods) {
+			length += 2 * (method.length + 1);
+		}
+		target.writeInt(length);
+		target.writeShort(bootstrapMethods.size());
+		for (int[] method : bootstrapMethods) {
+			target.writeShort(method[0]);
+			target.writeShort(method.length - 1);
+			for (int i = 1; i < method.length; i++) {
+				target.writeShort(method[i]);
+			}
+		}
+	}
+
+	void writeTo(DataOutputStream target) throws IOException {
+		target.writeShort(count);
+		bytes.writeTo(target);
+	}
+}
@@ -0,0 +1,16 @@
+package de.npcomplete.nplisp.compiler;
+
+/**
+ * Class loader for compiled code. Each namespace has its own loader,
+ * so the classes compiled in a namespace can be garbage collected
+ * once the namespace is no longer referenced.
+ */
+public final class DynamicClassLoader extends ClassLoader {
+	public DynamicClassLoader() {
+		super(DynamicClassLoader.class.getClassLoader());
+	}
+
+	public Class<?> define(String name, byte[] bytes) {
+		return defineClass(name.replace('/', '.'), bytes, 0, bytes.length);
+	}
+}
@@ -0,0 +1,16 @@
+package de.npcomplete.nplisp.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Jump target within a {@link Code} block.
+ */
+public final class Label {
+	int position = -1;
+	// types on the operand stack when the label is reached
+	List<String> stack;
+	// positions of the jump instructions and their offset operands
+	final List<int[]> fixups = new ArrayList<>();
+	boolean targeted;
+}
@@ -0,0 +1,116 @@
+package de.npcomplete.nplisp.compiler;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.corelibrary.CoreLibrary.TailCall;
+import de.npcomplete.nplisp.data.PersistentArrayMap;
+import de.npcomplete.nplisp.data.PersistentHashSet;
+import de.npcomplete.nplisp.data.PersistentVector;
+import de.npcomplete.nplisp.data.Sequence;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory;
+import de.npcomplete.nplisp.function.Macro;
+import de.npcomplete.nplisp.function.SpecialForm;
+import de.npcomplete.nplisp.util.LispElf;
+import de.npcomplete.nplisp.util.LispPrinter;
+
+/**
+ * Static helpers called by compiled code. Also used by the analyzer nodes,
+ * so that both execution modes behave the same.
+ */
+public final class RuntimeSupport {
+	private RuntimeSupport() {
+	}
+
+	/**
+	 * Returns true if the callable needs the raw forms and the local environment.
+	 */
+	public static boolean isSpecial(Object callable) {
+		return callable instanceof SpecialForm || callable instanceof Macro;
+	}
+
+	/**
+	 * Converts the callable to a function, or throws an exception if it can't be called.
+	 */
+	public static LispFunction fn(Object callable, Object form) {
+		LispFunction f = LispFunctionFactory.from(callable);
+		if (f == null) {
+			String call = LispPrinter.prStr(form);
+			String first = LispPrinter.prStr(((Sequence) form).first());
+			throw new LispException("Can't call " + callable + " | "
+					+ "Was returned when evaluating: " + first + " | "
+					+ "Call: " + call);
+		}
+		return f;
+	}
+
+	/**
+	 * Throws an exception if the value resulted from a call to 'recur' outside of a tail position.
+	 */
+	public static Object checkTail(Object val) {
+		if (val instanceof TailCall) {
+			throw new LispException("Illegal call to 'recur'. Can only be used in function tail position.");
+		}
+		return val;
+	}
+
+	/**
+	 * Returns the arguments of the tail call, or null if the value is not a tail call.
+	 */
+	public static Object[] tailCallArgs(Object val, int count) {
+		if (!(val instanceof TailCall)) {
+			return null;
+		}
+		Object[] args = ((TailCall) val).args;
+		if (args.length != count) {
+			throw new LispException("'recur' did not match required arity." +
+					" Expected: " + count + ". Actual: " + args.length);
+		}
+		return args;
+	}
+
+	public static LispException wrongArity(int arity) {
+		return new LispException("Wrong arity: " + arity);
+	}
+
+	public static LispException wrongArity(int arity, String expected) {
+		return new LispException("Wrong arity: " + arity + ". Expected: " + expected);
+	}
+
+	/**
+	 * Returns the parameters of a variadic function with 'paramCount' parameters
+	 * (including the rest parameter) called with the given arguments.
+	 */
+	public static Object[] varArgs(int paramCount, Object[] args) {
+		Object[] params = new Object[paramCount];
+		LispElf.bindVarArgs(params, 0, paramCount, args);
+		return params;
+	}
+
+	public static Object[] varArgs(int paramCount, Object par1, Object par2, Object par3, Object[] more) {
+		Object[] args = new Object[3 + more.length];
+		args[0] = par1;
+		args[1] = par2;
+		args[2] = par3;
+		System.arraycopy(more, 0, args, 3, more.length);
+		return varArgs(paramCount, args);
+	}
+
+	public static List<Object> vector(Object[] items) {
+		return PersistentVector.create(items);
+	}
+
+	public static Set<Object> set(Object[] items) {
+		return PersistentHashSet.createWithCheck(items);
+	}
+
+	/**
+	 * Creates a map from an array of alternating keys and values.
+	 */
+	public static Map<Object, Object> map(Object[] keyValues) {
+		return PersistentArrayMap.createWithCheck(keyValues);
+	}
+}
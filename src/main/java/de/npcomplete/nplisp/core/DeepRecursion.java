@@ -0,0 +1,267 @@
+package de.npcomplete.nplisp.core;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.util.LispElf;
+
+/**
+ * Evaluation mode for deep, non-tail recursion. The evaluator and analyzed functions
+ * count their nesting depth per thread. Whenever that depth reaches the switch depth,
+ * evaluation continues on another thread with a stack of its own (a stack segment),
+ * while the calling thread waits for the result. This way the recursion depth is bounded
+ * by memory, not by the stack size of the thread running the code.
+ * <p>
+ * Every thread keeps the segment thread which continues its stack, so deeper recursion
+ * builds a chain of segments which is reused by later calls. Segment threads terminate
+ * after they were idle for a while.
+ * <p>
+ * A call which returns from the next segment raises the switch depth of its thread up to
+ * the segment depth, until the depth drops below half of the segment depth again. So a call site
+ * near the switch depth, which is called in a loop, only switches segments on its first call.
+ * <p>
+ * Thread local flags (see {@link de.npcomplete.nplisp.util.ThreadLocalFlag}) are carried into
+ * the segments, and changes made in a segment are carried back.
+ * <p>
+ * The mode is disabled by default. It can be enabled with the system property
+ * <code>nplisp.deepRecursion=true</code> or via {@link #setEnabled(boolean)}.
+ * The number of levels per segment can be set with <code>nplisp.segmentDepth</code>.
+ * Functions are not compiled while the mode is enabled, since compiled code doesn't count its depth.
+ */
+public final class DeepRecursion {
+	static final int SEGMENT_DEPTH = Integer.getInteger("nplisp.segmentDepth", 256);
+	static final int SWITCH_DEPTH = SEGMENT_DEPTH - SEGMENT_DEPTH / 4;
+	static final int RESET_DEPTH = SEGMENT_DEPTH / 2;
+	// enough for a full segment of interpreted calls, plus some uncounted recursion
+	private static final long SEGMENT_STACK_SIZE = 8L * 1024 * 1024;
+	private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private static final ThreadLocal<Stack> stack = ThreadLocal.withInitial(Stack::new);
+	private static final Set<ThreadLocal<?>> carried = Collections.newSetFromMap(new WeakHashMap<>());
+
+	private static final AtomicLong switches = new AtomicLong();
+	private static final AtomicLong segmentsStarted = new AtomicLong();
+
+	private static volatile boolean enabled = "true".equals(System.getProperty("nplisp.deepRecursion"));
+
+	private DeepRecursion() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		DeepRecursion.enabled = enabled;
+	}
+
+	/**
+	 * Registers a thread local whose value is carried into stack segments and back.
+	 */
+	public static void carry(ThreadLocal<?> threadLocal) {
+		synchronized (carried) {
+			carried.add(threadLocal);
+		}
+	}
+
+	/**
+	 * Enters the next level of nesting on the current thread. Returns false if
+	 * the current segment is full, in which case the evaluation has to continue
+	 * via {@link #inNewSegment(Supplier)}. Every successful call must be paired
+	 * with a call to {@link #leave()}.
+	 */
+	public static boolean enter() {
+		Stack s = stack.get();
+		if (s.depth >= s.switchDepth) {
+			return false;
+		}
+		s.depth++;
+		return true;
+	}
+
+	public static void leave() {
+		Stack s = stack.get();
+		if (--s.depth < RESET_DEPTH) {
+			s.switchDepth = SWITCH_DEPTH;
+		}
+	}
+
+	/**
+	 * Runs the evaluation on the next segment of the current thread and waits for its result.
+	 * Exceptions are rethrown on the calling thread.
+	 */
+	public static Object inNewSegment(Supplier<Object> evaluation) {
+		Stack s = stack.get();
+		switches.incrementAndGet();
+		Object[] values = captureCarried();
+		Segment segment = s.next;
+		if (segment == null || !segment.submit(evaluation, values)) {
+			segment = new Segment();
+			segment.submit(evaluation, values);
+			segment.start();
+			s.next = segment;
+		}
+		try {
+			segment.await();
+		} catch (InterruptedException e) {
+			// the segment may still be running, so it can't be used for the next call
+			s.next = null;
+			segment.interrupt();
+			Thread.currentThread().interrupt();
+			throw new LispException("Interrupted while waiting for a stack segment", e);
+		}
+		restoreCarried(segment.values);
+		s.switchDepth = SEGMENT_DEPTH;
+		Throwable error = segment.error;
+		Object result = segment.result;
+		segment.clear();
+		if (error != null) {
+			throw LispElf.sneakyThrow(error);
+		}
+		return result;
+	}
+
+	// for tests
+	static long switches() {
+		return switches.get();
+	}
+
+	static long segmentsStarted() {
+		return segmentsStarted.get();
+	}
+
+	private static Object[] captureCarried() {
+		ThreadLocal<?>[] threadLocals;
+		synchronized (carried) {
+			threadLocals = carried.toArray(new ThreadLocal<?>[0]);
+		}
+		Object[] values = new Object[threadLocals.length * 2];
+		for (int i = 0; i < threadLocals.length; i++) {
+			values[2 * i] = threadLocals[i];
+			values[2 * i + 1] = threadLocals[i].get();
+		}
+		return values;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void restoreCarried(Object[] values) {
+		for (int i = 0; i < values.length; i += 2) {
+			ThreadLocal<Object> threadLocal = (ThreadLocal<Object>) values[i];
+			if (values[i + 1] != null) {
+				threadLocal.set(values[i + 1]);
+			} else {
+				threadLocal.remove();
+			}
+		}
+	}
+
+	private static void clearCarried(Object[] values) {
+		for (int i = 0; i < values.length; i += 2) {
+			((ThreadLocal<?>) values[i]).remove();
+		}
+	}
+
+	/**
+	 * The nesting depth of a thread, and the segment which continues its stack.
+	 */
+	private static final class Stack {
+		int depth;
+		int switchDepth = SWITCH_DEPTH;
+		Segment next;
+	}
+
+	/**
+	 * A thread which runs one evaluation at a time for the thread whose stack it continues.
+	 */
+	private static final class Segment extends Thread {
+		private Supplier<Object> evaluation;
+		private boolean running;
+		private boolean terminated;
+
+		// the carried thread locals on submit, and after the evaluation
+		Object[] values;
+		Object result;
+		Throwable error;
+
+		Segment() {
+			super(null, null, "nplisp-stack-segment", SEGMENT_STACK_SIZE);
+			setDaemon(true);
+			segmentsStarted.incrementAndGet();
+		}
+
+		/**
+		 * Hands the evaluation to the segment. Returns false if the thread has already terminated.
+		 */
+		synchronized boolean submit(Supplier<Object> evaluation, Object[] values) {
+			if (terminated) {
+				return false;
+			}
+			this.evaluation = evaluation;
+			this.values = values;
+			running = true;
+			notifyAll();
+			return true;
+		}
+
+		synchronized void await() throws InterruptedException {
+			while (running) {
+				wait();
+			}
+		}
+
+		void clear() {
+			values = null;
+			result = null;
+			error = null;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Supplier<Object> e;
+				Object[] v;
+				synchronized (this) {
+					long deadline = System.nanoTime() + IDLE_NANOS;
+					while (evaluation == null) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							terminated = true;
+							return;
+						}
+						try {
+							TimeUnit.NANOSECONDS.timedWait(this, remaining);
+						} catch (InterruptedException ignored) {
+							// only the evaluation can be interrupted
+						}
+					}
+					e = evaluation;
+					v = values;
+				}
+				Object r = null;
+				Throwable t = null;
+				restoreCarried(v);
+				try {
+					r = e.get();
+				} catch (Throwable ex) {
+					t = ex;
+				}
+				Object[] back = captureCarried();
+				clearCarried(back);
+				Thread.interrupted();
+				synchronized (this) {
+					evaluation = null;
+					values = back;
+					result = r;
+					error = t;
+					running = false;
+					notifyAll();
+				}
+			}
+		}
+	}
+}
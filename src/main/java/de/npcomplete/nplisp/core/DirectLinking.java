@@ -0,0 +1,81 @@
+package de.npcomplete.nplisp.core;
+
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Controls which vars are directly linked by the analyzer. References to a directly
+ * linked var are replaced with the value the var had when the referencing function
+ * was analyzed, so the var does not need to be dereferenced on every evaluation.
+ * Functions analyzed before the var is rebound keep using the old value.
+ * <p>
+ * The default can be set with the system property <code>nplisp.directLinking</code>
+ * (none, fixed or core) or via {@link #setDefault(DirectLinking)}, and can be
+ * overridden per namespace with {@link Namespace#setDirectLinking(DirectLinking)}.
+ * <p>
+ * Rebinding or shadowing a var which is already linked raises a warning, which is
+ * printed to stderr unless a different handler is set with {@link #setWarningHandler(Consumer)}.
+ */
+public enum DirectLinking {
+	/**
+	 * Every var reference is dereferenced when evaluated.
+	 */
+	NONE,
+	/**
+	 * Vars marked as fixed are linked. These can't be rebound anyway.
+	 */
+	FIXED,
+	/**
+	 * Fixed vars and all vars of the core namespace are linked.
+	 */
+	CORE;
+
+	private static final Consumer<String> PRINT_WARNING = message -> System.err.println("WARNING: " + message);
+
+	private static volatile DirectLinking defaultMode = parse(System.getProperty("nplisp.directLinking"));
+	private static volatile Consumer<String> warningHandler = PRINT_WARNING;
+
+	public static DirectLinking getDefault() {
+		return defaultMode;
+	}
+
+	public static void setDefault(DirectLinking mode) {
+		defaultMode = mode;
+	}
+
+	public static Consumer<String> getWarningHandler() {
+		return warningHandler;
+	}
+
+	/**
+	 * Sets the handler for warnings about linked vars which are rebound or shadowed.
+	 * The default prints them to stderr, null restores it.
+	 */
+	public static void setWarningHandler(Consumer<String> handler) {
+		warningHandler = handler != null ? handler : PRINT_WARNING;
+	}
+
+	static void warn(String message) {
+		warningHandler.accept(message);
+	}
+
+	/**
+	 * Returns the mode with the given (case insensitive) name, or {@link #NONE} if name is null.
+	 */
+	public static DirectLinking parse(String name) {
+		return name != null
+				? valueOf(name.toUpperCase(Locale.ROOT))
+				: NONE;
+	}
+
+	public boolean links(Var var) {
+		switch (this) {
+			case FIXED:
+				return var.isFixed();
+			case CORE:
+				return var.isFixed() || "nplisp.core".equals(var.symbol.nsName);
+			default:
+				return false;
+		}
+	}
+}
@@ -37,6 +37,18 @@ public class Environment {
 		return namespace.lookupVar(symbol, false, false);
 	}
 
+	/**
+	 * Returns true if the symbol is bound in this environment or one of its parents,
+	 * without falling back to the namespace.
+	 */
+	public boolean isLocal(Symbol symbol) {
+		if (symbol.nsName != null) {
+			return false;
+		}
+		return bindings.containsKey(symbol.name)
+				|| parent != null && parent.isLocal(symbol);
+	}
+
 	public void bind(Symbol symbol, Object value) {
 		bindings.put(symbol.name, value == null ? NULL_MARKER : value);
 	}
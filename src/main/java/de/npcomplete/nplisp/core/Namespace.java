@@ -3,11 +3,13 @@ package de.npcomplete.nplisp.core;
 import static de.npcomplete.nplisp.util.LispElf.isSimpleSymbol;
 import static de.npcomplete.nplisp.util.LispElf.sneakyThrow;
 
+import java.lang.invoke.SwitchPoint;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.Function;
 
 import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.compiler.DynamicClassLoader;
 import de.npcomplete.nplisp.data.Sequence;
 import de.npcomplete.nplisp.data.Symbol;
 
@@ -25,6 +27,16 @@ public class Namespace {
 	private final Function<Symbol, Var> internVar;
 	private final Function<String, Namespace> lookupNamespace;
 
+	private DynamicClassLoader classLoader;
+
+	// null to use the default
+	private volatile DirectLinking directLinking;
+
+	// incremented whenever a symbol might resolve to a different var than before
+	private volatile int version;
+	// created on demand by call sites of compiled code, invalidated together with the version
+	private SwitchPoint switchPoint;
+
 	public Namespace(String name, Namespace core,
 			Function<Symbol, Var> internQualifiedVar,
 			Function<String, Namespace> lookupNamespace) {
@@ -61,11 +73,76 @@ public class Namespace {
 		return name;
 	}
 
+	/**
+	 * Returns the direct linking mode used for code analyzed in this namespace.
+	 */
+	public DirectLinking directLinking() {
+		DirectLinking mode = directLinking;
+		return mode != null ? mode : DirectLinking.getDefault();
+	}
+
+	/**
+	 * Sets the direct linking mode for this namespace, or null to use the default.
+	 */
+	public void setDirectLinking(DirectLinking mode) {
+		directLinking = mode;
+	}
+
+	/**
+	 * Returns the current version of the symbol to var mappings. Results of
+	 * {@link #lookupVar} may be cached as long as the version does not change.
+	 */
+	public int version() {
+		return version;
+	}
+
+	/**
+	 * Returns a switch point which is invalidated as soon as a symbol might resolve
+	 * to a different var than before.
+	 */
+	public synchronized SwitchPoint switchPoint() {
+		if (switchPoint == null) {
+			switchPoint = new SwitchPoint();
+		}
+		return switchPoint;
+	}
+
+	private void changed() {
+		version++;
+		synchronized (this) {
+			if (switchPoint != null) {
+				SwitchPoint.invalidateAll(new SwitchPoint[] {switchPoint});
+				switchPoint = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the class loader for the code compiled in this namespace.
+	 */
+	public synchronized DynamicClassLoader classLoader() {
+		if (classLoader == null) {
+			classLoader = new DynamicClassLoader();
+		}
+		return classLoader;
+	}
+
 	public Var define(Symbol symbol) {
 		if (symbol.nsName != null) {
 			throw new LispException("Can't def fully qualified symbols");
 		}
-		return mappings.computeIfAbsent(symbol, internVar);
+		Var var = mappings.get(symbol);
+		if (var == null) {
+			Var shadowed = lookupVar(symbol, false, true);
+			if (shadowed != null && shadowed.isLinked()) {
+				DirectLinking.warn(shadowed + " is shadowed in namespace '" + name + "', but is directly"
+						+ " linked by functions which will keep using it.");
+			}
+			var = internVar.apply(symbol);
+			mappings.put(symbol, var);
+			changed();
+		}
+		return var;
 	}
 
 	public void addAlias(String name, Namespace ns) {
@@ -73,7 +150,10 @@ public class Namespace {
 		if (existingAlias != null && !existingAlias.equals(ns)) {
 			throw new LispException("Can't put a different Namespace for an existing alias");
 		}
-		aliases.put(name, ns);
+		if (existingAlias == null) {
+			aliases.put(name, ns);
+			changed();
+		}
 	}
 
 	public void referFrom(Namespace other, Sequence symbols) {
@@ -103,12 +183,20 @@ public class Namespace {
 		if (v.isPrivate()) {
 			throw new LispException("Can't refer to private var: " + v);
 		}
-		referred.put(sym, v);
+		if (referred.put(sym, v) != v) {
+			changed();
+		}
 		return v;
 	}
 
 	public Var importAs(Symbol sym, Class<?> c) {
-		return referred.computeIfAbsent(sym, internVar).bind(c);
+		Var var = referred.get(sym);
+		if (var == null) {
+			var = internVar.apply(sym);
+			referred.put(sym, var);
+			changed();
+		}
+		return var.bind(c);
 	}
 
 	public Var lookupVar(Symbol symbol, boolean allowPrivate, boolean nullOnUnbound) {
@@ -1,5 +1,7 @@
 package de.npcomplete.nplisp.core;
 
+import java.lang.invoke.SwitchPoint;
+
 import de.npcomplete.nplisp.LispException;
 import de.npcomplete.nplisp.data.Deref;
 import de.npcomplete.nplisp.data.Sequence;
@@ -20,6 +22,10 @@ public class Var implements LispFunction, Deref {
 	private String doc;
 
 	private boolean isFixed;
+	// set once code references the value directly, instead of the var
+	private volatile boolean isLinked;
+	// created on demand by call sites of compiled code, invalidated when the value changes
+	private SwitchPoint switchPoint;
 
 	public Var(Symbol symbol) {
 		if (symbol.nsName == null) {
@@ -37,6 +43,36 @@ public class Var implements LispFunction, Deref {
 		return isFixed;
 	}
 
+	/**
+	 * Marks the var as directly linked. Rebinding it afterwards raises a warning,
+	 * since already linked code keeps using the old value.
+	 */
+	public void markLinked() {
+		isLinked = true;
+	}
+
+	public boolean isLinked() {
+		return isLinked;
+	}
+
+	/**
+	 * Returns a switch point which is invalidated as soon as the value of the var
+	 * (or its macro flag) changes. Call sites can use it to guard calls of the current value.
+	 */
+	public synchronized SwitchPoint switchPoint() {
+		if (switchPoint == null) {
+			switchPoint = new SwitchPoint();
+		}
+		return switchPoint;
+	}
+
+	private synchronized void invalidate() {
+		if (switchPoint != null) {
+			SwitchPoint.invalidateAll(new SwitchPoint[] {switchPoint});
+			switchPoint = null;
+		}
+	}
+
 	private void prepareModification() {
 		if (isFixed) {
 			throw new LispException("Var must not be modified: " + this);
@@ -59,7 +95,10 @@ public class Var implements LispFunction, Deref {
 
 	public Var macro(boolean isMacro) {
 		prepareModification();
-		this.isMacro = isMacro;
+		if (this.isMacro != isMacro) {
+			this.isMacro = isMacro;
+			invalidate();
+		}
 		return this;
 	}
 
@@ -92,11 +131,20 @@ public class Var implements LispFunction, Deref {
 	public Var bind(Object value) {
 		if (this.value != value) {
 			prepareModification();
+			if (isLinked) {
+				DirectLinking.warn(this + " is rebound, but is directly linked by functions"
+						+ " which will keep using the previous value.");
+			}
 			this.value = value;
+			invalidate();
 		}
 		return this;
 	}
 
+	public boolean isBound() {
+		return value != UNBOUND;
+	}
+
 	public Object deref() {
 		if (value == UNBOUND) {
 			throw new LispException("Var " + this + " is unbound.");
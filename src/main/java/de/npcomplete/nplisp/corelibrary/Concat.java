@@ -4,7 +4,10 @@ import static de.npcomplete.nplisp.data.Sequence.EMPTY_SEQUENCE;
 import static de.npcomplete.nplisp.util.LispElf.seqEquals;
 import static de.npcomplete.nplisp.util.LispElf.seqHash;
 
+import de.npcomplete.nplisp.data.Reduced;
+import de.npcomplete.nplisp.data.Reducible;
 import de.npcomplete.nplisp.data.Sequence;
+import de.npcomplete.nplisp.function.LispFunction;
 import de.npcomplete.nplisp.util.LispPrinter;
 
 public final class Concat {
@@ -23,7 +26,7 @@ public final class Concat {
 		return new ConcatSequence(a, b);
 	}
 
-	private static final class ConcatSequence implements Sequence {
+	private static final class ConcatSequence implements Sequence, Reducible {
 		private final Sequence a_next;
 		private Sequence b;
 
@@ -60,6 +63,20 @@ public final class Concat {
 			return false;
 		}
 
+		@Override
+		public Object reduce(LispFunction fn, Object init) {
+			Object result = fn.apply(init, first);
+			if (result instanceof Reduced) {
+				return result;
+			}
+			if (next != null) {
+				// b has been handed to the next sequence already
+				return CoreLibrary.reduceInternal(fn, result, next);
+			}
+			result = CoreLibrary.reduceInternal(fn, result, a_next);
+			return result instanceof Reduced ? result : CoreLibrary.reduceInternal(fn, result, b);
+		}
+
 		@Override
 		public boolean equals(Object o) {
 			return seqEquals(this, o);
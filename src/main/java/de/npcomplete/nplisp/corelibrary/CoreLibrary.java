@@ -5,8 +5,6 @@ import static de.npcomplete.nplisp.util.LispElf.isSimpleSymbol;
 import static de.npcomplete.nplisp.util.LispElf.mapIterator;
 import static de.npcomplete.nplisp.util.LispElf.sneakyThrow;
 import static de.npcomplete.nplisp.util.LispElf.truthy;
-import static java.util.Arrays.asList;
-import static java.util.Collections.unmodifiableList;
 
 import java.io.File;
 import java.io.IOException;
@@ -21,8 +19,6 @@ import java.net.URLEncoder;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -37,18 +33,31 @@ import de.npcomplete.nplisp.LispException;
 import de.npcomplete.nplisp.core.Environment;
 import de.npcomplete.nplisp.core.Namespace;
 import de.npcomplete.nplisp.data.ArraySequence;
+import de.npcomplete.nplisp.data.Chunk;
+import de.npcomplete.nplisp.data.ChunkedSequence;
 import de.npcomplete.nplisp.data.Cons;
 import de.npcomplete.nplisp.data.Countable;
 import de.npcomplete.nplisp.data.Delay;
 import de.npcomplete.nplisp.data.Deref;
 import de.npcomplete.nplisp.data.IteratorSequence;
 import de.npcomplete.nplisp.data.Keyword;
+import de.npcomplete.nplisp.data.MapEntry;
+import de.npcomplete.nplisp.data.PersistentArrayMap;
+import de.npcomplete.nplisp.data.PersistentHashMap;
+import de.npcomplete.nplisp.data.PersistentHashSet;
+import de.npcomplete.nplisp.data.PersistentMap;
+import de.npcomplete.nplisp.data.PersistentVector;
+import de.npcomplete.nplisp.data.PrimitiveVector;
 import de.npcomplete.nplisp.data.RandomAccessListSequence;
+import de.npcomplete.nplisp.data.Reduced;
+import de.npcomplete.nplisp.data.Reducible;
 import de.npcomplete.nplisp.data.Sequence;
 import de.npcomplete.nplisp.data.Symbol;
 import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory;
 import de.npcomplete.nplisp.function.LispFunctionFactory.Fn0;
 import de.npcomplete.nplisp.function.LispFunctionFactory.Fn1;
+import de.npcomplete.nplisp.function.LispFunctionFactory.Fn2;
 import de.npcomplete.nplisp.function.SpecialForm;
 import de.npcomplete.nplisp.function.VarArgsFunction;
 import de.npcomplete.nplisp.util.LispPrinter;
@@ -66,6 +75,8 @@ public final class CoreLibrary {
 	private static final Keyword KW_ALL = new Keyword("all");
 	private static final Keyword KW_RELOAD = new Keyword("reload");
 	private static final Keyword KW_RELOAD_ALL = new Keyword("reload-all");
+	private static final Keyword KW_LONG = new Keyword("long");
+	private static final Keyword KW_DOUBLE = new Keyword("double");
 
 	public static final Keyword KW_PRIVATE = new Keyword("private");
 	public static final Keyword KW_MACRO = new Keyword("macro");
@@ -82,6 +93,7 @@ public final class CoreLibrary {
 		}
 	}
 
+	// analyzed calls to 'recur' in tail position don't call this, but rebind the slots directly
 	public static final LispFunction FN_RECUR = (VarArgsFunction) TailCall::new;
 
 	public static Sequence list(Object... args) {
@@ -93,7 +105,27 @@ public final class CoreLibrary {
 	}
 
 	public static List<Object> vector(Object... args) {
-		return asList(args);
+		return PersistentVector.create(args);
+	}
+
+	/**
+	 * Creates a vector which stores its elements as primitives of the given type (:long or :double).
+	 */
+	public static PrimitiveVector vectorOf(Object... args) {
+		if (args.length == 0) {
+			throw new LispException("Wrong arity: 0");
+		}
+		PrimitiveVector.Type type;
+		if (KW_LONG.equals(args[0])) {
+			type = PrimitiveVector.Type.LONG;
+		} else if (KW_DOUBLE.equals(args[0])) {
+			type = PrimitiveVector.Type.DOUBLE;
+		} else {
+			throw new LispException("Unsupported vector type: " + LispPrinter.prStr(args[0]));
+		}
+		Object[] items = new Object[args.length - 1];
+		System.arraycopy(args, 1, items, 0, items.length);
+		return PrimitiveVector.create(type, items);
 	}
 
 	public static boolean isVector(Object arg) {
@@ -101,7 +133,7 @@ public final class CoreLibrary {
 	}
 
 	public static Set<Object> hashSet(Object... args) {
-		return Collections.unmodifiableSet(new HashSet<>(asList(args)));
+		return PersistentHashSet.create(args);
 	}
 
 	public static boolean isSet(Object arg) {
@@ -112,12 +144,7 @@ public final class CoreLibrary {
 		if (args.length % 2 != 0) {
 			throw new LispException("hash-map function only accepts even numbers of arguments");
 		}
-		Map<Object, Object> map = new HashMap<>();
-		Iterator<Object> it = asList(args).iterator();
-		while (it.hasNext()) {
-			map.put(it.next(), it.next());
-		}
-		return Collections.unmodifiableMap(map);
+		return PersistentArrayMap.create(args);
 	}
 
 	public static boolean isMap(Object arg) {
@@ -138,6 +165,12 @@ public final class CoreLibrary {
 			Sequence s = (Sequence) o;
 			return s.empty() ? null : s;
 		}
+		if (o instanceof PersistentVector) {
+			return ((PersistentVector) o).seq();
+		}
+		if (o instanceof PrimitiveVector) {
+			return ((PrimitiveVector) o).seq(0);
+		}
 		if (isVector(o)) {
 			List list = (List) o;
 			return list.isEmpty() ? null : new RandomAccessListSequence(list);
@@ -147,7 +180,7 @@ public final class CoreLibrary {
 			Set<Entry> entries = ((Map) o).entrySet();
 			Iterator<Entry> it = entries.iterator();
 			return it.hasNext()
-					? new IteratorSequence(mapIterator(it, e -> unmodifiableList(asList(e.getKey(), e.getValue()))))
+					? new IteratorSequence(mapIterator(it, e -> new MapEntry(e.getKey(), e.getValue())))
 					: null;
 		}
 		if (o instanceof Iterable) {
@@ -218,8 +251,16 @@ public final class CoreLibrary {
 			Sequence s = seq(col);
 			long n = 0;
 			while (s != null) {
-				n++;
-				s = s.next();
+				if (s instanceof Countable) {
+					return n + ((Countable) s).count();
+				}
+				if (s instanceof ChunkedSequence) {
+					n += ((ChunkedSequence) s).chunkFirst().size();
+					s = ((ChunkedSequence) s).chunkNext();
+				} else {
+					n++;
+					s = s.next();
+				}
 			}
 			return n;
 		}
@@ -233,139 +274,344 @@ public final class CoreLibrary {
 		return new Cons(par1, seq(par2));
 	}
 
-	// TODO: replace with interop like clojure (https://github.com/clojure/clojure/blob/clojure-1.9.0/src/clj/clojure/core.clj#L652)
-	public static final LispFunction FN_APPLY = new LispFunction() {
-
-		@Override
-		public Object apply(Object par1, Object par2) {
-			if (!(par1 instanceof LispFunction)) {
-				throw new LispException("First parameter must be a function");
+	/**
+	 * Adds the value to the collection where it fits best: at the end of
+	 * a vector, or at the front of a sequence. nil is treated like an empty list.
+	 */
+	public static Object conj(Object coll, Object value) {
+		if (coll instanceof PersistentVector) {
+			return ((PersistentVector) coll).conj(value);
+		}
+		if (coll instanceof PrimitiveVector) {
+			return ((PrimitiveVector) coll).conj(value);
+		}
+		if (isVector(coll)) {
+			return PersistentVector.create((List<?>) coll).conj(value);
+		}
+		if (coll == null || coll instanceof Sequence) {
+			return new Cons(value, seq(coll));
+		}
+		if (coll instanceof Set) {
+			return PersistentHashSet.create((Set<?>) coll).conj(value);
+		}
+		if (coll instanceof Map) {
+			if (!isVector(value) || ((List<?>) value).size() != 2) {
+				throw new LispException("Can only conj vectors of key and value onto a map: " + LispPrinter.prStr(value));
 			}
-			LispFunction f = (LispFunction) par1;
-			return f.applyTo(seq(par2));
+			List<?> entry = (List<?>) value;
+			return persistentMap((Map<?, ?>) coll).assoc(entry.get(0), entry.get(1));
 		}
+		throw new LispException("Can't conj onto: " + LispPrinter.prStr(coll));
+	}
 
-		@Override
-		public Object apply(Object par1, Object par2, Object par3) {
-			if (!(par1 instanceof LispFunction)) {
-				throw new LispException("First parameter must be a function");
+	private static PersistentMap persistentMap(Map<?, ?> map) {
+		return map instanceof PersistentMap ? (PersistentMap) map : PersistentHashMap.create(map);
+	}
+
+	/**
+	 * Returns a map with the key mapped to the value, or a vector with the element
+	 * at the index replaced by the value. The index may be the size of the vector,
+	 * to add the value at the end. nil is treated like an empty map.
+	 */
+	public static Object assoc(Object coll, Object key, Object value) {
+		if (coll == null) {
+			return PersistentArrayMap.EMPTY.assoc(key, value);
+		}
+		if (coll instanceof Map) {
+			return persistentMap((Map<?, ?>) coll).assoc(key, value);
+		}
+		if (coll instanceof PrimitiveVector) {
+			PrimitiveVector v = (PrimitiveVector) coll;
+			int index = index(key);
+			if (index < 0 || index > v.size()) {
+				throw new LispException("Index out of bounds: " + index);
 			}
-			LispFunction f = (LispFunction) par1;
-			return f.applyTo(new Cons(par2, seq(par3)));
+			return v.assocN(index, value);
 		}
-
-		@Override
-		public Object apply(Object par1, Object par2, Object par3, Object... more) {
-			if (!(par1 instanceof LispFunction)) {
-				throw new LispException("First parameter must be a function");
+		if (isVector(coll)) {
+			PersistentVector v = PersistentVector.create((List<?>) coll);
+			int index = index(key);
+			if (index < 0 || index > v.size()) {
+				throw new LispException("Index out of bounds: " + index);
 			}
-			LispFunction f = (LispFunction) par1;
+			return v.assocN(index, value);
+		}
+		throw new LispException("Can't assoc onto: " + LispPrinter.prStr(coll));
+	}
 
-			Object[] args = new Object[2 + more.length - 1];
-			args[0] = par2;
-			args[1] = par3;
-			System.arraycopy(more, 0, args, 2, more.length - 1);
+	/**
+	 * Returns a map without a mapping for the key.
+	 */
+	public static Object dissoc(Object coll, Object key) {
+		if (coll == null) {
+			return null;
+		}
+		if (coll instanceof Map) {
+			return persistentMap((Map<?, ?>) coll).without(key);
+		}
+		throw new LispException("Can't dissoc from: " + LispPrinter.prStr(coll));
+	}
 
-			Sequence rest = seq(more[more.length - 1]);
+	/**
+	 * Returns a set without the element.
+	 */
+	public static Object disj(Object coll, Object value) {
+		if (coll == null) {
+			return null;
+		}
+		if (coll instanceof Set) {
+			return PersistentHashSet.create((Set<?>) coll).disj(value);
+		}
+		throw new LispException("Can't disj from: " + LispPrinter.prStr(coll));
+	}
 
-			Cons argsSeq = new Cons(args[args.length - 1], rest);
-			for (int i = args.length - 2; i >= 0; i--) {
-				argsSeq = new Cons(args[i], argsSeq);
-			}
-			return f.applyTo(argsSeq);
+	/**
+	 * Returns true if the key is in the set or map, or if it is a valid index of the vector.
+	 */
+	public static boolean contains(Object coll, Object key) {
+		if (coll == null) {
+			return false;
 		}
-	};
+		if (coll instanceof Set) {
+			return ((Set<?>) coll).contains(key);
+		}
+		if (coll instanceof Map) {
+			return ((Map<?, ?>) coll).containsKey(key);
+		}
+		if (isVector(coll)) {
+			return key instanceof Long && (Long) key >= 0 && (Long) key < ((List<?>) coll).size();
+		}
+		throw new LispException("contains? not supported on: " + LispPrinter.prStr(coll));
+	}
 
-	private static boolean allIntegers(Object[] args) {
-		for (Object o : args) {
-			if (!(o instanceof Long || o instanceof Integer)) {
-				return false;
+	public static Object nth(Object coll, Object index) {
+		int i = index(index);
+		if (isVector(coll)) {
+			List<?> list = (List<?>) coll;
+			if (i < 0 || i >= list.size()) {
+				throw new LispException("Index out of bounds: " + i);
+			}
+			return list.get(i);
+		}
+		if (coll instanceof Chunk) {
+			Chunk chunk = (Chunk) coll;
+			if (i < 0 || i >= chunk.size()) {
+				throw new LispException("Index out of bounds: " + i);
+			}
+			return chunk.nth(i);
+		}
+		if (coll == null || coll instanceof Sequence) {
+			Sequence s = seq(coll);
+			int n = i;
+			// whole chunks are skipped at once
+			while (s instanceof ChunkedSequence && n > 0) {
+				Chunk chunk = ((ChunkedSequence) s).chunkFirst();
+				if (n < chunk.size()) {
+					return chunk.nth(n);
+				}
+				n -= chunk.size();
+				s = ((ChunkedSequence) s).chunkNext();
 			}
+			for (; s != null && n > 0; n--) {
+				s = s.next();
+			}
+			if (i < 0 || s == null) {
+				throw new LispException("Index out of bounds: " + i);
+			}
+			return s.first();
 		}
-		return true;
+		throw new LispException("nth not supported on: " + LispPrinter.prStr(coll));
 	}
 
-	public static final LispFunction FN_ADD = (VarArgsFunction) args -> {
-		if (args.length < 2) {
-			return args.length == 0 ? 0L : args[0];
-		}
-		if (allIntegers(args)) {
-			long result = ((Number) args[0]).longValue();
-			for (int i = 1, length = args.length; i < length; i++) {
-				result += ((Number) args[i]).longValue();
+	/**
+	 * Reduces over the collection with the function, starting with 'init'.
+	 * A {@link Reduced} result stops the reduction, and is unwrapped.
+	 */
+	public static Object reduce(LispFunction fn, Object init, Object coll) {
+		Object result = reduceInternal(fn, init, coll);
+		return result instanceof Reduced ? ((Reduced) result).deref() : result;
+	}
+
+	/**
+	 * Reduces over the collection like {@link Reducible#reduce(LispFunction, Object)},
+	 * so a {@link Reduced} result is returned as is. Collections which are not
+	 * reducible themselves are walked with a loop that fits them.
+	 */
+	static Object reduceInternal(LispFunction fn, Object init, Object coll) {
+		if (coll == null) {
+			return init;
+		}
+		if (coll instanceof Reducible) {
+			return ((Reducible) coll).reduce(fn, init);
+		}
+		Object result = init;
+		if (coll instanceof Object[]) {
+			for (Object o : (Object[]) coll) {
+				result = fn.apply(result, o);
+				if (result instanceof Reduced) {
+					return result;
+				}
 			}
 			return result;
 		}
-		double result = ((Number) args[0]).doubleValue();
-		for (int i = 1, length = args.length; i < length; i++) {
-			result += ((Number) args[i]).doubleValue();
+		if (isVector(coll)) {
+			List<?> list = (List<?>) coll;
+			for (int i = 0, size = list.size(); i < size; i++) {
+				result = fn.apply(result, list.get(i));
+				if (result instanceof Reduced) {
+					return result;
+				}
+			}
+			return result;
 		}
-		return result;
-	};
-
-	public static final LispFunction FN_SUBTRACT = (VarArgsFunction) args -> {
-		if (args.length < 2) {
-			if (args.length == 0) {
-				throw new LispException("Wrong arity: 0");
+		if (coll instanceof Map) {
+			for (Entry<?, ?> e : ((Map<?, ?>) coll).entrySet()) {
+				result = fn.apply(result, new MapEntry(e.getKey(), e.getValue()));
+				if (result instanceof Reduced) {
+					return result;
+				}
 			}
-			Number n = (Number) args[0];
-			if (!(n instanceof Long || n instanceof Integer)) {
-				return -n.doubleValue();
+			return result;
+		}
+		if (coll instanceof Sequence) {
+			for (Sequence s = seq(coll); s != null; s = s.next()) {
+				if (s instanceof Reducible) {
+					return ((Reducible) s).reduce(fn, result);
+				}
+				result = fn.apply(result, s.first());
+				if (result instanceof Reduced) {
+					return result;
+				}
 			}
-			return -n.longValue();
+			return result;
 		}
-		if (allIntegers(args)) {
-			long result = ((Number) args[0]).longValue();
-			for (int i = 1, length = args.length; i < length; i++) {
-				result -= ((Number) args[i]).longValue();
+		if (coll instanceof Iterable) {
+			for (Object o : (Iterable<?>) coll) {
+				result = fn.apply(result, o);
+				if (result instanceof Reduced) {
+					return result;
+				}
 			}
 			return result;
 		}
-		double result = ((Number) args[0]).doubleValue();
-		for (int i = 1, length = args.length; i < length; i++) {
-			result -= ((Number) args[i]).doubleValue();
+		throw new LispException("Can't reduce over: " + LispPrinter.prStr(coll));
+	}
+
+	// accumulated value of a reduction without initial value, before its first element
+	private static final Object NO_INIT = new Object();
+
+	/**
+	 * Reduces over the collection. Without an initial value, the first element
+	 * is used as one, and the function is called without arguments for an empty collection.
+	 * Both take the same path, which starts with {@link #NO_INIT} and replaces it with the first element.
+	 */
+	public static final LispFunction FN_REDUCE = new LispFunction() {
+		@Override
+		public Object apply(Object par1, Object par2) {
+			LispFunction f = reducingFn(par1);
+			Object result = reduceInternal((Fn2) (acc, x) -> acc == NO_INIT ? x : f.apply(acc, x), NO_INIT, par2);
+			if (result instanceof Reduced) {
+				return ((Reduced) result).deref();
+			}
+			return result == NO_INIT ? f.apply() : result;
 		}
-		return result;
-	};
 
-	public static final LispFunction FN_MULTIPLY = (VarArgsFunction) args -> {
-		if (args.length < 2) {
-			return args.length == 0 ? 1L : args[0];
+		@Override
+		public Object apply(Object par1, Object par2, Object par3) {
+			return reduce(reducingFn(par1), par2, par3);
 		}
-		if (allIntegers(args)) {
-			long result = ((Number) args[0]).longValue();
-			for (int i = 1, length = args.length; i < length; i++) {
-				result *= ((Number) args[i]).longValue();
+
+		private LispFunction reducingFn(Object f) {
+			LispFunction fn = LispFunctionFactory.from(f);
+			if (fn == null) {
+				throw new LispException("First parameter must be a function");
 			}
-			return result;
+			return fn;
 		}
-		double result = ((Number) args[0]).doubleValue();
-		for (int i = 1, length = args.length; i < length; i++) {
-			result *= ((Number) args[i]).doubleValue();
-		}
-		return result;
 	};
 
-	public static final LispFunction FN_DIVIDE = (VarArgsFunction) args -> {
-		if (args.length < 2) {
-			if (args.length == 0) {
-				throw new LispException("Wrong arity: 0");
+	public static Reduced reduced(Object value) {
+		return new Reduced(value);
+	}
+
+	public static boolean isReduced(Object o) {
+		return o instanceof Reduced;
+	}
+
+	public static boolean isChunkedSeq(Object o) {
+		return o instanceof ChunkedSequence;
+	}
+
+	/**
+	 * Returns the first chunk of a chunked sequence, which can be read with nth and count.
+	 */
+	public static Chunk chunkFirst(Object s) {
+		return chunked(s).chunkFirst();
+	}
+
+	/**
+	 * Returns the rest of a chunked sequence after its first chunk, or an empty sequence.
+	 */
+	public static Sequence chunkRest(Object s) {
+		return chunked(s).chunkMore();
+	}
+
+	/**
+	 * Returns the rest of a chunked sequence after its first chunk, or nil.
+	 */
+	public static Sequence chunkNext(Object s) {
+		return chunked(s).chunkNext();
+	}
+
+	private static ChunkedSequence chunked(Object s) {
+		if (!(s instanceof ChunkedSequence)) {
+			throw new LispException("Not a chunked seq: " + LispPrinter.prStr(s));
+		}
+		return (ChunkedSequence) s;
+	}
+
+	private static int index(Object o) {
+		if (!Numbers.isInteger(o)) {
+			throw new LispException("Index must be an integer: " + LispPrinter.prStr(o));
+		}
+		return ((Number) o).intValue();
+	}
+
+	// TODO: replace with interop like clojure (https://github.com/clojure/clojure/blob/clojure-1.9.0/src/clj/clojure/core.clj#L652)
+	public static final LispFunction FN_APPLY = new LispFunction() {
+
+		@Override
+		public Object apply(Object par1, Object par2) {
+			if (!(par1 instanceof LispFunction)) {
+				throw new LispException("First parameter must be a function");
 			}
-			return 1.0 / ((Number) args[0]).doubleValue();
+			LispFunction f = (LispFunction) par1;
+			return f.applyTo(seq(par2));
 		}
-		double result = ((Number) args[0]).doubleValue();
-		for (int i = 1, length = args.length; i < length; i++) {
-			double div = ((Number) args[i]).doubleValue();
-			if (div == 0) {
-				throw new ArithmeticException("Divide by zero");
+
+		@Override
+		public Object apply(Object par1, Object par2, Object par3) {
+			if (!(par1 instanceof LispFunction)) {
+				throw new LispException("First parameter must be a function");
 			}
-			result /= div;
+			LispFunction f = (LispFunction) par1;
+			return f.applyTo(new Cons(par2, seq(par3)));
 		}
 
-		if (Math.floor(result) == result && !Double.isInfinite(result) && allIntegers(args)) {
-			return (long) result;
+		@Override
+		public Object apply(Object par1, Object par2, Object par3, Object... more) {
+			if (!(par1 instanceof LispFunction)) {
+				throw new LispException("First parameter must be a function");
+			}
+			LispFunction f = (LispFunction) par1;
+
+			// the spread collection is passed on as is, functions take what they need from it
+			Sequence argsSeq = seq(more[more.length - 1]);
+			for (int i = more.length - 2; i >= 0; i--) {
+				argsSeq = new Cons(more[i], argsSeq);
+			}
+			return f.applyTo(new Cons(par2, new Cons(par3, argsSeq)));
 		}
-		return result;
 	};
 
 	public static String str(Object... args) {
@@ -0,0 +1,468 @@
+package de.npcomplete.nplisp.corelibrary;
+
+import java.util.Iterator;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.data.PrimitiveVector;
+import de.npcomplete.nplisp.data.Sequence;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory.Fn1;
+import de.npcomplete.nplisp.function.VarArgsFunction;
+
+/**
+ * Arithmetic on numbers. Integers (Long and Integer) stay integers as long as
+ * all operands are integers, otherwise the operation is done with doubles.
+ * Integer arithmetic throws an {@link ArithmeticException} on overflow.
+ * <p>
+ * The functions implement the common arities directly, so calls with up to
+ * three arguments don't allocate an argument array. Applying them to a sequence
+ * reduces over it without copying.
+ */
+public final class Numbers {
+	private Numbers() {
+	}
+
+	public static boolean isInteger(Object o) {
+		return o instanceof Long || o instanceof Integer;
+	}
+
+	private static Number num(Object o) {
+		if (o instanceof Number) {
+			return (Number) o;
+		}
+		throw new LispException("Not a number: " + o);
+	}
+
+	public static Object add(Object a, Object b) {
+		if (a instanceof Long && b instanceof Long) {
+			return Math.addExact((long) (Long) a, (long) (Long) b);
+		}
+		if (isInteger(a) && isInteger(b)) {
+			return Math.addExact(num(a).longValue(), num(b).longValue());
+		}
+		return num(a).doubleValue() + num(b).doubleValue();
+	}
+
+	public static Object subtract(Object a, Object b) {
+		if (a instanceof Long && b instanceof Long) {
+			return Math.subtractExact((long) (Long) a, (long) (Long) b);
+		}
+		if (isInteger(a) && isInteger(b)) {
+			return Math.subtractExact(num(a).longValue(), num(b).longValue());
+		}
+		return num(a).doubleValue() - num(b).doubleValue();
+	}
+
+	public static Object multiply(Object a, Object b) {
+		if (a instanceof Long && b instanceof Long) {
+			return Math.multiplyExact((long) (Long) a, (long) (Long) b);
+		}
+		if (isInteger(a) && isInteger(b)) {
+			return Math.multiplyExact(num(a).longValue(), num(b).longValue());
+		}
+		return num(a).doubleValue() * num(b).doubleValue();
+	}
+
+	/**
+	 * Divides a by b. The result is an integer if both arguments are
+	 * integers and the division has no remainder.
+	 */
+	public static Object divide(Object a, Object b) {
+		if (isInteger(a) && isInteger(b)) {
+			long x = num(a).longValue();
+			long y = num(b).longValue();
+			if (y == 0) {
+				throw new ArithmeticException("Divide by zero");
+			}
+			if (x % y == 0 && !(x == Long.MIN_VALUE && y == -1)) {
+				return x / y;
+			}
+			return (double) x / y;
+		}
+		double div = num(b).doubleValue();
+		if (div == 0) {
+			throw new ArithmeticException("Divide by zero");
+		}
+		return num(a).doubleValue() / div;
+	}
+
+	public static Object negate(Object a) {
+		if (isInteger(a)) {
+			return Math.negateExact(num(a).longValue());
+		}
+		return -num(a).doubleValue();
+	}
+
+	public static final LispFunction FN_ADD = new VarArgsFunction() {
+		@Override
+		public Object apply() {
+			return 0L;
+		}
+
+		@Override
+		public Object apply(Object par1) {
+			return par1;
+		}
+
+		@Override
+		public Object apply(Object par1, Object par2) {
+			return add(par1, par2);
+		}
+
+		@Override
+		public Object apply(Object par1, Object par2, Object par3) {
+			return add(add(par1, par2), par3);
+		}
+
+		@Override
+		public Object applyVarArgs(Object... args) {
+			Object result = apply();
+			for (Object arg : args) {
+				result = add(result, arg);
+			}
+			return result;
+		}
+
+		@Override
+		public Object applyTo(Sequence args) {
+			if (args instanceof PrimitiveVector.Seq) {
+				return sum((PrimitiveVector.Seq) args);
+			}
+			// reduces over the sequence instead of copying it into an array
+			Object result = apply();
+			if (args != null) {
+				for (Object arg : args) {
+					result = add(result, arg);
+				}
+			}
+			return result;
+		}
+	};
+
+	/**
+	 * Sums the remaining elements of a primitive vector without boxing them.
+	 */
+	private static Object sum(PrimitiveVector.Seq seq) {
+		PrimitiveVector v = seq.vector;
+		int count = v.size();
+		if (v.type() == PrimitiveVector.Type.LONG) {
+			long result = 0;
+			for (int i = seq.index; i < count; ) {
+				long[] leaf = (long[]) v.arrayFor(i);
+				for (int j = i & 31; j < leaf.length; j++, i++) {
+					result = Math.addExact(result, leaf[j]);
+				}
+			}
+			return result;
+		}
+		double result = 0;
+		for (int i = seq.index; i < count; ) {
+			double[] leaf = (double[]) v.arrayFor(i);
+			for (int j = i & 31; j < leaf.length; j++, i++) {
+				result += leaf[j];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Multiplies the remaining elements of a primitive vector without boxing them.
+	 */
+	private static Object product(PrimitiveVector.Seq seq) {
+		PrimitiveVector v = seq.vector;
+		int count = v.size();
+		if (v.type() == PrimitiveVector.Type.LONG) {
+			long result = 1;
+			for (int i = seq.index; i < count; ) {
+				long[] leaf = (long[]) v.arrayFor(i);
+				for (int j = i & 31; j < leaf.length; j++, i++) {
+					result = Math.multiplyExact(result, leaf[j]);
+				}
+			}
+			return result;
+		}
+		double result = 1;
+		for (int i = seq.index; i < count; ) {
+			double[] leaf = (double[]) v.arrayFor(i);
+			for (int j = i & 31; j < leaf.length; j++, i++) {
+				result *= leaf[j];
+			}
+		}
+		return result;
+	}
+
+	public static final LispFunction FN_SUBTRACT = new VarArgsFunction() {
+		@Override
+		public Object apply() {
+			throw new LispException("Wrong arity: 0");
+		}
+
+		@Override
+		public Object apply(Object par1) {
+			return Numbers.negate(par1);
+		}
+
+		@Override
+		public Object apply(Object par1, Object par2) {
+			return subtract(par1, par2);
+		}
+
+		@Override
+		public Object apply(Object par1, Object par2, Object par3) {
+			return subtract(subtract(par1, par2), par3);
+		}
+
+		@Override
+		public Object applyVarArgs(Object... args) {
+			if (args.length < 2) {
+				return args.length == 0 ? apply() : apply(args[0]);
+			}
+			Object result = args[0];
+			for (int i = 1, length = args.length; i < length; i++) {
+				result = subtract(result, args[i]);
+			}
+			return result;
+		}
+
+		@Override
+		public Object applyTo(Sequence args) {
+			if (args == null || args.empty() || args.next() == null) {
+				return VarArgsFunction.super.applyTo(args);
+			}
+			Iterator<Object> it = args.iterator();
+			Object result = it.next();
+			while (it.hasNext()) {
+				result = subtract(result, it.next());
+			}
+			return result;
+		}
+	};
+
+	public static final LispFunction FN_MULTIPLY = new VarArgsFunction() {
+		@Override
+		public Object apply() {
+			return 1L;
+		}
+
+		@Override
+		public Object apply(Object par1) {
+			return par1;
+		}
+
+		@Override
+		public Object apply(Object par1, Object par2) {
+			return multiply(par1, par2);
+		}
+
+		@Override
+		public Object apply(Object par1, Object par2, Object par3) {
+			return multiply(multiply(par1, par2), par3);
+		}
+
+		@Override
+		public Object applyVarArgs(Object... args) {
+			Object result = apply();
+			for (Object arg : args) {
+				result = multiply(result, arg);
+			}
+			return result;
+		}
+
+		@Override
+		public Object applyTo(Sequence args) {
+			if (args instanceof PrimitiveVector.Seq) {
+				return product((PrimitiveVector.Seq) args);
+			}
+			Object result = apply();
+			if (args != null) {
+				for (Object arg : args) {
+					result = multiply(result, arg);
+				}
+			}
+			return result;
+		}
+	};
+
+	public static final LispFunction FN_DIVIDE = new VarArgsFunction() {
+		@Override
+		public Object apply() {
+			throw new LispException("Wrong arity: 0");
+		}
+
+		@Override
+		public Object apply(Object par1) {
+			return 1.0 / num(par1).doubleValue();
+		}
+
+		@Override
+		public Object apply(Object par1, Object par2) {
+			return divide(par1, par2);
+		}
+
+		@Override
+		public Object apply(Object par1, Object par2, Object par3) {
+			return divide(divide(par1, par2), par3);
+		}
+
+		@Override
+		public Object applyVarArgs(Object... args) {
+			if (args.length < 2) {
+				return args.length == 0 ? apply() : apply(args[0]);
+			}
+			Object result = args[0];
+			for (int i = 1, length = args.length; i < length; i++) {
+				result = divide(result, args[i]);
+			}
+			return result;
+		}
+
+		@Override
+		public Object applyTo(Sequence args) {
+			if (args == null || args.empty() || args.next() == null) {
+				return VarArgsFunction.super.applyTo(args);
+			}
+			Iterator<Object> it = args.iterator();
+			Object result = it.next();
+			while (it.hasNext()) {
+				result = divide(result, it.next());
+			}
+			return result;
+		}
+	};
+
+	/**
+	 * Numeric equality. Integers and doubles compare by value, so
+	 * {@code (== 1 1.0)} is true.
+	 */
+	public static boolean numEquals(Object a, Object b) {
+		if (a instanceof Long && b instanceof Long) {
+			return (long) (Long) a == (long) (Long) b;
+		}
+		if (isInteger(a) && isInteger(b)) {
+			return num(a).longValue() == num(b).longValue();
+		}
+		return num(a).doubleValue() == num(b).doubleValue();
+	}
+
+	/**
+	 * General equality as used by {@code =}, which is {@link Object#equals(Object)}
+	 * like the equality of collections. So {@code (= 1 1.0)} is false,
+	 * numbers of different types are compared with {@code ==}.
+	 */
+	public static boolean equiv(Object a, Object b) {
+		return a == b || (a != null && a.equals(b));
+	}
+
+	public static boolean lessThan(Object a, Object b) {
+		if (a instanceof Long && b instanceof Long) {
+			return (long) (Long) a < (long) (Long) b;
+		}
+		if (isInteger(a) && isInteger(b)) {
+			return num(a).longValue() < num(b).longValue();
+		}
+		return num(a).doubleValue() < num(b).doubleValue();
+	}
+
+	public static boolean lessOrEqual(Object a, Object b) {
+		if (a instanceof Long && b instanceof Long) {
+			return (long) (Long) a <= (long) (Long) b;
+		}
+		if (isInteger(a) && isInteger(b)) {
+			return num(a).longValue() <= num(b).longValue();
+		}
+		return num(a).doubleValue() <= num(b).doubleValue();
+	}
+
+	public static boolean isZero(Object a) {
+		if (a instanceof Long) {
+			return (Long) a == 0L;
+		}
+		return num(a).doubleValue() == 0;
+	}
+
+	public static Object inc(Object a) {
+		if (a instanceof Long) {
+			return Math.incrementExact((long) (Long) a);
+		}
+		if (a instanceof Integer) {
+			return Math.incrementExact(num(a).longValue());
+		}
+		return num(a).doubleValue() + 1;
+	}
+
+	public static Object dec(Object a) {
+		if (a instanceof Long) {
+			return Math.decrementExact((long) (Long) a);
+		}
+		if (a instanceof Integer) {
+			return Math.decrementExact(num(a).longValue());
+		}
+		return num(a).doubleValue() - 1;
+	}
+
+	public static final LispFunction FN_INC = (Fn1) Numbers::inc;
+	public static final LispFunction FN_DEC = (Fn1) Numbers::dec;
+	public static final LispFunction FN_ZERO = (Fn1) Numbers::isZero;
+
+	/**
+	 * A comparison that holds if it holds for each pair of consecutive arguments.
+	 */
+	private interface Comparison extends VarArgsFunction {
+		boolean test(Object a, Object b);
+
+		@Override
+		default Object apply() {
+			throw new LispException("Wrong arity: 0");
+		}
+
+		@Override
+		default Object apply(Object par1) {
+			return true;
+		}
+
+		@Override
+		default Object apply(Object par1, Object par2) {
+			return test(par1, par2);
+		}
+
+		@Override
+		default Object apply(Object par1, Object par2, Object par3) {
+			return test(par1, par2) && test(par2, par3);
+		}
+
+		@Override
+		default Object apply(Object par1, Object par2, Object par3, Object... more) {
+			if (!test(par1, par2) || !test(par2, par3)) {
+				return false;
+			}
+			Object prev = par3;
+			for (Object next : more) {
+				if (!test(prev, next)) {
+					return false;
+				}
+				prev = next;
+			}
+			return true;
+		}
+
+		@Override
+		default Object applyVarArgs(Object... args) {
+			if (args.length == 0) {
+				return apply();
+			}
+			for (int i = 1, length = args.length; i < length; i++) {
+				if (!test(args[i - 1], args[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	public static final LispFunction FN_EQUIV = (Comparison) Numbers::equiv;
+	public static final LispFunction FN_NUM_EQUALS = (Comparison) Numbers::numEquals;
+	public static final LispFunction FN_LESS = (Comparison) Numbers::lessThan;
+	public static final LispFunction FN_LESS_OR_EQUAL = (Comparison) Numbers::lessOrEqual;
+	public static final LispFunction FN_GREATER = (Comparison) (a, b) -> lessThan(b, a);
+	public static final LispFunction FN_GREATER_OR_EQUAL = (Comparison) (a, b) -> lessOrEqual(b, a);
+}
@@ -0,0 +1,29 @@
+package de.npcomplete.nplisp.data;
+
+/**
+ * Chunk backed by a range of an array. The array is shared, not copied.
+ */
+public final class ArrayChunk implements Chunk {
+	private final Object[] array;
+	private final int offset;
+	private final int end;
+
+	public ArrayChunk(Object[] array, int offset, int end) {
+		this.array = array;
+		this.offset = offset;
+		this.end = end;
+	}
+
+	@Override
+	public Object nth(int index) {
+		if (index < 0 || index >= end - offset) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (end - offset));
+		}
+		return array[offset + index];
+	}
+
+	@Override
+	public int size() {
+		return end - offset;
+	}
+}
@@ -3,18 +3,25 @@ package de.npcomplete.nplisp.data;
 import static de.npcomplete.nplisp.util.LispElf.seqEquals;
 import static de.npcomplete.nplisp.util.LispElf.seqHash;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
+import de.npcomplete.nplisp.function.LispFunction;
 import de.npcomplete.nplisp.util.LispPrinter;
 
-public final class ArraySequence implements Sequence, Countable {
+/**
+ * Sequence over an array. It is chunked in blocks of 32 elements, and
+ * doesn't keep the sequences returned by {@link #next()}, so walking it
+ * doesn't keep all of them reachable from the head.
+ */
+public final class ArraySequence implements ChunkedSequence, Countable, Reducible {
+	private static final int CHUNK_SIZE = 32;
+
 	private final Object[] array;
 	private final int index;
 	private final boolean empty;
 
-	private Sequence next;
-
 	private int hash;
 
 	/**
@@ -36,6 +43,22 @@ public final class ArraySequence implements Sequence, Countable {
 		empty = array.length == 0;
 	}
 
+	/**
+	 * Returns a sequence of the elements of the array starting at the given index,
+	 * without copying them. The array must not be modified afterwards.
+	 */
+	public static ArraySequence view(Object[] array, int index) {
+		return new ArraySequence(array, index);
+	}
+
+	/**
+	 * Returns the elements of the sequence as an array. If the sequence starts
+	 * at the beginning of its array, the array itself is returned.
+	 */
+	public Object[] toArray() {
+		return index == 0 ? array : Arrays.copyOfRange(array, Math.min(index, array.length), array.length);
+	}
+
 	@Override
 	public Object first() {
 		return empty ? null : array[index];
@@ -43,12 +66,17 @@ public final class ArraySequence implements Sequence, Countable {
 
 	@Override
 	public Sequence next() {
-		if (next == null) {
-			next = index < array.length - 1
-					? new ArraySequence(array, index + 1)
-					: Sequence.EMPTY_SEQUENCE;
-		}
-		return next != Sequence.EMPTY_SEQUENCE ? next : null;
+		return index < array.length - 1 ? new ArraySequence(array, index + 1) : null;
+	}
+
+	@Override
+	public Chunk chunkFirst() {
+		return new ArrayChunk(array, index, Math.min(index + CHUNK_SIZE, array.length));
+	}
+
+	@Override
+	public Sequence chunkNext() {
+		return index + CHUNK_SIZE < array.length ? new ArraySequence(array, index + CHUNK_SIZE) : null;
 	}
 
 	@Override
@@ -61,6 +89,18 @@ public final class ArraySequence implements Sequence, Countable {
 		return new ArrayIterator(index, array);
 	}
 
+	@Override
+	public Object reduce(LispFunction fn, Object init) {
+		Object result = init;
+		for (int i = index; i < array.length; i++) {
+			result = fn.apply(result, array[i]);
+			if (result instanceof Reduced) {
+				return result;
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public long count() {
 		return empty ? 0 : array.length - index;
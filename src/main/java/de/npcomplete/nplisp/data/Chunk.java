@@ -0,0 +1,22 @@
+package de.npcomplete.nplisp.data;
+
+/**
+ * Block of up to 32 consecutive elements of a {@link ChunkedSequence},
+ * which can be read with a plain index loop.
+ */
+public interface Chunk extends Countable {
+	/**
+	 * @return the element at the given index of this chunk
+	 */
+	Object nth(int index);
+
+	/**
+	 * @return the number of elements in this chunk
+	 */
+	int size();
+
+	@Override
+	default long count() {
+		return size();
+	}
+}
@@ -0,0 +1,76 @@
+package de.npcomplete.nplisp.data;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Sequence which consists of chunks of elements. Consumers can process a whole
+ * chunk with an index loop and then skip to the next one, instead of creating
+ * a sequence object per element via {@link #next()}.
+ */
+public interface ChunkedSequence extends Sequence {
+	/**
+	 * @return the elements from the first one of this sequence up to the end of its chunk
+	 */
+	Chunk chunkFirst();
+
+	/**
+	 * @return the sequence starting after the first chunk,
+	 * or null if there are no more elements.
+	 */
+	Sequence chunkNext();
+
+	/**
+	 * @return the sequence starting after the first chunk,
+	 * or an empty sequence if there are no more elements.
+	 */
+	default Sequence chunkMore() {
+		Sequence next = chunkNext();
+		return next == null ? EMPTY_SEQUENCE : next;
+	}
+
+	/**
+	 * @return an iterator which walks the chunks with an index. If the rest
+	 * of the sequence is not chunked, it continues with its iterator.
+	 */
+	@Override
+	default Iterator<Object> iterator() {
+		ChunkedSequence self = this;
+		return new Iterator<Object>() {
+			private Chunk chunk = self.chunkFirst();
+			private int index;
+			private Sequence rest = self.chunkNext();
+			private Iterator<Object> restIterator;
+
+			@Override
+			public boolean hasNext() {
+				while (index >= chunk.size()) {
+					if (restIterator != null) {
+						return restIterator.hasNext();
+					}
+					if (rest == null || rest.empty()) {
+						return false;
+					}
+					if (rest instanceof ChunkedSequence) {
+						ChunkedSequence chunked = (ChunkedSequence) rest;
+						chunk = chunked.chunkFirst();
+						rest = chunked.chunkNext();
+						index = 0;
+					} else {
+						restIterator = rest.iterator();
+						rest = null;
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public Object next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return index < chunk.size() ? chunk.nth(index++) : restIterator.next();
+			}
+		};
+	}
+}
@@ -3,9 +3,10 @@ package de.npcomplete.nplisp.data;
 import static de.npcomplete.nplisp.util.LispElf.seqEquals;
 import static de.npcomplete.nplisp.util.LispElf.seqHash;
 
+import de.npcomplete.nplisp.function.LispFunction;
 import de.npcomplete.nplisp.util.LispPrinter;
 
-public class Cons implements Sequence {
+public class Cons implements Sequence, Reducible {
 
 	private final Object first;
 	private final Sequence more;
@@ -34,6 +35,26 @@ public class Cons implements Sequence {
 		return false;
 	}
 
+	@Override
+	public Object reduce(LispFunction fn, Object init) {
+		Object result = fn.apply(init, first);
+		Sequence s = more;
+		// walks the cons cells in a loop, until the rest of the sequence can reduce itself
+		while (!(result instanceof Reduced) && s != null && !s.empty()) {
+			if (s instanceof Cons) {
+				Cons cons = (Cons) s;
+				result = fn.apply(result, cons.first);
+				s = cons.more;
+			} else if (s instanceof Reducible) {
+				return ((Reducible) s).reduce(fn, result);
+			} else {
+				result = fn.apply(result, s.first());
+				s = s.next();
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		return seqEquals(this, o);
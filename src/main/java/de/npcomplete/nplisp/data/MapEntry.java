@@ -0,0 +1,53 @@
+package de.npcomplete.nplisp.data;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import de.npcomplete.nplisp.util.LispPrinter;
+
+/**
+ * Key and value of a map entry as a two element vector.
+ */
+public final class MapEntry extends AbstractList<Object> implements RandomAccess, Countable {
+	private final Object key;
+	private final Object value;
+
+	public MapEntry(Object key, Object value) {
+		this.key = key;
+		this.value = value;
+	}
+
+	public Object key() {
+		return key;
+	}
+
+	public Object val() {
+		return value;
+	}
+
+	@Override
+	public Object get(int index) {
+		if (index == 0) {
+			return key;
+		}
+		if (index == 1) {
+			return value;
+		}
+		throw new IndexOutOfBoundsException("Index: " + index + ", Size: 2");
+	}
+
+	@Override
+	public int size() {
+		return 2;
+	}
+
+	@Override
+	public long count() {
+		return 2;
+	}
+
+	@Override
+	public String toString() {
+		return LispPrinter.prStr(this);
+	}
+}
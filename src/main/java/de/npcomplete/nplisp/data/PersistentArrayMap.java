@@ -0,0 +1,321 @@
+package de.npcomplete.nplisp.data;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.util.LispPrinter;
+
+/**
+ * Immutable map for a few entries, stored in a flat array of alternating keys and values.
+ * Lookups scan the array, which is faster than hashing for small maps. The map keeps the
+ * order in which the keys were added, and becomes a {@link PersistentHashMap} once it
+ * would hold more than {@link #HASHTABLE_THRESHOLD} entries.
+ */
+public final class PersistentArrayMap extends AbstractMap<Object, Object> implements PersistentMap, Reducible {
+	public static final int HASHTABLE_THRESHOLD = 8;
+
+	public static final PersistentArrayMap EMPTY = new PersistentArrayMap(new Object[0]);
+
+	private final Object[] array;
+
+	private int hash;
+
+	private PersistentArrayMap(Object[] array) {
+		this.array = array;
+	}
+
+	/**
+	 * Creates a map from alternating keys and values. Later values replace earlier ones for the same key.
+	 */
+	public static PersistentMap create(Object... keyValues) {
+		return create(keyValues, false);
+	}
+
+	/**
+	 * Creates a map from alternating keys and values, and throws an exception
+	 * if a key occurs more than once. (used for map literals)
+	 */
+	public static PersistentMap createWithCheck(Object... keyValues) {
+		return create(keyValues, true);
+	}
+
+	private static PersistentMap create(Object[] keyValues, boolean checkDuplicates) {
+		if (keyValues.length % 2 != 0) {
+			throw new LispException("Odd number of elements for map creation");
+		}
+		if (keyValues.length > HASHTABLE_THRESHOLD * 2) {
+			return checkDuplicates
+					? PersistentHashMap.createWithCheck(keyValues)
+					: PersistentHashMap.create(keyValues);
+		}
+		if (keyValues.length == 0) {
+			return EMPTY;
+		}
+		Object[] array = new Object[keyValues.length];
+		int length = 0;
+		for (int i = 0; i < keyValues.length; i += 2) {
+			int index = indexOf(array, length, keyValues[i]);
+			if (index < 0) {
+				array[length++] = keyValues[i];
+				array[length++] = keyValues[i + 1];
+			} else if (checkDuplicates) {
+				throw new LispException("Map creation with duplicate key: " + keyValues[i]);
+			} else {
+				array[index + 1] = keyValues[i + 1];
+			}
+		}
+		return new PersistentArrayMap(length == array.length ? array : Arrays.copyOf(array, length));
+	}
+
+	/**
+	 * Returns the index of the key in the array, or -1 if it is not there.
+	 */
+	private static int indexOf(Object[] array, int length, Object key) {
+		if (key instanceof Keyword) {
+			// keywords are mostly looked up with the instance they were stored with,
+			// and otherwise only compared by name if their (cached) hashes match
+			for (int i = 0; i < length; i += 2) {
+				if (array[i] == key) {
+					return i;
+				}
+			}
+			int hash = key.hashCode();
+			for (int i = 0; i < length; i += 2) {
+				if (array[i] instanceof Keyword && array[i].hashCode() == hash && key.equals(array[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		for (int i = 0; i < length; i += 2) {
+			if (Objects.equals(key, array[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int size() {
+		return array.length / 2;
+	}
+
+	@Override
+	public long count() {
+		return array.length / 2;
+	}
+
+	@Override
+	public Object get(Object key) {
+		int i = indexOf(array, array.length, key);
+		return i >= 0 ? array[i + 1] : null;
+	}
+
+	@Override
+	public Object getOrDefault(Object key, Object defaultValue) {
+		int i = indexOf(array, array.length, key);
+		return i >= 0 ? array[i + 1] : defaultValue;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(array, array.length, key) >= 0;
+	}
+
+	@Override
+	public PersistentMap assoc(Object key, Object value) {
+		int i = indexOf(array, array.length, key);
+		if (i >= 0) {
+			if (array[i + 1] == value) {
+				return this;
+			}
+			Object[] newArray = array.clone();
+			newArray[i + 1] = value;
+			return new PersistentArrayMap(newArray);
+		}
+		if (array.length >= HASHTABLE_THRESHOLD * 2) {
+			return PersistentHashMap.create(this).assoc(key, value);
+		}
+		Object[] newArray = Arrays.copyOf(array, array.length + 2);
+		newArray[array.length] = key;
+		newArray[array.length + 1] = value;
+		return new PersistentArrayMap(newArray);
+	}
+
+	@Override
+	public PersistentArrayMap without(Object key) {
+		int i = indexOf(array, array.length, key);
+		if (i < 0) {
+			return this;
+		}
+		if (array.length == 2) {
+			return EMPTY;
+		}
+		Object[] newArray = new Object[array.length - 2];
+		System.arraycopy(array, 0, newArray, 0, i);
+		System.arraycopy(array, i + 2, newArray, i, newArray.length - i);
+		return new PersistentArrayMap(newArray);
+	}
+
+	/**
+	 * Reduces over the entries as {@link MapEntry} vectors.
+	 */
+	@Override
+	public Object reduce(LispFunction fn, Object init) {
+		Object result = init;
+		for (int i = 0; i < array.length; i += 2) {
+			result = fn.apply(result, new MapEntry(array[i], array[i + 1]));
+			if (result instanceof Reduced) {
+				return result;
+			}
+		}
+		return result;
+	}
+
+	public TransientArrayMap asTransient() {
+		return new TransientArrayMap(array);
+	}
+
+	@Override
+	public Set<Entry<Object, Object>> entrySet() {
+		return new AbstractSet<Entry<Object, Object>>() {
+			@Override
+			public Iterator<Entry<Object, Object>> iterator() {
+				return new Iterator<Entry<Object, Object>>() {
+					private int i;
+
+					@Override
+					public boolean hasNext() {
+						return i < array.length;
+					}
+
+					@Override
+					public Entry<Object, Object> next() {
+						if (i >= array.length) {
+							throw new NoSuchElementException();
+						}
+						Entry<Object, Object> e = new SimpleImmutableEntry<>(array[i], array[i + 1]);
+						i += 2;
+						return e;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return array.length / 2;
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = hash = super.hashCode();
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return LispPrinter.prStr(this);
+	}
+
+	/**
+	 * Map for building a persistent map, which adds entries to its own array in place.
+	 * Once it holds more than {@link #HASHTABLE_THRESHOLD} entries, it continues as a
+	 * transient hash map. It must only be used by the thread which created it,
+	 * and not after calling {@link #persistent()}.
+	 */
+	public static final class TransientArrayMap {
+		private Thread owner = Thread.currentThread();
+		private Object[] array;
+		private int length;
+		private PersistentHashMap.TransientHashMap hashMap;
+
+		private TransientArrayMap(Object[] array) {
+			this.array = Arrays.copyOf(array, Math.max(array.length, 4));
+			length = array.length;
+		}
+
+		private void ensureEditable() {
+			if (owner != Thread.currentThread()) {
+				throw new IllegalStateException(owner == null
+						? "Transient map used after call to persistent()"
+						: "Transient map used by a thread which does not own it");
+			}
+		}
+
+		public int count() {
+			return hashMap != null ? hashMap.count() : length / 2;
+		}
+
+		public TransientArrayMap assoc(Object key, Object value) {
+			ensureEditable();
+			if (hashMap != null) {
+				hashMap.assoc(key, value);
+				return this;
+			}
+			int i = indexOf(array, length, key);
+			if (i >= 0) {
+				array[i + 1] = value;
+				return this;
+			}
+			if (length >= HASHTABLE_THRESHOLD * 2) {
+				hashMap = PersistentHashMap.EMPTY.asTransient();
+				for (int j = 0; j < length; j += 2) {
+					hashMap.assoc(array[j], array[j + 1]);
+				}
+				hashMap.assoc(key, value);
+				array = null;
+				return this;
+			}
+			if (length == array.length) {
+				array = Arrays.copyOf(array, Math.min(Math.max(array.length * 2, 4), HASHTABLE_THRESHOLD * 2));
+			}
+			array[length] = key;
+			array[length + 1] = value;
+			length += 2;
+			return this;
+		}
+
+		public TransientArrayMap without(Object key) {
+			ensureEditable();
+			if (hashMap != null) {
+				hashMap.without(key);
+				return this;
+			}
+			int i = indexOf(array, length, key);
+			if (i >= 0) {
+				System.arraycopy(array, i + 2, array, i, length - i - 2);
+				length -= 2;
+				array[length] = null;
+				array[length + 1] = null;
+			}
+			return this;
+		}
+
+		/**
+		 * Returns the persistent map with the current contents. The transient map can't be used afterwards.
+		 */
+		public PersistentMap persistent() {
+			ensureEditable();
+			owner = null;
+			if (hashMap != null) {
+				return hashMap.persistent();
+			}
+			if (length == 0) {
+				return EMPTY;
+			}
+			return new PersistentArrayMap(length == array.length ? array : Arrays.copyOf(array, length));
+		}
+	}
+}
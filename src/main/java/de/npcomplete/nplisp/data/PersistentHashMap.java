@@ -0,0 +1,642 @@
+package de.npcomplete.nplisp.data;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.util.LispPrinter;
+
+/**
+ * Immutable hash map with structural sharing, implemented as a hash array mapped trie.
+ * Each level of the trie uses 5 bits of the hash of a key, so lookups and updates
+ * touch O(log32 n) nodes. Keys with equal hashes end up in collision nodes.
+ * <p>
+ * Many entries are best added via {@link #asTransient()}, which modifies the nodes it
+ * created in place instead of copying them for every entry.
+ */
+public final class PersistentHashMap extends AbstractMap<Object, Object> implements PersistentMap, Reducible {
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private static final Object NOT_FOUND = new Object();
+
+	public static final PersistentHashMap EMPTY = new PersistentHashMap(0, null, false, null);
+
+	private final int count;
+	private final Node root;
+	// nil can't be stored in the trie, since a nil key marks a sub node there
+	private final boolean hasNull;
+	private final Object nullValue;
+
+	private int hash;
+
+	private PersistentHashMap(int count, Node root, boolean hasNull, Object nullValue) {
+		this.count = count;
+		this.root = root;
+		this.hasNull = hasNull;
+		this.nullValue = nullValue;
+	}
+
+	/**
+	 * Creates a map from alternating keys and values. Later values replace earlier ones for the same key.
+	 */
+	public static PersistentHashMap create(Object... keyValues) {
+		if (keyValues.length % 2 != 0) {
+			throw new LispException("Odd number of elements for map creation");
+		}
+		TransientHashMap result = EMPTY.asTransient();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			result.assoc(keyValues[i], keyValues[i + 1]);
+		}
+		return result.persistent();
+	}
+
+	/**
+	 * Creates a map from alternating keys and values, and throws an exception
+	 * if a key occurs more than once. (used for map literals)
+	 */
+	public static PersistentHashMap createWithCheck(Object... keyValues) {
+		if (keyValues.length % 2 != 0) {
+			throw new LispException("Odd number of elements for map creation");
+		}
+		TransientHashMap result = EMPTY.asTransient();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			int size = result.count;
+			result.assoc(keyValues[i], keyValues[i + 1]);
+			if (result.count == size) {
+				throw new LispException("Map creation with duplicate key: " + keyValues[i]);
+			}
+		}
+		return result.persistent();
+	}
+
+	public static PersistentHashMap create(Map<?, ?> map) {
+		if (map instanceof PersistentHashMap) {
+			return (PersistentHashMap) map;
+		}
+		TransientHashMap result = EMPTY.asTransient();
+		for (Entry<?, ?> e : map.entrySet()) {
+			result.assoc(e.getKey(), e.getValue());
+		}
+		return result.persistent();
+	}
+
+	private static int hash(Object key) {
+		return key.hashCode();
+	}
+
+	private static int bitPosition(int hash, int shift) {
+		return 1 << ((hash >>> shift) & MASK);
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public long count() {
+		return count;
+	}
+
+	@Override
+	public Object get(Object key) {
+		return getOrDefault(key, null);
+	}
+
+	@Override
+	public Object getOrDefault(Object key, Object defaultValue) {
+		if (key == null) {
+			return hasNull ? nullValue : defaultValue;
+		}
+		return root != null ? root.find(0, hash(key), key, defaultValue) : defaultValue;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return getOrDefault(key, NOT_FOUND) != NOT_FOUND;
+	}
+
+	@Override
+	public PersistentHashMap assoc(Object key, Object value) {
+		if (key == null) {
+			if (hasNull && nullValue == value) {
+				return this;
+			}
+			return new PersistentHashMap(hasNull ? count : count + 1, root, true, value);
+		}
+		boolean[] addedLeaf = new boolean[1];
+		Node newRoot = (root != null ? root : BitmapNode.EMPTY).assoc(null, 0, hash(key), key, value, addedLeaf);
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentHashMap(addedLeaf[0] ? count + 1 : count, newRoot, hasNull, nullValue);
+	}
+
+	@Override
+	public PersistentHashMap without(Object key) {
+		if (key == null) {
+			return hasNull ? new PersistentHashMap(count - 1, root, false, null) : this;
+		}
+		if (root == null) {
+			return this;
+		}
+		Node newRoot = root.without(null, 0, hash(key), key);
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentHashMap(count - 1, newRoot, hasNull, nullValue);
+	}
+
+	/**
+	 * Reduces over the entries as {@link MapEntry} vectors.
+	 */
+	@Override
+	public Object reduce(LispFunction fn, Object init) {
+		Object result = hasNull ? fn.apply(init, new MapEntry(null, nullValue)) : init;
+		if (root == null || result instanceof Reduced) {
+			return result;
+		}
+		return reduce(root, fn, result, false);
+	}
+
+	/**
+	 * Reduces over the keys of the map.
+	 */
+	Object reduceKeys(LispFunction fn, Object init) {
+		Object result = hasNull ? fn.apply(init, null) : init;
+		if (root == null || result instanceof Reduced) {
+			return result;
+		}
+		return reduce(root, fn, result, true);
+	}
+
+	private static Object reduce(Node node, LispFunction fn, Object init, boolean keys) {
+		Object result = init;
+		Object[] array = node.array();
+		for (int i = 0, used = node.used(); i < used; i += 2) {
+			Object key = array[i];
+			if (key == null) {
+				result = reduce((Node) array[i + 1], fn, result, keys);
+			} else {
+				result = fn.apply(result, keys ? key : new MapEntry(key, array[i + 1]));
+			}
+			if (result instanceof Reduced) {
+				return result;
+			}
+		}
+		return result;
+	}
+
+	public TransientHashMap asTransient() {
+		return new TransientHashMap(this);
+	}
+
+	@Override
+	public Set<Entry<Object, Object>> entrySet() {
+		return new AbstractSet<Entry<Object, Object>>() {
+			@Override
+			public Iterator<Entry<Object, Object>> iterator() {
+				return new EntryIterator(hasNull, nullValue, root);
+			}
+
+			@Override
+			public int size() {
+				return count;
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = hash = super.hashCode();
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return LispPrinter.prStr(this);
+	}
+
+	/**
+	 * Trie node. The arrays of the nodes hold alternating keys and values.
+	 * A nil key marks a slot whose value is a sub node.
+	 */
+	private interface Node {
+		Object find(int shift, int hash, Object key, Object notFound);
+
+		/**
+		 * Returns the node with the key mapped to the value. Nodes owned by the
+		 * edit reference may be modified in place. 'addedLeaf' is set if the key is new.
+		 */
+		Node assoc(AtomicReference<Thread> edit, int shift, int hash, Object key, Object value, boolean[] addedLeaf);
+
+		/**
+		 * Returns the node without the key, or null if the node became empty.
+		 */
+		Node without(AtomicReference<Thread> edit, int shift, int hash, Object key);
+
+		/**
+		 * Returns the array of the node and the number of its used slots.
+		 */
+		Object[] array();
+
+		int used();
+	}
+
+	private static boolean isOwner(AtomicReference<Thread> edit, AtomicReference<Thread> nodeEdit) {
+		return edit != null && edit == nodeEdit;
+	}
+
+	/**
+	 * Node with up to 32 entries, of which only the present ones are stored.
+	 * The bitmap marks which of the 32 positions of the level are present.
+	 */
+	private static final class BitmapNode implements Node {
+		static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+		final AtomicReference<Thread> edit;
+		int bitmap;
+		Object[] array;
+
+		BitmapNode(AtomicReference<Thread> edit, int bitmap, Object[] array) {
+			this.edit = edit;
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		@Override
+		public Object[] array() {
+			return array;
+		}
+
+		@Override
+		public int used() {
+			return 2 * Integer.bitCount(bitmap);
+		}
+
+		@Override
+		public Object find(int shift, int hash, Object key, Object notFound) {
+			int bit = bitPosition(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return notFound;
+			}
+			int i = 2 * index(bit);
+			Object k = array[i];
+			Object v = array[i + 1];
+			if (k == null) {
+				return ((Node) v).find(shift + BITS, hash, key, notFound);
+			}
+			return key.equals(k) ? v : notFound;
+		}
+
+		@Override
+		public Node assoc(AtomicReference<Thread> edit, int shift, int hash, Object key, Object value,
+				boolean[] addedLeaf) {
+			int bit = bitPosition(hash, shift);
+			int i = 2 * index(bit);
+			if ((bitmap & bit) != 0) {
+				Object k = array[i];
+				Object v = array[i + 1];
+				if (k == null) {
+					Node n = ((Node) v).assoc(edit, shift + BITS, hash, key, value, addedLeaf);
+					return n == v ? this : set(edit, i + 1, n);
+				}
+				if (key.equals(k)) {
+					return v == value ? this : set(edit, i + 1, value);
+				}
+				addedLeaf[0] = true;
+				Node sub = createNode(edit, shift + BITS, k, v, hash, key, value);
+				BitmapNode result = (BitmapNode) set(edit, i + 1, sub);
+				result.array[i] = null;
+				return result;
+			}
+			addedLeaf[0] = true;
+			int used = used();
+			if (isOwner(edit, this.edit) && used < array.length) {
+				System.arraycopy(array, i, array, i + 2, used - i);
+				array[i] = key;
+				array[i + 1] = value;
+				bitmap |= bit;
+				return this;
+			}
+			// transient nodes get some room to grow in place
+			Object[] newArray = new Object[edit != null ? Math.min(used + 8, 64) : used + 2];
+			System.arraycopy(array, 0, newArray, 0, i);
+			newArray[i] = key;
+			newArray[i + 1] = value;
+			System.arraycopy(array, i, newArray, i + 2, used - i);
+			return new BitmapNode(edit, bitmap | bit, newArray);
+		}
+
+		@Override
+		public Node without(AtomicReference<Thread> edit, int shift, int hash, Object key) {
+			int bit = bitPosition(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			int i = 2 * index(bit);
+			Object k = array[i];
+			Object v = array[i + 1];
+			if (k == null) {
+				Node n = ((Node) v).without(edit, shift + BITS, hash, key);
+				if (n == v) {
+					return this;
+				}
+				if (n != null) {
+					return set(edit, i + 1, n);
+				}
+			} else if (!key.equals(k)) {
+				return this;
+			}
+			if (bitmap == bit) {
+				return null;
+			}
+			int used = used();
+			Object[] newArray = new Object[used - 2];
+			System.arraycopy(array, 0, newArray, 0, i);
+			System.arraycopy(array, i + 2, newArray, i, used - i - 2);
+			return new BitmapNode(edit, bitmap ^ bit, newArray);
+		}
+
+		private Node set(AtomicReference<Thread> edit, int i, Object value) {
+			if (isOwner(edit, this.edit)) {
+				array[i] = value;
+				return this;
+			}
+			BitmapNode result = new BitmapNode(edit, bitmap, array.clone());
+			result.array[i] = value;
+			return result;
+		}
+	}
+
+	/**
+	 * Node for keys whose hashes are equal.
+	 */
+	private static final class CollisionNode implements Node {
+		final AtomicReference<Thread> edit;
+		final int hash;
+		final Object[] array;
+
+		CollisionNode(AtomicReference<Thread> edit, int hash, Object[] array) {
+			this.edit = edit;
+			this.hash = hash;
+			this.array = array;
+		}
+
+		@Override
+		public Object[] array() {
+			return array;
+		}
+
+		@Override
+		public int used() {
+			return array.length;
+		}
+
+		private int indexOf(Object key) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (key.equals(array[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public Object find(int shift, int hash, Object key, Object notFound) {
+			int i = indexOf(key);
+			return i >= 0 ? array[i + 1] : notFound;
+		}
+
+		@Override
+		public Node assoc(AtomicReference<Thread> edit, int shift, int hash, Object key, Object value,
+				boolean[] addedLeaf) {
+			if (hash != this.hash) {
+				// a different hash moves the collisions one level down
+				Node nested = new BitmapNode(edit, bitPosition(this.hash, shift), new Object[] {null, this});
+				return nested.assoc(edit, shift, hash, key, value, addedLeaf);
+			}
+			int i = indexOf(key);
+			if (i >= 0) {
+				if (array[i + 1] == value) {
+					return this;
+				}
+				if (isOwner(edit, this.edit)) {
+					array[i + 1] = value;
+					return this;
+				}
+				Object[] newArray = array.clone();
+				newArray[i + 1] = value;
+				return new CollisionNode(edit, hash, newArray);
+			}
+			addedLeaf[0] = true;
+			Object[] newArray = new Object[array.length + 2];
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			newArray[array.length] = key;
+			newArray[array.length + 1] = value;
+			return new CollisionNode(edit, hash, newArray);
+		}
+
+		@Override
+		public Node without(AtomicReference<Thread> edit, int shift, int hash, Object key) {
+			int i = indexOf(key);
+			if (i < 0) {
+				return this;
+			}
+			if (array.length == 2) {
+				return null;
+			}
+			Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, i);
+			System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+			return new CollisionNode(edit, hash, newArray);
+		}
+	}
+
+	private static Node createNode(AtomicReference<Thread> edit, int shift,
+			Object key1, Object value1, int hash2, Object key2, Object value2) {
+		int hash1 = hash(key1);
+		if (hash1 == hash2) {
+			return new CollisionNode(edit, hash1, new Object[] {key1, value1, key2, value2});
+		}
+		boolean[] addedLeaf = new boolean[1];
+		return BitmapNode.EMPTY
+				.assoc(edit, shift, hash1, key1, value1, addedLeaf)
+				.assoc(edit, shift, hash2, key2, value2, addedLeaf);
+	}
+
+	/**
+	 * Walks the trie depth first, with a stack of the nodes which are not finished yet.
+	 */
+	private static final class EntryIterator implements Iterator<Entry<Object, Object>> {
+		private final ArrayDeque<Object[]> arrays = new ArrayDeque<>();
+		private final ArrayDeque<int[]> positions = new ArrayDeque<>();
+		private boolean nullPending;
+		private final Object nullValue;
+
+		private Object nextKey;
+		private Object nextValue;
+		private boolean hasNext;
+
+		EntryIterator(boolean hasNull, Object nullValue, Node root) {
+			this.nullPending = hasNull;
+			this.nullValue = nullValue;
+			if (root != null) {
+				push(root);
+			}
+			advance();
+		}
+
+		private void push(Node node) {
+			arrays.push(node.array());
+			positions.push(new int[] {0, node.used()});
+		}
+
+		private void advance() {
+			if (nullPending) {
+				nullPending = false;
+				nextKey = null;
+				nextValue = nullValue;
+				hasNext = true;
+				return;
+			}
+			while (!arrays.isEmpty()) {
+				Object[] array = arrays.peek();
+				int[] position = positions.peek();
+				if (position[0] >= position[1]) {
+					arrays.pop();
+					positions.pop();
+					continue;
+				}
+				Object k = array[position[0]];
+				Object v = array[position[0] + 1];
+				position[0] += 2;
+				if (k == null) {
+					push((Node) v);
+					continue;
+				}
+				nextKey = k;
+				nextValue = v;
+				hasNext = true;
+				return;
+			}
+			hasNext = false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		@Override
+		public Entry<Object, Object> next() {
+			if (!hasNext) {
+				throw new NoSuchElementException();
+			}
+			Entry<Object, Object> e = new SimpleImmutableEntry<>(nextKey, nextValue);
+			advance();
+			return e;
+		}
+	}
+
+	/**
+	 * Map for building a persistent map, which modifies its own nodes in place.
+	 * It must only be used by the thread which created it, and not after calling {@link #persistent()}.
+	 */
+	public static final class TransientHashMap {
+		private final AtomicReference<Thread> edit = new AtomicReference<>(Thread.currentThread());
+		private final boolean[] addedLeaf = new boolean[1];
+		private Node root;
+		private int count;
+		private boolean hasNull;
+		private Object nullValue;
+
+		private TransientHashMap(PersistentHashMap m) {
+			root = m.root;
+			count = m.count;
+			hasNull = m.hasNull;
+			nullValue = m.nullValue;
+		}
+
+		private void ensureEditable() {
+			if (edit.get() != Thread.currentThread()) {
+				throw new IllegalStateException(edit.get() == null
+						? "Transient map used after call to persistent()"
+						: "Transient map used by a thread which does not own it");
+			}
+		}
+
+		public int count() {
+			return count;
+		}
+
+		public boolean containsKey(Object key) {
+			ensureEditable();
+			if (key == null) {
+				return hasNull;
+			}
+			return root != null && root.find(0, hash(key), key, NOT_FOUND) != NOT_FOUND;
+		}
+
+		public TransientHashMap assoc(Object key, Object value) {
+			ensureEditable();
+			if (key == null) {
+				if (!hasNull) {
+					count++;
+				}
+				hasNull = true;
+				nullValue = value;
+				return this;
+			}
+			addedLeaf[0] = false;
+			root = (root != null ? root : BitmapNode.EMPTY).assoc(edit, 0, hash(key), key, value, addedLeaf);
+			if (addedLeaf[0]) {
+				count++;
+			}
+			return this;
+		}
+
+		public TransientHashMap without(Object key) {
+			ensureEditable();
+			if (key == null) {
+				if (hasNull) {
+					count--;
+				}
+				hasNull = false;
+				nullValue = null;
+				return this;
+			}
+			// nodes may be changed in place, so the removal is not visible in the returned root
+			int h = hash(key);
+			if (root != null && root.find(0, h, key, NOT_FOUND) != NOT_FOUND) {
+				root = root.without(edit, 0, h, key);
+				count--;
+			}
+			return this;
+		}
+
+		/**
+		 * Returns the persistent map with the current contents. The transient map can't be used afterwards.
+		 */
+		public PersistentHashMap persistent() {
+			ensureEditable();
+			edit.set(null);
+			return count == 0 ? EMPTY : new PersistentHashMap(count, root, hasNull, nullValue);
+		}
+	}
+}
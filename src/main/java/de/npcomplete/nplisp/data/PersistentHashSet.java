@@ -0,0 +1,178 @@
+package de.npcomplete.nplisp.data;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.util.LispPrinter;
+
+/**
+ * Immutable hash set with structural sharing. The elements are stored as the keys of a
+ * {@link PersistentHashMap}, each mapped to itself, so adding or removing an element
+ * only copies the trie nodes on the path to it.
+ * <p>
+ * Many elements are best added via {@link #asTransient()}.
+ */
+public final class PersistentHashSet extends AbstractSet<Object> implements Countable, Reducible {
+	public static final PersistentHashSet EMPTY = new PersistentHashSet(PersistentHashMap.EMPTY);
+
+	private final PersistentHashMap map;
+
+	private int hash;
+
+	private PersistentHashSet(PersistentHashMap map) {
+		this.map = map;
+	}
+
+	public static PersistentHashSet create(Object... items) {
+		TransientHashSet result = EMPTY.asTransient();
+		for (Object item : items) {
+			result.conj(item);
+		}
+		return result.persistent();
+	}
+
+	/**
+	 * Creates a set from the items, and throws an exception if an item
+	 * occurs more than once. (used for set literals)
+	 */
+	public static PersistentHashSet createWithCheck(Object... items) {
+		TransientHashSet result = EMPTY.asTransient();
+		for (Object item : items) {
+			int size = result.count();
+			result.conj(item);
+			if (result.count() == size) {
+				throw new LispException("Set creation with duplicate key: " + item);
+			}
+		}
+		return result.persistent();
+	}
+
+	public static PersistentHashSet create(Collection<?> items) {
+		if (items instanceof PersistentHashSet) {
+			return (PersistentHashSet) items;
+		}
+		TransientHashSet result = EMPTY.asTransient();
+		for (Object item : items) {
+			result.conj(item);
+		}
+		return result.persistent();
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public long count() {
+		return map.count();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return map.containsKey(o);
+	}
+
+	/**
+	 * Returns the element of this set which is equal to the given one, or nil if there is none.
+	 */
+	public Object get(Object o) {
+		return map.get(o);
+	}
+
+	/**
+	 * Returns a set with the element added.
+	 */
+	public PersistentHashSet conj(Object o) {
+		PersistentHashMap result = map.containsKey(o) ? map : map.assoc(o, o);
+		return result == map ? this : new PersistentHashSet(result);
+	}
+
+	/**
+	 * Returns a set without the element.
+	 */
+	public PersistentHashSet disj(Object o) {
+		PersistentHashMap result = map.without(o);
+		return result == map ? this : new PersistentHashSet(result);
+	}
+
+	@Override
+	public Object reduce(LispFunction fn, Object init) {
+		return map.reduceKeys(fn, init);
+	}
+
+	public TransientHashSet asTransient() {
+		return new TransientHashSet(map.asTransient());
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		Iterator<Entry<Object, Object>> entries = map.entrySet().iterator();
+		return new Iterator<Object>() {
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			@Override
+			public Object next() {
+				return entries.next().getKey();
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = hash = super.hashCode();
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return LispPrinter.prStr(this);
+	}
+
+	/**
+	 * Set for building a persistent set, which modifies its own nodes in place.
+	 * It must only be used by the thread which created it, and not after calling {@link #persistent()}.
+	 */
+	public static final class TransientHashSet {
+		private final PersistentHashMap.TransientHashMap map;
+
+		private TransientHashSet(PersistentHashMap.TransientHashMap map) {
+			this.map = map;
+		}
+
+		public int count() {
+			return map.count();
+		}
+
+		public TransientHashSet conj(Object o) {
+			// an element which is already there is kept, like the persistent set does
+			if (!map.containsKey(o)) {
+				map.assoc(o, o);
+			}
+			return this;
+		}
+
+		public TransientHashSet disj(Object o) {
+			map.without(o);
+			return this;
+		}
+
+		/**
+		 * Returns the persistent set with the current contents. The transient set can't be used afterwards.
+		 */
+		public PersistentHashSet persistent() {
+			PersistentHashMap result = map.persistent();
+			return result == PersistentHashMap.EMPTY ? EMPTY : new PersistentHashSet(result);
+		}
+	}
+}
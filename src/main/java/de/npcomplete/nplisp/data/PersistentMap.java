@@ -0,0 +1,19 @@
+package de.npcomplete.nplisp.data;
+
+import java.util.Map;
+
+/**
+ * Immutable map. Instead of modifying the map, the operations return a new
+ * map which shares as much of its structure with the original as possible.
+ */
+public interface PersistentMap extends Map<Object, Object>, Countable {
+	/**
+	 * Returns a map with the key mapped to the value.
+	 */
+	PersistentMap assoc(Object key, Object value);
+
+	/**
+	 * Returns a map without a mapping for the key.
+	 */
+	PersistentMap without(Object key);
+}
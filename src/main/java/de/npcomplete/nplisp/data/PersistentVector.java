@@ -0,0 +1,428 @@
+package de.npcomplete.nplisp.data;
+
+import static de.npcomplete.nplisp.util.LispElf.seqEquals;
+import static de.npcomplete.nplisp.util.LispElf.seqHash;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.util.LispPrinter;
+
+/**
+ * Immutable vector with structural sharing. The elements are stored in a trie of
+ * 32 element arrays, except for the last up to 32 elements which are kept in a separate
+ * tail array. Adding an element, replacing one, and random access are O(log32 n),
+ * which is constant for all practical sizes.
+ * <p>
+ * Many elements are best added via {@link #asTransient()}, which modifies the nodes it
+ * created in place instead of copying them for every element.
+ */
+public final class PersistentVector extends AbstractList<Object> implements RandomAccess, Countable, Reducible {
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+
+	private static final Node EMPTY_NODE = new Node(new AtomicReference<>(), new Object[WIDTH]);
+
+	public static final PersistentVector EMPTY = new PersistentVector(0, BITS, EMPTY_NODE, new Object[0]);
+
+	private final int count;
+	// number of bits to shift the index by to get the position in the root node
+	private final int shift;
+	private final Node root;
+	private final Object[] tail;
+
+	private int hash;
+
+	private PersistentVector(int count, int shift, Node root, Object[] tail) {
+		this.count = count;
+		this.shift = shift;
+		this.root = root;
+		this.tail = tail;
+	}
+
+	public static PersistentVector create(Object... items) {
+		TransientVector result = EMPTY.asTransient();
+		for (Object item : items) {
+			result.conj(item);
+		}
+		return result.persistent();
+	}
+
+	public static PersistentVector create(Iterable<?> items) {
+		if (items instanceof PersistentVector) {
+			return (PersistentVector) items;
+		}
+		TransientVector result = EMPTY.asTransient();
+		for (Object item : items) {
+			result.conj(item);
+		}
+		return result.persistent();
+	}
+
+	/**
+	 * Trie node. Nodes created by a transient vector share its edit reference,
+	 * which is cleared when the transient vector becomes persistent.
+	 */
+	private static final class Node {
+		final AtomicReference<Thread> edit;
+		final Object[] array;
+
+		Node(AtomicReference<Thread> edit, Object[] array) {
+			this.edit = edit;
+			this.array = array;
+		}
+
+		Node(AtomicReference<Thread> edit) {
+			this(edit, new Object[WIDTH]);
+		}
+	}
+
+	private static int tailOffset(int count) {
+		return count < WIDTH ? 0 : ((count - 1) >>> BITS) << BITS;
+	}
+
+	/**
+	 * Returns the leaf array holding the element with the given index.
+	 */
+	private Object[] arrayFor(int index) {
+		if (index >= tailOffset(count)) {
+			return tail;
+		}
+		Node node = root;
+		for (int level = shift; level > 0; level -= BITS) {
+			node = (Node) node.array[(index >>> level) & MASK];
+		}
+		return node.array;
+	}
+
+	@Override
+	public Object get(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+		}
+		return arrayFor(index)[index & MASK];
+	}
+
+	public Object nth(int index) {
+		return get(index);
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public long count() {
+		return count;
+	}
+
+	/**
+	 * Returns a vector with the value added at the end.
+	 */
+	public PersistentVector conj(Object value) {
+		if (count - tailOffset(count) < WIDTH) {
+			Object[] newTail = new Object[tail.length + 1];
+			System.arraycopy(tail, 0, newTail, 0, tail.length);
+			newTail[tail.length] = value;
+			return new PersistentVector(count + 1, shift, root, newTail);
+		}
+		// the tail is full, so it moves into the trie
+		Node tailNode = new Node(root.edit, tail);
+		Node newRoot;
+		int newShift = shift;
+		if ((count >>> BITS) > (1 << shift)) {
+			// the trie is full too, so it gets a new level
+			newRoot = new Node(root.edit);
+			newRoot.array[0] = root;
+			newRoot.array[1] = newPath(root.edit, shift, tailNode);
+			newShift += BITS;
+		} else {
+			newRoot = pushTail(count, shift, root, tailNode);
+		}
+		return new PersistentVector(count + 1, newShift, newRoot, new Object[] {value});
+	}
+
+	private static Node pushTail(int count, int level, Node parent, Node tailNode) {
+		int subIndex = ((count - 1) >>> level) & MASK;
+		Node result = new Node(parent.edit, parent.array.clone());
+		Node child = (Node) parent.array[subIndex];
+		result.array[subIndex] = level == BITS ? tailNode
+				: child != null ? pushTail(count, level - BITS, child, tailNode)
+				: newPath(parent.edit, level - BITS, tailNode);
+		return result;
+	}
+
+	private static Node newPath(AtomicReference<Thread> edit, int level, Node node) {
+		if (level == 0) {
+			return node;
+		}
+		Node result = new Node(edit);
+		result.array[0] = newPath(edit, level - BITS, node);
+		return result;
+	}
+
+	/**
+	 * Returns a vector with the element at the given index replaced by the value.
+	 * The index may be the size of the vector, in which case the value is added at the end.
+	 */
+	public PersistentVector assocN(int index, Object value) {
+		if (index == count) {
+			return conj(value);
+		}
+		if (index < 0 || index > count) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+		}
+		if (index >= tailOffset(count)) {
+			Object[] newTail = tail.clone();
+			newTail[index & MASK] = value;
+			return new PersistentVector(count, shift, root, newTail);
+		}
+		return new PersistentVector(count, shift, doAssoc(shift, root, index, value), tail);
+	}
+
+	private static Node doAssoc(int level, Node node, int index, Object value) {
+		Node result = new Node(node.edit, node.array.clone());
+		if (level == 0) {
+			result.array[index & MASK] = value;
+		} else {
+			int subIndex = (index >>> level) & MASK;
+			result.array[subIndex] = doAssoc(level - BITS, (Node) node.array[subIndex], index, value);
+		}
+		return result;
+	}
+
+	@Override
+	public Object reduce(LispFunction fn, Object init) {
+		return reduce(fn, init, 0);
+	}
+
+	/**
+	 * Reduces over the elements starting at the given index, with a loop over each leaf array.
+	 */
+	private Object reduce(LispFunction fn, Object init, int from) {
+		Object result = init;
+		for (int i = from; i < count; ) {
+			Object[] array = arrayFor(i);
+			for (int j = i & MASK; j < array.length; j++, i++) {
+				result = fn.apply(result, array[j]);
+				if (result instanceof Reduced) {
+					return result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a chunked sequence over the elements, whose chunks are the leaf arrays.
+	 */
+	public Sequence seq() {
+		return count > 0 ? new ChunkedSeq(this, arrayFor(0), 0, 0) : null;
+	}
+
+	public TransientVector asTransient() {
+		return new TransientVector(this);
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		// walks the leaf arrays, instead of looking up each index in the trie
+		return new Iterator<Object>() {
+			private int index;
+			private int base;
+			private Object[] array = count > 0 ? arrayFor(0) : null;
+
+			@Override
+			public boolean hasNext() {
+				return index < count;
+			}
+
+			@Override
+			public Object next() {
+				if (index >= count) {
+					throw new NoSuchElementException();
+				}
+				if (index - base == WIDTH) {
+					array = arrayFor(index);
+					base = index;
+				}
+				return array[index++ - base];
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = hash = super.hashCode();
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return LispPrinter.prStr(this);
+	}
+
+	/**
+	 * Sequence over a vector, which walks its leaf arrays. Each chunk is the rest of a leaf array.
+	 */
+	private static final class ChunkedSeq implements ChunkedSequence, Countable, Reducible {
+		private final PersistentVector vector;
+		private final Object[] leaf;
+		// index of the first element of the leaf in the vector
+		private final int base;
+		private final int offset;
+
+		private int hash;
+
+		ChunkedSeq(PersistentVector vector, Object[] leaf, int base, int offset) {
+			this.vector = vector;
+			this.leaf = leaf;
+			this.base = base;
+			this.offset = offset;
+		}
+
+		@Override
+		public Object first() {
+			return leaf[offset];
+		}
+
+		@Override
+		public Sequence next() {
+			if (offset + 1 < leaf.length) {
+				return new ChunkedSeq(vector, leaf, base, offset + 1);
+			}
+			return chunkNext();
+		}
+
+		@Override
+		public boolean empty() {
+			return false;
+		}
+
+		@Override
+		public Chunk chunkFirst() {
+			return new ArrayChunk(leaf, offset, leaf.length);
+		}
+
+		@Override
+		public Sequence chunkNext() {
+			int next = base + leaf.length;
+			return next < vector.count ? new ChunkedSeq(vector, vector.arrayFor(next), next, 0) : null;
+		}
+
+		@Override
+		public long count() {
+			return vector.count - base - offset;
+		}
+
+		@Override
+		public Object reduce(LispFunction fn, Object init) {
+			return vector.reduce(fn, init, base + offset);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return seqEquals(this, o);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash != 0 ? hash : (hash = seqHash(this));
+		}
+
+		@Override
+		public String toString() {
+			return LispPrinter.prStr(this);
+		}
+	}
+
+	/**
+	 * Vector for building a persistent vector, which modifies its own nodes in place.
+	 * It must only be used by the thread which created it, and not after calling {@link #persistent()}.
+	 */
+	public static final class TransientVector {
+		private int count;
+		private int shift;
+		private Node root;
+		private Object[] tail;
+
+		private TransientVector(PersistentVector v) {
+			count = v.count;
+			shift = v.shift;
+			root = new Node(new AtomicReference<>(Thread.currentThread()), v.root.array.clone());
+			tail = new Object[WIDTH];
+			System.arraycopy(v.tail, 0, tail, 0, v.tail.length);
+		}
+
+		private void ensureEditable() {
+			if (root.edit.get() != Thread.currentThread()) {
+				throw new IllegalStateException(root.edit.get() == null
+						? "Transient vector used after call to persistent()"
+						: "Transient vector used by a thread which does not own it");
+			}
+		}
+
+		private Node editable(Node node) {
+			return node.edit == root.edit ? node : new Node(root.edit, node.array.clone());
+		}
+
+		public int count() {
+			return count;
+		}
+
+		public TransientVector conj(Object value) {
+			ensureEditable();
+			int i = count;
+			if (i - tailOffset(i) < WIDTH) {
+				tail[i & MASK] = value;
+				count++;
+				return this;
+			}
+			Node tailNode = new Node(root.edit, tail);
+			tail = new Object[WIDTH];
+			tail[0] = value;
+			if ((count >>> BITS) > (1 << shift)) {
+				Node newRoot = new Node(root.edit);
+				newRoot.array[0] = root;
+				newRoot.array[1] = newPath(root.edit, shift, tailNode);
+				root = newRoot;
+				shift += BITS;
+			} else {
+				root = pushTail(shift, root, tailNode);
+			}
+			count++;
+			return this;
+		}
+
+		private Node pushTail(int level, Node parent, Node tailNode) {
+			parent = editable(parent);
+			int subIndex = ((count - 1) >>> level) & MASK;
+			Node child = (Node) parent.array[subIndex];
+			parent.array[subIndex] = level == BITS ? tailNode
+					: child != null ? pushTail(level - BITS, child, tailNode)
+					: newPath(root.edit, level - BITS, tailNode);
+			return parent;
+		}
+
+		/**
+		 * Returns the persistent vector with the current contents. The transient vector can't be used afterwards.
+		 */
+		public PersistentVector persistent() {
+			ensureEditable();
+			root.edit.set(null);
+			int tailCount = count - tailOffset(count);
+			Object[] trimmedTail = new Object[tailCount];
+			System.arraycopy(tail, 0, trimmedTail, 0, tailCount);
+			return new PersistentVector(count, shift, root, trimmedTail);
+		}
+	}
+}
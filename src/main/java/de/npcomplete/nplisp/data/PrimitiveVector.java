@@ -0,0 +1,481 @@
+package de.npcomplete.nplisp.data;
+
+import static de.npcomplete.nplisp.util.LispElf.seqEquals;
+import static de.npcomplete.nplisp.util.LispElf.seqHash;
+
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.util.LispPrinter;
+
+/**
+ * Immutable vector of primitive longs or doubles, structured like {@link PersistentVector}:
+ * a trie of 32 element nodes with a separate tail. The leaves are primitive arrays, so the
+ * elements are only boxed when they are accessed through the {@link List} interface.
+ * {@link #getLong(int)} and {@link #getDouble(int)} read them without boxing.
+ */
+public final class PrimitiveVector extends AbstractList<Object> implements RandomAccess, Countable, Reducible {
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+
+	/**
+	 * The element type of a vector, which knows how to handle its leaf arrays.
+	 */
+	public enum Type {
+		LONG {
+			@Override
+			Object newArray(int length) {
+				return new long[length];
+			}
+
+			@Override
+			Object box(Object array, int i) {
+				return ((long[]) array)[i];
+			}
+
+			@Override
+			void store(Object array, int i, Object value) {
+				((long[]) array)[i] = number(value).longValue();
+			}
+
+			@Override
+			long longAt(Object array, int i) {
+				return ((long[]) array)[i];
+			}
+
+			@Override
+			double doubleAt(Object array, int i) {
+				return ((long[]) array)[i];
+			}
+		},
+		DOUBLE {
+			@Override
+			Object newArray(int length) {
+				return new double[length];
+			}
+
+			@Override
+			Object box(Object array, int i) {
+				return ((double[]) array)[i];
+			}
+
+			@Override
+			void store(Object array, int i, Object value) {
+				((double[]) array)[i] = number(value).doubleValue();
+			}
+
+			@Override
+			long longAt(Object array, int i) {
+				return (long) ((double[]) array)[i];
+			}
+
+			@Override
+			double doubleAt(Object array, int i) {
+				return ((double[]) array)[i];
+			}
+		};
+
+		abstract Object newArray(int length);
+
+		abstract Object box(Object array, int i);
+
+		abstract void store(Object array, int i, Object value);
+
+		abstract long longAt(Object array, int i);
+
+		abstract double doubleAt(Object array, int i);
+
+		Number number(Object value) {
+			if (value instanceof Number) {
+				return (Number) value;
+			}
+			throw new LispException("Can't store " + LispPrinter.prStr(value)
+					+ " in a vector of " + name().toLowerCase());
+		}
+	}
+
+	private final Type type;
+	private final int count;
+	// number of bits to shift the index by to get the position in the root node
+	private final int shift;
+	// the inner nodes are Object arrays, the leaves are arrays of the element type
+	private final Object[] root;
+	private final Object tail;
+
+	private int hash;
+
+	private PrimitiveVector(Type type, int count, int shift, Object[] root, Object tail) {
+		this.type = type;
+		this.count = count;
+		this.shift = shift;
+		this.root = root;
+		this.tail = tail;
+	}
+
+	public static PrimitiveVector empty(Type type) {
+		return new PrimitiveVector(type, 0, BITS, new Object[WIDTH], type.newArray(0));
+	}
+
+	public static PrimitiveVector create(Type type, Object... items) {
+		Object array = type.newArray(items.length);
+		for (int i = 0; i < items.length; i++) {
+			type.store(array, i, items[i]);
+		}
+		return fromArray(type, array, items.length);
+	}
+
+	public static PrimitiveVector create(Type type, Iterable<?> items) {
+		List<Object> list = new ArrayList<>();
+		for (Object item : items) {
+			list.add(item);
+		}
+		return create(type, list.toArray());
+	}
+
+	/**
+	 * Builds the trie bottom up from the first 'count' elements of a primitive array.
+	 */
+	private static PrimitiveVector fromArray(Type type, Object array, int count) {
+		int tailOffset = tailOffset(count);
+		Object tail = type.newArray(count - tailOffset);
+		System.arraycopy(array, tailOffset, tail, 0, count - tailOffset);
+
+		List<Object> nodes = new ArrayList<>();
+		for (int offset = 0; offset < tailOffset; offset += WIDTH) {
+			Object leaf = type.newArray(WIDTH);
+			System.arraycopy(array, offset, leaf, 0, WIDTH);
+			nodes.add(leaf);
+		}
+		int shift = BITS;
+		while (nodes.size() > WIDTH) {
+			List<Object> parents = new ArrayList<>();
+			for (int i = 0; i < nodes.size(); i += WIDTH) {
+				Object[] parent = new Object[WIDTH];
+				for (int j = i; j < Math.min(i + WIDTH, nodes.size()); j++) {
+					parent[j - i] = nodes.get(j);
+				}
+				parents.add(parent);
+			}
+			nodes = parents;
+			shift += BITS;
+		}
+		Object[] root = new Object[WIDTH];
+		for (int i = 0; i < nodes.size(); i++) {
+			root[i] = nodes.get(i);
+		}
+		return new PrimitiveVector(type, count, shift, root, tail);
+	}
+
+	private static int tailOffset(int count) {
+		return count < WIDTH ? 0 : ((count - 1) >>> BITS) << BITS;
+	}
+
+	public Type type() {
+		return type;
+	}
+
+	/**
+	 * Returns the leaf array (long[] or double[]) holding the element with the given index
+	 * at position {@code index & 31}. Leaves are full, except for the last one.
+	 * The returned array must not be modified.
+	 */
+	public Object arrayFor(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+		}
+		if (index >= tailOffset(count)) {
+			return tail;
+		}
+		Object[] node = root;
+		for (int level = shift; level > BITS; level -= BITS) {
+			node = (Object[]) node[(index >>> level) & MASK];
+		}
+		return node[(index >>> BITS) & MASK];
+	}
+
+	@Override
+	public Object get(int index) {
+		return type.box(arrayFor(index), index & MASK);
+	}
+
+	public long getLong(int index) {
+		return type.longAt(arrayFor(index), index & MASK);
+	}
+
+	public double getDouble(int index) {
+		return type.doubleAt(arrayFor(index), index & MASK);
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public long count() {
+		return count;
+	}
+
+	/**
+	 * Returns a vector with the value added at the end.
+	 */
+	public PrimitiveVector conj(Object value) {
+		int tailCount = count - tailOffset(count);
+		if (tailCount < WIDTH) {
+			Object newTail = type.newArray(tailCount + 1);
+			System.arraycopy(tail, 0, newTail, 0, tailCount);
+			type.store(newTail, tailCount, value);
+			return new PrimitiveVector(type, count + 1, shift, root, newTail);
+		}
+		// the tail is full, so it moves into the trie
+		Object[] newRoot;
+		int newShift = shift;
+		if ((count >>> BITS) > (1 << shift)) {
+			// the trie is full too, so it gets a new level
+			newRoot = new Object[WIDTH];
+			newRoot[0] = root;
+			newRoot[1] = newPath(shift, tail);
+			newShift += BITS;
+		} else {
+			newRoot = pushTail(count, shift, root, tail);
+		}
+		Object newTail = type.newArray(1);
+		type.store(newTail, 0, value);
+		return new PrimitiveVector(type, count + 1, newShift, newRoot, newTail);
+	}
+
+	private static Object[] pushTail(int count, int level, Object[] parent, Object tail) {
+		int subIndex = ((count - 1) >>> level) & MASK;
+		Object[] result = parent.clone();
+		Object child = parent[subIndex];
+		result[subIndex] = level == BITS ? tail
+				: child != null ? pushTail(count, level - BITS, (Object[]) child, tail)
+				: newPath(level - BITS, tail);
+		return result;
+	}
+
+	private static Object newPath(int level, Object leaf) {
+		if (level == 0) {
+			return leaf;
+		}
+		Object[] result = new Object[WIDTH];
+		result[0] = newPath(level - BITS, leaf);
+		return result;
+	}
+
+	/**
+	 * Returns a vector with the element at the given index replaced by the value.
+	 * The index may be the size of the vector, in which case the value is added at the end.
+	 */
+	public PrimitiveVector assocN(int index, Object value) {
+		if (index == count) {
+			return conj(value);
+		}
+		if (index < 0 || index > count) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+		}
+		if (index >= tailOffset(count)) {
+			Object newTail = copy(tail);
+			type.store(newTail, index & MASK, value);
+			return new PrimitiveVector(type, count, shift, root, newTail);
+		}
+		return new PrimitiveVector(type, count, shift, (Object[]) doAssoc(shift, root, index, value), tail);
+	}
+
+	private Object doAssoc(int level, Object node, int index, Object value) {
+		Object result = copy(node);
+		if (level == 0) {
+			type.store(result, index & MASK, value);
+		} else {
+			int subIndex = (index >>> level) & MASK;
+			Object[] array = (Object[]) result;
+			array[subIndex] = doAssoc(level - BITS, array[subIndex], index, value);
+		}
+		return result;
+	}
+
+	private Object copy(Object array) {
+		if (array instanceof Object[]) {
+			return ((Object[]) array).clone();
+		}
+		int length = Array.getLength(array);
+		Object result = type.newArray(length);
+		System.arraycopy(array, 0, result, 0, length);
+		return result;
+	}
+
+	@Override
+	public Object reduce(LispFunction fn, Object init) {
+		return reduce(fn, init, 0);
+	}
+
+	/**
+	 * Reduces over the elements starting at the given index, with a loop over each leaf array.
+	 */
+	private Object reduce(LispFunction fn, Object init, int from) {
+		Object result = init;
+		for (int i = from; i < count; ) {
+			Object array = arrayFor(i);
+			for (int j = i & MASK, length = Array.getLength(array); j < length; j++, i++) {
+				result = fn.apply(result, type.box(array, j));
+				if (result instanceof Reduced) {
+					return result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a sequence over the elements, starting at the given index.
+	 */
+	public Sequence seq(int index) {
+		return index < count ? new Seq(this, index) : null;
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		// walks the leaf arrays, instead of looking up each index in the trie
+		return new Iterator<Object>() {
+			private int index;
+			private int base;
+			private Object array = count > 0 ? arrayFor(0) : null;
+
+			@Override
+			public boolean hasNext() {
+				return index < count;
+			}
+
+			@Override
+			public Object next() {
+				if (index >= count) {
+					throw new NoSuchElementException();
+				}
+				if (index - base == WIDTH) {
+					array = arrayFor(index);
+					base = index;
+				}
+				return type.box(array, index++ - base);
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = hash = super.hashCode();
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return LispPrinter.prStr(this);
+	}
+
+	/**
+	 * Sequence over a primitive vector. Functions which know about primitive
+	 * vectors can get the vector and the index to read the elements unboxed.
+	 */
+	public static final class Seq implements ChunkedSequence, Countable, Reducible {
+		public final PrimitiveVector vector;
+		public final int index;
+
+		private int hash;
+
+		private Seq(PrimitiveVector vector, int index) {
+			this.vector = vector;
+			this.index = index;
+		}
+
+		@Override
+		public Object first() {
+			return vector.get(index);
+		}
+
+		@Override
+		public Sequence next() {
+			return index < vector.count - 1 ? new Seq(vector, index + 1) : null;
+		}
+
+		@Override
+		public Chunk chunkFirst() {
+			return new LeafChunk(vector.type, vector.arrayFor(index), index & MASK);
+		}
+
+		@Override
+		public Sequence chunkNext() {
+			int next = (index & ~MASK) + WIDTH;
+			return next < vector.count ? new Seq(vector, next) : null;
+		}
+
+		@Override
+		public boolean empty() {
+			return false;
+		}
+
+		@Override
+		public long count() {
+			return vector.count - index;
+		}
+
+		@Override
+		public Object reduce(LispFunction fn, Object init) {
+			return vector.reduce(fn, init, index);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return seqEquals(this, o);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash != 0 ? hash : (hash = seqHash(this));
+		}
+
+		@Override
+		public String toString() {
+			return LispPrinter.prStr(this);
+		}
+	}
+
+	/**
+	 * Chunk over the rest of a leaf array, which boxes the elements when they are read.
+	 */
+	private static final class LeafChunk implements Chunk {
+		private final Type type;
+		private final Object leaf;
+		private final int offset;
+		private final int size;
+
+		LeafChunk(Type type, Object leaf, int offset) {
+			this.type = type;
+			this.leaf = leaf;
+			this.offset = offset;
+			size = Array.getLength(leaf) - offset;
+		}
+
+		@Override
+		public Object nth(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			return type.box(leaf, offset + index);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
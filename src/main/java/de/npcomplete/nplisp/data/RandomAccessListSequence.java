@@ -7,10 +7,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.RandomAccess;
 
+import de.npcomplete.nplisp.function.LispFunction;
 import de.npcomplete.nplisp.util.LispPrinter;
 
 @SuppressWarnings({"rawtypes", "unchecked"})
-public final class RandomAccessListSequence implements Sequence, Countable {
+public final class RandomAccessListSequence implements Sequence, Countable, Reducible {
 	private final List list;
 	private final int index;
 	private final boolean empty;
@@ -63,6 +64,18 @@ public final class RandomAccessListSequence implements Sequence, Countable {
 		return list.listIterator(index);
 	}
 
+	@Override
+	public Object reduce(LispFunction fn, Object init) {
+		Object result = init;
+		for (int i = index, size = list.size(); i < size; i++) {
+			result = fn.apply(result, list.get(i));
+			if (result instanceof Reduced) {
+				return result;
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public long count() {
 		return empty ? 0 : list.size() - index;
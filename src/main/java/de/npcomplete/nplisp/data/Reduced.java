@@ -0,0 +1,17 @@
+package de.npcomplete.nplisp.data;
+
+/**
+ * Wrapper for the result of a reducing function, which stops the reduction.
+ */
+public final class Reduced implements Deref {
+	private final Object value;
+
+	public Reduced(Object value) {
+		this.value = value;
+	}
+
+	@Override
+	public Object deref() {
+		return value;
+	}
+}
@@ -0,0 +1,16 @@
+package de.npcomplete.nplisp.data;
+
+import de.npcomplete.nplisp.function.LispFunction;
+
+/**
+ * Collection which can reduce over its elements itself, with a loop over its internal
+ * structure instead of a sequence object per element.
+ */
+public interface Reducible {
+	/**
+	 * Calls the function with the accumulated value (starting with 'init') and each element,
+	 * and returns the last result. If a result is {@link Reduced}, the reduction stops and
+	 * returns it as is, so nested reductions can stop too. The caller unwraps it.
+	 */
+	Object reduce(LispFunction fn, Object init);
+}
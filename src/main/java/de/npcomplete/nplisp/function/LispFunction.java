@@ -1,6 +1,5 @@
 package de.npcomplete.nplisp.function;
 
-import java.util.ArrayList;
 import java.util.concurrent.Callable;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -9,6 +8,7 @@ import java.util.function.Supplier;
 
 import de.npcomplete.nplisp.LispException;
 import de.npcomplete.nplisp.data.Sequence;
+import de.npcomplete.nplisp.util.LispElf;
 
 @SuppressWarnings("rawtypes")
 public interface LispFunction extends Runnable, Callable, Supplier, Consumer, Predicate, Function {
@@ -52,12 +52,7 @@ public interface LispFunction extends Runnable, Callable, Supplier, Consumer, Pr
 			return apply(par1, par2, par3);
 		}
 
-		ArrayList<Object> rest = new ArrayList<>();
-		do {
-			rest.add(args.first());
-		} while ((args = args.next()) != null);
-
-		return apply(par1, par2, par3, rest.toArray());
+		return apply(par1, par2, par3, LispElf.toArray(args));
 	}
 
 	// Runnable
@@ -9,6 +9,8 @@ import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
+import de.npcomplete.nplisp.data.PersistentHashSet;
+
 @SuppressWarnings({"rawtypes", "unchecked"})
 public final class LispFunctionFactory {
 	private LispFunctionFactory() {
@@ -22,6 +24,10 @@ public final class LispFunctionFactory {
 			return (LispFunction) o;
 		}
 
+		if (o instanceof PersistentHashSet) {
+			return (Fn1) ((PersistentHashSet) o)::get;
+		}
+
 		if (o instanceof Set) {
 			return (Fn1)
 					par -> ((Set) o).contains(par) ? par : null;
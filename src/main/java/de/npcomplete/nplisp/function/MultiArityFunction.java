@@ -1,201 +1,256 @@
 package de.npcomplete.nplisp.function;
 
+import static de.npcomplete.nplisp.analyzer.Frames.CAPTURED_SLOT;
+import static de.npcomplete.nplisp.analyzer.Frames.FIRST_PARAM_SLOT;
+import static de.npcomplete.nplisp.analyzer.Frames.SELF_SLOT;
+
 import java.util.Arrays;
-import java.util.List;
 
 import de.npcomplete.nplisp.LispException;
-import de.npcomplete.nplisp.core.Environment;
+import de.npcomplete.nplisp.analyzer.FnProfile;
+import de.npcomplete.nplisp.analyzer.Node;
+import de.npcomplete.nplisp.compiler.CompiledFunction;
 import de.npcomplete.nplisp.data.Sequence;
 import de.npcomplete.nplisp.data.Symbol;
 import de.npcomplete.nplisp.util.LispElf;
 
 public final class MultiArityFunction implements LispFunction {
 
-	private final Symbol name;
-	// First array index is function arity. The resulting Object array
-	// has the function body at index 0 and the argument symbols at index 1.
-	private final Object[][] functions;
-	private final Object[] variadicFnData;
+	// Index is the number of arguments. Arities of calls with more arguments than
+	// the table covers can only be handled by the variadic arity.
+	private final Arity[] dispatch;
+	private final Arity variadic;
+
+	// The values the function captured from the frame it was created in
+	private final Object[] captured;
 
-	// The environment with which the function was created
-	private final Environment env;
+	// only with tiered execution
+	private final FnProfile profile;
+	// set once the function has been compiled, all calls are then forwarded to it
+	private LispFunction compiled;
 
-	private MultiArityFunction(Symbol name, boolean variadic, Object[][] functions, Environment env) {
-		this.name = name;
-		this.functions = functions;
-		variadicFnData = variadic ? functions[functions.length - 1] : null;
-		this.env = env;
+	private MultiArityFunction(Arity[] dispatch, Arity variadic, Object[] captured, FnProfile profile) {
+		this.dispatch = dispatch;
+		this.variadic = variadic;
+		this.captured = captured;
+		this.profile = profile;
 	}
 
-	private Environment initLocalEnv() {
-		Environment localEnv = new Environment(env);
-		if (name != null) {
-			localEnv.bind(name, this);
-		}
-		return localEnv;
+	/**
+	 * Returns the invocation counters of the function, or null if tiered execution was disabled
+	 * when the function was analyzed.
+	 */
+	public FnProfile profile() {
+		return profile;
 	}
 
-	private Object[] fnData(int arity) {
-		Object[] fnData = functions.length > arity
-				? functions[arity]
-				: variadicFnData;
-		if (fnData == null) {
-			if (variadicFnData != null && arity == functions.length - 2) {
-				return variadicFnData;
+	/**
+	 * Counts the call and returns the compiled version of the function, if there is one.
+	 */
+	private LispFunction compiled() {
+		if (profile == null) {
+			return null;
+		}
+		LispFunction c = compiled;
+		if (c == null) {
+			CompiledFunction template = profile.invoked();
+			if (template != null) {
+				// concurrent callers might create their own instance, which behaves the same
+				c = compiled = template.newInstance(captured);
 			}
-			throw new LispException("Wrong arity: " + arity);
 		}
-		return fnData;
+		return c;
+	}
+
+	private Object[] initFrame(Arity arity) {
+		Object[] frame = new Object[arity.frameSize];
+		frame[CAPTURED_SLOT] = captured;
+		frame[SELF_SLOT] = this;
+		return frame;
+	}
+
+	private Arity arity(int argCount) {
+		Arity arity = argCount < dispatch.length ? dispatch[argCount] : variadic;
+		if (arity == null) {
+			throw new LispException("Wrong arity: " + argCount);
+		}
+		return arity;
 	}
 
 	@Override
 	public Object apply() {
-		Environment localEnv = initLocalEnv();
-		Object[] fnData = fnData(0);
-		Sequence body = (Sequence) fnData[0];
-		Symbol[] paramSymbols = (Symbol[]) fnData[1];
-
-		if (fnData == variadicFnData) {
-			LispElf.bindVarArgs(localEnv, paramSymbols, LispElf.EMPTY_OBJECT_ARRAY);
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.apply();
 		}
-		return SingleArityFunction.call(body, paramSymbols, localEnv);
+		Arity arity = arity(0);
+		Object[] frame = initFrame(arity);
+		// a variadic arity called without arguments has only the rest parameter, which stays nil
+		return SingleArityFunction.call(arity.body, frame, FIRST_PARAM_SLOT, arity.paramCount);
 	}
 
 	@Override
 	public Object apply(Object par1) {
-		Environment localEnv = initLocalEnv();
-		Object[] fnData = fnData(1);
-		Sequence body = (Sequence) fnData[0];
-		Symbol[] paramSymbols = (Symbol[]) fnData[1];
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.apply(par1);
+		}
+		Arity arity = arity(1);
+		Object[] frame = initFrame(arity);
 
-		if (fnData == variadicFnData) {
-			LispElf.bindVarArgs(localEnv, paramSymbols, par1);
+		if (arity.variadic) {
+			LispElf.bindVarArgs(frame, FIRST_PARAM_SLOT, arity.paramCount, par1);
 		} else {
-			localEnv.bind(paramSymbols[0], par1);
+			frame[FIRST_PARAM_SLOT] = par1;
 		}
-		return SingleArityFunction.call(body, paramSymbols, localEnv);
+		return SingleArityFunction.call(arity.body, frame, FIRST_PARAM_SLOT, arity.paramCount);
 	}
 
 	@Override
 	public Object apply(Object par1, Object par2) {
-		Environment localEnv = initLocalEnv();
-		Object[] fnData = fnData(2);
-		Sequence body = (Sequence) fnData[0];
-		Symbol[] paramSymbols = (Symbol[]) fnData[1];
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.apply(par1, par2);
+		}
+		Arity arity = arity(2);
+		Object[] frame = initFrame(arity);
 
-		if (fnData == variadicFnData) {
-			LispElf.bindVarArgs(localEnv, paramSymbols, par1, par2);
+		if (arity.variadic) {
+			LispElf.bindVarArgs(frame, FIRST_PARAM_SLOT, arity.paramCount, par1, par2);
 		} else {
-			localEnv.bind(paramSymbols[0], par1);
-			localEnv.bind(paramSymbols[1], par2);
+			frame[FIRST_PARAM_SLOT] = par1;
+			frame[FIRST_PARAM_SLOT + 1] = par2;
 		}
-		return SingleArityFunction.call(body, paramSymbols, localEnv);
+		return SingleArityFunction.call(arity.body, frame, FIRST_PARAM_SLOT, arity.paramCount);
 	}
 
 	@Override
 	public Object apply(Object par1, Object par2, Object par3) {
-		Environment localEnv = initLocalEnv();
-		Object[] fnData = fnData(3);
-		Sequence body = (Sequence) fnData[0];
-		Symbol[] paramSymbols = (Symbol[]) fnData[1];
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.apply(par1, par2, par3);
+		}
+		Arity arity = arity(3);
+		Object[] frame = initFrame(arity);
 
-		if (fnData == variadicFnData) {
-			LispElf.bindVarArgs(localEnv, paramSymbols, par1, par2, par3);
+		if (arity.variadic) {
+			LispElf.bindVarArgs(frame, FIRST_PARAM_SLOT, arity.paramCount, par1, par2, par3);
 		} else {
-			localEnv.bind(paramSymbols[0], par1);
-			localEnv.bind(paramSymbols[1], par2);
-			localEnv.bind(paramSymbols[2], par3);
+			frame[FIRST_PARAM_SLOT] = par1;
+			frame[FIRST_PARAM_SLOT + 1] = par2;
+			frame[FIRST_PARAM_SLOT + 2] = par3;
 		}
-		return SingleArityFunction.call(body, paramSymbols, localEnv);
+		return SingleArityFunction.call(arity.body, frame, FIRST_PARAM_SLOT, arity.paramCount);
 	}
 
-	@SuppressWarnings("Duplicates")
 	@Override
 	public Object apply(Object par1, Object par2, Object par3, Object... more) {
-		Environment localEnv = initLocalEnv();
-		int moreCount = more.length;
-		Object[] fnData = fnData(3 + moreCount);
-		Sequence body = (Sequence) fnData[0];
-		Symbol[] paramSymbols = (Symbol[]) fnData[1];
-
-		if (fnData == variadicFnData) {
-			Object[] args = new Object[3 + moreCount];
-			args[0] = par1;
-			args[1] = par2;
-			args[2] = par3;
-			System.arraycopy(more, 0, args, 3, moreCount);
-			LispElf.bindVarArgs(localEnv, paramSymbols, args);
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.apply(par1, par2, par3, more);
+		}
+		Arity arity = arity(3 + more.length);
+		Object[] frame = initFrame(arity);
 
+		if (arity.variadic) {
+			LispElf.bindVarArgs(frame, FIRST_PARAM_SLOT, arity.paramCount, par1, par2, par3, more);
 		} else {
-			localEnv.bind(paramSymbols[0], par1);
-			localEnv.bind(paramSymbols[1], par2);
-			localEnv.bind(paramSymbols[2], par3);
-			for (int i = 0; i < moreCount; i++) {
-				localEnv.bind(paramSymbols[i + 3], more[i]);
-			}
+			frame[FIRST_PARAM_SLOT] = par1;
+			frame[FIRST_PARAM_SLOT + 1] = par2;
+			frame[FIRST_PARAM_SLOT + 2] = par3;
+			System.arraycopy(more, 0, frame, FIRST_PARAM_SLOT + 3, more.length);
 		}
-
-		return SingleArityFunction.call(body, paramSymbols, localEnv);
+		return SingleArityFunction.call(arity.body, frame, FIRST_PARAM_SLOT, arity.paramCount);
 	}
 
-	public static class Builder {
-		private static final Object[][] NO_FUNCTIONS = new Object[0][];
+	@Override
+	public Object applyTo(Sequence args) {
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.applyTo(args);
+		}
+		// only the arguments covered by the dispatch table need to be counted
+		int limit = variadic != null ? dispatch.length : Integer.MAX_VALUE;
+		int argCount = 0;
+		for (Sequence s = args; s != null && !s.empty() && argCount < limit; s = s.next()) {
+			argCount++;
+		}
+		Arity arity = arity(argCount);
+		Object[] frame = initFrame(arity);
+		LispElf.bindArgs(frame, FIRST_PARAM_SLOT, arity.paramCount, arity.variadic, args);
+		return SingleArityFunction.call(arity.body, frame, FIRST_PARAM_SLOT, arity.paramCount);
+	}
 
-		private final Symbol name;
-		private boolean variadic;
+	/**
+	 * Body of one arity of the function.
+	 */
+	private static final class Arity {
+		final Node body;
+		// including the rest parameter of a variadic arity
+		final int paramCount;
+		final boolean variadic;
+		final int frameSize;
 
-		// The environment with which the function was created
-		private final Environment env;
+		Arity(Node body, int paramCount, boolean variadic, int frameSize) {
+			this.body = body;
+			this.paramCount = paramCount;
+			this.variadic = variadic;
+			this.frameSize = frameSize;
+		}
+	}
 
-		// First array index is function arity. The resulting Object array
-		// has the function body at index 0 and the argument symbols at index 1.
-		private Object[][] functions = NO_FUNCTIONS;
+	public static class Builder {
+		private static final Arity[] NO_ARITIES = new Arity[0];
 
-		public Builder(Symbol name, Environment env) {
-			this.name = name;
-			this.env = env;
-		}
+		// Index is the number of parameters of the fixed arities
+		private Arity[] fixed = NO_ARITIES;
+		private Arity variadic;
 
-		public void addArity(Sequence args) {
-			if (args.empty()) {
-				throw new LispException("'fn' arity definition requires at least one element: ([ARGS] *&BODY*)");
-			}
-			Object arg1 = args.first();
-			if (!(arg1 instanceof List)) {
-				throw new LispException("'fn' arity definition first element is not a List");
-			}
-			List fnArgs = (List) arg1;
+		// created on the first build
+		private Arity[] dispatch;
 
-			Sequence body = args.next();
-			Symbol[] paramSymbols = LispElf.validateFnParams(fnArgs);
-			int arity = paramSymbols.length;
-			boolean newVariadic = arity != fnArgs.size();
+		public void addArity(Symbol[] paramSymbols, boolean newVariadic, Node body, int frameSize) {
+			int paramCount = paramSymbols.length;
 
-			if (variadic && newVariadic) {
+			if (variadic != null && newVariadic) {
 				throw new LispException("Can only have one variadic arity definition");
 			}
-
-			if (arity >= functions.length) {
-				if (variadic) {
-					throw new LispException("Can't have fixed arity function with more params than variadic function");
-				}
-				functions = Arrays.copyOf(functions, arity + 1);
-			} else if (newVariadic) {
+			if (newVariadic ? paramCount < fixed.length : variadic != null && paramCount >= variadic.paramCount) {
 				throw new LispException("Can't have fixed arity function with more params than variadic function");
 			}
-			if (functions[arity] != null) {
-				throw new LispException("Function body definition with arity " + arity + " already exists");
-			}
-			Object[] functionData = functions[arity] = new Object[2];
-			functionData[0] = body;
-			functionData[1] = paramSymbols;
+			Arity arity = new Arity(body, paramCount, newVariadic, frameSize);
 			if (newVariadic) {
-				variadic = true;
+				variadic = arity;
+				return;
 			}
+			if (paramCount >= fixed.length) {
+				fixed = Arrays.copyOf(fixed, paramCount + 1);
+			}
+			if (fixed[paramCount] != null) {
+				throw new LispException("Function body definition with arity " + paramCount + " already exists");
+			}
+			fixed[paramCount] = arity;
+			dispatch = null;
 		}
 
-		public MultiArityFunction build() {
-			return new MultiArityFunction(name, variadic, functions, env);
+		/**
+		 * Creates a new function with the given captured values. The profile may be null.
+		 * The builder may be used to build any number of functions.
+		 */
+		public MultiArityFunction build(Object[] captured, FnProfile profile) {
+			Arity[] d = dispatch;
+			if (d == null) {
+				// every number of arguments up to the variadic arity gets its entry
+				int length = variadic != null ? Math.max(fixed.length, variadic.paramCount) : fixed.length;
+				d = Arrays.copyOf(fixed, length);
+				for (int i = 0; variadic != null && i < length; i++) {
+					if (d[i] == null && i >= variadic.paramCount - 1) {
+						d[i] = variadic;
+					}
+				}
+				dispatch = d;
+			}
+			return new MultiArityFunction(d, variadic, captured, profile);
 		}
 	}
 }
@@ -1,142 +1,230 @@
 package de.npcomplete.nplisp.function;
 
-import java.util.List;
+import static de.npcomplete.nplisp.analyzer.Frames.CAPTURED_SLOT;
+import static de.npcomplete.nplisp.analyzer.Frames.FIRST_PARAM_SLOT;
+import static de.npcomplete.nplisp.analyzer.Frames.RECUR;
+import static de.npcomplete.nplisp.analyzer.Frames.SELF_SLOT;
 
 import de.npcomplete.nplisp.LispException;
-import de.npcomplete.nplisp.core.Environment;
+import de.npcomplete.nplisp.analyzer.FnProfile;
+import de.npcomplete.nplisp.analyzer.Node;
+import de.npcomplete.nplisp.compiler.CompiledFunction;
+import de.npcomplete.nplisp.core.DeepRecursion;
 import de.npcomplete.nplisp.corelibrary.CoreLibrary.TailCall;
 import de.npcomplete.nplisp.data.Sequence;
-import de.npcomplete.nplisp.data.Symbol;
 import de.npcomplete.nplisp.util.LispElf;
 
 public final class SingleArityFunction implements LispFunction {
 
-	private final Symbol name;
+	private final int paramCount;
 	private final boolean variadic;
 
-	// The environment with which the function was created
-	private final Environment env;
+	// The values the function captured from the frame it was created in
+	private final Object[] captured;
 
-	private final Sequence body;
-	private final Symbol[] paramSymbols;
+	private final Node body;
+	private final int frameSize;
 
-	public SingleArityFunction(Symbol name, Environment env, Sequence body, List<?> fnParams) {
-		this.name = name;
-		this.env = env;
+	// only with tiered execution
+	private final FnProfile profile;
+	// set once the function has been compiled, all calls are then forwarded to it
+	private LispFunction compiled;
+
+	public SingleArityFunction(Object[] captured, Node body, int paramCount, boolean variadic, int frameSize,
+			FnProfile profile) {
+		this.captured = captured;
 		this.body = body;
-		this.paramSymbols = LispElf.validateFnParams(fnParams);
-		this.variadic = paramSymbols.length != fnParams.size();
+		this.paramCount = paramCount;
+		this.variadic = variadic;
+		this.frameSize = frameSize;
+		this.profile = profile;
+	}
+
+	/**
+	 * Returns the invocation counters of the function, or null if tiered execution was disabled
+	 * when the function was analyzed.
+	 */
+	public FnProfile profile() {
+		return profile;
 	}
 
-	private Environment initLocalEnv() {
-		Environment localEnv = new Environment(env);
-		if (name != null) {
-			localEnv.bind(name, this);
+	/**
+	 * Counts the call and returns the compiled version of the function, if there is one.
+	 */
+	private LispFunction compiled() {
+		if (profile == null) {
+			return null;
+		}
+		LispFunction c = compiled;
+		if (c == null) {
+			CompiledFunction template = profile.invoked();
+			if (template != null) {
+				// concurrent callers might create their own instance, which behaves the same
+				c = compiled = template.newInstance(captured);
+			}
 		}
-		return localEnv;
+		return c;
+	}
+
+	private Object[] initFrame() {
+		Object[] frame = new Object[frameSize];
+		frame[CAPTURED_SLOT] = captured;
+		frame[SELF_SLOT] = this;
+		return frame;
 	}
 
 	@Override
 	public Object apply() {
-		Environment localEnv = initLocalEnv();
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.apply();
+		}
+		Object[] frame = initFrame();
 		if (variadic) {
-			LispElf.bindVarArgs(localEnv, paramSymbols, LispElf.EMPTY_OBJECT_ARRAY);
+			LispElf.bindVarArgs(frame, FIRST_PARAM_SLOT, paramCount, LispElf.EMPTY_OBJECT_ARRAY);
 		} else {
 			assertArity(0);
 		}
-		return call(body, paramSymbols, localEnv);
+		return call(body, frame, FIRST_PARAM_SLOT, paramCount);
 	}
 
 	@Override
 	public Object apply(Object par1) {
-		Environment localEnv = initLocalEnv();
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.apply(par1);
+		}
+		Object[] frame = initFrame();
 		if (variadic) {
-			LispElf.bindVarArgs(localEnv, paramSymbols, par1);
+			LispElf.bindVarArgs(frame, FIRST_PARAM_SLOT, paramCount, par1);
 		} else {
 			assertArity(1);
-			localEnv.bind(paramSymbols[0], par1);
+			frame[FIRST_PARAM_SLOT] = par1;
 		}
-		return call(body, paramSymbols, localEnv);
+		return call(body, frame, FIRST_PARAM_SLOT, paramCount);
 	}
 
 	@Override
 	public Object apply(Object par1, Object par2) {
-		Environment localEnv = initLocalEnv();
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.apply(par1, par2);
+		}
+		Object[] frame = initFrame();
 		if (variadic) {
-			LispElf.bindVarArgs(localEnv, paramSymbols, par1, par2);
+			LispElf.bindVarArgs(frame, FIRST_PARAM_SLOT, paramCount, par1, par2);
 		} else {
 			assertArity(2);
-			localEnv.bind(paramSymbols[0], par1);
-			localEnv.bind(paramSymbols[1], par2);
+			frame[FIRST_PARAM_SLOT] = par1;
+			frame[FIRST_PARAM_SLOT + 1] = par2;
 		}
-		return call(body, paramSymbols, localEnv);
+		return call(body, frame, FIRST_PARAM_SLOT, paramCount);
 	}
 
 	@Override
 	public Object apply(Object par1, Object par2, Object par3) {
-		Environment localEnv = initLocalEnv();
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.apply(par1, par2, par3);
+		}
+		Object[] frame = initFrame();
 		if (variadic) {
-			LispElf.bindVarArgs(localEnv, paramSymbols, par1, par2, par3);
+			LispElf.bindVarArgs(frame, FIRST_PARAM_SLOT, paramCount, par1, par2, par3);
 		} else {
 			assertArity(3);
-			localEnv.bind(paramSymbols[0], par1);
-			localEnv.bind(paramSymbols[1], par2);
-			localEnv.bind(paramSymbols[2], par3);
+			frame[FIRST_PARAM_SLOT] = par1;
+			frame[FIRST_PARAM_SLOT + 1] = par2;
+			frame[FIRST_PARAM_SLOT + 2] = par3;
 		}
-		return call(body, paramSymbols, localEnv);
+		return call(body, frame, FIRST_PARAM_SLOT, paramCount);
 	}
 
-	@SuppressWarnings("Duplicates")
 	@Override
 	public Object apply(Object par1, Object par2, Object par3, Object... more) {
-		Environment localEnv = initLocalEnv();
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.apply(par1, par2, par3, more);
+		}
+		Object[] frame = initFrame();
 		int moreCount = more.length;
 
 		if (variadic) {
-			Object[] args = new Object[3 + moreCount];
-			args[0] = par1;
-			args[1] = par2;
-			args[2] = par3;
-			System.arraycopy(more, 0, args, 3, moreCount);
-			LispElf.bindVarArgs(localEnv, paramSymbols, args);
-
+			LispElf.bindVarArgs(frame, FIRST_PARAM_SLOT, paramCount, par1, par2, par3, more);
 		} else {
 			assertArity(3 + moreCount);
-			localEnv.bind(paramSymbols[0], par1);
-			localEnv.bind(paramSymbols[1], par2);
-			localEnv.bind(paramSymbols[2], par3);
-			for (int i = 0; i < moreCount; i++) {
-				localEnv.bind(paramSymbols[i + 3], more[i]);
-			}
+			frame[FIRST_PARAM_SLOT] = par1;
+			frame[FIRST_PARAM_SLOT + 1] = par2;
+			frame[FIRST_PARAM_SLOT + 2] = par3;
+			System.arraycopy(more, 0, frame, FIRST_PARAM_SLOT + 3, moreCount);
 		}
 
-		return call(body, paramSymbols, localEnv);
+		return call(body, frame, FIRST_PARAM_SLOT, paramCount);
+	}
+
+	@Override
+	public Object applyTo(Sequence args) {
+		LispFunction c = compiled();
+		if (c != null) {
+			return c.applyTo(args);
+		}
+		Object[] frame = initFrame();
+		LispElf.bindArgs(frame, FIRST_PARAM_SLOT, paramCount, variadic, args);
+		return call(body, frame, FIRST_PARAM_SLOT, paramCount);
 	}
 
 	/**
-	 * Runs the function body, with the prepared local environment
-	 * and handles explicit recursive tail calls.
+	 * Runs the body with the prepared frame and handles explicit recursive
+	 * tail calls. Analyzed calls to 'recur' have already rebound the slots,
+	 * calls from the evaluator are rebound here into the 'count' slots starting at 'firstSlot'.
 	 */
-	static Object call(Sequence body, Symbol[] paramSymbols, Environment preparedLocalEnv) {
+	public static Object call(Node body, Object[] frame, int firstSlot, int count) {
+		if (!DeepRecursion.isEnabled()) {
+			return run(body, frame, firstSlot, count);
+		}
+		if (!DeepRecursion.enter()) {
+			return DeepRecursion.inNewSegment(() -> run(body, frame, firstSlot, count));
+		}
+		try {
+			return run(body, frame, firstSlot, count);
+		} finally {
+			DeepRecursion.leave();
+		}
+	}
+
+	private static Object run(Node body, Object[] frame, int firstSlot, int count) {
 		Object val;
-		while ((val = SpecialForm.DO(body, preparedLocalEnv, true)) instanceof TailCall) {
+		while ((val = body.execute(frame)) == RECUR || val instanceof TailCall) {
+			backEdge(frame[SELF_SLOT]);
+			if (val == RECUR) {
+				continue;
+			}
 			TailCall tailCall = (TailCall) val;
 			Object[] tcArgs = tailCall.args;
 			int length = tcArgs.length;
-			if (length != paramSymbols.length) {
+			if (length != count) {
 				throw new LispException("'recur' did not match required arity." +
-						" Expected: " + paramSymbols.length + ". Actual: " + length);
-			}
-			for (int i = 0; i < length; i++) {
-				preparedLocalEnv.bind(paramSymbols[i], tcArgs[i]);
+						" Expected: " + count + ". Actual: " + length);
 			}
+			System.arraycopy(tcArgs, 0, frame, firstSlot, length);
 		}
 		return val;
 	}
 
+	/**
+	 * Counts an iteration of 'recur' for the function the frame belongs to.
+	 */
+	private static void backEdge(Object self) {
+		FnProfile profile = self instanceof SingleArityFunction ? ((SingleArityFunction) self).profile
+				: self instanceof MultiArityFunction ? ((MultiArityFunction) self).profile()
+				: null;
+		if (profile != null) {
+			profile.backEdge();
+		}
+	}
+
 	private void assertArity(int arity) {
-		if (paramSymbols.length != arity) {
-			throw new LispException("Wrong arity: " + arity + ". Expected: " + paramSymbols.length);
+		if (paramCount != arity) {
+			throw new LispException("Wrong arity: " + arity + ". Expected: " + paramCount);
 		}
 	}
 }
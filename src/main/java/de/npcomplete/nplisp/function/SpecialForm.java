@@ -9,12 +9,12 @@ import java.util.List;
 
 import de.npcomplete.nplisp.Lisp;
 import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.analyzer.Analyzer;
 import de.npcomplete.nplisp.core.Environment;
 import de.npcomplete.nplisp.core.Var;
 import de.npcomplete.nplisp.corelibrary.CoreLibrary;
 import de.npcomplete.nplisp.data.Sequence;
 import de.npcomplete.nplisp.data.Symbol;
-import de.npcomplete.nplisp.function.MultiArityFunction.Builder;
 import de.npcomplete.nplisp.util.LispElf;
 import de.npcomplete.nplisp.util.LispPrinter;
 
@@ -121,37 +121,7 @@ public interface SpecialForm {
 	 * the body forms as if they are in an implicit 'do' block.
 	 */
 	static LispFunction FN(Sequence args, Environment env, boolean allowRecur) {
-		Symbol name = null;
-
-		if (args.first() instanceof Symbol) {
-			name = (Symbol) args.first();
-			args = args.more();
-		}
-
-		if (args.empty()) {
-			throw new LispException("'fn' requires at least one argument: (fn name? [params*] exprs*)" +
-					" or for multiple arities: (fn name? ([params*] exprs*) +)");
-		}
-
-		Object arg1 = args.first();
-		if (arg1 instanceof List) {
-			List<?> fnArgs = (List<?>) arg1;
-			Sequence body = args.next();
-			return new SingleArityFunction(name, env, body, fnArgs);
-		}
-
-		if (!(arg1 instanceof Sequence)) {
-			throw new LispException("'fn' first argument must either be a list or a vector");
-		}
-
-		Builder fnBuilder = new MultiArityFunction.Builder(name, env);
-		for (Object arg : args) {
-			if (!(arg instanceof Sequence)) {
-				throw new LispException("Arity variant of 'fn' must be a list");
-			}
-			fnBuilder.addArity((Sequence) arg);
-		}
-		return fnBuilder.build();
+		return Analyzer.evalFn(args, env);
 	}
 
 	/**
@@ -211,38 +181,7 @@ public interface SpecialForm {
 	 * bound to the symbols.
 	 */
 	static Object LOOP(Sequence args, Environment env, boolean allowRecur) {
-		if (args.empty()) {
-			throw new LispException("'loop' requires at least one argument: (let BINDINGS *&FORMS*)");
-		}
-		Object arg1 = args.first();
-		if (!(arg1 instanceof List)) {
-			throw new LispException("'loop' first argument is not a List");
-		}
-		List<?> bindings = (List<?>) arg1;
-		if (bindings.size() % 2 != 0) {
-			throw new LispException("'loop' bindings List doesn't have an even number of elements");
-		}
-
-		Environment localEnv = new Environment(env);
-		Symbol[] paramSymbols = new Symbol[bindings.size() / 2];
-
-		// process bindings
-		for (int i = 0, size = paramSymbols.length; i < size; i++) {
-			int symIndex = i * 2;
-			int valIndex = i * 2 + 1;
-			Object o = bindings.get(symIndex);
-			if (!(o instanceof Symbol)) {
-				String s = LispPrinter.prStr(o);
-				throw new LispException("'let' binding target is not a symbol: " + s);
-			}
-			Symbol sym = (Symbol) o;
-			paramSymbols[i] = sym;
-			Object value = Lisp.eval(bindings.get(valIndex), localEnv, false);
-			localEnv.bind(sym, value);
-		}
-
-		// evaluate body
-		return SingleArityFunction.call(args.next(), paramSymbols, localEnv);
+		return Analyzer.evalLoop(args, env);
 	}
 
 	/**
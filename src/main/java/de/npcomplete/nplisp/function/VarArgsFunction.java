@@ -1,7 +1,5 @@
 package de.npcomplete.nplisp.function;
 
-import java.util.ArrayList;
-
 import de.npcomplete.nplisp.data.Sequence;
 import de.npcomplete.nplisp.util.LispElf;
 
@@ -43,11 +41,6 @@ public interface VarArgsFunction extends LispFunction {
 
 	@Override
 	default Object applyTo(Sequence args) {
-		ArrayList<Object> l = new ArrayList<>();
-		while (args != null && !args.empty()) {
-			l.add(args.first());
-			args = args.next();
-		}
-		return applyVarArgs(l.toArray());
+		return applyVarArgs(LispElf.toArray(args));
 	}
 }
@@ -10,8 +10,8 @@ import java.util.function.Function;
 
 import de.npcomplete.nplisp.Lisp;
 import de.npcomplete.nplisp.LispException;
-import de.npcomplete.nplisp.core.Environment;
 import de.npcomplete.nplisp.data.ArraySequence;
+import de.npcomplete.nplisp.data.Countable;
 import de.npcomplete.nplisp.data.Sequence;
 import de.npcomplete.nplisp.data.Symbol;
 
@@ -97,21 +97,111 @@ public final class LispElf {
 		};
 	}
 
-	public static void bindVarArgs(Environment localEnv, Symbol[] paramSymbols, Object... args) {
+	/**
+	 * Binds the arguments to the 'paramCount' frame slots starting at 'firstSlot'.
+	 * The last slot receives a sequence of all remaining arguments.
+	 */
+	public static void bindVarArgs(Object[] frame, int firstSlot, int paramCount, Object... args) {
 		int argsCount = args.length;
-		int paramSymCount = paramSymbols.length;
-		int lastParamIndex = paramSymCount - 1;
-		if (paramSymCount > argsCount + 1) {
+		int lastParamIndex = paramCount - 1;
+		if (paramCount > argsCount + 1) {
 			throw new LispException("Wrong arity: " + argsCount + ". Expected: >=" + lastParamIndex);
 		}
 
-		for (int i = 0; i < lastParamIndex; i++) {
-			localEnv.bind(paramSymbols[i], args[i]);
-		}
-		Sequence varArgs = args.length > lastParamIndex
-				? new ArraySequence(lastParamIndex == 0 ? args : Arrays.copyOfRange(args, lastParamIndex, argsCount))
+		System.arraycopy(args, 0, frame, firstSlot, lastParamIndex);
+		// the rest parameter is a view of the arguments array
+		frame[firstSlot + lastParamIndex] = args.length > lastParamIndex
+				? ArraySequence.view(args, lastParamIndex)
 				: null;
-		localEnv.bind(paramSymbols[lastParamIndex], varArgs);
+	}
+
+	/**
+	 * Binds the arguments of a call with more than 3 arguments like {@link #bindVarArgs(Object[], int, int, Object...)},
+	 * without copying all arguments into a new array first.
+	 */
+	public static void bindVarArgs(Object[] frame, int firstSlot, int paramCount,
+			Object par1, Object par2, Object par3, Object[] more) {
+		int lastParamIndex = paramCount - 1;
+		if (lastParamIndex >= 3) {
+			if (lastParamIndex > 3 + more.length) {
+				throw new LispException("Wrong arity: " + (3 + more.length) + ". Expected: >=" + lastParamIndex);
+			}
+			frame[firstSlot] = par1;
+			frame[firstSlot + 1] = par2;
+			frame[firstSlot + 2] = par3;
+			System.arraycopy(more, 0, frame, firstSlot + 3, lastParamIndex - 3);
+			frame[firstSlot + lastParamIndex] = more.length > lastParamIndex - 3
+					? ArraySequence.view(more, lastParamIndex - 3)
+					: null;
+			return;
+		}
+		// some of the first three arguments belong to the rest parameter
+		Object[] args = new Object[3 + more.length];
+		args[0] = par1;
+		args[1] = par2;
+		args[2] = par3;
+		System.arraycopy(more, 0, args, 3, more.length);
+		bindVarArgs(frame, firstSlot, paramCount, args);
+	}
+
+	/**
+	 * Binds the elements of the sequence to the 'paramCount' frame slots starting at 'firstSlot'.
+	 * If the function is variadic, the last slot receives the remaining part of the sequence itself,
+	 * so the arguments are not copied.
+	 */
+	public static void bindArgs(Object[] frame, int firstSlot, int paramCount, boolean variadic, Sequence args) {
+		int fixedCount = variadic ? paramCount - 1 : paramCount;
+		for (int i = 0; i < fixedCount; i++) {
+			if (args == null || args.empty()) {
+				throw new LispException("Wrong arity: " + i + ". Expected: " + (variadic ? ">=" : "") + fixedCount);
+			}
+			frame[firstSlot + i] = args.first();
+			args = args.next();
+		}
+		boolean hasMore = args != null && !args.empty();
+		if (variadic) {
+			frame[firstSlot + fixedCount] = hasMore ? args : null;
+		} else if (hasMore) {
+			int count = fixedCount;
+			for (Object ignored : args) {
+				count++;
+			}
+			throw new LispException("Wrong arity: " + count + ". Expected: " + fixedCount);
+		}
+	}
+
+	/**
+	 * Returns the elements of the sequence as an array. The array backing an {@link ArraySequence}
+	 * is returned without copying, so the result must not be modified.
+	 */
+	public static Object[] toArray(Sequence args) {
+		if (args == null || args.empty()) {
+			return EMPTY_OBJECT_ARRAY;
+		}
+		if (args instanceof ArraySequence) {
+			return ((ArraySequence) args).toArray();
+		}
+		// sequences usually end in a countable one, like (apply f x coll)
+		int prefix = 0;
+		Sequence tail = args;
+		while (tail != null && !tail.empty() && !(tail instanceof Countable)) {
+			prefix++;
+			tail = tail.next();
+		}
+		if (tail != null && !tail.empty()) {
+			Object[] result = new Object[prefix + (int) ((Countable) tail).count()];
+			int i = 0;
+			for (Object arg : args) {
+				result[i++] = arg;
+			}
+			return result;
+		}
+		Object[] result = new Object[prefix];
+		for (int i = 0; i < prefix; i++) {
+			result[i] = args.first();
+			args = args.next();
+		}
+		return result;
 	}
 
 	/**
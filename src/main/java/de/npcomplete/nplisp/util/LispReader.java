@@ -6,17 +6,15 @@ import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
 import java.util.stream.IntStream;
 
 import de.npcomplete.nplisp.LispException;
 import de.npcomplete.nplisp.data.ArraySequence;
 import de.npcomplete.nplisp.data.Keyword;
+import de.npcomplete.nplisp.data.PersistentArrayMap;
+import de.npcomplete.nplisp.data.PersistentHashSet;
+import de.npcomplete.nplisp.data.PersistentVector;
 import de.npcomplete.nplisp.data.Symbol;
 
 public final class LispReader {
@@ -91,13 +89,10 @@ public final class LispReader {
 			case VECTOR_START:
 				ArrayList<Object> list = new ArrayList<>();
 				buildCollection(list, Token.VECTOR_END, it);
-				list.trimToSize();
-				return Collections.unmodifiableList(list);
+				return PersistentVector.create(list);
 
 			case SET_START:
-				HashSet<Object> set = new HashSet<>();
-				buildCollection(set, Token.MAP_SET_END, it);
-				return Collections.unmodifiableSet(set);
+				return buildSet(it);
 
 			case MAP_START:
 				return buildMap(it);
@@ -145,11 +140,23 @@ public final class LispReader {
 			if (value == end) {
 				return;
 			}
-			if (!base.add(value) && base instanceof Set) {
+			base.add(value);
+		}
+		throw new LispException("Encountered end of data while reading a collection");
+	}
+
+	private static Object buildSet(Iterator<Token> it) {
+		ArrayList<Object> setContents = new ArrayList<>();
+		buildCollection(setContents, Token.MAP_SET_END, it);
+		PersistentHashSet.TransientHashSet set = PersistentHashSet.EMPTY.asTransient();
+		for (Object value : setContents) {
+			int size = set.count();
+			set.conj(value);
+			if (set.count() == size) {
 				throw new LispException("Duplicate key in set literal: " + value);
 			}
 		}
-		throw new LispException("Encountered end of data while reading a collection");
+		return set.persistent();
 	}
 
 	private static Object buildMap(Iterator<Token> it) {
@@ -158,15 +165,16 @@ public final class LispReader {
 		if (mapContents.size() % 2 != 0) {
 			throw new LispException("Odd number or elements for map literal");
 		}
-		Map<Object, Object> map = new HashMap<>(mapContents.size());
+		PersistentArrayMap.TransientArrayMap map = PersistentArrayMap.EMPTY.asTransient();
 		Iterator<?> mapIt = mapContents.iterator();
 		while (mapIt.hasNext()) {
 			Object key = mapIt.next();
-			if (map.containsKey(key)) {
+			int size = map.count();
+			map.assoc(key, mapIt.next());
+			if (map.count() == size) {
 				throw new LispException("Duplicate key in map literal: " + key);
 			}
-			map.put(key, mapIt.next());
 		}
-		return Collections.unmodifiableMap(map);
+		return map.persistent();
 	}
 }
\ No newline at end of file
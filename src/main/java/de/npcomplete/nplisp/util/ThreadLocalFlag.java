@@ -1,8 +1,14 @@
 package de.npcomplete.nplisp.util;
 
+import de.npcomplete.nplisp.core.DeepRecursion;
+
 public class ThreadLocalFlag {
 	private final ThreadLocal<Object> tl = new ThreadLocal<>();
 
+	public ThreadLocalFlag() {
+		DeepRecursion.carry(tl);
+	}
+
 	public boolean isSet() {
 		if (tl.get() != null) {
 			return true;
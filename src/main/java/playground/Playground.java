@@ -15,6 +15,7 @@ import java.util.stream.DoubleStream;
 
 import de.npcomplete.nplisp.Lisp;
 import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.core.DirectLinking;
 import de.npcomplete.nplisp.core.Var;
 import de.npcomplete.nplisp.function.LispFunctionFactory.Fn0;
 import de.npcomplete.nplisp.util.LispPrinter;
@@ -82,6 +83,11 @@ public final class Playground {
 
 	public static final class PerfCheck {
 		public static void main(String[] arguments) throws Exception {
+			// optional first argument: direct linking mode (none, fixed or core)
+			if (arguments.length > 0) {
+				DirectLinking.setDefault(DirectLinking.parse(arguments[0]));
+			}
+
 			// read forms ahead of time, to remove that from the timing
 			List<Object> forms = new ArrayList<>();
 			Iterator<Object> it = LispReader.readMany(new FileReader("test.edn"));
@@ -116,6 +122,7 @@ public final class Playground {
 							.getAsDouble();
 
 			DoubleSummaryStatistics stats = DoubleStream.of(times).summaryStatistics();
+			sysout.println("linking: " + DirectLinking.getDefault());
 			sysout.println("   min: " + stats.getMin() + " ms");
 			sysout.println("median: " + median + " ms");
 			sysout.println("   avg: " + stats.getAverage() + " ms");
@@ -0,0 +1,132 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.corelibrary.CoreLibrary;
+import de.npcomplete.nplisp.corelibrary.Numbers;
+import de.npcomplete.nplisp.data.ArraySequence;
+import de.npcomplete.nplisp.data.Cons;
+import de.npcomplete.nplisp.data.Sequence;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.util.LispElf;
+import de.npcomplete.nplisp.util.LispReader;
+
+public class ApplyTest {
+	private static Repl repl;
+
+	private boolean wasAnalyzer;
+	private boolean wasCompiler;
+	private boolean wasTiered;
+
+	@BeforeClass
+	public static void createLisp() {
+		repl = new Repl(new Lisp(null));
+	}
+
+	@Before
+	public void useAnalyzer() {
+		wasAnalyzer = Analyzer.isEnabled();
+		wasCompiler = FnCompiler.isEnabled();
+		wasTiered = FnProfile.isEnabled();
+		Analyzer.setEnabled(true);
+		FnCompiler.setEnabled(false);
+		FnProfile.setEnabled(false);
+	}
+
+	@After
+	public void restore() {
+		Analyzer.setEnabled(wasAnalyzer);
+		FnCompiler.setEnabled(wasCompiler);
+		FnProfile.setEnabled(wasTiered);
+	}
+
+	private static LispFunction fn(String form) {
+		return repl.evalStr(form);
+	}
+
+	private static Object eval(String form) {
+		return repl.evalStr(form);
+	}
+
+	private static Object read(String form) {
+		return LispReader.readStr(form);
+	}
+
+	/**
+	 * A sequence which isn't Countable, so its length is only known after walking it.
+	 */
+	private static Sequence uncounted(Object... elements) {
+		List<Object> list = new LinkedList<>(Arrays.asList(elements));
+		return CoreLibrary.seq(list);
+	}
+
+	@Test
+	public void restParameterIsTheAppliedSequence() {
+		LispFunction rest = fn("(fn [a & more] more)");
+		Sequence coll = new Cons(2L, new Cons(3L, null));
+		assertSame(coll, CoreLibrary.FN_APPLY.apply(rest, 1L, coll));
+		Sequence array = new ArraySequence(2L, 3L, 4L);
+		assertSame(array, CoreLibrary.FN_APPLY.apply(rest, 1L, array));
+		// the fixed parameter is taken from the head of the sequence, the rest stays on the array
+		Object tail = CoreLibrary.FN_APPLY.apply(rest, array);
+		assertTrue(tail instanceof ArraySequence);
+		assertEquals(read("(3 4)"), tail);
+
+		LispFunction multi = fn("(fn ([] nil) ([a b & more] more))");
+		assertSame(coll, CoreLibrary.FN_APPLY.apply(multi, 0L, 1L, coll));
+	}
+
+	@Test
+	public void applyFromLisp() {
+		assertEquals(read("(2 3)"), eval("(apply (fn [a & more] more) 1 '(2 3))"));
+		assertEquals(read("[1 2 nil]"), eval("(apply (fn [a b & more] [a b more]) [1 2])"));
+		assertEquals(read("[1 2 (3 4)]"), eval("(apply (fn [a b & more] [a b more]) 1 [2 3 4])"));
+		assertEquals(15L, eval("(apply + 1 2 [3 4 5])"));
+		assertEquals(-13L, eval("(apply - 1 2 '(3 4 5))"));
+		assertEquals(read("[1 2 3 4]"), eval("(apply vector 1 2 [3 4])"));
+	}
+
+	@Test
+	public void applyOverSequenceWhichIsNotCountable() {
+		assertEquals(15L, Numbers.FN_ADD.applyTo(uncounted(1L, 2L, 3L, 4L, 5L)));
+		assertEquals(120L, CoreLibrary.FN_APPLY.apply(Numbers.FN_MULTIPLY, 1L, uncounted(2L, 3L, 4L, 5L)));
+
+		LispFunction rest = fn("(fn [a & more] [a more])");
+		assertEquals(read("[1 (2 3)]"), rest.applyTo(uncounted(1L, 2L, 3L)));
+		assertEquals(read("[1 nil]"), rest.applyTo(uncounted(1L)));
+
+		// functions which need an array get all elements
+		LispFunction str = repl.evalStr("str");
+		assertEquals("123456", CoreLibrary.FN_APPLY.apply(str, 1L, 2L, uncounted(3L, 4L, 5L, 6L)));
+		LispFunction vector = repl.evalStr("vector");
+		assertEquals(read("[1 2 3 4 5]"), CoreLibrary.FN_APPLY.apply(vector, 1L, uncounted(2L, 3L, 4L, 5L)));
+	}
+
+	@Test
+	public void argumentArraysAreNotCopied() {
+		Object[] elements = {1L, 2L, 3L, 4L, 5L};
+		assertSame(elements, LispElf.toArray(new ArraySequence(elements)));
+
+		// a prefix in front of a countable sequence is copied once into a presized array
+		Object[] spread = LispElf.toArray(new Cons(0L, new ArraySequence(elements)));
+		assertEquals(6, spread.length);
+		assertEquals(0L, spread[0]);
+		assertEquals(5L, spread[5]);
+
+		Object[] uncounted = LispElf.toArray(new Cons(0L, uncounted(1L, 2L, 3L)));
+		assertEquals(Arrays.asList(0L, 1L, 2L, 3L), Arrays.asList(uncounted));
+	}
+}
@@ -0,0 +1,151 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.data.ArraySequence;
+import de.npcomplete.nplisp.data.Sequence;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.MultiArityFunction;
+import de.npcomplete.nplisp.util.LispReader;
+
+public class ArityTest {
+	private static Repl repl;
+
+	private boolean wasAnalyzer;
+	private boolean wasCompiler;
+	private boolean wasTiered;
+
+	@BeforeClass
+	public static void createLisp() {
+		repl = new Repl(new Lisp(null));
+	}
+
+	@Before
+	public void useAnalyzer() {
+		wasAnalyzer = Analyzer.isEnabled();
+		wasCompiler = FnCompiler.isEnabled();
+		wasTiered = FnProfile.isEnabled();
+		Analyzer.setEnabled(true);
+		FnCompiler.setEnabled(false);
+		FnProfile.setEnabled(false);
+	}
+
+	@After
+	public void restore() {
+		Analyzer.setEnabled(wasAnalyzer);
+		FnCompiler.setEnabled(wasCompiler);
+		FnProfile.setEnabled(wasTiered);
+	}
+
+	private static LispFunction fn(String form) {
+		return repl.evalStr(form);
+	}
+
+	private static Object read(String form) {
+		return LispReader.readStr(form);
+	}
+
+	private static void assertWrongArity(Runnable call, String message) {
+		try {
+			call.run();
+			fail("call with the wrong number of arguments succeeded");
+		} catch (LispException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+
+	private static void assertInvalid(String form, String message) {
+		try {
+			fn(form);
+			fail("invalid function was created: " + form);
+		} catch (LispException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	@Test
+	public void callsDispatchToTheirArity() {
+		LispFunction f = fn("(fn ([] 0) ([a] 1) ([a b] 2) ([a b c] 3) ([a b c d e] 5))");
+		assertTrue(f instanceof MultiArityFunction);
+		assertEquals(0L, f.apply());
+		assertEquals(1L, f.apply(1L));
+		assertEquals(2L, f.apply(1L, 2L));
+		assertEquals(3L, f.apply(1L, 2L, 3L));
+		assertEquals(5L, f.apply(1L, 2L, 3L, 4L, 5L));
+		assertEquals(5L, f.applyTo(new ArraySequence(1L, 2L, 3L, 4L, 5L)));
+	}
+
+	@Test
+	public void missingAritiesAreReported() {
+		LispFunction f = fn("(fn ([a] 1) ([a b c d e] 5))");
+		assertWrongArity(f::apply, "Wrong arity: 0");
+		assertWrongArity(() -> f.apply(1L, 2L), "Wrong arity: 2");
+		assertWrongArity(() -> f.apply(1L, 2L, 3L, 4L), "Wrong arity: 4");
+		// beyond the end of the dispatch table
+		assertWrongArity(() -> f.apply(1L, 2L, 3L, 4L, 5L, 6L), "Wrong arity: 6");
+		assertWrongArity(() -> f.applyTo(new ArraySequence(1L, 2L, 3L, 4L, 5L, 6L, 7L)), "Wrong arity: 7");
+	}
+
+	@Test
+	public void variadicArityTakesAllLargerCounts() {
+		LispFunction f = fn("(fn ([] :none) ([a] [:one a]) ([a b c & more] [:many a b c more]))");
+		assertEquals(read(":none"), f.apply());
+		assertEquals(read("[:one 1]"), f.apply(1L));
+		// below the fixed parameters of the variadic arity
+		assertWrongArity(() -> f.apply(1L, 2L), "Wrong arity: 2");
+		assertEquals(read("[:many 1 2 3 nil]"), f.apply(1L, 2L, 3L));
+		assertEquals(read("[:many 1 2 3 (4)]"), f.apply(1L, 2L, 3L, 4L));
+		assertEquals(read("[:many 1 2 3 (4 5 6 7 8 9 10)]"), f.applyTo(
+				new ArraySequence(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L)));
+	}
+
+	@Test
+	public void variadicMinimumOfSingleArityFunction() {
+		LispFunction f = fn("(fn [a b & more] [a b more])");
+		assertWrongArity(f::apply, "Wrong arity: 0. Expected: >=2");
+		assertWrongArity(() -> f.apply(1L), "Wrong arity: 1. Expected: >=2");
+		assertEquals(read("[1 2 nil]"), f.apply(1L, 2L));
+		assertEquals(read("[1 2 (3 4 5)]"), f.apply(1L, 2L, 3L, 4L, 5L));
+
+		LispFunction many = fn("(fn [a b c d & more] more)");
+		assertWrongArity(() -> many.apply(1L, 2L, 3L), "Wrong arity: 3. Expected: >=4");
+		assertNull(many.apply(1L, 2L, 3L, 4L));
+		assertEquals(read("(5)"), many.apply(1L, 2L, 3L, 4L, 5L));
+	}
+
+	@Test
+	public void restParameterIsAViewOfTheArguments() {
+		LispFunction f = fn("(fn ([] nil) ([a b & more] more))");
+		Object[] more = {4L, 5L};
+		Object rest = f.apply(1L, 2L, 3L, more);
+		assertTrue(rest instanceof ArraySequence);
+		assertEquals(read("(3 4 5)"), rest);
+
+		// the rest starts within the 'more' array, which is then used as is
+		LispFunction g = fn("(fn [a b c d & more] more)");
+		Object[] args = {4L, 5L, 6L};
+		Sequence view = (Sequence) g.apply(1L, 2L, 3L, args);
+		args[2] = 7L;
+		assertEquals(5L, view.first());
+		assertEquals(7L, view.next().first());
+	}
+
+	@Test
+	public void invalidArityDefinitionsAreRejected() {
+		assertInvalid("(fn ([& a] 1) ([& b] 2))", "only have one variadic arity");
+		assertInvalid("(fn ([a & more] 1) ([a b] 2))", "more params than variadic");
+		assertInvalid("(fn ([a b] 1) ([a & more] 2))", "more params than variadic");
+		assertInvalid("(fn ([a] 1) ([b] 2))", "arity 1 already exists");
+	}
+}
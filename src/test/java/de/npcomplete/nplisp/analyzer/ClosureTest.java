@@ -0,0 +1,126 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.SingleArityFunction;
+
+public class ClosureTest {
+	private static Repl repl;
+
+	private boolean wasAnalyzer;
+	private boolean wasCompiler;
+	private boolean wasTiered;
+
+	@BeforeClass
+	public static void createLisp() {
+		repl = new Repl(new Lisp(null));
+	}
+
+	@Before
+	public void useAnalyzer() {
+		wasAnalyzer = Analyzer.isEnabled();
+		wasCompiler = FnCompiler.isEnabled();
+		wasTiered = FnProfile.isEnabled();
+		Analyzer.setEnabled(true);
+		FnCompiler.setEnabled(false);
+		FnProfile.setEnabled(false);
+	}
+
+	@After
+	public void restore() {
+		Analyzer.setEnabled(wasAnalyzer);
+		FnCompiler.setEnabled(wasCompiler);
+		FnProfile.setEnabled(wasTiered);
+	}
+
+	private static Object eval(String form) {
+		return repl.evalStr(form);
+	}
+
+	/**
+	 * Returns the values the single arity function captured when it was created.
+	 */
+	private static Object[] captured(Object fn) {
+		try {
+			Field captured = SingleArityFunction.class.getDeclaredField("captured");
+			captured.setAccessible(true);
+			return (Object[]) captured.get(fn);
+		} catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Calls each function of the list without arguments.
+	 */
+	private static List<Object> callAll(Object fns) {
+		List<Object> results = new ArrayList<>();
+		for (Object fn : (List<?>) fns) {
+			results.add(((LispFunction) fn).apply());
+		}
+		return results;
+	}
+
+	private static void assertSeeTheirIteration() {
+		List<Object> expected = new ArrayList<>();
+		expected.add(0L);
+		expected.add(1L);
+		expected.add(2L);
+		assertEquals(expected, callAll(eval("(loop [i 0 fs []] (if (< i 3) (recur (inc i) (conj fs (fn [] i))) fs))")));
+		assertEquals(expected, callAll(eval("(loop [i 0 fs []] "
+				+ "(if (< i 3) (recur (inc i) (conj fs (let [j i] (fn [] j)))) fs))")));
+		// a function looping itself
+		LispFunction collect = repl.evalStr("(fn [n] (loop [i 0 fs []] (if (< i n) (recur (inc i) (conj fs (fn [] i))) fs)))");
+		assertEquals(expected, callAll(collect.apply(3L)));
+	}
+
+	@Test
+	public void closuresInLoopsSeeTheirIteration() {
+		assertSeeTheirIteration();
+	}
+
+	@Test
+	public void compiledClosuresInLoopsSeeTheirIteration() {
+		FnCompiler.setEnabled(true);
+		assertSeeTheirIteration();
+	}
+
+	@Test
+	public void onlyReferencedLocalsAreCaptured() {
+		Object f = eval("((fn [] (let [big [1 2 3] small 1 unused :x] (fn [] small))))");
+		assertArrayEquals(new Object[] {1L}, captured(f));
+
+		// locals of the root environment are captured by value as well
+		Object g = eval("(let [big [1 2 3] small 2] (fn [] small))");
+		assertArrayEquals(new Object[] {2L}, captured(g));
+
+		// a function which doesn't reference any local captures nothing
+		assertEquals(0, captured(eval("((fn [a b] (fn [] :constant)) 1 2)")).length);
+	}
+
+	@Test
+	public void localsOfNestedFunctionsAreCapturedByTheOuterFunction() {
+		Object outer = eval("((fn [a b c] (fn [] (fn [] c))) 1 2 3)");
+		assertArrayEquals(new Object[] {3L}, captured(outer));
+		Object inner = ((LispFunction) outer).apply();
+		assertArrayEquals(new Object[] {3L}, captured(inner));
+		assertEquals(3L, ((LispFunction) inner).apply());
+
+		// each local is captured once, however often it is referenced
+		Object twice = eval("((fn [a b] (fn [] [a a (fn [] a)])) 1 2)");
+		assertArrayEquals(new Object[] {1L}, captured(twice));
+	}
+}
@@ -0,0 +1,187 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.compiler.CompiledFunction;
+import de.npcomplete.nplisp.compiler.DynamicClassLoader;
+import de.npcomplete.nplisp.data.ArraySequence;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.util.LispReader;
+
+public class FnCompilerTest {
+	private static Repl repl;
+
+	private boolean wasEnabled;
+
+	@BeforeClass
+	public static void createLisp() {
+		repl = new Repl(new Lisp(null));
+	}
+
+	@Before
+	public void enableCompiler() {
+		wasEnabled = FnCompiler.isEnabled();
+		FnCompiler.setEnabled(true);
+	}
+
+	@After
+	public void restoreCompiler() {
+		FnCompiler.setEnabled(wasEnabled);
+	}
+
+	/**
+	 * Evaluates the form, which must result in a compiled function. The compiler falls back
+	 * to the analyzer if the class is rejected when it is defined, linked or instantiated,
+	 * so a compiled function also means that its class passed the verifier.
+	 */
+	static LispFunction compiled(String form) {
+		Object fn = repl.evalStr(form);
+		assertCompiled(fn);
+		return (LispFunction) fn;
+	}
+
+	static void assertCompiled(Object fn) {
+		assertTrue("not compiled: " + fn, fn instanceof CompiledFunction);
+		Class<?> c = fn.getClass();
+		assertTrue(c.getClassLoader() instanceof DynamicClassLoader);
+		try {
+			// loading the class again by name must give the same, already initialized class
+			assertSame(c, Class.forName(c.getName(), true, c.getClassLoader()));
+		} catch (ClassNotFoundException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static Object read(String form) {
+		return LispReader.readStr(form);
+	}
+
+	@Test
+	public void compilesFixedArities() {
+		assertEquals(42L, compiled("(fn [] 42)").apply());
+		assertEquals(3L, compiled("(fn [a b] (+ a b))").apply(1L, 2L));
+		assertEquals(read("[3 2 1]"), compiled("(fn [a b c] [c b a])").apply(1L, 2L, 3L));
+		assertEquals(read("[5 4 3 2 1]"),
+				compiled("(fn [a b c d e] [e d c b a])").apply(1L, 2L, 3L, 4L, 5L));
+	}
+
+	@Test
+	public void compilesMultiArityFunctions() {
+		LispFunction f = compiled("(fn ([] :none) ([a] [a]) ([a b] [a b]) ([a b c d] [a b c d]) ([a b c d e f] :six))");
+		assertEquals(read(":none"), f.apply());
+		assertEquals(read("[1]"), f.apply(1L));
+		assertEquals(read("[1 2]"), f.apply(1L, 2L));
+		assertEquals(read("[1 2 3 4]"), f.apply(1L, 2L, 3L, 4L));
+		assertEquals(read(":six"), f.apply(1L, 2L, 3L, 4L, 5L, 6L));
+		for (int arity : new int[] {3, 5, 7}) {
+			try {
+				f.applyTo(new ArraySequence(new Object[arity]));
+				fail("call with " + arity + " arguments was accepted");
+			} catch (LispException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void compilesVariadicFunctions() {
+		LispFunction rest = compiled("(fn [& xs] xs)");
+		assertNull(rest.apply());
+		assertEquals(read("(1)"), rest.apply(1L));
+		assertEquals(read("(1 2 3 4 5)"), rest.apply(1L, 2L, 3L, 4L, 5L));
+
+		LispFunction f = compiled("(fn ([a] [:one a]) ([a b & more] [a b more]))");
+		assertEquals(read("[:one 1]"), f.apply(1L));
+		assertEquals(read("[1 2 nil]"), f.apply(1L, 2L));
+		assertEquals(read("[1 2 (3)]"), f.apply(1L, 2L, 3L));
+		assertEquals(read("[1 2 (3 4 5)]"), f.apply(1L, 2L, 3L, 4L, 5L));
+		try {
+			f.apply();
+			fail("call without arguments was accepted");
+		} catch (LispException e) {
+			// expected
+		}
+
+		// more fixed parameters than the apply methods have
+		LispFunction large = compiled("(fn [a b c d e & more] [e more])");
+		assertEquals(read("[5 nil]"), large.apply(1L, 2L, 3L, 4L, 5L));
+		assertEquals(read("[5 (6 7)]"), large.apply(1L, 2L, 3L, 4L, 5L, 6L, 7L));
+		try {
+			large.apply(1L, 2L, 3L, 4L);
+			fail("call with 4 arguments was accepted");
+		} catch (LispException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void compilesClosures() {
+		LispFunction f = (LispFunction) repl.evalStr("(let [y 10 z 20] (fn [x] [x y z]))");
+		assertCompiled(f);
+		assertEquals(read("[1 10 20]"), f.apply(1L));
+
+		// each evaluation of the fn form captures its own values
+		LispFunction adder = compiled("(fn [n] (fn [x] (+ x n)))");
+		LispFunction add1 = (LispFunction) adder.apply(1L);
+		LispFunction add5 = (LispFunction) adder.apply(5L);
+		assertCompiled(add1);
+		assertSame(add1.getClass(), add5.getClass());
+		assertEquals(11L, add1.apply(10L));
+		assertEquals(15L, add5.apply(10L));
+	}
+
+	@Test
+	public void compilesNestedCaptures() {
+		LispFunction f = compiled("(fn [a] (fn [b] (let [c (+ a b)] (fn [d] [a b c d]))))");
+		LispFunction g = (LispFunction) f.apply(1L);
+		LispFunction h = (LispFunction) g.apply(2L);
+		assertCompiled(g);
+		assertCompiled(h);
+		assertEquals(read("[1 2 3 4]"), h.apply(4L));
+
+		// a loop local captured in each iteration
+		LispFunction fns = compiled("(fn [] (loop [i 0 fs []] (if (< i 3) (recur (inc i) (conj fs (fn [] i))) fs)))");
+		List<?> list = (List<?>) fns.apply();
+		assertEquals(3, list.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals((long) i, ((LispFunction) list.get(i)).apply());
+		}
+	}
+
+	@Test
+	public void compilesLoopsWithManyLocals() {
+		LispFunction fib = compiled("(fn [n] (loop [i 0 a 0 b 1 steps [] tag :fib] "
+				+ "(if (< i n) (recur (inc i) b (+ a b) (conj steps a) tag) [a steps tag])))");
+		assertEquals(read("[55 [0 1 1 2 3 5 8 13 21 34] :fib]"), fib.apply(10L));
+
+		// recur to a function with more parameters than the apply methods have
+		LispFunction sum = compiled("(fn [i n acc x y] (if (< i n) (recur (inc i) n (+ acc x y) y x) acc))");
+		assertEquals(30L, sum.apply(0L, 10L, 0L, 1L, 2L));
+
+		// nested loops, where the inner one keeps its own locals
+		LispFunction nested = compiled("(fn [n] (loop [i 0 total 0] (if (< i n) "
+				+ "(recur (inc i) (loop [j 0 t total] (if (< j i) (recur (inc j) (inc t)) t))) total)))");
+		assertEquals(10L, nested.apply(5L));
+	}
+
+	@Test
+	public void recurInVariadicFunction() {
+		LispFunction f = compiled("(fn [acc & xs] (if xs (recur (+ acc (first xs)) (next xs)) acc))");
+		assertEquals(15L, f.apply(0L, 1L, 2L, 3L, 4L, 5L));
+		assertEquals(0L, f.apply(0L));
+	}
+}
@@ -0,0 +1,167 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.MultiArityFunction;
+import de.npcomplete.nplisp.function.SingleArityFunction;
+import de.npcomplete.nplisp.util.LispReader;
+
+public class FnProfileTest {
+	private static final int THRESHOLD = 10;
+
+	private static Repl repl;
+
+	private boolean wasAnalyzer;
+	private boolean wasCompiler;
+	private boolean wasTiered;
+	private int threshold;
+	private final List<FnProfile> transitions = new ArrayList<>();
+
+	@BeforeClass
+	public static void createLisp() {
+		repl = new Repl(new Lisp(null));
+	}
+
+	@Before
+	public void useTiers() {
+		wasAnalyzer = Analyzer.isEnabled();
+		wasCompiler = FnCompiler.isEnabled();
+		wasTiered = FnProfile.isEnabled();
+		threshold = FnProfile.getThreshold();
+		Analyzer.setEnabled(true);
+		FnCompiler.setEnabled(false);
+		FnProfile.setEnabled(true);
+		FnProfile.setThreshold(THRESHOLD);
+		FnProfile.setTransitionListener(transitions::add);
+	}
+
+	@After
+	public void restore() {
+		Analyzer.setEnabled(wasAnalyzer);
+		FnCompiler.setEnabled(wasCompiler);
+		FnProfile.setEnabled(wasTiered);
+		FnProfile.setThreshold(threshold);
+		FnProfile.setTransitionListener(null);
+	}
+
+	private static LispFunction fn(String form) {
+		return repl.evalStr(form);
+	}
+
+	private static Object read(String form) {
+		return LispReader.readStr(form);
+	}
+
+	private static FnProfile profile(LispFunction fn) {
+		return fn instanceof MultiArityFunction
+				? ((MultiArityFunction) fn).profile()
+				: ((SingleArityFunction) fn).profile();
+	}
+
+	@Test
+	public void functionIsCompiledAtTheThreshold() {
+		LispFunction f = fn("(fn [x] (* x 2))");
+		FnProfile profile = profile(f);
+		assertSame(FnProfile.Tier.ANALYZED, profile.tier());
+		for (long i = 1; i < THRESHOLD; i++) {
+			assertEquals(i * 2, f.apply(i));
+		}
+		assertSame(FnProfile.Tier.ANALYZED, profile.tier());
+		assertEquals(THRESHOLD - 1, profile.invocations());
+		assertTrue(transitions.isEmpty());
+
+		// the call reaching the threshold runs compiled, on the same function object
+		assertEquals(20L, f.apply(10L));
+		assertSame(FnProfile.Tier.COMPILED, profile.tier());
+		assertEquals(1, transitions.size());
+		assertSame(profile, transitions.get(0));
+		for (long i = 0; i < THRESHOLD; i++) {
+			assertEquals(i * 2, f.apply(i));
+		}
+		// the listener is only notified of the transition
+		assertEquals(1, transitions.size());
+	}
+
+	@Test
+	public void backEdgesCountTowardsTheThreshold() {
+		LispFunction count = fn("(fn [n] (loop [i 0] (if (< i n) (recur (inc i)) i)))");
+		FnProfile profile = profile(count);
+		assertEquals(100L, count.apply(100L));
+		// the running call stays analyzed
+		assertSame(FnProfile.Tier.ANALYZED, profile.tier());
+		assertEquals(100, profile.backEdges());
+
+		assertEquals(5L, count.apply(5L));
+		assertSame(FnProfile.Tier.COMPILED, profile.tier());
+	}
+
+	@Test
+	public void closuresShareTheProfileOfTheirForm() {
+		LispFunction adder = fn("(fn [n] (fn [x] (+ x n)))");
+		LispFunction add1 = (LispFunction) adder.apply(1L);
+		LispFunction add2 = (LispFunction) adder.apply(2L);
+		assertSame(profile(add1), profile(add2));
+		for (int i = 0; i < THRESHOLD; i++) {
+			add1.apply(0L);
+		}
+		assertSame(FnProfile.Tier.COMPILED, profile(add2).tier());
+		// each function keeps its own captured values on the compiled tier
+		assertEquals(11L, add1.apply(10L));
+		assertEquals(12L, add2.apply(10L));
+		assertEquals(13L, ((LispFunction) adder.apply(3L)).apply(10L));
+	}
+
+	@Test
+	public void multiArityFunctionsAreCompiled() {
+		LispFunction f = fn("(fn ([] :none) ([x] [x]) ([x & more] more))");
+		FnProfile profile = profile(f);
+		for (int i = 0; i < THRESHOLD; i++) {
+			f.apply();
+		}
+		assertSame(FnProfile.Tier.COMPILED, profile.tier());
+		assertEquals(read(":none"), f.apply());
+		assertEquals(read("[1]"), f.apply(1L));
+		assertEquals(read("(2 3)"), f.apply(1L, 2L, 3L));
+	}
+
+	@Test
+	public void functionWhichCantBeCompiledStaysAnalyzed() {
+		// too large for a single method
+		StringBuilder body = new StringBuilder("(fn [x] [");
+		for (int i = 0; i < 20_000; i++) {
+			body.append("(inc x) ");
+		}
+		LispFunction f = fn(body.append("])").toString());
+		FnProfile profile = profile(f);
+		for (int i = 0; i < THRESHOLD; i++) {
+			f.apply(1L);
+		}
+		assertSame(FnProfile.Tier.NOT_COMPILABLE, profile.tier());
+		assertEquals(1, transitions.size());
+		for (int i = 0; i < THRESHOLD; i++) {
+			assertEquals(20_000, ((List<?>) f.apply(1L)).size());
+		}
+		// there is no second attempt
+		assertEquals(1, transitions.size());
+	}
+
+	@Test
+	public void functionsAreNotProfiledWithoutTiers() {
+		FnProfile.setEnabled(false);
+		assertNull(profile(fn("(fn [x] x)")));
+	}
+}
@@ -0,0 +1,183 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.core.DirectLinking;
+import de.npcomplete.nplisp.core.Var;
+import de.npcomplete.nplisp.data.Symbol;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory.Fn1;
+import de.npcomplete.nplisp.function.SingleArityFunction;
+import de.npcomplete.nplisp.util.LispReader;
+
+public class FoldTest {
+	private Repl repl;
+
+	private boolean wasCompiler;
+	private boolean wasTiered;
+	private Consumer<String> handler;
+	private final List<String> warnings = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		wasCompiler = FnCompiler.isEnabled();
+		wasTiered = FnProfile.isEnabled();
+		handler = DirectLinking.getWarningHandler();
+		FnCompiler.setEnabled(false);
+		FnProfile.setEnabled(false);
+		DirectLinking.setWarningHandler(warnings::add);
+		// each test rebinds core vars, so it gets its own runtime
+		repl = new Repl(new Lisp(null));
+	}
+
+	@After
+	public void tearDown() {
+		FnCompiler.setEnabled(wasCompiler);
+		FnProfile.setEnabled(wasTiered);
+		DirectLinking.setWarningHandler(handler);
+	}
+
+	private void linking(DirectLinking mode) {
+		repl.currentNs().setDirectLinking(mode);
+	}
+
+	private Var coreVar(String name) {
+		return repl.currentNs().lookupVar(new Symbol("nplisp.core", name), false, false);
+	}
+
+	private LispFunction fn(String form) {
+		return repl.evalStr(form);
+	}
+
+	private static Object read(String form) {
+		return LispReader.readStr(form);
+	}
+
+	/**
+	 * Returns the analyzed body of the single arity function.
+	 */
+	private static Node body(LispFunction fn) {
+		try {
+			Field body = SingleArityFunction.class.getDeclaredField("body");
+			body.setAccessible(true);
+			return (Node) body.get(fn);
+		} catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Rebinds 'inc' to a function which counts its calls in the given array.
+	 */
+	private Var countingInc(int[] calls) {
+		Var inc = coreVar("inc");
+		inc.bind((Fn1) x -> {
+			calls[0]++;
+			return (Long) x + 1;
+		});
+		return inc;
+	}
+
+	@Test
+	public void callsAreNotFoldedWithoutDirectLinking() {
+		linking(DirectLinking.NONE);
+		int[] calls = new int[1];
+		Var inc = countingInc(calls);
+		LispFunction f = fn("(fn [] (inc 1))");
+		assertFalse(body(f) instanceof ConstantNode);
+		assertEquals(0, calls[0]);
+		assertEquals(2L, f.apply());
+		assertEquals(2L, f.apply());
+		assertEquals(2, calls[0]);
+		assertFalse(inc.isLinked());
+
+		// the call sees the rebinding
+		inc.bind((Fn1) x -> -1L);
+		assertEquals(-1L, f.apply());
+		assertTrue(warnings.isEmpty());
+	}
+
+	@Test
+	public void callsAreFoldedWithCoreLinking() {
+		linking(DirectLinking.CORE);
+		int[] calls = new int[1];
+		Var inc = countingInc(calls);
+		LispFunction f = fn("(fn [] (inc 1))");
+		assertTrue(body(f) instanceof ConstantNode);
+		// called once during the analysis, but never by the function
+		assertEquals(1, calls[0]);
+		assertEquals(2L, f.apply());
+		assertEquals(2L, f.apply());
+		assertEquals(1, calls[0]);
+		assertTrue(inc.isLinked());
+
+		inc.bind((Fn1) x -> -1L);
+		assertEquals(2L, f.apply());
+		assertEquals(1, warnings.size());
+	}
+
+	@Test
+	public void nestedConstantCallsAreFolded() {
+		linking(DirectLinking.CORE);
+		LispFunction f = fn("(fn [] (str (+ 1 2) (count [1 2 3]) (inc (* 2 3))))");
+		assertTrue(body(f) instanceof ConstantNode);
+		assertEquals("337", f.apply());
+		// calls with arguments which aren't constant stay calls
+		assertFalse(body(fn("(fn [x] (inc (+ 1 x)))")) instanceof ConstantNode);
+	}
+
+	@Test
+	public void callsWhichThrowAreNotFolded() {
+		linking(DirectLinking.CORE);
+		LispFunction f = fn("(fn [] (inc :a))");
+		assertFalse(body(f) instanceof ConstantNode);
+		try {
+			f.apply();
+			fail("inc of a keyword returned a value");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		LispFunction g = fn("(fn [] (/ 1 0))");
+		try {
+			g.apply();
+			fail("division by zero returned a value");
+		} catch (ArithmeticException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void constantIfTestsArePruned() {
+		linking(DirectLinking.NONE);
+		LispFunction t = fn("(fn [] (if true :then :else))");
+		assertTrue(body(t) instanceof ConstantNode);
+		assertEquals(read(":then"), t.apply());
+
+		LispFunction f = fn("(fn [x] (if nil :then x))");
+		assertTrue(body(f) instanceof LocalRefNode);
+		assertEquals(1L, f.apply(1L));
+
+		assertTrue(body(fn("(fn [] (if false :then))")) instanceof ConstantNode);
+		assertTrue(body(fn("(fn [x] (if x :then :else))")) instanceof IfNode);
+
+		// with folding, a constant call as test is pruned as well
+		linking(DirectLinking.CORE);
+		LispFunction folded = fn("(fn [x] (if (< 1 2) x :else))");
+		assertTrue(body(folded) instanceof LocalRefNode);
+		assertEquals(3L, folded.apply(3L));
+	}
+}
@@ -0,0 +1,141 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.util.LispReader;
+
+public class LiteralTest {
+	private static Repl repl;
+
+	private boolean wasAnalyzer;
+	private boolean wasCompiler;
+
+	@BeforeClass
+	public static void createLisp() {
+		repl = new Repl(new Lisp(null));
+	}
+
+	@Before
+	public void useAnalyzer() {
+		wasAnalyzer = Analyzer.isEnabled();
+		wasCompiler = FnCompiler.isEnabled();
+		Analyzer.setEnabled(true);
+		FnCompiler.setEnabled(false);
+	}
+
+	@After
+	public void restore() {
+		Analyzer.setEnabled(wasAnalyzer);
+		FnCompiler.setEnabled(wasCompiler);
+	}
+
+	private static LispFunction fn(String form) {
+		return repl.evalStr(form);
+	}
+
+	private static Object read(String form) {
+		return LispReader.readStr(form);
+	}
+
+	private static void assertShared(String literal) {
+		LispFunction f = fn("(fn [] " + literal + ")");
+		Object first = f.apply();
+		assertEquals(read(literal), first);
+		assertSame(first, f.apply());
+	}
+
+	@Test
+	public void constantLiteralsAreShared() {
+		assertShared("[1 2 3]");
+		assertShared("#{:a :b}");
+		assertShared("{:a 1 :b \"two\"}");
+		assertShared("[]");
+		assertShared("{}");
+
+		// quoted forms are constants as well
+		LispFunction quoted = fn("(fn [] ['a (quote (1 2))])");
+		assertEquals(read("[a (1 2)]"), quoted.apply());
+		assertSame(quoted.apply(), quoted.apply());
+	}
+
+	@Test
+	public void nestedConstantLiteralsAreShared() {
+		LispFunction f = fn("(fn [] {:config {:size [1 2] :names #{\"a\"}}})");
+		Map<?, ?> outer = (Map<?, ?>) f.apply();
+		assertSame(outer, f.apply());
+		assertEquals(read("{:size [1 2] :names #{\"a\"}}"), outer.get(read(":config")));
+	}
+
+	@Test
+	public void literalsWithLocalsAreBuiltPerCall() {
+		LispFunction f = fn("(fn [x] [1 x])");
+		Object a = f.apply(2L);
+		Object b = f.apply(2L);
+		assertEquals(a, b);
+		assertNotSame(a, b);
+		assertEquals(read("[1 3]"), f.apply(3L));
+
+		// the constant part of a literal is still shared
+		LispFunction g = fn("(fn [x] [x [1 2]])");
+		assertSame(((List<?>) g.apply(1L)).get(1), ((List<?>) g.apply(2L)).get(1));
+	}
+
+	@Test
+	public void sharedLiteralsCanNotBeModified() {
+		@SuppressWarnings("unchecked")
+		List<Object> vector = (List<Object>) fn("(fn [] [1 2])").apply();
+		@SuppressWarnings("unchecked")
+		Set<Object> set = (Set<Object>) fn("(fn [] #{1 2})").apply();
+		@SuppressWarnings("unchecked")
+		Map<Object, Object> map = (Map<Object, Object>) fn("(fn [] {1 2})").apply();
+		try {
+			vector.add(3L);
+			fail("shared vector was modified");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			set.add(3L);
+			fail("shared set was modified");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			map.put(3L, 4L);
+			fail("shared map was modified");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		// operations of the language return new collections
+		assertEquals(read("[1 2 3]"), repl.evalStr("(conj ((fn [] [1 2])) 3)"));
+	}
+
+	@Test
+	public void duplicateKeysAreReportedWhenEvaluated() {
+		// the reader can't see the duplicate, so the literal is analyzed, but not built
+		LispFunction f = fn("(fn [] {:a 1 (quote :a) 2})");
+		try {
+			f.apply();
+			fail("map with duplicate keys was created");
+		} catch (LispException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("duplicate key"));
+		}
+	}
+}
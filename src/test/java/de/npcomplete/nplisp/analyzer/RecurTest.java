@@ -0,0 +1,121 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.compiler.CompiledFunction;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.util.LispReader;
+
+public class RecurTest {
+	private static Repl repl;
+
+	private boolean wasAnalyzer;
+	private boolean wasCompiler;
+
+	@BeforeClass
+	public static void createLisp() {
+		repl = new Repl(new Lisp(null));
+	}
+
+	@Before
+	public void useAnalyzer() {
+		wasAnalyzer = Analyzer.isEnabled();
+		wasCompiler = FnCompiler.isEnabled();
+		Analyzer.setEnabled(true);
+		FnCompiler.setEnabled(false);
+	}
+
+	@After
+	public void restore() {
+		Analyzer.setEnabled(wasAnalyzer);
+		FnCompiler.setEnabled(wasCompiler);
+	}
+
+	private static LispFunction analyzed(String form) {
+		Object fn = repl.evalStr(form);
+		assertTrue(fn instanceof LispFunction);
+		assertFalse(fn instanceof CompiledFunction);
+		return (LispFunction) fn;
+	}
+
+	private static Object eval(String form) {
+		return repl.evalStr(form);
+	}
+
+	private static Object read(String form) {
+		return LispReader.readStr(form);
+	}
+
+	private static void assertArityMismatch(String form) {
+		try {
+			eval(form);
+			fail("no arity mismatch for " + form);
+		} catch (LispException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("'recur' did not match required arity"));
+		}
+	}
+
+	@Test
+	public void arityMismatchIsRaisedWhenTheFunctionIsCreated() {
+		// neither function is ever called
+		assertArityMismatch("(fn [a b] (recur 1))");
+		assertArityMismatch("(fn [a] (recur 1 2))");
+		assertArityMismatch("(fn ([] 1) ([a b] (if a (recur 1) b)))");
+		assertArityMismatch("(fn [] (fn [a] (recur)))");
+		// a variadic function takes its rest parameter as one value
+		assertArityMismatch("(fn [a & more] (recur 1 2 3))");
+	}
+
+	@Test
+	public void arityMismatchIsRaisedWhenTheLoopIsAnalyzed() {
+		assertArityMismatch("(fn [] (loop [a 1 b 2] (recur 1)))");
+		assertArityMismatch("(fn [x] (loop [a 1] (if a (recur 1 2) x)))");
+		// the inner loop is the target, not the function
+		assertArityMismatch("(fn [a b] (loop [c 1] (recur a b)))");
+	}
+
+	@Test
+	public void recurInVariadicFunction() {
+		LispFunction sum = analyzed("(fn [acc & xs] (if xs (recur (+ acc (first xs)) (next xs)) acc))");
+		assertEquals(15L, sum.apply(0L, 1L, 2L, 3L, 4L, 5L));
+		assertEquals(0L, sum.apply(0L));
+
+		LispFunction multi = analyzed("(fn ([] :none) ([n & xs] (if xs (recur (inc n) (next xs)) n)))");
+		assertEquals(read(":none"), multi.apply());
+		assertEquals(4L, multi.apply(0L, "a", "b", "c", "d"));
+	}
+
+	@Test
+	public void recurValuesCanSwapSlots() {
+		LispFunction swap = analyzed("(fn [a b n] (if (= n 0) [a b] (recur b a (dec n))))");
+		assertEquals(read("[2 1]"), swap.apply(1L, 2L, 3L));
+		assertEquals(read("[1 2]"), swap.apply(1L, 2L, 4L));
+
+		assertEquals(read("[:c :a :b]"), eval("(loop [a :a b :b c :c n 2] (if (= n 0) [a b c] (recur b c a (dec n))))"));
+		assertEquals(55L, eval("(loop [a 0 b 1 n 10] (if (= n 0) a (recur b (+ a b) (dec n))))"));
+	}
+
+	@Test
+	public void recurWithOneValue() {
+		assertEquals(0L, eval("(loop [n 100000] (if (= n 0) n (recur (dec n))))"));
+		LispFunction countdown = analyzed("(fn [n] (if (= n 0) :done (recur (dec n))))");
+		assertEquals(read(":done"), countdown.apply(100000L));
+	}
+
+	@Test
+	public void nestedLoopsKeepTheirOwnSlots() {
+		assertEquals(read("[3 6]"), eval("(loop [i 0 total 0] (if (< i 3) "
+				+ "(recur (inc i) (loop [j 0 t total] (if (< j i) (recur (inc j) (inc t)) (+ t 1)))) [i total]))"));
+	}
+}
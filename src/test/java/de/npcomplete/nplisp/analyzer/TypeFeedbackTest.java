@@ -0,0 +1,181 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.core.DirectLinking;
+import de.npcomplete.nplisp.core.Var;
+import de.npcomplete.nplisp.data.Symbol;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory.Fn2;
+import de.npcomplete.nplisp.function.SingleArityFunction;
+import de.npcomplete.nplisp.util.LispReader;
+
+public class TypeFeedbackTest {
+	private Repl repl;
+
+	private boolean wasEnabled;
+	private boolean wasCompiler;
+	private boolean wasTiered;
+
+	@Before
+	public void setUp() {
+		wasEnabled = TypeFeedback.isEnabled();
+		wasCompiler = FnCompiler.isEnabled();
+		wasTiered = FnProfile.isEnabled();
+		TypeFeedback.setEnabled(true);
+		FnCompiler.setEnabled(false);
+		FnProfile.setEnabled(false);
+		// some tests rebind core vars, so each test gets its own runtime
+		repl = new Repl(new Lisp(null));
+		repl.currentNs().setDirectLinking(DirectLinking.NONE);
+	}
+
+	@After
+	public void tearDown() {
+		TypeFeedback.setEnabled(wasEnabled);
+		FnCompiler.setEnabled(wasCompiler);
+		FnProfile.setEnabled(wasTiered);
+	}
+
+	private LispFunction fn(String form) {
+		return repl.evalStr(form);
+	}
+
+	private static Object read(String form) {
+		return LispReader.readStr(form);
+	}
+
+	/**
+	 * Returns the analyzed body of the single arity function.
+	 */
+	private static Node body(LispFunction fn) {
+		try {
+			Field body = SingleArityFunction.class.getDeclaredField("body");
+			body.setAccessible(true);
+			return (Node) body.get(fn);
+		} catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Returns the specialized call site which is the body of the function.
+	 */
+	private static NumericNode site(LispFunction fn) {
+		Node body = body(fn);
+		assertTrue(String.valueOf(body), body instanceof NumericNode);
+		return (NumericNode) body;
+	}
+
+	@Test
+	public void siteSpecializesForLongs() {
+		LispFunction add = fn("(fn [a b] (+ a b))");
+		NumericNode site = site(add);
+		assertSame(NumericNode.State.UNSEEN, site.state());
+		assertEquals(3L, add.apply(1L, 2L));
+		assertSame(NumericNode.State.LONG, site.state());
+		assertEquals(-1L, add.apply(1L, -2L));
+		assertSame(NumericNode.State.LONG, site.state());
+
+		// the specialized path throws on overflow like the generic one
+		try {
+			add.apply(Long.MAX_VALUE, 1L);
+			fail("overflow was not detected");
+		} catch (ArithmeticException e) {
+			// expected
+		}
+		assertSame(NumericNode.State.LONG, site.state());
+	}
+
+	@Test
+	public void siteSpecializesForDoubles() {
+		LispFunction less = fn("(fn [a b] (< a b))");
+		NumericNode site = site(less);
+		assertEquals(true, less.apply(1.0, 2.0));
+		assertSame(NumericNode.State.DOUBLE, site.state());
+		assertEquals(false, less.apply(Double.NaN, 2.0));
+		assertSame(NumericNode.State.DOUBLE, site.state());
+
+		LispFunction zero = fn("(fn [x] (zero? x))");
+		assertEquals(true, zero.apply(-0.0));
+		assertSame(NumericNode.State.DOUBLE, site(zero).state());
+	}
+
+	@Test
+	public void otherTypesMakeTheSiteMegamorphic() {
+		LispFunction add = fn("(fn [a b] (+ a b))");
+		NumericNode site = site(add);
+		assertEquals(3L, add.apply(1L, 2L));
+		// the guard fails, so the generic function computes the result
+		assertEquals(3.5, add.apply(1L, 2.5));
+		assertSame(NumericNode.State.MEGAMORPHIC, site.state());
+		// and keeps doing so, even for longs
+		assertEquals(3L, add.apply(1L, 2L));
+		assertSame(NumericNode.State.MEGAMORPHIC, site.state());
+
+		// mixed arguments in the first call skip the specialization
+		LispFunction mixed = fn("(fn [a b] (* a b))");
+		assertEquals(5.0, mixed.apply(2L, 2.5));
+		assertSame(NumericNode.State.MEGAMORPHIC, site(mixed).state());
+
+		// = compares by type, which the fallback preserves
+		LispFunction equiv = fn("(fn [a b] (= a b))");
+		assertEquals(true, equiv.apply(1L, 1L));
+		assertEquals(false, equiv.apply(1L, 1.0));
+		assertEquals(true, equiv.apply(read(":a"), read(":a")));
+		assertSame(NumericNode.State.MEGAMORPHIC, site(equiv).state());
+	}
+
+	@Test
+	public void reboundVarIsCalledAfterSpecialization() {
+		Var plus = repl.currentNs().lookupVar(new Symbol("nplisp.core", "+"), false, false);
+		LispFunction add = fn("(fn [a b] (+ a b))");
+		NumericNode site = site(add);
+		assertEquals(3L, add.apply(1L, 2L));
+		assertSame(NumericNode.State.LONG, site.state());
+
+		plus.bind((Fn2) (a, b) -> "rebound");
+		assertEquals("rebound", add.apply(1L, 2L));
+		// the site keeps its state for when the original function comes back
+		assertSame(NumericNode.State.LONG, site.state());
+
+		// calls analyzed while the var is rebound aren't specialized
+		LispFunction later = fn("(fn [a b] (+ a b))");
+		assertFalse(body(later) instanceof NumericNode);
+		assertEquals("rebound", later.apply(1L, 2L));
+	}
+
+	@Test
+	public void sitesAreInspectable() {
+		LispFunction dec = fn("(fn [typeFeedbackTestLocal] (dec typeFeedbackTestLocal))");
+		dec.apply(1L);
+		boolean found = false;
+		for (String site : TypeFeedback.sites()) {
+			if (site.contains("typeFeedbackTestLocal")) {
+				assertEquals("(dec typeFeedbackTestLocal): LONG", site);
+				found = true;
+			}
+		}
+		assertTrue(found);
+	}
+
+	@Test
+	public void callsAreNotSpecializedWhenDisabled() {
+		TypeFeedback.setEnabled(false);
+		LispFunction add = fn("(fn [a b] (+ a b))");
+		assertFalse(body(add) instanceof NumericNode);
+		assertEquals(3L, add.apply(1L, 2L));
+	}
+}
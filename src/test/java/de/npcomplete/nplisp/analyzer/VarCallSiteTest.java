@@ -0,0 +1,115 @@
+package de.npcomplete.nplisp.analyzer;
+
+import static de.npcomplete.nplisp.analyzer.FnCompilerTest.assertCompiled;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.core.DirectLinking;
+import de.npcomplete.nplisp.core.Namespace;
+import de.npcomplete.nplisp.core.Var;
+import de.npcomplete.nplisp.data.ArraySequence;
+import de.npcomplete.nplisp.data.Symbol;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory.Fn1;
+import de.npcomplete.nplisp.util.LispReader;
+
+public class VarCallSiteTest {
+	private Lisp lisp;
+	private Repl repl;
+
+	private boolean wasEnabled;
+	private boolean wasInvokeDynamic;
+
+	@Before
+	public void setUp() {
+		wasEnabled = FnCompiler.isEnabled();
+		wasInvokeDynamic = FnCompiler.isInvokeDynamic();
+		FnCompiler.setEnabled(true);
+		FnCompiler.setInvokeDynamic(true);
+		// each test changes the mappings of its namespace, so it gets its own runtime
+		lisp = new Lisp(null);
+		repl = new Repl(lisp);
+		repl.currentNs().setDirectLinking(DirectLinking.NONE);
+	}
+
+	@After
+	public void tearDown() {
+		FnCompiler.setEnabled(wasEnabled);
+		FnCompiler.setInvokeDynamic(wasInvokeDynamic);
+	}
+
+	private LispFunction compiled(String form) {
+		Object fn = repl.evalStr(form);
+		assertCompiled(fn);
+		return (LispFunction) fn;
+	}
+
+	private static Object read(String form) {
+		return LispReader.readStr(form);
+	}
+
+	@Test
+	public void relinksAfterDefOfTheVar() {
+		repl.evalStr("(def greet (fn ([x] [:old x]) ([a b c d e] [:old e])))");
+		LispFunction caller = compiled("(fn [x] [(greet x) (greet x x x x x)])");
+		LispFunction singleCall = compiled("(fn [x] (greet x))");
+		assertEquals(read("[[:old 1] [:old 1]]"), caller.apply(1L));
+		assertEquals(read("[:old 1]"), singleCall.apply(1L));
+		// a second call uses the linked target
+		assertEquals(read("[[:old 2] [:old 2]]"), caller.apply(2L));
+
+		Var var = repl.evalStr("(def greet (fn ([x] [:new x]) ([a b c d e] [:new e])))");
+		assertEquals(read("[[:new 1] [:new 1]]"), caller.apply(1L));
+
+		// binding the var from Java relinks the call sites as well
+		var.bind((Fn1) x -> "bound");
+		assertEquals("bound", singleCall.apply(1L));
+		try {
+			caller.apply(1L);
+			fail("5 argument call of a single arity function was accepted");
+		} catch (LispException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void relinksWhenAReferShadowsACoreVar() {
+		LispFunction caller = compiled("(fn [x] (str x))");
+		assertEquals("1", caller.apply(1L));
+
+		Namespace other = lisp.namespaces.getOrCreateNamespace("other");
+		Symbol str = new Symbol("str");
+		other.define(str).bind((Fn1) x -> "referred");
+		repl.currentNs().referFrom(other, new ArraySequence(str));
+		assertEquals("referred", caller.apply(1L));
+
+		// a var of the namespace itself shadows the referred one
+		repl.evalStr("(def str (fn [x] \"own\"))");
+		assertEquals("own", caller.apply(1L));
+	}
+
+	@Test
+	public void relinksWhenTheVarBecomesAMacroAndBack() {
+		Var var = repl.evalStr("(def twice (fn [x] [x x]))");
+		LispFunction caller = compiled("(fn [x] (twice x))");
+		assertEquals(read("[1 1]"), caller.apply(1L));
+
+		var.macro(true);
+		try {
+			caller.apply(1L);
+			fail("compiled code called a macro");
+		} catch (LispException e) {
+			// expected
+		}
+
+		var.macro(false);
+		assertEquals(read("[2 2]"), caller.apply(2L));
+	}
+}
@@ -0,0 +1,115 @@
+package de.npcomplete.nplisp.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.analyzer.FnCompiler;
+import de.npcomplete.nplisp.analyzer.FnProfile;
+import de.npcomplete.nplisp.util.ThreadLocalFlag;
+
+public class DeepRecursionTest {
+	private Repl repl;
+
+	private boolean wasEnabled;
+	private boolean wasCompiler;
+	private boolean wasTiered;
+	private int threshold;
+
+	@Before
+	public void setUp() {
+		wasEnabled = DeepRecursion.isEnabled();
+		wasCompiler = FnCompiler.isEnabled();
+		wasTiered = FnProfile.isEnabled();
+		threshold = FnProfile.getThreshold();
+		DeepRecursion.setEnabled(true);
+		repl = new Repl(new Lisp(null));
+		repl.evalStr("(defn deep [n] (if (= n 0) 0 (inc (deep (dec n)))))");
+	}
+
+	@After
+	public void tearDown() {
+		DeepRecursion.setEnabled(wasEnabled);
+		FnCompiler.setEnabled(wasCompiler);
+		FnProfile.setEnabled(wasTiered);
+		FnProfile.setThreshold(threshold);
+	}
+
+	private Object eval(String form) {
+		return repl.evalStr(form);
+	}
+
+	@Test
+	public void recursionDeeperThanTheStack() {
+		assertEquals(100000L, eval("(deep 100000)"));
+
+		// the second run reuses the segments of the first one
+		long started = DeepRecursion.segmentsStarted();
+		assertEquals(100000L, eval("(deep 100000)"));
+		assertEquals(started, DeepRecursion.segmentsStarted());
+	}
+
+	@Test
+	public void callsAtTheSwitchDepthDontSwitchEveryTime() {
+		// calls 'f' 1000 times at the given depth, where each call nests 4 more levels
+		repl.evalStr("(defn at-depth [d f] (if (= d 0) (loop [i 0] (if (< i 1000) (do (f) (recur (inc i))) i)) "
+				+ "(inc (at-depth (dec d) f))))");
+		repl.evalStr("(defn nest [] (deep 4))");
+		for (int depth = DeepRecursion.RESET_DEPTH; depth <= DeepRecursion.SEGMENT_DEPTH + 8; depth++) {
+			long before = DeepRecursion.switches();
+			assertEquals(1000L + depth, eval("(at-depth " + depth + " nest)"));
+			long switched = DeepRecursion.switches() - before;
+			assertTrue(switched + " segment switches at depth " + depth, switched <= 4);
+		}
+	}
+
+	@Test
+	public void exceptionsAreRethrownFromSegments() {
+		repl.evalStr("(defn fail-deep [n] (if (= n 0) (inc :bottom) (inc (fail-deep (dec n)))))");
+		try {
+			repl.evalStr("(fail-deep 5000)");
+			fail("the error at the bottom of the recursion was lost");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		// the depth of the thread is back to normal afterwards
+		assertEquals(1000L, eval("(deep 1000)"));
+	}
+
+	@Test
+	public void threadLocalFlagsAreCarriedIntoSegments() {
+		ThreadLocalFlag flag = new ThreadLocalFlag();
+		flag.set();
+		assertTrue((Boolean) DeepRecursion.inNewSegment(() -> {
+			boolean set = flag.isSet();
+			flag.unset();
+			return set;
+		}));
+		// the change in the segment is carried back
+		assertFalse(flag.isSet());
+		assertFalse((Boolean) DeepRecursion.inNewSegment(flag::isSet));
+	}
+
+	@Test
+	public void compiledFunctionsAreNotCompiledInThisMode() {
+		FnCompiler.setEnabled(true);
+		repl.evalStr("(defn deep-compiled [n] (if (= n 0) 0 (inc (deep-compiled (dec n)))))");
+		assertEquals(100000L, eval("(deep-compiled 100000)"));
+	}
+
+	@Test
+	public void hotFunctionsAreNotCompiledInThisMode() {
+		FnProfile.setEnabled(true);
+		FnProfile.setThreshold(10);
+		repl.evalStr("(defn deep-tiered [n] (if (= n 0) 0 (inc (deep-tiered (dec n)))))");
+		assertEquals(100L, eval("(deep-tiered 100)"));
+		assertEquals(100000L, eval("(deep-tiered 100000)"));
+	}
+}
@@ -0,0 +1,144 @@
+package de.npcomplete.nplisp.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.data.Symbol;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory.Fn1;
+
+public class DirectLinkingTest {
+	private Lisp lisp;
+	private Repl repl;
+
+	private DirectLinking defaultMode;
+	private Consumer<String> handler;
+	private final List<String> warnings = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		defaultMode = DirectLinking.getDefault();
+		handler = DirectLinking.getWarningHandler();
+		DirectLinking.setDefault(DirectLinking.NONE);
+		DirectLinking.setWarningHandler(warnings::add);
+		// each test rebinds vars, so it gets its own runtime
+		lisp = new Lisp(null);
+		repl = new Repl(lisp);
+	}
+
+	@After
+	public void tearDown() {
+		DirectLinking.setDefault(defaultMode);
+		DirectLinking.setWarningHandler(handler);
+	}
+
+	private Var coreVar(String name) {
+		return repl.currentNs().lookupVar(new Symbol("nplisp.core", name), false, false);
+	}
+
+	private Object eval(String form) {
+		return repl.evalStr(form);
+	}
+
+	@Test
+	public void coreVarsAreLinkedAsConstants() {
+		repl.currentNs().setDirectLinking(DirectLinking.CORE);
+		Var str = coreVar("str");
+		Object original = str.deref();
+		LispFunction getStr = repl.evalStr("(fn [] str)");
+		LispFunction callStr = repl.evalStr("(fn [x] (str x))");
+		assertTrue(str.isLinked());
+		assertSame(original, getStr.apply());
+
+		str.bind((Fn1) x -> "rebound");
+		// the functions keep using the value they were analyzed with
+		assertSame(original, getStr.apply());
+		assertEquals("1", callStr.apply(1L));
+		assertEquals(1, warnings.size());
+		assertTrue(warnings.get(0), warnings.get(0).contains("nplisp.core/str") && warnings.get(0).contains("rebound"));
+
+		// functions analyzed afterwards see the new value
+		assertEquals("rebound", eval("((fn [x] (str x)) 1)"));
+	}
+
+	@Test
+	public void nothingIsLinkedWithoutDirectLinking() {
+		Var str = coreVar("str");
+		LispFunction callStr = repl.evalStr("(fn [x] (str x))");
+		assertFalse(str.isLinked());
+		str.bind((Fn1) x -> "rebound");
+		assertEquals("rebound", callStr.apply(1L));
+		assertTrue(warnings.isEmpty());
+	}
+
+	@Test
+	public void fixedModeOnlyLinksFixedVars() {
+		Namespace ns = repl.currentNs();
+		ns.setDirectLinking(DirectLinking.FIXED);
+		Var fixed = ns.define(new Symbol("fixed")).bind("value").markFixed();
+		Var plain = ns.define(new Symbol("plain")).bind("value");
+		LispFunction f = repl.evalStr("(fn [] [fixed plain str])");
+		assertEquals(3, ((List<?>) f.apply()).size());
+		assertTrue(fixed.isLinked());
+		assertFalse(plain.isLinked());
+		assertFalse(coreVar("str").isLinked());
+	}
+
+	@Test
+	public void shadowingALinkedVarWarns() {
+		repl.currentNs().setDirectLinking(DirectLinking.CORE);
+		LispFunction callInc = repl.evalStr("(fn [x] (inc x))");
+		eval("(def inc (fn [x] :own))");
+		assertEquals(1, warnings.size());
+		assertTrue(warnings.get(0), warnings.get(0).contains("nplisp.core/inc") && warnings.get(0).contains("shadowed"));
+		// the linked function keeps calling the core var
+		assertEquals(2L, callInc.apply(1L));
+
+		// vars which aren't linked are shadowed silently
+		eval("(def dec (fn [x] :own))");
+		assertEquals(1, warnings.size());
+	}
+
+	@Test
+	public void namespaceOverridesTheDefault() {
+		Namespace user = repl.currentNs();
+		Namespace other = lisp.namespaces.getOrCreateNamespace("other");
+		assertSame(DirectLinking.NONE, user.directLinking());
+
+		user.setDirectLinking(DirectLinking.CORE);
+		DirectLinking.setDefault(DirectLinking.FIXED);
+		assertSame(DirectLinking.CORE, user.directLinking());
+		assertSame(DirectLinking.FIXED, other.directLinking());
+
+		repl.evalStr("(fn [] (str 1))");
+		assertTrue(coreVar("str").isLinked());
+		assertFalse(coreVar("vector").isLinked());
+		eval("(in-ns 'other)");
+		repl.evalStr("(fn [] (nplisp.core/vector 1))");
+		assertFalse(coreVar("vector").isLinked());
+
+		user.setDirectLinking(null);
+		assertSame(DirectLinking.FIXED, user.directLinking());
+	}
+
+	@Test
+	public void defaultHandlerIsRestoredWithNull() {
+		DirectLinking.setWarningHandler(null);
+		assertTrue(DirectLinking.getWarningHandler() != null);
+		DirectLinking.setWarningHandler(warnings::add);
+		DirectLinking.warn("message");
+		assertEquals("message", warnings.get(0));
+	}
+}
@@ -0,0 +1,248 @@
+package de.npcomplete.nplisp.corelibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.data.ArraySequence;
+import de.npcomplete.nplisp.function.LispFunction;
+
+public class NumbersTest {
+	private static Repl repl;
+
+	@BeforeClass
+	public static void createLisp() {
+		repl = new Repl(new Lisp(null));
+	}
+
+	private static Object eval(String form) {
+		return repl.evalStr(form);
+	}
+
+	private static void assertThrows(Class<? extends Throwable> type, Runnable code) {
+		try {
+			code.run();
+			fail("no " + type.getSimpleName() + " was thrown");
+		} catch (RuntimeException e) {
+			if (!type.isInstance(e)) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Checks the result of all ways to call the function with the arguments:
+	 * the fixed arity, apply with an argument array, and apply with a sequence.
+	 */
+	private static void assertResult(Object expected, LispFunction fn, Object... args) {
+		Object fixed;
+		switch (args.length) {
+			case 0:
+				fixed = fn.apply();
+				break;
+			case 1:
+				fixed = fn.apply(args[0]);
+				break;
+			case 2:
+				fixed = fn.apply(args[0], args[1]);
+				break;
+			case 3:
+				fixed = fn.apply(args[0], args[1], args[2]);
+				break;
+			default:
+				Object[] more = new Object[args.length - 3];
+				System.arraycopy(args, 3, more, 0, more.length);
+				fixed = fn.apply(args[0], args[1], args[2], more);
+		}
+		assertEquals(expected, fixed);
+		assertEquals(expected, fn.applyTo(args.length > 0 ? new ArraySequence(args) : null));
+	}
+
+	@Test
+	public void addition() {
+		assertResult(0L, Numbers.FN_ADD);
+		assertResult(5L, Numbers.FN_ADD, 5L);
+		assertResult(3L, Numbers.FN_ADD, 1L, 2L);
+		assertResult(6L, Numbers.FN_ADD, 1L, 2L, 3L);
+		assertResult(10L, Numbers.FN_ADD, 1L, 2L, 3L, 4L);
+		assertResult(15L, Numbers.FN_ADD, 1L, 2L, 3L, 4L, 5L);
+
+		assertResult(2.5, Numbers.FN_ADD, 1L, 1.5);
+		assertResult(3.5, Numbers.FN_ADD, 1L, 1.5, 1L);
+		assertResult(5.5, Numbers.FN_ADD, 1L, 2L, 1.5, 1L);
+		// integers of other types are widened to long
+		assertResult(3L, Numbers.FN_ADD, 1, 2L);
+	}
+
+	@Test
+	public void subtraction() {
+		assertThrows(LispException.class, () -> Numbers.FN_SUBTRACT.apply());
+		assertResult(-5L, Numbers.FN_SUBTRACT, 5L);
+		assertResult(-1.5, Numbers.FN_SUBTRACT, 1.5);
+		assertResult(-1L, Numbers.FN_SUBTRACT, 1L, 2L);
+		assertResult(-4L, Numbers.FN_SUBTRACT, 1L, 2L, 3L);
+		assertResult(-8L, Numbers.FN_SUBTRACT, 1L, 2L, 3L, 4L);
+		assertResult(-0.5, Numbers.FN_SUBTRACT, 1L, 1.5);
+		assertResult(-3.5, Numbers.FN_SUBTRACT, 1L, 1.5, 1L, 2L);
+	}
+
+	@Test
+	public void multiplication() {
+		assertResult(1L, Numbers.FN_MULTIPLY);
+		assertResult(5L, Numbers.FN_MULTIPLY, 5L);
+		assertResult(6L, Numbers.FN_MULTIPLY, 2L, 3L);
+		assertResult(24L, Numbers.FN_MULTIPLY, 2L, 3L, 4L);
+		assertResult(120L, Numbers.FN_MULTIPLY, 2L, 3L, 4L, 5L);
+		assertResult(3.0, Numbers.FN_MULTIPLY, 2L, 1.5);
+		assertResult(6.0, Numbers.FN_MULTIPLY, 2L, 1.5, 2L, 1L);
+	}
+
+	@Test
+	public void overflowThrows() {
+		assertThrows(ArithmeticException.class, () -> Numbers.FN_ADD.apply(Long.MAX_VALUE, 1L));
+		assertThrows(ArithmeticException.class, () -> Numbers.FN_ADD.apply(1L, 1L, Long.MAX_VALUE));
+		assertThrows(ArithmeticException.class, () -> Numbers.FN_ADD.apply(Long.MAX_VALUE, 0L, 0L, 1L));
+		assertThrows(ArithmeticException.class, () -> Numbers.FN_SUBTRACT.apply(Long.MIN_VALUE, 1L));
+		assertThrows(ArithmeticException.class, () -> Numbers.FN_SUBTRACT.apply(Long.MIN_VALUE));
+		assertThrows(ArithmeticException.class, () -> Numbers.FN_MULTIPLY.apply(Long.MAX_VALUE, 2L));
+		assertThrows(ArithmeticException.class,
+				() -> Numbers.FN_MULTIPLY.applyTo(new ArraySequence(1L << 32, 1L, 1L << 32)));
+		assertThrows(ArithmeticException.class, () -> Numbers.inc(Long.MAX_VALUE));
+		assertThrows(ArithmeticException.class, () -> Numbers.dec(Long.MIN_VALUE));
+		assertThrows(ArithmeticException.class, () -> eval("(+ 9223372036854775807 1)"));
+		assertThrows(ArithmeticException.class, () -> eval("((fn [x] (* x x)) 4294967296)"));
+		assertThrows(ArithmeticException.class, () -> eval("(apply + (vector-of :long 9223372036854775807 1))"));
+		assertThrows(ArithmeticException.class, () -> eval("(apply * (vector-of :long 4294967296 4294967296))"));
+
+		// doubles don't overflow
+		assertEquals(Double.POSITIVE_INFINITY, Numbers.FN_MULTIPLY.apply(Double.MAX_VALUE, 2L));
+		assertEquals(Long.MAX_VALUE + 1.0, Numbers.FN_ADD.apply(Long.MAX_VALUE, 1.0));
+	}
+
+	@Test
+	public void exactDivisionReturnsALong() {
+		assertResult(2L, Numbers.FN_DIVIDE, 6L, 3L);
+		assertResult(1L, Numbers.FN_DIVIDE, 12L, 3L, 4L);
+		assertResult(-1L, Numbers.FN_DIVIDE, 24L, 2L, 3L, -4L);
+		assertEquals(3L, eval("(/ 9 3)"));
+	}
+
+	@Test
+	public void inexactDivisionReturnsADouble() {
+		assertResult(2.5, Numbers.FN_DIVIDE, 5L, 2L);
+		assertResult(0.25, Numbers.FN_DIVIDE, 4L);
+		assertResult(2.0, Numbers.FN_DIVIDE, 6.0, 3L);
+		assertResult(0.5, Numbers.FN_DIVIDE, 6L, 3L, 4L);
+		// the remainder of an earlier step keeps the result a double
+		assertResult(1.25, Numbers.FN_DIVIDE, 5L, 2L, 2L);
+		assertResult(9.223372036854775808E18, Numbers.FN_DIVIDE, Long.MIN_VALUE, -1L);
+		assertEquals(2.5, eval("(/ 5 2)"));
+	}
+
+	@Test
+	public void divisionByZeroThrows() {
+		assertThrows(LispException.class, () -> Numbers.FN_DIVIDE.apply());
+		assertThrows(ArithmeticException.class, () -> Numbers.FN_DIVIDE.apply(1L, 0L));
+		assertThrows(ArithmeticException.class, () -> Numbers.FN_DIVIDE.apply(1.0, 0.0));
+		assertThrows(ArithmeticException.class, () -> Numbers.FN_DIVIDE.apply(1L, 1L, 0L));
+		assertThrows(ArithmeticException.class, () -> eval("(/ 1 0)"));
+	}
+
+	@Test
+	public void nonNumbersAreRejected() {
+		assertThrows(LispException.class, () -> Numbers.FN_ADD.apply(1L, "2"));
+		assertThrows(LispException.class, () -> Numbers.FN_MULTIPLY.apply(null, 2L));
+	}
+
+	@Test
+	public void equalityDependsOnTheType() {
+		assertEquals(false, eval("(= 1 1.0)"));
+		assertEquals(true, eval("(== 1 1.0)"));
+		assertEquals(true, eval("(= 1 1)"));
+		assertEquals(true, eval("(= [1] [1])"));
+		assertEquals(false, eval("(= [1] [1.0])"));
+		assertEquals(true, eval("(= {:a [1]} {:a [1]})"));
+		assertEquals(true, eval("(= nil nil)"));
+		assertEquals(false, eval("(= nil 1)"));
+		assertEquals(false, eval("(= 1 nil)"));
+		assertEquals(true, eval("(= \"a\" \"a\")"));
+		// an Integer from Java is equal to a long with ==, but not with =
+		assertEquals(false, Numbers.FN_EQUIV.apply(1, 1L));
+		assertEquals(true, Numbers.FN_NUM_EQUALS.apply(1, 1L));
+		assertThrows(LispException.class, () -> Numbers.FN_NUM_EQUALS.apply(1L, "1"));
+	}
+
+	@Test
+	public void nanIsNotNumericallyEqualToItself() {
+		Double nan = Double.NaN;
+		assertEquals(false, Numbers.FN_NUM_EQUALS.apply(nan, nan));
+		assertEquals(false, Numbers.FN_LESS.apply(nan, 1L));
+		assertEquals(false, Numbers.FN_GREATER.apply(nan, 1L));
+		assertEquals(false, Numbers.FN_LESS_OR_EQUAL.apply(nan, nan));
+		assertEquals(false, Numbers.FN_GREATER_OR_EQUAL.apply(1L, nan));
+		// = compares like Double.equals
+		assertEquals(true, Numbers.FN_EQUIV.apply(nan, Double.NaN));
+		assertEquals(false, Numbers.FN_EQUIV.apply(0.0, -0.0));
+		assertEquals(true, Numbers.FN_NUM_EQUALS.apply(0.0, -0.0));
+	}
+
+	@Test
+	public void comparisonArities() {
+		for (LispFunction fn : new LispFunction[] {Numbers.FN_LESS, Numbers.FN_GREATER, Numbers.FN_LESS_OR_EQUAL,
+				Numbers.FN_GREATER_OR_EQUAL, Numbers.FN_EQUIV, Numbers.FN_NUM_EQUALS}) {
+			assertThrows(LispException.class, fn::apply);
+			assertResult(true, fn, 1L);
+		}
+
+		assertResult(true, Numbers.FN_LESS, 1L, 2L);
+		assertResult(false, Numbers.FN_LESS, 2L, 2L);
+		assertResult(true, Numbers.FN_LESS, 1L, 2.5, 3L);
+		assertResult(false, Numbers.FN_LESS, 1L, 3L, 2L);
+		assertResult(true, Numbers.FN_LESS, 1L, 2L, 3L, 4L, 5L);
+		assertResult(false, Numbers.FN_LESS, 1L, 2L, 3L, 5L, 4L);
+		assertResult(false, Numbers.FN_LESS, 1L, 2L, 3L, 3L);
+
+		assertResult(true, Numbers.FN_GREATER, 2L, 1L);
+		assertResult(false, Numbers.FN_GREATER, 2L, 2L);
+		assertResult(true, Numbers.FN_GREATER, 3L, 2.5, 1L);
+		assertResult(false, Numbers.FN_GREATER, 3L, 1L, 2L);
+		assertResult(true, Numbers.FN_GREATER, 5L, 4L, 3L, 2L, 1L);
+		assertResult(false, Numbers.FN_GREATER, 5L, 4L, 3L, 1L, 2L);
+
+		assertResult(true, Numbers.FN_LESS_OR_EQUAL, 2L, 2L);
+		assertResult(false, Numbers.FN_LESS_OR_EQUAL, 3L, 2L);
+		assertResult(true, Numbers.FN_LESS_OR_EQUAL, 1L, 1.0, 2L);
+		assertResult(false, Numbers.FN_LESS_OR_EQUAL, 1L, 2L, 1L);
+		assertResult(true, Numbers.FN_LESS_OR_EQUAL, 1L, 1L, 2L, 2L, 3L);
+		assertResult(false, Numbers.FN_LESS_OR_EQUAL, 1L, 1L, 2L, 2L, 1L);
+
+		assertResult(true, Numbers.FN_GREATER_OR_EQUAL, 2L, 2L);
+		assertResult(false, Numbers.FN_GREATER_OR_EQUAL, 2L, 3L);
+		assertResult(true, Numbers.FN_GREATER_OR_EQUAL, 2L, 2.0, 1L);
+		assertResult(false, Numbers.FN_GREATER_OR_EQUAL, 2L, 1L, 2L);
+		assertResult(true, Numbers.FN_GREATER_OR_EQUAL, 3L, 3L, 2L, 2L, 1L);
+		assertResult(false, Numbers.FN_GREATER_OR_EQUAL, 3L, 3L, 2L, 2L, 3L);
+
+		assertResult(true, Numbers.FN_EQUIV, 1L, 1L, 1L, 1L);
+		assertResult(false, Numbers.FN_EQUIV, 1L, 1L, 1L, 1.0);
+		assertResult(true, Numbers.FN_NUM_EQUALS, 1L, 1.0, 1L, 1.0);
+		assertResult(false, Numbers.FN_NUM_EQUALS, 1L, 1.0, 1L, 2L);
+	}
+
+	@Test
+	public void comparisonsFromLisp() {
+		assertEquals(true, eval("(< 1 2 3)"));
+		assertEquals(false, eval("(< 1 2 2)"));
+		assertEquals(true, eval("(<= 1 2 2)"));
+		assertEquals(true, eval("(> 3 2 1 0)"));
+		assertEquals(true, eval("(>= 3 3 1 0 -1)"));
+		assertEquals(true, eval("((fn [a b] (< a b)) 1 1.5)"));
+		assertEquals(true, eval("(apply < [1 2 3 4 5])"));
+		assertEquals(false, eval("(apply >= '(3 2 4))"));
+	}
+}
@@ -0,0 +1,236 @@
+package de.npcomplete.nplisp.corelibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.npcomplete.nplisp.Lisp;
+import de.npcomplete.nplisp.Repl;
+import de.npcomplete.nplisp.data.ArraySequence;
+import de.npcomplete.nplisp.data.Cons;
+import de.npcomplete.nplisp.data.MapEntry;
+import de.npcomplete.nplisp.data.PersistentArrayMap;
+import de.npcomplete.nplisp.data.PersistentHashMap;
+import de.npcomplete.nplisp.data.PersistentHashSet;
+import de.npcomplete.nplisp.data.PersistentVector;
+import de.npcomplete.nplisp.data.PrimitiveVector;
+import de.npcomplete.nplisp.data.Reduced;
+import de.npcomplete.nplisp.data.Reducible;
+import de.npcomplete.nplisp.data.Sequence;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory.Fn2;
+import de.npcomplete.nplisp.util.LispReader;
+
+public class ReduceTest {
+	private static Repl repl;
+
+	@BeforeClass
+	public static void createLisp() {
+		repl = new Repl(new Lisp(null));
+	}
+
+	/**
+	 * Collects the elements into a list. Without an initial value, the first call gets the first element.
+	 */
+	@SuppressWarnings("unchecked")
+	private static final LispFunction COLLECT = (Fn2) (acc, x) -> {
+		List<Object> list;
+		if (acc instanceof ArrayList) {
+			list = (List<Object>) acc;
+		} else {
+			list = new ArrayList<>();
+			list.add(acc);
+		}
+		list.add(x);
+		return list;
+	};
+
+	private static final LispFunction SUM = (Fn2) (a, b) -> (Long) a + (Long) b;
+
+	private static Object[] longs(int count) {
+		Object[] array = new Object[count];
+		for (int i = 0; i < count; i++) {
+			array[i] = (long) i + 1;
+		}
+		return array;
+	}
+
+	private static List<Object> elements(Object coll) {
+		List<Object> list = new ArrayList<>();
+		if (coll instanceof Map) {
+			for (Entry<?, ?> e : ((Map<?, ?>) coll).entrySet()) {
+				list.add(new MapEntry(e.getKey(), e.getValue()));
+			}
+		} else {
+			for (Object o : (Iterable<?>) coll) {
+				list.add(o);
+			}
+		}
+		return list;
+	}
+
+	private static Object reduce(LispFunction fn, Object coll) {
+		return CoreLibrary.FN_REDUCE.apply(fn, coll);
+	}
+
+	private static Object reduce(LispFunction fn, Object init, Object coll) {
+		return CoreLibrary.FN_REDUCE.apply(fn, init, coll);
+	}
+
+	private static Object eval(String form) {
+		return repl.evalStr(form);
+	}
+
+	private static List<Object> collections() {
+		Object[] items = longs(40);
+		Map<Object, Object> javaMap = new LinkedHashMap<>();
+		for (int i = 0; i < 40; i++) {
+			javaMap.put((long) i, "v" + i);
+		}
+		return Arrays.asList(
+				PersistentVector.create(items),
+				PersistentVector.create(items).seq(),
+				PrimitiveVector.create(PrimitiveVector.Type.LONG, items),
+				PrimitiveVector.create(PrimitiveVector.Type.DOUBLE, items).seq(0),
+				PersistentArrayMap.create(1L, "a", 2L, "b", 3L, "c"),
+				PersistentHashMap.create(javaMap),
+				PersistentHashSet.create(items),
+				new Cons(0L, new Cons(1L, PersistentVector.create(items).seq())),
+				Concat.concat(PersistentVector.create(items), new ArraySequence(items)),
+				new ArraySequence(items),
+				new ArrayList<>(Arrays.asList(items)),
+				new HashSet<>(Arrays.asList(items)),
+				javaMap,
+				new HashMap<>(javaMap));
+	}
+
+	@Test
+	public void reducesAllCollectionTypesInOrder() {
+		for (Object coll : collections()) {
+			List<Object> expected = elements(coll);
+			assertEquals(coll.getClass().getName(), expected, reduce(COLLECT, new ArrayList<>(), coll));
+			assertEquals(coll.getClass().getName(), expected, reduce(COLLECT, coll));
+		}
+	}
+
+	@Test
+	public void reducesWithAndWithoutInitialValue() {
+		Object[] items = longs(100);
+		assertEquals(5050L, reduce(SUM, PersistentVector.create(items)));
+		assertEquals(5060L, reduce(SUM, 10L, PersistentVector.create(items)));
+		assertEquals(5050L, reduce(SUM, new ArraySequence(items)));
+		assertEquals(5050L, eval("(reduce + (vector-of :long 1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 16 17 18 19 20 "
+				+ "21 22 23 24 25 26 27 28 29 30 31 32 33 34 35 36 37 38 39 40 41 42 43 44 45 46 47 48 49 50 "
+				+ "51 52 53 54 55 56 57 58 59 60 61 62 63 64 65 66 67 68 69 70 71 72 73 74 75 76 77 78 79 80 "
+				+ "81 82 83 84 85 86 87 88 89 90 91 92 93 94 95 96 97 98 99 100))"));
+		assertEquals(6L, eval("(reduce + #{1 2 3})"));
+		assertEquals(6L, eval("(reduce + 0 '(1 2 3))"));
+	}
+
+	@Test
+	public void singleElementIsReturnedWithoutCall() {
+		LispFunction fail = (Fn2) (a, b) -> {
+			throw new AssertionError("called with " + a + " and " + b);
+		};
+		for (Object coll : new Object[] {PersistentVector.create("x"), PersistentHashSet.create("x"),
+				new Cons("x", null), Arrays.asList("x")}) {
+			assertEquals("x", reduce(fail, coll));
+		}
+	}
+
+	@Test
+	public void emptyCollectionWithoutInitialValueCallsTheFunctionWithoutArguments() {
+		LispFunction f = new LispFunction() {
+			@Override
+			public Object apply() {
+				return "empty";
+			}
+
+			@Override
+			public Object apply(Object par1, Object par2) {
+				throw new AssertionError("called with " + par1 + " and " + par2);
+			}
+		};
+		for (Object coll : new Object[] {null, PersistentVector.EMPTY, PersistentArrayMap.EMPTY,
+				PersistentHashSet.EMPTY, PrimitiveVector.empty(PrimitiveVector.Type.LONG),
+				Sequence.EMPTY_SEQUENCE, new ArrayList<>(), new HashMap<>()}) {
+			assertEquals("empty", reduce(f, coll));
+			assertEquals("init", reduce(f, "init", coll));
+		}
+		assertEquals(0L, eval("(reduce + [])"));
+		assertEquals(1L, eval("(reduce * nil)"));
+	}
+
+	@Test
+	public void reducedStopsTheReduction() {
+		Object[] items = longs(40);
+		LispFunction untilFive = (Fn2) (a, b) -> (Long) b >= 5 ? new Reduced(a) : (Long) a + (Long) b;
+		for (Object coll : new Object[] {PersistentVector.create(items), PersistentVector.create(items).seq(),
+				PrimitiveVector.create(PrimitiveVector.Type.LONG, items), new ArraySequence(items),
+				new Cons(1L, new Cons(2L, PersistentVector.create(longs(40)).seq().next().next())),
+				Concat.concat(PersistentVector.create(longs(3)), new ArraySequence(items).next().next().next()),
+				Arrays.asList(items)}) {
+			// 1 + 2 + 3 + 4
+			assertEquals(coll.getClass().getName(), 10L, reduce(untilFive, coll));
+			assertEquals(coll.getClass().getName(), 110L, reduce(untilFive, 100L, coll));
+		}
+		assertEquals(6L, eval("(reduce (fn [a x] (if (= x 4) (reduced a) (+ a x))) (concat [1 2] [3 4 5]))"));
+		assertEquals(read(":stop"), eval("(reduce (fn [a x] (reduced :stop)) 0 #{1 2 3})"));
+		assertEquals(read(":stop"), eval("(reduce (fn [a x] (reduced :stop)) {:a 1 :b 2})"));
+	}
+
+	@Test
+	public void reducedStopsOnlyItsOwnReduction() {
+		// the inner reductions stop at the first element above 2, the outer one runs to the end
+		assertEquals(8L, eval("(reduce (fn [acc xs] (+ acc (reduce (fn [a x] (if (> x 2) (reduced a) (+ a x))) 0 xs))) "
+				+ "0 [[1 2 3] [1 5] [2 2]])"));
+		// an outer reduction over the elements of nested sequences
+		assertEquals(3L, eval("(reduce (fn [a x] (if (> x 2) (reduced a) (+ a x))) (concat (cons 1 (cons 2 '(3 4))) [5]))"));
+		// an inner reduction which returns a reduced value stops the outer one as well
+		assertEquals(1L, eval("(reduce (fn [acc x] (reduce (fn [a y] (reduced (reduced y))) nil [x])) nil [1 2])"));
+	}
+
+	@Test
+	public void reducedPredicate() {
+		assertEquals(true, eval("(reduced? (reduced 1))"));
+		assertEquals(false, eval("(reduced? 1)"));
+		assertEquals(1L, eval("(deref (reduced 1))"));
+	}
+
+	@Test
+	public void reducibleCollectionsReduceThemselvesWithoutInitialValue() {
+		// neither a sequence nor iterable, so reduce can only use its own loop
+		Reducible ones = (fn, init) -> {
+			Object result = init;
+			for (int i = 0; i < 3 && !(result instanceof Reduced); i++) {
+				result = fn.apply(result, 1L);
+			}
+			return result;
+		};
+		assertEquals(3L, reduce(SUM, ones));
+		assertEquals(13L, reduce(SUM, 10L, ones));
+		assertFalse(CoreLibrary.isReduced(reduce(SUM, ones)));
+	}
+
+	@Test
+	public void reducedResultIsUnwrappedOnce() {
+		Reduced inner = new Reduced("x");
+		assertSame(inner, reduce((Fn2) (a, b) -> new Reduced(inner), 0L, PersistentVector.create(1L)));
+	}
+
+	private static Object read(String form) {
+		return LispReader.readStr(form);
+	}
+}
@@ -0,0 +1,189 @@
+package de.npcomplete.nplisp.data;
+
+import static de.npcomplete.nplisp.data.DataFixtures.SIZES;
+import static de.npcomplete.nplisp.data.DataFixtures.array;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+public class ChunkedSequenceTest {
+	/**
+	 * Collects the elements chunk by chunk, and checks that every chunk but the last
+	 * ends at a block of 32 elements. 'offset' is the position of the first element in its block.
+	 */
+	private static List<Object> walkChunks(Sequence seq, int offset) {
+		List<Object> result = new ArrayList<>();
+		int index = offset;
+		while (seq != null && !seq.empty()) {
+			ChunkedSequence chunked = (ChunkedSequence) seq;
+			Chunk chunk = chunked.chunkFirst();
+			assertTrue(chunk.size() > 0);
+			assertEquals(chunk.size(), chunk.count());
+			for (int i = 0; i < chunk.size(); i++) {
+				result.add(chunk.nth(i));
+			}
+			index += chunk.size();
+			seq = chunked.chunkNext();
+			if (seq != null) {
+				assertEquals("chunk did not end at a block boundary", 0, index % 32);
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void arrayChunkReadsItsRange() {
+		Object[] array = array(10);
+		ArrayChunk chunk = new ArrayChunk(array, 3, 7);
+		assertEquals(4, chunk.size());
+		assertEquals(4, chunk.count());
+		assertEquals(3L, chunk.nth(0));
+		assertEquals(6L, chunk.nth(3));
+		for (int index : new int[] {-1, 4}) {
+			try {
+				chunk.nth(index);
+				fail("chunk accepted index " + index);
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void arraySequenceChunksCoverTheArray() {
+		for (int size : SIZES) {
+			if (size == 0) {
+				continue;
+			}
+			Object[] array = array(size);
+			assertEquals(Arrays.asList(array), walkChunks(new ArraySequence(array), 0));
+			assertEquals(Arrays.asList(array), Arrays.asList(new ArraySequence(array).toArray()));
+
+			// the blocks of a view start at its first element
+			int start = Math.min(5, size - 1);
+			ArraySequence view = ArraySequence.view(array, start);
+			assertEquals(Arrays.asList(array).subList(start, size), walkChunks(view, 0));
+			assertEquals(Math.min(32, size - start), view.chunkFirst().size());
+		}
+	}
+
+	@Test
+	public void chunkMoreIsEmptyAtTheEnd() {
+		ArraySequence seq = new ArraySequence(array(3));
+		assertNull(seq.chunkNext());
+		assertSame(Sequence.EMPTY_SEQUENCE, seq.chunkMore());
+
+		ArraySequence longer = new ArraySequence(array(40));
+		assertEquals(32L, ((ChunkedSequence) longer.chunkMore()).first());
+	}
+
+	@Test
+	public void vectorSeqChunksAreTheLeaves() {
+		for (int size : SIZES) {
+			Object[] array = array(size);
+			PersistentVector v = PersistentVector.create(array);
+			Sequence seq = v.seq();
+			if (size == 0) {
+				assertNull(seq);
+				continue;
+			}
+			assertEquals(Arrays.asList(array), walkChunks(seq, 0));
+
+			// after next(), the first chunk is the rest of the leaf
+			Sequence second = seq.next();
+			if (second != null) {
+				assertEquals(Math.min(32, size) - 1, ((ChunkedSequence) second).chunkFirst().size());
+				assertEquals(Arrays.asList(array).subList(1, size), walkChunks(second, 1));
+			}
+		}
+	}
+
+	@Test
+	public void primitiveVectorSeqChunksAreTheLeaves() {
+		for (int size : SIZES) {
+			if (size == 0) {
+				continue;
+			}
+			Object[] array = array(size);
+			PrimitiveVector v = PrimitiveVector.create(PrimitiveVector.Type.LONG, array);
+			assertEquals(Arrays.asList(array), walkChunks(v.seq(0), 0));
+
+			int start = size / 2;
+			assertEquals(Arrays.asList(array).subList(start, size), walkChunks(v.seq(start), start));
+		}
+	}
+
+	@Test
+	public void iteratorContinuesWithAnUnchunkedRest() {
+		Sequence rest = new Cons("x", new Cons("y", null));
+		ChunkedSequence seq = new ChunkedSequence() {
+			@Override
+			public Chunk chunkFirst() {
+				return new ArrayChunk(new Object[] {"a", "b"}, 0, 2);
+			}
+
+			@Override
+			public Sequence chunkNext() {
+				return rest;
+			}
+
+			@Override
+			public Object first() {
+				return "a";
+			}
+
+			@Override
+			public Sequence next() {
+				return new Cons("b", rest);
+			}
+
+			@Override
+			public boolean empty() {
+				return false;
+			}
+		};
+		List<Object> elements = new ArrayList<>();
+		Iterator<Object> it = seq.iterator();
+		while (it.hasNext()) {
+			elements.add(it.next());
+		}
+		List<Object> expected = new ArrayList<>();
+		expected.add("a");
+		expected.add("b");
+		expected.add("x");
+		expected.add("y");
+		assertEquals(expected, elements);
+		assertFalse(it.hasNext());
+		try {
+			it.next();
+			fail("iterator returned an element after the end");
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void iteratorWalksAllChunks() {
+		for (int size : SIZES) {
+			Object[] array = array(size);
+			List<Object> iterated = new ArrayList<>();
+			if (size > 0) {
+				for (Object o : PersistentVector.create(array).seq()) {
+					iterated.add(o);
+				}
+			}
+			assertEquals(Arrays.asList(array), iterated);
+		}
+	}
+}
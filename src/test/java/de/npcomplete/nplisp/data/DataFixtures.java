@@ -0,0 +1,161 @@
+package de.npcomplete.nplisp.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * Fixtures and assertions shared by the tests of the data structures.
+ */
+final class DataFixtures {
+	/**
+	 * Sizes at and around the points where the tail is full (32), the root
+	 * needs a second level (32 + 1024) and a third level (32 + 32768).
+	 */
+	static final int[] SIZES = {0, 1, 31, 32, 33, 63, 64, 65, 1055, 1056, 1057, 32799, 32800, 32801};
+
+	/**
+	 * Key with a given hash code, so tests can decide which keys share trie positions.
+	 */
+	static final class Key {
+		final String name;
+		final int hash;
+
+		Key(String name, int hash) {
+			this.name = name;
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).name.equals(name);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			return name + "#" + Integer.toHexString(hash);
+		}
+	}
+
+	private DataFixtures() {
+	}
+
+	/**
+	 * Returns the longs from 0 to count - 1.
+	 */
+	static List<Object> range(int count) {
+		List<Object> list = new ArrayList<>(count);
+		for (long i = 0; i < count; i++) {
+			list.add(i);
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the longs from 0 to count - 1 as an array.
+	 */
+	static Object[] array(int count) {
+		return range(count).toArray();
+	}
+
+	/**
+	 * Adds the elements one at a time to 'empty', and checks the collection against
+	 * the elements added so far whenever its size is one of the {@link #SIZES}.
+	 * There must be more elements than the largest size.
+	 */
+	static <C> void conjAtSizes(C empty, BiFunction<C, Object, C> conj, List<Object> elements,
+			BiConsumer<List<Object>, C> check) {
+		C collection = empty;
+		int sizeIndex = 0;
+		for (int i = 0; sizeIndex < SIZES.length; i++) {
+			if (i == SIZES[sizeIndex]) {
+				check.accept(elements.subList(0, i), collection);
+				sizeIndex++;
+			}
+			collection = conj.apply(collection, elements.get(i));
+		}
+	}
+
+	/**
+	 * Checks size, element access, iteration order, equality in both directions
+	 * and the hash code of the list.
+	 */
+	static void assertSameContent(List<?> expected, List<?> actual) {
+		assertEquals(expected.size(), actual.size());
+		if (actual instanceof Countable) {
+			assertEquals(expected.size(), ((Countable) actual).count());
+		}
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i), actual.get(i));
+		}
+		Iterator<?> it = actual.iterator();
+		for (Object o : expected) {
+			assertEquals(o, it.next());
+		}
+		assertFalse(it.hasNext());
+		assertEquals(expected, actual);
+		assertEquals(actual, expected);
+		assertEquals(expected.hashCode(), actual.hashCode());
+	}
+
+	/**
+	 * Checks size, lookup, that iteration yields every element exactly once,
+	 * equality in both directions and the hash code of the set.
+	 */
+	static void assertSameContent(Set<?> expected, Set<?> actual) {
+		assertEquals(expected.size(), actual.size());
+		if (actual instanceof Countable) {
+			assertEquals(expected.size(), ((Countable) actual).count());
+		}
+		for (Object o : expected) {
+			assertTrue("missing " + o, actual.contains(o));
+		}
+		Set<Object> iterated = new HashSet<>();
+		for (Object o : actual) {
+			assertTrue("duplicate " + o, iterated.add(o));
+		}
+		assertEquals(expected, iterated);
+		assertEquals(expected, actual);
+		assertEquals(actual, expected);
+		assertEquals(expected.hashCode(), actual.hashCode());
+	}
+
+	/**
+	 * Checks size, lookup, that iteration yields every entry exactly once,
+	 * equality in both directions and the hash code of the map.
+	 */
+	static void assertSameContent(Map<?, ?> expected, Map<?, ?> actual) {
+		assertEquals(expected.size(), actual.size());
+		if (actual instanceof Countable) {
+			assertEquals(expected.size(), ((Countable) actual).count());
+		}
+		for (Map.Entry<?, ?> e : expected.entrySet()) {
+			assertTrue("missing " + e.getKey(), actual.containsKey(e.getKey()));
+			assertEquals(e.getValue(), actual.get(e.getKey()));
+		}
+		Map<Object, Object> iterated = new HashMap<>();
+		for (Map.Entry<?, ?> e : actual.entrySet()) {
+			assertFalse("duplicate " + e.getKey(), iterated.containsKey(e.getKey()));
+			iterated.put(e.getKey(), e.getValue());
+		}
+		assertEquals(expected, iterated);
+		assertEquals(expected, actual);
+		assertEquals(actual, expected);
+		assertEquals(expected.hashCode(), actual.hashCode());
+	}
+}
@@ -0,0 +1,175 @@
+package de.npcomplete.nplisp.data;
+
+import static de.npcomplete.nplisp.data.DataFixtures.assertSameContent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.npcomplete.nplisp.LispException;
+
+public class PersistentArrayMapTest {
+	private static final int THRESHOLD = PersistentArrayMap.HASHTABLE_THRESHOLD;
+
+	private static Object[] keyValues(int count) {
+		Object[] keyValues = new Object[count * 2];
+		for (int i = 0; i < count; i++) {
+			keyValues[2 * i] = new Keyword("k" + i);
+			keyValues[2 * i + 1] = (long) i;
+		}
+		return keyValues;
+	}
+
+	private static List<Object> keys(Map<Object, Object> map) {
+		return new ArrayList<>(map.keySet());
+	}
+
+	@Test
+	public void keepsInsertionOrder() {
+		PersistentMap m = PersistentArrayMap.create("c", 1L, "a", 2L, "b", 3L);
+		assertTrue(m instanceof PersistentArrayMap);
+		List<Object> expected = new ArrayList<>();
+		expected.add("c");
+		expected.add("a");
+		expected.add("b");
+		assertEquals(expected, keys(m));
+		// replacing a value keeps the position of the key
+		assertEquals(expected, keys(m.assoc("a", 20L)));
+	}
+
+	@Test
+	public void createPromotesAboveThreshold() {
+		assertTrue(PersistentArrayMap.create(keyValues(THRESHOLD)) instanceof PersistentArrayMap);
+		assertTrue(PersistentArrayMap.create(keyValues(THRESHOLD + 1)) instanceof PersistentHashMap);
+		assertTrue(PersistentArrayMap.createWithCheck(keyValues(THRESHOLD + 1)) instanceof PersistentHashMap);
+	}
+
+	@Test
+	public void assocPromotesToHashMapAtThreshold() {
+		PersistentMap m = PersistentArrayMap.EMPTY;
+		Map<Object, Object> expected = new HashMap<>();
+		for (long i = 0; i < THRESHOLD; i++) {
+			m = m.assoc(i, "v" + i);
+			expected.put(i, "v" + i);
+			assertTrue(m instanceof PersistentArrayMap);
+		}
+		// replacing a value of a full array map doesn't promote it
+		assertTrue(m.assoc(0L, "changed") instanceof PersistentArrayMap);
+
+		PersistentMap promoted = m.assoc((long) THRESHOLD, "last");
+		assertTrue(promoted instanceof PersistentHashMap);
+		assertEquals(THRESHOLD + 1, promoted.size());
+		assertEquals(THRESHOLD, m.size());
+		expected.put((long) THRESHOLD, "last");
+		assertSameContent(expected, promoted);
+	}
+
+	@Test
+	public void transientPromotesToHashMapAtThreshold() {
+		PersistentArrayMap source = (PersistentArrayMap) PersistentArrayMap.create(keyValues(2));
+		PersistentArrayMap.TransientArrayMap t = source.asTransient();
+		Map<Object, Object> expected = new HashMap<>(source);
+		for (long i = 0; i < 20; i++) {
+			t.assoc(i, i);
+			expected.put(i, i);
+			assertEquals(expected.size(), t.count());
+		}
+		t.without(5L);
+		expected.remove(5L);
+		PersistentMap result = t.persistent();
+		assertTrue(result instanceof PersistentHashMap);
+		assertSameContent(expected, result);
+		assertEquals(2, source.size());
+
+		try {
+			t.assoc("x", 1L);
+			fail("transient map was changed after persistent()");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void transientChangesAreNotVisibleInItsSource() {
+		PersistentArrayMap source = (PersistentArrayMap) PersistentArrayMap.create("a", 1L, "b", 2L, "c", 3L);
+		PersistentArrayMap.TransientArrayMap t = source.asTransient();
+		t.assoc("a", 10L).without("b").assoc("d", 4L);
+		PersistentMap result = t.persistent();
+
+		assertEquals(PersistentArrayMap.create("a", 1L, "b", 2L, "c", 3L), source);
+		assertEquals(PersistentArrayMap.create("a", 10L, "c", 3L, "d", 4L), result);
+	}
+
+	@Test
+	public void withoutRemovesOnlyTheKey() {
+		PersistentArrayMap m = (PersistentArrayMap) PersistentArrayMap.create("a", 1L, "b", 2L, "c", 3L);
+		PersistentArrayMap withoutB = m.without("b");
+		assertEquals(2, withoutB.size());
+		assertFalse(withoutB.containsKey("b"));
+		assertEquals(3L, withoutB.get("c"));
+		assertSame(withoutB, withoutB.without("b"));
+		assertSame(PersistentArrayMap.EMPTY, withoutB.without("a").without("c"));
+		assertEquals(3, m.size());
+	}
+
+	@Test
+	public void keywordsAreFoundWithOtherInstances() {
+		PersistentMap m = PersistentArrayMap.create(new Keyword("a"), 1L, new Keyword("b"), 2L, "a", 3L);
+		assertEquals(1L, m.get(new Keyword("a")));
+		assertEquals(2L, m.get(new Keyword("b")));
+		assertEquals(3L, m.get("a"));
+		assertFalse(m.containsKey(new Keyword("c")));
+		assertFalse(m.containsKey(new Keyword("ns", "a")));
+	}
+
+	@Test
+	public void createWithCheckRejectsDuplicateKeys() {
+		try {
+			PersistentArrayMap.createWithCheck(new Keyword("a"), 1L, new Keyword("a"), 2L);
+			fail("duplicate key was accepted");
+		} catch (LispException e) {
+			// expected
+		}
+		PersistentMap m = PersistentArrayMap.create(new Keyword("a"), 1L, new Keyword("a"), 2L);
+		assertEquals(1, m.size());
+		assertEquals(2L, m.get(new Keyword("a")));
+	}
+
+	@Test
+	public void equalsAndHashCodeAgreeAcrossImplementations() {
+		for (int count = 0; count <= THRESHOLD; count++) {
+			Object[] keyValues = keyValues(count);
+			PersistentMap arrayMap = PersistentArrayMap.create(keyValues);
+			PersistentMap hashMap = PersistentHashMap.create(keyValues);
+			Map<Object, Object> javaMap = new LinkedHashMap<>();
+			for (int i = 0; i < keyValues.length; i += 2) {
+				javaMap.put(keyValues[i], keyValues[i + 1]);
+			}
+			assertTrue(arrayMap instanceof PersistentArrayMap);
+
+			assertEquals(arrayMap, hashMap);
+			assertEquals(hashMap, arrayMap);
+			assertEquals(arrayMap, javaMap);
+			assertEquals(javaMap, arrayMap);
+			assertEquals(javaMap.hashCode(), arrayMap.hashCode());
+			assertEquals(javaMap.hashCode(), hashMap.hashCode());
+
+			if (count > 0) {
+				PersistentMap changed = arrayMap.assoc(keyValues[0], "other");
+				assertNotEquals(changed, hashMap);
+				assertNotEquals(hashMap, changed);
+				assertNotEquals(javaMap, changed);
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package de.npcomplete.nplisp.data;
+
+import static de.npcomplete.nplisp.data.DataFixtures.assertSameContent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.data.DataFixtures.Key;
+
+public class PersistentHashMapTest {
+	@Test
+	public void collidingKeysCanBeAddedAndRemoved() {
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		assertEquals("Aa".hashCode(), "C#".hashCode());
+
+		PersistentHashMap m = PersistentHashMap.EMPTY
+				.assoc("Aa", 1L)
+				.assoc("BB", 2L)
+				.assoc("other", 0L)
+				.assoc("C#", 3L);
+		assertEquals(4, m.size());
+		assertEquals(1L, m.get("Aa"));
+		assertEquals(2L, m.get("BB"));
+		assertEquals(3L, m.get("C#"));
+		assertNull(m.get("AaBB"));
+
+		PersistentHashMap replaced = m.assoc("BB", 20L);
+		assertEquals(4, replaced.size());
+		assertEquals(20L, replaced.get("BB"));
+		assertEquals(2L, m.get("BB"));
+
+		PersistentHashMap withoutMiddle = m.without("BB");
+		assertEquals(3, withoutMiddle.size());
+		assertFalse(withoutMiddle.containsKey("BB"));
+		assertEquals(1L, withoutMiddle.get("Aa"));
+		assertEquals(3L, withoutMiddle.get("C#"));
+		assertTrue(m.containsKey("BB"));
+
+		PersistentHashMap empty = m.without("C#").without("other").without("Aa").without("BB");
+		assertEquals(0, empty.size());
+		assertFalse(empty.entrySet().iterator().hasNext());
+		assertSame(withoutMiddle, withoutMiddle.without("BB"));
+	}
+
+	@Test
+	public void collisionsMoveDownWhenAKeyWithAnotherHashArrives() {
+		// the first two keys collide, the third one only shares the lowest 10 bits with them
+		Key a = new Key("a", 0x1234_5678);
+		Key b = new Key("b", 0x1234_5678);
+		Key c = new Key("c", 0x0000_0278);
+		Map<Object, Object> expected = new HashMap<>();
+		PersistentHashMap m = PersistentHashMap.EMPTY;
+		for (Key k : new Key[] {a, b, c}) {
+			m = m.assoc(k, k.name);
+			expected.put(k, k.name);
+			assertSameContent(expected, m);
+		}
+		for (Key k : new Key[] {b, c, a}) {
+			m = m.without(k);
+			expected.remove(k);
+			assertSameContent(expected, m);
+		}
+		assertEquals(0, m.size());
+	}
+
+	@Test
+	public void trieGrowsAndShrinksLevels() {
+		// all keys share the lowest 25 bits, so they only differ at the deepest levels of the trie
+		List<Key> keys = new ArrayList<>();
+		for (int i = 0; i < 128; i++) {
+			keys.add(new Key("k" + i, (i << 25) | 0x0155_5555));
+		}
+		Map<Object, Object> expected = new HashMap<>();
+		PersistentHashMap m = PersistentHashMap.EMPTY;
+		for (Key k : keys) {
+			m = m.assoc(k, k.name);
+			expected.put(k, k.name);
+		}
+		assertSameContent(expected, m);
+
+		Collections.shuffle(keys, new Random(42));
+		for (Key k : keys) {
+			PersistentHashMap before = m;
+			m = m.without(k);
+			expected.remove(k);
+			assertSameContent(expected, m);
+			assertTrue(before.containsKey(k));
+		}
+		assertEquals(0, m.size());
+	}
+
+	@Test
+	public void randomAssocAndDissocAgreeWithHashMap() {
+		Random random = new Random(1234);
+		Object[] keys = new Object[300];
+		for (int i = 0; i < keys.length; i++) {
+			switch (i % 3) {
+				case 0:
+					keys[i] = (long) i;
+					break;
+				case 1:
+					keys[i] = new Key("k" + i, random.nextInt(16));
+					break;
+				default:
+					keys[i] = "s" + i;
+			}
+		}
+		Map<Object, Object> expected = new HashMap<>();
+		PersistentHashMap m = PersistentHashMap.EMPTY;
+		for (int i = 0; i < 2000; i++) {
+			Object key = keys[random.nextInt(keys.length)];
+			if (random.nextInt(3) == 0) {
+				m = m.without(key);
+				expected.remove(key);
+			} else {
+				m = m.assoc(key, (long) i);
+				expected.put(key, (long) i);
+			}
+			assertEquals(expected.size(), m.size());
+		}
+		assertSameContent(expected, m);
+
+		for (Object key : new ArrayList<>(expected.keySet())) {
+			m = m.without(key);
+			expected.remove(key);
+		}
+		assertSameContent(expected, m);
+		assertEquals(PersistentHashMap.EMPTY, m);
+	}
+
+	@Test
+	public void nilKeyIsStoredOutsideTheTrie() {
+		PersistentHashMap m = PersistentHashMap.create(null, 1L, "a", 2L);
+		assertEquals(2, m.size());
+		assertTrue(m.containsKey(null));
+		assertEquals(1L, m.get(null));
+
+		Map<Object, Object> expected = new HashMap<>();
+		expected.put(null, 1L);
+		expected.put("a", 2L);
+		assertSameContent(expected, m);
+
+		PersistentHashMap withoutNil = m.without(null);
+		assertEquals(1, withoutNil.size());
+		assertFalse(withoutNil.containsKey(null));
+		assertTrue(m.containsKey(null));
+	}
+
+	@Test
+	public void transientChangesAreNotVisibleInItsSource() {
+		PersistentHashMap source = PersistentHashMap.create("Aa", 1L, "BB", 2L, 3L, 3L);
+		Map<Object, Object> sourceContent = new HashMap<>(source);
+
+		PersistentHashMap.TransientHashMap t = source.asTransient();
+		for (long i = 100; i < 200; i++) {
+			t.assoc(i, "v" + i);
+		}
+		t.assoc("Aa", 10L).without("BB").without(3L).assoc("C#", 30L);
+		PersistentHashMap result = t.persistent();
+
+		assertSameContent(sourceContent, source);
+		assertEquals(100 + 2, result.size());
+		assertEquals(10L, result.get("Aa"));
+		assertEquals(30L, result.get("C#"));
+		assertFalse(result.containsKey("BB"));
+
+		// a second transient must not modify the nodes of the first result
+		Map<Object, Object> resultContent = new HashMap<>(result);
+		PersistentHashMap.TransientHashMap t2 = result.asTransient();
+		for (long i = 100; i < 200; i++) {
+			t2.assoc(i, "changed").without("Aa");
+		}
+		PersistentHashMap result2 = t2.persistent();
+		assertSameContent(resultContent, result);
+		assertEquals("changed", result2.get(150L));
+		assertFalse(result2.containsKey("Aa"));
+	}
+
+	@Test
+	public void transientCantBeUsedAfterPersistent() {
+		PersistentHashMap.TransientHashMap t = PersistentHashMap.EMPTY.asTransient().assoc("a", 1L);
+		PersistentHashMap m = t.persistent();
+		try {
+			t.assoc("b", 2L);
+			fail("transient map was changed after persistent()");
+		} catch (IllegalStateException expected) {
+			// expected
+		}
+		assertEquals(1, m.size());
+	}
+
+	@Test
+	public void transientCantBeUsedByAnotherThread() throws InterruptedException {
+		PersistentHashMap.TransientHashMap t = PersistentHashMap.EMPTY.asTransient();
+		RuntimeException[] error = new RuntimeException[1];
+		Thread thread = new Thread(() -> {
+			try {
+				t.assoc("a", 1L);
+			} catch (RuntimeException e) {
+				error[0] = e;
+			}
+		});
+		thread.start();
+		thread.join();
+		assertTrue(error[0] instanceof IllegalStateException);
+		assertEquals(0, t.count());
+	}
+
+	@Test
+	public void equalsAndHashCodeAgreeWithHashMap() {
+		Map<Object, Object> expected = new HashMap<>();
+		PersistentHashMap m = PersistentHashMap.EMPTY;
+		for (long i = 0; i < 1000; i++) {
+			expected.put(i, "v" + i);
+			m = m.assoc(i, "v" + i);
+		}
+		assertEquals(expected, m);
+		assertEquals(m, expected);
+		assertEquals(expected.hashCode(), m.hashCode());
+		assertEquals(m, PersistentHashMap.create(expected));
+
+		PersistentHashMap changed = m.assoc(500L, "other");
+		assertFalse(changed.equals(expected));
+		assertFalse(expected.equals(changed));
+	}
+
+	@Test
+	public void createWithCheckRejectsDuplicateKeys() {
+		assertEquals(2, PersistentHashMap.createWithCheck("Aa", 1L, "BB", 2L).size());
+		try {
+			PersistentHashMap.createWithCheck("Aa", 1L, "BB", 2L, "Aa", 3L);
+			fail("duplicate key was accepted");
+		} catch (LispException expected) {
+			// expected
+		}
+		assertEquals(3L, PersistentHashMap.create("Aa", 1L, "Aa", 3L).get("Aa"));
+	}
+}
@@ -0,0 +1,124 @@
+package de.npcomplete.nplisp.data;
+
+import static de.npcomplete.nplisp.data.DataFixtures.assertSameContent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.data.DataFixtures.Key;
+
+public class PersistentHashSetTest {
+	@Test
+	public void collidingElementsCanBeAddedAndRemoved() {
+		PersistentHashSet s = PersistentHashSet.create("Aa", "BB", "C#", "other");
+		assertEquals(4, s.size());
+		assertTrue(s.contains("BB"));
+
+		PersistentHashSet withoutBB = s.disj("BB");
+		assertEquals(3, withoutBB.size());
+		assertFalse(withoutBB.contains("BB"));
+		assertTrue(withoutBB.contains("Aa"));
+		assertTrue(withoutBB.contains("C#"));
+		assertTrue(s.contains("BB"));
+
+		assertSame(withoutBB, withoutBB.disj("BB"));
+		assertSame(s, s.conj("C#"));
+		assertEquals(0, s.disj("Aa").disj("BB").disj("C#").disj("other").size());
+	}
+
+	@Test
+	public void randomConjAndDisjAgreeWithHashSet() {
+		Random random = new Random(99);
+		Set<Object> expected = new HashSet<>();
+		PersistentHashSet s = PersistentHashSet.EMPTY;
+		for (int i = 0; i < 2000; i++) {
+			Object element = random.nextBoolean()
+					? (Object) (long) random.nextInt(200)
+					: new Key("k" + random.nextInt(200), random.nextInt(8));
+			if (random.nextInt(3) == 0) {
+				s = s.disj(element);
+				expected.remove(element);
+			} else {
+				s = s.conj(element);
+				expected.add(element);
+			}
+			assertEquals(expected.size(), s.size());
+		}
+		assertSameContent(expected, s);
+	}
+
+	@Test
+	public void getReturnsTheStoredElement() {
+		Key stored = new Key("a", 1);
+		Key lookup = new Key("a", 1);
+		PersistentHashSet s = PersistentHashSet.create(stored);
+		assertSame(stored, s.get(lookup));
+		assertNull(s.get(new Key("b", 1)));
+
+		// adding an equal element keeps the stored one
+		assertSame(stored, s.conj(lookup).get(lookup));
+		PersistentHashSet.TransientHashSet t = s.asTransient();
+		t.conj(lookup);
+		assertSame(stored, t.persistent().get(lookup));
+	}
+
+	@Test
+	public void transientChangesAreNotVisibleInItsSource() {
+		PersistentHashSet source = PersistentHashSet.create("Aa", "BB", 1L);
+		Set<Object> sourceContent = new HashSet<>(source);
+
+		PersistentHashSet.TransientHashSet t = source.asTransient();
+		for (long i = 100; i < 200; i++) {
+			t.conj(i);
+		}
+		t.disj("BB").disj(1L).conj("C#");
+		PersistentHashSet result = t.persistent();
+
+		assertSameContent(sourceContent, source);
+		assertEquals(102, result.size());
+		assertTrue(result.contains("C#"));
+		assertFalse(result.contains("BB"));
+
+		try {
+			t.conj("x");
+			fail("transient set was changed after persistent()");
+		} catch (IllegalStateException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void createWithCheckRejectsDuplicates() {
+		assertEquals(3, PersistentHashSet.createWithCheck("Aa", "BB", "C#").size());
+		try {
+			PersistentHashSet.createWithCheck("Aa", "BB", "Aa");
+			fail("duplicate element was accepted");
+		} catch (LispException expected) {
+			// expected
+		}
+		assertEquals(2, PersistentHashSet.create("Aa", "BB", "Aa").size());
+	}
+
+	@Test
+	public void nilIsAnElement() {
+		PersistentHashSet s = PersistentHashSet.create(null, 1L);
+		assertEquals(2, s.size());
+		assertTrue(s.contains(null));
+		assertFalse(s.disj(null).contains(null));
+
+		Set<Object> expected = new HashSet<>();
+		expected.add(null);
+		expected.add(1L);
+		assertSameContent(expected, s);
+	}
+}
@@ -0,0 +1,175 @@
+package de.npcomplete.nplisp.data;
+
+import static de.npcomplete.nplisp.data.DataFixtures.SIZES;
+import static de.npcomplete.nplisp.data.DataFixtures.assertSameContent;
+import static de.npcomplete.nplisp.data.DataFixtures.conjAtSizes;
+import static de.npcomplete.nplisp.data.DataFixtures.range;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory.Fn2;
+
+public class PersistentVectorTest {
+	@Test
+	public void conjAgreesWithArrayList() {
+		conjAtSizes(PersistentVector.EMPTY, PersistentVector::conj, range(SIZES[SIZES.length - 1] + 1),
+				DataFixtures::assertSameContent);
+	}
+
+	@Test
+	public void conjDoesNotChangeTheOriginal() {
+		for (int size : SIZES) {
+			List<Object> expected = range(size);
+			PersistentVector v = PersistentVector.create(expected);
+			PersistentVector longer = v.conj("new").conj("newer");
+			assertSameContent(expected, v);
+			assertEquals(size + 2, longer.size());
+			assertEquals("newer", longer.get(size + 1));
+		}
+	}
+
+	@Test
+	public void createAgreesWithConj() {
+		for (int size : SIZES) {
+			List<Object> expected = range(size);
+			PersistentVector created = PersistentVector.create(expected);
+			PersistentVector conjoined = PersistentVector.EMPTY;
+			for (Object o : expected) {
+				conjoined = conjoined.conj(o);
+			}
+			assertSameContent(expected, created);
+			assertEquals(created, conjoined);
+			assertSameContent(expected, PersistentVector.create(expected.toArray()));
+		}
+	}
+
+	@Test
+	public void assocNReplacesOnlyOneElement() {
+		for (int size : SIZES) {
+			if (size == 0) {
+				continue;
+			}
+			List<Object> expected = range(size);
+			PersistentVector v = PersistentVector.create(expected);
+			// first element, the one before the tail, the last one of the trie, and the last one
+			for (int index : new int[] {0, size / 2, Math.max(0, ((size - 1) & ~31) - 1), size - 1}) {
+				PersistentVector changed = v.assocN(index, "x");
+				List<Object> expectedChanged = new ArrayList<>(expected);
+				expectedChanged.set(index, "x");
+				assertSameContent(expectedChanged, changed);
+			}
+			assertSameContent(expected, v);
+		}
+	}
+
+	@Test
+	public void assocNAtCountAppends() {
+		for (int size : SIZES) {
+			List<Object> expected = range(size);
+			PersistentVector v = PersistentVector.create(expected);
+			PersistentVector appended = v.assocN(size, "end");
+			expected.add("end");
+			assertSameContent(expected, appended);
+			assertEquals(size, v.size());
+		}
+	}
+
+	@Test
+	public void assocNOutOfRangeFails() {
+		PersistentVector v = PersistentVector.create(range(40));
+		for (int index : new int[] {-1, 41}) {
+			try {
+				v.assocN(index, "x");
+				fail("assocN accepted index " + index);
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+		}
+		try {
+			v.get(40);
+			fail("get accepted index 40");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void transientChangesAreNotVisibleInItsSource() {
+		for (int size : SIZES) {
+			List<Object> expected = range(size);
+			PersistentVector source = PersistentVector.create(expected);
+			PersistentVector.TransientVector t = source.asTransient();
+			for (int i = 0; i < 1100; i++) {
+				t.conj("t" + i);
+			}
+			PersistentVector result = t.persistent();
+			assertSameContent(expected, source);
+			assertEquals(size + 1100, result.size());
+			assertEquals("t1099", result.get(size + 1099));
+
+			// a second transient must not modify the nodes of the first result
+			List<Object> resultContent = new ArrayList<>(result);
+			PersistentVector.TransientVector t2 = result.asTransient();
+			for (int i = 0; i < 1100; i++) {
+				t2.conj("u" + i);
+			}
+			PersistentVector result2 = t2.persistent();
+			assertSameContent(resultContent, result);
+			assertEquals("u0", result2.get(size + 1100));
+		}
+	}
+
+	@Test
+	public void transientCantBeUsedAfterPersistent() {
+		PersistentVector.TransientVector t = PersistentVector.EMPTY.asTransient().conj(1L);
+		PersistentVector v = t.persistent();
+		try {
+			t.conj(2L);
+			fail("transient vector was changed after persistent()");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			t.persistent();
+			fail("transient vector was made persistent twice");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(1, v.size());
+	}
+
+	@Test
+	public void seqAndReduceWalkAllElements() {
+		LispFunction sum = (Fn2) (a, b) -> (Long) a + (Long) b;
+		for (int size : SIZES) {
+			List<Object> expected = range(size);
+			PersistentVector v = PersistentVector.create(expected);
+			long expectedSum = (long) size * (size - 1) / 2;
+			assertEquals(expectedSum, v.reduce(sum, 0L));
+
+			List<Object> walked = new ArrayList<>();
+			for (Sequence s = v.seq(); s != null; s = s.next()) {
+				walked.add(s.first());
+			}
+			assertEquals(expected, walked);
+		}
+	}
+
+	@Test
+	public void equalsAndHashCodeAgreeWithArrayList() {
+		List<Object> expected = range(100);
+		PersistentVector v = PersistentVector.create(expected);
+		assertSameContent(expected, v);
+		assertNotEquals(v, v.assocN(50, "x"));
+		assertNotEquals(v, v.conj(100L));
+		assertSame(v, PersistentVector.create(v));
+	}
+}
@@ -0,0 +1,150 @@
+package de.npcomplete.nplisp.data;
+
+import static de.npcomplete.nplisp.data.DataFixtures.SIZES;
+import static de.npcomplete.nplisp.data.DataFixtures.conjAtSizes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.npcomplete.nplisp.LispException;
+import de.npcomplete.nplisp.data.PrimitiveVector.Type;
+import de.npcomplete.nplisp.function.LispFunction;
+import de.npcomplete.nplisp.function.LispFunctionFactory.Fn2;
+
+public class PrimitiveVectorTest {
+	private static List<Object> range(Type type, int count) {
+		List<Object> list = DataFixtures.range(count);
+		if (type == Type.DOUBLE) {
+			list.replaceAll(i -> (Long) i + 0.5);
+		}
+		return list;
+	}
+
+	/**
+	 * Checks the content like for any list, and the primitive accessors.
+	 */
+	private static void assertSameContent(List<Object> expected, PrimitiveVector actual) {
+		DataFixtures.assertSameContent(expected, actual);
+		for (int i = 0; i < expected.size(); i++) {
+			Number element = (Number) expected.get(i);
+			assertEquals(element.longValue(), actual.getLong(i));
+			assertEquals(element.doubleValue(), actual.getDouble(i), 0.0);
+		}
+	}
+
+	@Test
+	public void conjAgreesWithArrayList() {
+		for (Type type : Type.values()) {
+			conjAtSizes(PrimitiveVector.empty(type), PrimitiveVector::conj, range(type, SIZES[SIZES.length - 1] + 1),
+					PrimitiveVectorTest::assertSameContent);
+		}
+	}
+
+	@Test
+	public void createAgreesWithConj() {
+		for (Type type : Type.values()) {
+			for (int size : SIZES) {
+				List<Object> expected = range(type, size);
+				PrimitiveVector created = PrimitiveVector.create(type, expected);
+				PrimitiveVector conjoined = PrimitiveVector.empty(type);
+				for (Object o : expected) {
+					conjoined = conjoined.conj(o);
+				}
+				assertSameContent(expected, created);
+				assertEquals(created, conjoined);
+			}
+		}
+	}
+
+	@Test
+	public void conjAndAssocNDoNotChangeTheOriginal() {
+		for (Type type : Type.values()) {
+			for (int size : SIZES) {
+				List<Object> expected = range(type, size);
+				PrimitiveVector v = PrimitiveVector.create(type, expected);
+
+				PrimitiveVector appended = v.assocN(size, 7L);
+				assertEquals(size + 1, appended.size());
+				assertEquals(7L, appended.getLong(size));
+
+				if (size > 0) {
+					for (int index : new int[] {0, size / 2, size - 1}) {
+						PrimitiveVector changed = v.assocN(index, 7L);
+						List<Object> expectedChanged = new ArrayList<>(expected);
+						expectedChanged.set(index, type == Type.LONG ? (Object) 7L : (Object) 7.0);
+						assertSameContent(expectedChanged, changed);
+					}
+				}
+				assertSameContent(expected, v);
+			}
+		}
+	}
+
+	@Test
+	public void elementsAreConvertedToTheType() {
+		PrimitiveVector longs = PrimitiveVector.create(Type.LONG, 1.9, 2L);
+		assertEquals(1L, longs.get(0));
+		PrimitiveVector doubles = PrimitiveVector.create(Type.DOUBLE, 1L, 2.5);
+		assertEquals(1.0, doubles.get(0));
+		assertEquals(2L, doubles.getLong(1));
+	}
+
+	@Test
+	public void nonNumbersAreRejected() {
+		PrimitiveVector v = PrimitiveVector.create(Type.LONG, 1L);
+		for (Object value : new Object[] {"a", null}) {
+			try {
+				v.conj(value);
+				fail("vector of longs accepted " + value);
+			} catch (LispException e) {
+				// expected
+			}
+		}
+		try {
+			v.assocN(0, "a");
+			fail("vector of longs accepted a string");
+		} catch (LispException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void arrayForReturnsTheLeafOfAnIndex() {
+		PrimitiveVector v = PrimitiveVector.create(Type.LONG, range(Type.LONG, 1057));
+		for (int index : new int[] {0, 31, 32, 1023, 1024, 1055, 1056}) {
+			long[] leaf = (long[]) v.arrayFor(index);
+			assertEquals(index, leaf[index & 31]);
+		}
+		try {
+			v.arrayFor(1057);
+			fail("arrayFor accepted the size as index");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void seqAndReduceWalkAllElements() {
+		LispFunction sum = (Fn2) (a, b) -> (Long) a + (Long) b;
+		for (int size : SIZES) {
+			List<Object> expected = range(Type.LONG, size);
+			PrimitiveVector v = PrimitiveVector.create(Type.LONG, expected);
+			assertEquals((long) size * (size - 1) / 2, v.reduce(sum, 0L));
+
+			List<Object> walked = new ArrayList<>();
+			for (Sequence s = v.seq(0); s != null; s = s.next()) {
+				walked.add(s.first());
+			}
+			assertEquals(expected, walked);
+			if (size > 0) {
+				assertTrue(v.seq(size - 1) instanceof PrimitiveVector.Seq);
+				assertEquals(expected.get(size - 1), v.seq(size - 1).first());
+			}
+		}
+	}
+}